@@ -50,6 +50,66 @@ function loadChartData(chartName, data, title, labels, xlabel, ylabel, y2label,
   return plot;
 }
 
+function loadLatencyChart(chartName, latencyData, title, dateFormat) {
+  // Replace any chart previously drawn for a different operation.
+  $('#' + chartName).empty();
+  return $.jqplot(chartName,
+      [latencyData.p50, latencyData.p95, latencyData.p99], {
+      title: title,
+      series: [
+        {showMarker: false, label: '50th percentile'},
+        {showMarker: false, label: '95th percentile'},
+        {showMarker: false, label: '99th percentile'}],
+      legend: {show: true, location: 'nw'},
+      axes: {
+        xaxis: {
+          label: 'Time Period',
+          renderer: $.jqplot.DateAxisRenderer,
+          tickOptions: {formatString: dateFormat},
+          min: latencyData.p50[0][0],
+          max: latencyData.p50[latencyData.p50.length - 1][0]
+        },
+        yaxis: {
+          label: 'Duration (ms)',
+          labelRenderer: $.jqplot.CanvasAxisLabelRenderer,
+          min: 0
+        }
+      },
+      highlighter: {
+        show: true,
+        sizeAdjust: 5
+      }
+  });
+}
+
+function formatLatencyData(stats, latency) {
+  var data = {p50: [], p95: [], p99: []};
+  $.each(stats.statData, function(key, val) {
+    var time = new Date(val.time);
+    var percentiles = val.latencies[latency];
+    data.p50.push([time, percentiles ? percentiles.p50 : 0]);
+    data.p95.push([time, percentiles ? percentiles.p95 : 0]);
+    data.p99.push([time, percentiles ? percentiles.p99 : 0]);
+  });
+  return data;
+}
+
+var latestStats;
+
+function loadLatencyCharts() {
+  if (!latestStats) {
+    return;
+  }
+  var latency = $('#gaf-latency-select').val();
+  loadLatencyChart('gaf-latency-chart-minute',
+      formatLatencyData(latestStats[0], latency), 'Last Minute',
+      '%#I:%M:%S %p');
+  loadLatencyChart('gaf-latency-chart-hour',
+      formatLatencyData(latestStats[1], latency), 'Last Hour', '%#I:%M %p');
+  loadLatencyChart('gaf-latency-chart-day',
+      formatLatencyData(latestStats[2], latency), 'Last Day', '%#I:%M %p');
+}
+
 function formatChartData(stats, timeResolution) {
   var data = {
     responsesAvg: [],
@@ -133,6 +193,14 @@ function getStatsCallback(result, error) {
       data.simpleStats.numTotalNonGsaRequests);
   $('#gaf-num-unique-non-gsa-requests').text(
       notAvailableInReducedMemMode(data.simpleStats.numUniqueNonGsaRequests));
+  $('#gaf-document-cache-hits').text(data.simpleStats.numDocumentCacheHits);
+  $('#gaf-document-cache-misses').text(
+      data.simpleStats.numDocumentCacheMisses);
+  $('#gaf-authz-cache-hits').text(data.simpleStats.numAuthzCacheHits);
+  $('#gaf-authz-cache-misses').text(data.simpleStats.numAuthzCacheMisses);
+  $('#gaf-acl-cache-hits').text(data.simpleStats.numAclCacheHits.join(' / '));
+  $('#gaf-acl-cache-misses').text(
+      data.simpleStats.numAclCacheMisses.join(' / '));
   $('#gaf-when-started').text(String(new Date(data.simpleStats.whenStarted)));
   $('#gaf-time-resolution').text(data.simpleStats.timeResolution);
   $('#gaf-num-total-groups-pushed').text(
@@ -233,6 +301,58 @@ function getStatsCallback(result, error) {
       [vals[2].numberOfGroupsPushed],
       'Last Day', ['Groups'], 'Time Period',
       '# Groups pushed', null, '%#I:%M %p');
+  latestStats = data.stats;
+  loadLatencyCharts();
+
+  fillTopTable('#gaf-most-gsa-requested',
+      data.topStats.mostGsaRequestedDocIds);
+  fillTopTable('#gaf-most-non-gsa-requested',
+      data.topStats.mostNonGsaRequestedDocIds);
+  fillTopTable('#gaf-most-pushed', data.topStats.mostPushedDocIds);
+  fillTopTable('#gaf-largest-groups', data.topStats.largestGroupsPushed);
+  fillTransformTable(data.transformStats);
+}
+
+function fillTransformTable(stages) {
+  var table = $('#gaf-transform-table');
+  table.find('tr:gt(0)').remove();
+  if (stages.length === 0) {
+    table.append($('<tr/>').append($('<td colspan="9"/>').text(
+        'No metadata or content transforms are configured')));
+    return;
+  }
+  $.each(stages, function(key, stage) {
+    var mean = stage.invocations
+        ? (stage.durationSumMicros / stage.invocations / 1000).toFixed(3)
+        : '-';
+    table.append($('<tr/>')
+        .append($('<td/>').text(stage.pipeline))
+        .append($('<td/>').text(stage.name))
+        .append($('<td/>').text(stage.invocations))
+        .append($('<td/>').text(mean))
+        .append($('<td/>').text((stage.p50Micros / 1000).toFixed(3) + ' / '
+            + (stage.p95Micros / 1000).toFixed(3) + ' / '
+            + (stage.p99Micros / 1000).toFixed(3)))
+        .append($('<td/>').text(stage.exceptions))
+        .append($('<td/>').text(
+            'decisionChanges' in stage ? stage.decisionChanges : '-'))
+        .append($('<td/>').text('bytesIn' in stage ? stage.bytesIn : '-'))
+        .append($('<td/>').text('bytesOut' in stage ? stage.bytesOut : '-')));
+  });
+}
+
+function fillTopTable(tableId, entries) {
+  var table = $(tableId);
+  if (entries.length === 0) {
+    table.append($('<tr/>').append($('<td/>').text(
+        'None, or not available because journal.reducedMem is set to true')));
+    return;
+  }
+  $.each(entries, function(key, entry) {
+    table.append($('<tr/>')
+        .append($('<td/>').text(entry[0]))
+        .append($('<td/>').text(entry[1])));
+  });
 }
 
 var xsrfToken;
@@ -478,4 +598,5 @@ $(document).ready(function() {
   $('#gaf-start-feed-push').click(startFeedPush);
   $('#gaf-sec-runenc').click(encodeSensitiveValue);
   $('#gaf-stop-adaptor').click(stopAdaptor);
+  $('#gaf-latency-select').change(loadLatencyCharts);
 });
@@ -14,9 +14,12 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Sets;
 
 import java.io.IOException;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -24,6 +27,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -43,6 +48,12 @@ import java.util.logging.Logger;
  * trimmed by the GSA.
  */
 public class Acl {
+  /**
+   * Instances shared by {@link Builder#build}, compared exactly. Weak, so
+   * that ACLs no longer used are not retained.
+   */
+  private static final Interner<Exact> interner = Interners.newWeakInterner();
+
   /**
    * Empty convenience instance with all defaults used.
    */
@@ -70,16 +81,20 @@ public class Acl {
   private final String inheritFromFragment;
   private final InheritanceType inheritType;
   private final boolean caseSensitive;
+  /** Principals in the form used for matching, computed on first use. */
+  private volatile MatchKeys matchKeys;
+  /** This ACL, compared exactly, for deduplication. */
+  private final Exact exact = new Exact();
 
   private Acl(Set<GroupPrincipal> permitGroups, Set<GroupPrincipal> denyGroups,
       Set<UserPrincipal> permitUsers, Set<UserPrincipal> denyUsers,
       DocId inheritFrom, String inheritFromFragment,
       InheritanceType inheritType, boolean caseSensitive) {
     if (!caseSensitive) {
-      permitGroups = Collections.unmodifiableSet(cmpWrap(permitGroups));
-      denyGroups = Collections.unmodifiableSet(cmpWrap(denyGroups));
-      permitUsers = Collections.unmodifiableSet(cmpWrap(permitUsers));
-      denyUsers = Collections.unmodifiableSet(cmpWrap(denyUsers));
+      permitGroups = cmpWrap(permitGroups);
+      denyGroups = cmpWrap(denyGroups);
+      permitUsers = cmpWrap(permitUsers);
+      denyUsers = cmpWrap(denyUsers);
     }
     this.permitGroups = permitGroups;
     this.denyGroups = denyGroups;
@@ -92,9 +107,96 @@ public class Acl {
   }
 
   private <P extends Principal> Set<P> cmpWrap(Set<P> unwrapped) {
-    Set<P> tmp = new TreeSet<P>(new CaseInsensitiveCmp<P>());
-    tmp.addAll(unwrapped);
-    return tmp;
+    if (unwrapped.isEmpty()) {
+      return unwrapped;
+    }
+    return PrincipalSet.create(unwrapped, new CaseInsensitiveCmp<P>());
+  }
+
+  /**
+   * Immutable set of principals in a sorted array, which takes much less
+   * memory than a {@code TreeSet} and has the same behavior for the same
+   * comparator. Iteration is in comparator order.
+   */
+  private static final class PrincipalSet<P extends Principal>
+      extends AbstractSet<P> {
+    private final P[] elements;
+    /** Order of {@link #elements}; {@code null} for natural ordering. */
+    private final Comparator<? super P> cmp;
+
+    private PrincipalSet(P[] elements, Comparator<? super P> cmp) {
+      this.elements = elements;
+      this.cmp = cmp;
+    }
+
+    /**
+     * Returns a set of the principals in {@code from}. When several are equal
+     * according to {@code cmp}, the first in iteration order is kept, like
+     * {@link TreeSet#addAll}.
+     */
+    static <P extends Principal> Set<P> create(Collection<P> from,
+        Comparator<? super P> cmp) {
+      @SuppressWarnings("unchecked")
+      P[] sorted = (P[]) from.toArray(new Principal[from.size()]);
+      // Stable, so that the first of equal principals comes first.
+      Arrays.sort(sorted, cmp);
+      int size = 0;
+      for (P p : sorted) {
+        if (size == 0 || compare(cmp, sorted[size - 1], p) != 0) {
+          sorted[size++] = p;
+        }
+      }
+      return new PrincipalSet<P>(
+          size == sorted.length ? sorted : Arrays.copyOf(sorted, size), cmp);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <P extends Principal> int compare(
+        Comparator<? super P> cmp, P p1, P p2) {
+      return cmp == null ? p1.compareTo(p2) : cmp.compare(p1, p2);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Principal)) {
+        return false;
+      }
+      @SuppressWarnings("unchecked")
+      P p = (P) o;
+      return Arrays.binarySearch(elements, p, cmp) >= 0;
+    }
+
+    @Override
+    public Iterator<P> iterator() {
+      // Does not support remove().
+      return Arrays.asList(elements).iterator();
+    }
+
+    @Override
+    public int size() {
+      return elements.length;
+    }
+
+    /** Whether both contain identical principals in the same order. */
+    boolean identical(Set<?> other) {
+      if (!(other instanceof PrincipalSet)) {
+        return other.isEmpty() && elements.length == 0;
+      }
+      Object[] others = ((PrincipalSet<?>) other).elements;
+      if (others.length != elements.length) {
+        return false;
+      }
+      for (int i = 0; i < elements.length; i++) {
+        Principal p1 = elements[i];
+        Principal p2 = (Principal) others[i];
+        if (p1 != p2 && (p1.isUser() != p2.isUser()
+            || !p1.getName().equals(p2.getName())
+            || !p1.getNamespace().equals(p2.getNamespace()))) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 
   private static class CaseInsensitiveCmp<P extends Principal>
@@ -245,35 +347,175 @@ public class Acl {
    * @return decision
    */
   public AuthzStatus isAuthorizedLocal(AuthnIdentity userIdentity) {
-    UserPrincipal userIdentifier = userIdentity.getUser();
-    Set<GroupPrincipal> commonGroups;
+    return isAuthorizedLocal(new UserKeys(userIdentity));
+  }
+
+  private AuthzStatus isAuthorizedLocal(UserKeys user) {
+    MatchKeys keys = getMatchKeys();
+    String userKey = user.getUserKey(caseSensitive);
+    UserKeys.GroupKeys groupKeys = user.getGroupKeys(caseSensitive);
+    if (keys.denyUsers.contains(userKey)
+        || groupKeys.containsAny(keys.denyGroups, keys.denyGroupSet)) {
+      return AuthzStatus.DENY;
+    }
+    if (keys.permitUsers.contains(userKey)
+        || groupKeys.containsAny(keys.permitGroups, keys.permitGroupSet)) {
+      return AuthzStatus.PERMIT;
+    }
+    return AuthzStatus.INDETERMINATE;
+  }
+
+  private MatchKeys getMatchKeys() {
+    MatchKeys keys = matchKeys;
+    if (keys == null) {
+      // Benign race; all threads compute equal keys.
+      keys = new MatchKeys(this);
+      matchKeys = keys;
+    }
+    return keys;
+  }
+
+  /**
+   * Returns a string that is equal for two principals exactly when they are
+   * considered the same principal. When case-insensitive, as with {@link
+   * CaseInsensitiveCmp}, users and groups are not distinguished.
+   */
+  static String matchKey(Principal p, boolean caseSensitive) {
+    Principal.ParsedPrincipal parsed = p.parse();
+    String namespace = p.getNamespace();
+    String domain = parsed.domain;
+    String plainName = parsed.plainName;
+    StringBuilder sb = new StringBuilder(
+        namespace.length() + domain.length() + plainName.length() + 8);
     if (caseSensitive) {
-      commonGroups = new HashSet<GroupPrincipal>(denyGroups);
+      sb.append(p.isUser() ? 'u' : 'g');
     } else {
-      commonGroups = cmpWrap(denyGroups);
+      namespace = namespace.toLowerCase(CASE_LOCALE);
+      domain = domain.toLowerCase(CASE_LOCALE);
+      plainName = plainName.toLowerCase(CASE_LOCALE);
     }
+    // Lengths keep the key unambiguous, whatever characters are in the parts.
+    sb.append(namespace.length()).append(':').append(namespace)
+        .append(domain.length()).append(':').append(domain)
+        .append(plainName);
+    return sb.toString();
+  }
 
-    Set<GroupPrincipal> userGroups = userIdentity.getGroups();
-    if (userGroups == null) {
-      userGroups = Collections.<GroupPrincipal>emptySet();
-    } else if (!caseSensitive) {
-      userGroups = Collections.unmodifiableSet(cmpWrap(userGroups));
+  /** An ACL's principals as match keys. Immutable. */
+  private static final class MatchKeys {
+    final Set<String> permitUsers;
+    final Set<String> denyUsers;
+    final String[] permitGroups;
+    final Set<String> permitGroupSet;
+    final String[] denyGroups;
+    final Set<String> denyGroupSet;
+
+    MatchKeys(Acl acl) {
+      permitUsers = toKeySet(toKeys(acl.permitUsers, acl.caseSensitive));
+      denyUsers = toKeySet(toKeys(acl.denyUsers, acl.caseSensitive));
+      permitGroups = toKeys(acl.permitGroups, acl.caseSensitive);
+      permitGroupSet = toKeySet(permitGroups);
+      denyGroups = toKeys(acl.denyGroups, acl.caseSensitive);
+      denyGroupSet = toKeySet(denyGroups);
     }
+  }
 
-    commonGroups.retainAll(userGroups);
-    if (denyUsers.contains(userIdentifier) || !commonGroups.isEmpty()) {
-      return AuthzStatus.DENY;
+  private static String[] toKeys(Collection<? extends Principal> principals,
+      boolean caseSensitive) {
+    String[] keys = new String[principals.size()];
+    int i = 0;
+    for (Principal p : principals) {
+      keys[i++] = matchKey(p, caseSensitive);
     }
+    return keys;
+  }
 
-    commonGroups.clear();
-    commonGroups.addAll(permitGroups);
-    commonGroups.retainAll(userGroups);
+  private static Set<String> toKeySet(String[] keys) {
+    if (keys.length == 0) {
+      return Collections.emptySet();
+    }
+    return new HashSet<String>(Arrays.asList(keys));
+  }
 
-    if (permitUsers.contains(userIdentifier) || !commonGroups.isEmpty()) {
-      return AuthzStatus.PERMIT;
+  /**
+   * A user and their groups as match keys, computed once and then used for
+   * any number of ACLs. Not thread-safe.
+   */
+  private static final class UserKeys {
+    private final AuthnIdentity identity;
+    private String caseSensitiveUser;
+    private String caseInsensitiveUser;
+    private GroupKeys caseSensitiveGroups;
+    private GroupKeys caseInsensitiveGroups;
+
+    UserKeys(AuthnIdentity identity) {
+      this.identity = identity;
     }
 
-    return AuthzStatus.INDETERMINATE;
+    String getUserKey(boolean caseSensitive) {
+      if (caseSensitive) {
+        if (caseSensitiveUser == null) {
+          caseSensitiveUser = matchKey(identity.getUser(), true);
+        }
+        return caseSensitiveUser;
+      } else {
+        if (caseInsensitiveUser == null) {
+          caseInsensitiveUser = matchKey(identity.getUser(), false);
+        }
+        return caseInsensitiveUser;
+      }
+    }
+
+    GroupKeys getGroupKeys(boolean caseSensitive) {
+      if (caseSensitive) {
+        if (caseSensitiveGroups == null) {
+          caseSensitiveGroups = new GroupKeys(groups(), true);
+        }
+        return caseSensitiveGroups;
+      } else {
+        if (caseInsensitiveGroups == null) {
+          caseInsensitiveGroups = new GroupKeys(groups(), false);
+        }
+        return caseInsensitiveGroups;
+      }
+    }
+
+    private Set<GroupPrincipal> groups() {
+      Set<GroupPrincipal> groups = identity.getGroups();
+      return groups == null ? Collections.<GroupPrincipal>emptySet() : groups;
+    }
+
+    static final class GroupKeys {
+      private final String[] keys;
+      private final Set<String> keySet;
+
+      GroupKeys(Set<GroupPrincipal> groups, boolean caseSensitive) {
+        keys = toKeys(groups, caseSensitive);
+        keySet = toKeySet(keys);
+      }
+
+      /**
+       * Returns whether any of the user's groups is in {@code other}, which
+       * is provided both as an array and a set. Iterates over the smaller of
+       * the two collections.
+       */
+      boolean containsAny(String[] other, Set<String> otherSet) {
+        if (keys.length <= other.length) {
+          for (String key : keys) {
+            if (otherSet.contains(key)) {
+              return true;
+            }
+          }
+        } else {
+          for (String key : other) {
+            if (keySet.contains(key)) {
+              return true;
+            }
+          }
+        }
+        return false;
+      }
+    }
   }
 
   /**
@@ -327,6 +569,16 @@ public class Acl {
    */
   public static AuthzStatus isAuthorized(AuthnIdentity userIdentity,
                                          List<Acl> aclChain) {
+    return isAuthorized(new UserKeys(userIdentity), aclChain,
+        new IdentityHashMap<Acl, AuthzStatus>());
+  }
+
+  /**
+   * @param localDecisions local decisions already made for {@code user},
+   *     which is updated with any new decisions
+   */
+  private static AuthzStatus isAuthorized(UserKeys user, List<Acl> aclChain,
+      Map<Acl, AuthzStatus> localDecisions) {
     // Check for completely broken chains. Users of the API should be aware
     // enough to easily prevent these from happening. These also don't directly
     // relate to a case on the GSA because the GSA is working more on the
@@ -366,33 +618,44 @@ public class Acl {
         return AuthzStatus.INDETERMINATE;
       }
     }
-    AuthzStatus result = isAuthorizedRecurse(userIdentity, aclChain);
+    AuthzStatus result = isAuthorizedRecurse(user, aclChain, localDecisions);
     return (result == AuthzStatus.INDETERMINATE) ? AuthzStatus.DENY : result;
   }
 
-  private static AuthzStatus isAuthorizedRecurse(
-      final AuthnIdentity userIdentity, final List<Acl> aclChain) {
+  private static AuthzStatus isAuthorizedRecurse(final UserKeys user,
+      final List<Acl> aclChain, final Map<Acl, AuthzStatus> localDecisions) {
     if (aclChain.size() == 1) {
-      return aclChain.get(0).isAuthorizedLocal(userIdentity);
+      return isAuthorizedLocal(aclChain.get(0), user, localDecisions);
     }
     Decision parentDecision = new Decision() {
       @Override
       protected AuthzStatus computeDecision() {
-        return aclChain.get(0).isAuthorizedLocal(userIdentity);
+        return isAuthorizedLocal(aclChain.get(0), user, localDecisions);
       }
     };
     Decision childDecision = new Decision() {
       @Override
       protected AuthzStatus computeDecision() {
         // Recurse.
-        return isAuthorizedRecurse(userIdentity,
-            aclChain.subList(1, aclChain.size()));
+        return isAuthorizedRecurse(user,
+            aclChain.subList(1, aclChain.size()), localDecisions);
       }
     };
     return aclChain.get(0).getInheritanceType()
         .isAuthorized(childDecision, parentDecision);
   }
 
+  /** Returns the local decision of {@code acl}, reusing earlier decisions. */
+  private static AuthzStatus isAuthorizedLocal(Acl acl, UserKeys user,
+      Map<Acl, AuthzStatus> localDecisions) {
+    AuthzStatus status = localDecisions.get(acl);
+    if (status == null) {
+      status = acl.isAuthorizedLocal(user);
+      localDecisions.put(acl, status);
+    }
+    return status;
+  }
+
   /**
    * Check authz for many DocIds at once. This will only fetch ACL information
    * for a DocId once, even when considering inheritFrom. It will then create
@@ -412,10 +675,51 @@ public class Acl {
    */
   public static Map<DocId, AuthzStatus> isAuthorizedBatch(
       AuthnIdentity userIdentity, Collection<DocId> ids,
-      BatchRetriever retriever) throws IOException {
+      final BatchRetriever retriever) throws IOException {
+    return isAuthorizedBatch(userIdentity, ids, new DepthRetriever() {
+      @Override
+      public Map<DocId, Acl> retrieveAcls(Set<DocId> ids, int depth)
+          throws IOException {
+        return retriever.retrieveAcls(ids);
+      }
+    });
+  }
+
+  /**
+   * Check authz for many DocIds at once, as {@link
+   * #isAuthorizedBatch(AuthnIdentity, Collection, BatchRetriever)}, also
+   * letting {@code cache} count its hits and misses by inheritance depth.
+   *
+   * @param userIdentity identity containing the user's username and all the
+   *     groups the user belongs to
+   * @param ids collection of DocIds that need authz performed
+   * @param cache object to use to obtain an ACL for a given DocId
+   * @throws IOException if the retriever throws an IOException
+   * @return decisions for ids
+   */
+  public static Map<DocId, AuthzStatus> isAuthorizedBatch(
+      AuthnIdentity userIdentity, Collection<DocId> ids,
+      final CachingBatchRetriever cache) throws IOException {
+    return isAuthorizedBatch(userIdentity, ids, new DepthRetriever() {
+      @Override
+      public Map<DocId, Acl> retrieveAcls(Set<DocId> ids, int depth)
+          throws IOException {
+        return cache.retrieveAcls(ids, depth);
+      }
+    });
+  }
+
+  private static Map<DocId, AuthzStatus> isAuthorizedBatch(
+      AuthnIdentity userIdentity, Collection<DocId> ids,
+      DepthRetriever retriever) throws IOException {
     Map<DocId, Acl> acls = retrieveNecessaryAcls(ids, retriever);
     Map<DocId, AuthzStatus> results
         = new HashMap<DocId, AuthzStatus>(ids.size() * 2);
+    // The user's groups are prepared once, and each ACL is checked at most
+    // once, even when inherited by many of the ids.
+    UserKeys user = new UserKeys(userIdentity);
+    Map<Acl, AuthzStatus> localDecisions
+        = new IdentityHashMap<Acl, AuthzStatus>();
     for (DocId docId : ids) {
       List<Acl> chain = createChain(docId, acls);
       AuthzStatus result;
@@ -423,7 +727,7 @@ public class Acl {
         // There was a cycle or other problem generating the chain.
         result = AuthzStatus.INDETERMINATE;
       } else {
-        result = isAuthorized(userIdentity, chain);
+        result = isAuthorized(user, chain, localDecisions);
       }
       results.put(docId, result);
     }
@@ -431,14 +735,18 @@ public class Acl {
   }
 
   private static Map<DocId, Acl> retrieveNecessaryAcls(Collection<DocId> ids,
-        BatchRetriever retriever) throws IOException {
+        DepthRetriever retriever) throws IOException {
     Map<DocId, Acl> acls = new HashMap<DocId, Acl>(ids.size() * 2);
     Set<DocId> missingAcls = new HashSet<DocId>();
     Set<DocId> pendingRetrieval = new HashSet<DocId>(ids);
     Set<Acl> checkedAcl = new HashSet<Acl>(ids.size() * 2);
     Set<Acl> toProcess = new HashSet<Acl>(ids.size() * 2);
+    // Number of inheritance steps from ids to the ACLs being retrieved.
+    int depth = 0;
     while (!pendingRetrieval.isEmpty()) {
-      Map<DocId, Acl> returned = retriever.retrieveAcls(pendingRetrieval);
+      Map<DocId, Acl> returned
+          = retriever.retrieveAcls(pendingRetrieval, depth);
+      depth++;
       toProcess.clear();
       for (Map.Entry<DocId, Acl> me : returned.entrySet()) {
         if (me.getValue() == null) {
@@ -574,6 +882,52 @@ public class Acl {
         + ", permitUsers=" + permitUsers + ", denyUsers=" + denyUsers + ")";
   }
 
+  /** Whether this ACL is equal to {@code a} and writes principals the same. */
+  private boolean isIdentical(Acl a) {
+    return equals(a)
+        && identical(permitGroups, a.permitGroups)
+        && identical(denyGroups, a.denyGroups)
+        && identical(permitUsers, a.permitUsers)
+        && identical(denyUsers, a.denyUsers);
+  }
+
+  private static boolean identical(Set<?> s1, Set<?> s2) {
+    if (s1 instanceof PrincipalSet) {
+      return ((PrincipalSet<?>) s1).identical(s2);
+    }
+    return s1.isEmpty() && s2.isEmpty();
+  }
+
+  /**
+   * An ACL that is only equal to identical ACLs. {@link Acl#equals} ignores
+   * case for case-insensitive ACLs and how domains are written, but
+   * deduplicated ACLs must still be fed exactly as built.
+   */
+  private final class Exact {
+    Acl acl() {
+      return Acl.this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Exact && isIdentical(((Exact) o).acl());
+    }
+
+    @Override
+    public int hashCode() {
+      return Acl.this.hashCode();
+    }
+  }
+
+  /**
+   * {@link BatchRetriever} told how many inheritance steps separate the DocIds
+   * being authorized from the ACLs requested.
+   */
+  private static interface DepthRetriever {
+    public Map<DocId, Acl> retrieveAcls(Set<DocId> ids, int depth)
+        throws IOException;
+  }
+
   /**
    * Batch retrieval of ACLs for efficent processing of many authz checks at
    * once.
@@ -645,17 +999,24 @@ public class Acl {
           throw new NullPointerException("Entries in set may not be null");
         }
       }
-      // Use TreeSets so that sets have predictable order when serializing.
-      return Collections.unmodifiableSet(new TreeSet<P>(set));
+      // Sorted so that sets have predictable order when serializing.
+      List<P> interned = new ArrayList<P>(set.size());
+      for (P item : set) {
+        interned.add(Principal.intern(item));
+      }
+      return PrincipalSet.create(interned, null);
     }
 
     /**
-     * Create immutable {@link Acl} instance of the current state.
+     * Create immutable {@link Acl} instance of the current state. An identical
+     * ACL that was built before and is still in use may be returned instead
+     * of a new instance.
      * @return Acl
      */
     public Acl build() {
-      return new Acl(permitGroups, denyGroups, permitUsers, denyUsers,
+      Acl acl = new Acl(permitGroups, denyGroups, permitUsers, denyUsers,
           inheritFrom, inheritFromFragment, inheritType, caseSensitive);
+      return interner.intern(acl.exact).acl();
     }
 
     /**
@@ -22,22 +22,52 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Transforms Principals in ACLs based on provided rules.
+ *
+ * <p>The same principals appear in many ACLs, so the results for the most
+ * recently transformed principals are remembered. Each rule also rejects most
+ * non-matching principals by comparing the literal prefixes of its patterns,
+ * without running the regular expressions.
  */
 final class AclTransform {
   private static final Logger log
       = Logger.getLogger(AclTransform.class.getName());
+  /** Default number of transformed principals to remember. */
+  static final int DEFAULT_CACHE_SIZE = 10000;
+
   private final List<Rule> rules;
+  /** Access-ordered; guarded by itself. {@code null} without rules. */
+  private final Map<String, Principal> cache;
 
   public AclTransform(List<Rule> rules) {
+    this(rules, DEFAULT_CACHE_SIZE);
+  }
+
+  AclTransform(List<Rule> rules, final int cacheSize) {
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("cacheSize must be non-negative");
+    }
     this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+    if (this.rules.isEmpty() || cacheSize == 0) {
+      this.cache = null;
+    } else {
+      this.cache = new LinkedHashMap<String, Principal>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, Principal> eldest) {
+          return size() > cacheSize;
+        }
+      };
+    }
   }
 
   public Acl transform(Acl acl) {
@@ -78,13 +108,44 @@ final class AclTransform {
   }
 
   private <T extends Principal> T transformInternal(T principal) {
+    if (cache == null) {
+      return applyRules(principal);
+    }
+    // Principal.equals() ignores the domain format, which is kept by rules.
+    String key = (principal.isGroup() ? "G" : "U")
+        + principal.getNamespace().length() + ":" + principal.getNamespace()
+        + principal.getName();
+    Principal cached;
+    synchronized (cache) {
+      cached = cache.get(key);
+    }
+    if (cached == null) {
+      cached = applyRules(principal);
+      synchronized (cache) {
+        cache.put(key, cached);
+      }
+    }
+    @SuppressWarnings("unchecked")
+    T principalNew = (T) cached;
+    return principalNew;
+  }
+
+  private <T extends Principal> T applyRules(T principal) {
     ParsedPrincipal parsed = principal.parse();
+    boolean changed = false;
     for (Rule rule : rules) {
+      if (!rule.match.mayMatch(parsed)) {
+        continue;
+      }
       MatchResult m = rule.match.matches(parsed);
       if (m.matches()) {
         parsed = rule.replace.replace(m.getCapturedGroups(), parsed);
+        changed = true;
       }
     }
+    if (!changed) {
+      return principal;
+    }
     @SuppressWarnings("unchecked")
     T principalNew = (T) parsed.toPrincipal();
     return principalNew;
@@ -195,6 +256,10 @@ final class AclTransform {
     private final Pattern namePattern;
     private final Pattern domainPattern;
     private final Pattern namespacePattern;
+    /** Literal prefixes every match must have; empty when unknown. */
+    private final String namePrefix;
+    private final String domainPrefix;
+    private final String namespacePrefix;
 
     /**
      * For matching, non-{@code null} fields must be equal on Principal. For
@@ -211,6 +276,43 @@ final class AclTransform {
       namePattern = name != null ? Pattern.compile(name) : null;
       domainPattern = domain != null ? Pattern.compile(domain) : null;
       namespacePattern = namespace != null ? Pattern.compile(namespace) : null;
+      namePrefix = literalPrefix(name);
+      domainPrefix = literalPrefix(domain);
+      namespacePrefix = literalPrefix(namespace);
+    }
+
+    /**
+     * Returns the literal characters that every string matching {@code regex}
+     * starts with. This is conservative: it may return a shorter prefix than
+     * possible, but never a longer one.
+     */
+    static String literalPrefix(String regex) {
+      if (regex == null || regex.indexOf('|') != -1) {
+        return "";
+      }
+      int i = 0;
+      while (i < regex.length()
+          && "\\^$.|?*+()[]{}".indexOf(regex.charAt(i)) == -1) {
+        i++;
+      }
+      // The last literal is optional or repeated if a quantifier follows.
+      if (i < regex.length() && "?*+{".indexOf(regex.charAt(i)) != -1
+          && i > 0) {
+        i--;
+      }
+      return regex.substring(0, i);
+    }
+
+    /**
+     * Cheaply checks whether {@code principal} could match. When {@code false}
+     * it definitely does not match.
+     */
+    private boolean mayMatch(ParsedPrincipal principal) {
+      return (isGroup == null || isGroup.equals(principal.isGroup))
+          && (name == null || principal.plainName.startsWith(namePrefix))
+          && (domain == null || principal.domain.startsWith(domainPrefix))
+          && (namespace == null
+              || principal.namespace.startsWith(namespacePrefix));
     }
 
     /**
@@ -253,8 +355,10 @@ final class AclTransform {
             namespacePattern, principal.namespace, "namespace", groups);
       }
       MatchResult result = new MatchResult(matches, groups);
-      log.finest("Matching " + principal + " against "
-          + this.toString() + "; result: " + result.toString());
+      if (log.isLoggable(Level.FINEST)) {
+        log.finest("Matching " + principal + " against "
+            + this.toString() + "; result: " + result.toString());
+      }
       return result;
     }
 
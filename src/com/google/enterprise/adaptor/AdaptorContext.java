@@ -150,4 +150,12 @@ public interface AdaptorContext {
    * @param authzAuthority makes access decisions
    */
   public void setAuthzAuthority(AuthzAuthority authzAuthority);
+
+  /**
+   * Register a cache of ACLs, so that its hits and misses by inheritance depth
+   * are reported on the dashboard and metrics page. Registration may not occur
+   * after {@link Adaptor#init}.
+   * @param cache ACL cache used with {@link Acl#isAuthorizedBatch}
+   */
+  public void addAclCache(CachingBatchRetriever cache);
 }
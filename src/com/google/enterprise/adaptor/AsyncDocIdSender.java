@@ -37,6 +37,7 @@ class AsyncDocIdSender implements AsyncDocIdPusher,
   private final long maxLatency;
   private final TimeUnit maxLatencyUnit;
   private final BlockingQueue<DocIdSender.Item> queue;
+  private final int queueCapacity;
   private final Runnable worker = new WorkerRunnable();
 
   /**
@@ -59,6 +60,7 @@ class AsyncDocIdSender implements AsyncDocIdPusher,
     this.maxLatency = maxLatency;
     this.maxLatencyUnit = maxLatencyUnit;
     this.queue = new ArrayBlockingQueue<DocIdSender.Item>(queueCapacity);
+    this.queueCapacity = queueCapacity;
   }
 
   /**
@@ -91,6 +93,16 @@ class AsyncDocIdSender implements AsyncDocIdPusher,
     return asyncPushItem(new DocIdSender.AclItem(docId, null, acl));
   }
 
+  /** Returns the number of items waiting to be sent. */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /** Returns the maximum number of items that can wait to be sent. */
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
   public Runnable worker() {
     return worker;
   }
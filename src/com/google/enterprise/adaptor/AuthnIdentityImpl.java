@@ -14,6 +14,7 @@
 
 package com.google.enterprise.adaptor;
 
+import java.io.Serializable;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -21,9 +22,10 @@ import java.util.Set;
 /**
  * Immutable implementation of {@link AuthnIdentity}.
  */
-class AuthnIdentityImpl implements AuthnIdentity {
+class AuthnIdentityImpl implements AuthnIdentity, Serializable {
   private final UserPrincipal user;
-  private final String password;
+  /** Not serialized, so that it is never written to shared session storage. */
+  private final transient String password;
   private final Set<GroupPrincipal> groups;
 
   private AuthnIdentityImpl(UserPrincipal user, String password,
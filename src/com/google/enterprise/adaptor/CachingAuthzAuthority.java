@@ -0,0 +1,230 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers recent authorization decisions of another {@link AuthzAuthority}.
+ * The GSA commonly asks about the same user and documents several times
+ * within seconds, such as when paging through search results, and these
+ * repeated checks are answered without calling the adaptor.
+ *
+ * <p>Decisions are keyed by the user, their groups and password, and the
+ * {@link DocId}, so a change in the user's groups is never answered with a
+ * stale decision. {@link AuthzStatus#PERMIT} and {@link AuthzStatus#DENY} are
+ * remembered for separate durations; {@link AuthzStatus#INDETERMINATE} is never
+ * remembered. When asked about several documents, only the documents without a
+ * current decision are passed to the wrapped authority. At most {@code
+ * maxEntries} decisions are kept, discarding the least recently used.
+ *
+ * <p>This class is thread-safe.
+ */
+class CachingAuthzAuthority implements AuthzAuthority {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final AuthzAuthority delegate;
+  private final Journal journal;
+  private final long permitTtlMillis;
+  private final long denyTtlMillis;
+  private final TimeProvider timeProvider;
+  /** Access-ordered, so iteration begins with the least recently used. */
+  private final Map<Key, Decision> decisions;
+
+  /**
+   * @param delegate authority making the decisions
+   * @param journal records cache hits and misses
+   * @param maxEntries maximum number of decisions to remember
+   * @param permitTtlMillis how long a {@code PERMIT} is remembered
+   * @param denyTtlMillis how long a {@code DENY} is remembered
+   */
+  public CachingAuthzAuthority(AuthzAuthority delegate, Journal journal,
+      int maxEntries, long permitTtlMillis, long denyTtlMillis) {
+    this(delegate, journal, maxEntries, permitTtlMillis, denyTtlMillis,
+        new SystemTimeProvider());
+  }
+
+  CachingAuthzAuthority(AuthzAuthority delegate, Journal journal,
+      final int maxEntries, long permitTtlMillis, long denyTtlMillis,
+      TimeProvider timeProvider) {
+    if (delegate == null || journal == null || timeProvider == null) {
+      throw new NullPointerException();
+    }
+    if (maxEntries <= 0 || permitTtlMillis < 0 || denyTtlMillis < 0) {
+      throw new IllegalArgumentException("maxEntries must be positive and "
+          + "TTLs must be non-negative");
+    }
+    this.delegate = delegate;
+    this.journal = journal;
+    this.permitTtlMillis = permitTtlMillis;
+    this.denyTtlMillis = denyTtlMillis;
+    this.timeProvider = timeProvider;
+    this.decisions = new LinkedHashMap<Key, Decision>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity userIdentity,
+      Collection<DocId> ids) throws IOException {
+    IdentityKey identity = new IdentityKey(userIdentity);
+    Map<DocId, AuthzStatus> result
+        = new HashMap<DocId, AuthzStatus>(ids.size() * 2);
+    List<DocId> misses = new ArrayList<DocId>();
+    long now = timeProvider.currentTimeMillis();
+    synchronized (this) {
+      for (DocId id : ids) {
+        Key key = new Key(identity, id);
+        Decision decision = decisions.get(key);
+        if (decision != null && decision.expires > now) {
+          result.put(id, decision.status);
+        } else {
+          if (decision != null) {
+            decisions.remove(key);
+          }
+          misses.add(id);
+        }
+      }
+    }
+    journal.recordAuthzCacheLookups(result.size(), misses.size());
+    if (misses.isEmpty()) {
+      return result;
+    }
+
+    Map<DocId, AuthzStatus> fetched
+        = delegate.isUserAuthorized(userIdentity, misses);
+    now = timeProvider.currentTimeMillis();
+    synchronized (this) {
+      for (DocId id : misses) {
+        AuthzStatus status = fetched.get(id);
+        long ttl;
+        if (status == AuthzStatus.PERMIT) {
+          ttl = permitTtlMillis;
+        } else if (status == AuthzStatus.DENY) {
+          ttl = denyTtlMillis;
+        } else {
+          continue;
+        }
+        if (ttl > 0) {
+          decisions.put(new Key(identity, id), new Decision(status, now + ttl));
+        }
+      }
+    }
+    result.putAll(fetched);
+    return result;
+  }
+
+  synchronized int size() {
+    return decisions.size();
+  }
+
+  /** Identifies a user and everything about them that affects decisions. */
+  private static class IdentityKey {
+    private final UserPrincipal user;
+    private final Set<GroupPrincipal> groups;
+    /** Hash of the password, so the password itself is not retained. */
+    private final HashCode passwordHash;
+    private final int hashCode;
+
+    IdentityKey(AuthnIdentity identity) {
+      if (identity == null) {
+        user = null;
+        groups = null;
+        passwordHash = null;
+      } else {
+        user = identity.getUser();
+        groups = identity.getGroups();
+        String password = identity.getPassword();
+        passwordHash = password == null
+            ? null : Hashing.sha256().hashString(password, UTF_8);
+      }
+      hashCode = 31 * 31 * hashCode(user) + 31 * hashCode(groups)
+          + hashCode(passwordHash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof IdentityKey)) {
+        return false;
+      }
+      IdentityKey other = (IdentityKey) o;
+      return hashCode == other.hashCode && equal(user, other.user)
+          && equal(passwordHash, other.passwordHash)
+          && equal(groups, other.groups);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    private static int hashCode(Object o) {
+      return o == null ? 0 : o.hashCode();
+    }
+
+    private static boolean equal(Object a, Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  private static class Key {
+    private final IdentityKey identity;
+    private final DocId docId;
+
+    Key(IdentityKey identity, DocId docId) {
+      this.identity = identity;
+      this.docId = docId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return docId.equals(other.docId) && identity.equals(other.identity);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * identity.hashCode() + docId.hashCode();
+    }
+  }
+
+  private static class Decision {
+    private final AuthzStatus status;
+    /** Time in milliseconds after which the decision is not used. */
+    private final long expires;
+
+    Decision(AuthzStatus status, long expires) {
+      this.status = status;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers ACLs provided by another {@link Acl.BatchRetriever} across calls
+ * to {@link Acl#isAuthorizedBatch}. Documents commonly share a handful of
+ * parent ACLs, such as those of their folders, so most ACLs needed to follow
+ * inheritance are already known and only the ACLs of the documents themselves
+ * must be retrieved.
+ *
+ * <p>At most {@code maxEntries} ACLs are kept, discarding the least recently
+ * used, and each is used for at most {@code ttlMillis} after it is retrieved.
+ * DocIds without an ACL are not remembered. Adaptors that notice ACL changes,
+ * for instance while listing incremental changes, may call {@link #invalidate}
+ * for the changed DocIds. Since ACLs refer to their parents by DocId,
+ * invalidating a parent is enough for its children to see the change. When a
+ * whole hierarchy changes, such as after a folder is moved, {@link
+ * #invalidateInheriting} also forgets every ACL inheriting from the DocId.
+ *
+ * <p>Hits and misses are counted by inheritance depth: depth 0 is the
+ * documents being authorized, depth 1 their parents, and so on. Depths beyond
+ * {@link #MAX_DEPTH} are counted as {@code MAX_DEPTH}. Depths are only known
+ * when the retriever is passed to {@link Acl#isAuthorizedBatch(AuthnIdentity,
+ * java.util.Collection, CachingBatchRetriever)}; other lookups count as depth
+ * 0. Registering the retriever with {@link AdaptorContext#addAclCache} also
+ * reports the counts with the adaptor's statistics.
+ *
+ * <p>This class is thread-safe.
+ */
+public class CachingBatchRetriever implements Acl.BatchRetriever {
+  /** Largest depth counted separately. */
+  public static final int MAX_DEPTH = 7;
+
+  private final Acl.BatchRetriever delegate;
+  private final long ttlMillis;
+  private final TimeProvider timeProvider;
+  /** Access-ordered, so iteration begins with the least recently used. */
+  private final Map<DocId, CacheEntry> entries;
+  /** Cached DocIds inheriting from each DocId, for invalidation. */
+  private final Map<DocId, Set<DocId>> children
+      = new HashMap<DocId, Set<DocId>>();
+  private final long[] hits = new long[MAX_DEPTH + 1];
+  private final long[] misses = new long[MAX_DEPTH + 1];
+  /** Where lookups are reported as well, if registered with an adaptor. */
+  private volatile Journal journal;
+
+  /**
+   * @param delegate retriever providing ACLs
+   * @param maxEntries maximum number of ACLs to remember
+   * @param ttlMillis how long an ACL is remembered
+   */
+  public CachingBatchRetriever(Acl.BatchRetriever delegate, int maxEntries,
+      long ttlMillis) {
+    this(delegate, maxEntries, ttlMillis, new SystemTimeProvider());
+  }
+
+  CachingBatchRetriever(Acl.BatchRetriever delegate, final int maxEntries,
+      long ttlMillis, TimeProvider timeProvider) {
+    if (delegate == null || timeProvider == null) {
+      throw new NullPointerException();
+    }
+    if (maxEntries <= 0 || ttlMillis < 0) {
+      throw new IllegalArgumentException("maxEntries must be positive and "
+          + "ttlMillis must be non-negative");
+    }
+    this.delegate = delegate;
+    this.ttlMillis = ttlMillis;
+    this.timeProvider = timeProvider;
+    this.entries = new LinkedHashMap<DocId, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<DocId, CacheEntry> eldest) {
+        if (size() <= maxEntries) {
+          return false;
+        }
+        unlinkParent(eldest.getKey(), eldest.getValue().acl);
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public Map<DocId, Acl> retrieveAcls(Set<DocId> ids) throws IOException {
+    return retrieveAcls(ids, 0);
+  }
+
+  /**
+   * Retrieves ACLs as {@link #retrieveAcls(Set)}, counting hits and misses
+   * against {@code depth}.
+   */
+  Map<DocId, Acl> retrieveAcls(Set<DocId> ids, int depth) throws IOException {
+    int bucket = Math.min(depth, MAX_DEPTH);
+    Map<DocId, Acl> result = new HashMap<DocId, Acl>(ids.size() * 2);
+    Set<DocId> missing = new HashSet<DocId>();
+    long now = timeProvider.currentTimeMillis();
+    synchronized (this) {
+      for (DocId id : ids) {
+        CacheEntry entry = entries.get(id);
+        if (entry != null && entry.expires > now) {
+          result.put(id, entry.acl);
+        } else {
+          if (entry != null) {
+            remove(id);
+          }
+          missing.add(id);
+        }
+      }
+      hits[bucket] += result.size();
+      misses[bucket] += missing.size();
+    }
+    Journal journal = this.journal;
+    if (journal != null) {
+      journal.recordAclCacheLookups(bucket, result.size(), missing.size());
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+
+    Map<DocId, Acl> fetched
+        = delegate.retrieveAcls(Collections.unmodifiableSet(missing));
+    if (ttlMillis > 0) {
+      long expires = timeProvider.currentTimeMillis() + ttlMillis;
+      synchronized (this) {
+        // ACLs provided without being requested are remembered as well.
+        for (Map.Entry<DocId, Acl> me : fetched.entrySet()) {
+          if (me.getValue() != null) {
+            put(me.getKey(), new CacheEntry(me.getValue(), expires));
+          }
+        }
+      }
+    }
+    result.putAll(fetched);
+    return result;
+  }
+
+  /** Forgets the ACL of {@code id}, so that it is retrieved when next used. */
+  public synchronized void invalidate(DocId id) {
+    remove(id);
+  }
+
+  /**
+   * Forgets the ACL of {@code id} and of every DocId that directly or
+   * indirectly inherits from it.
+   */
+  public synchronized void invalidateInheriting(DocId id) {
+    Deque<DocId> pending = new ArrayDeque<DocId>();
+    pending.add(id);
+    while (!pending.isEmpty()) {
+      DocId current = pending.remove();
+      Set<DocId> inheriting = children.get(current);
+      if (inheriting != null) {
+        pending.addAll(inheriting);
+      }
+      remove(current);
+    }
+  }
+
+  /** Forgets all ACLs. */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    children.clear();
+  }
+
+  /**
+   * Returns the number of ACLs that were remembered when needed at {@code
+   * depth}.
+   */
+  public synchronized long getHitCount(int depth) {
+    return hits[Math.min(depth, MAX_DEPTH)];
+  }
+
+  /**
+   * Returns the number of ACLs that had to be retrieved when needed at {@code
+   * depth}.
+   */
+  public synchronized long getMissCount(int depth) {
+    return misses[Math.min(depth, MAX_DEPTH)];
+  }
+
+  /** Reports later lookups to {@code journal} as well. */
+  void setJournal(Journal journal) {
+    this.journal = journal;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private void put(DocId id, CacheEntry entry) {
+    CacheEntry old = entries.put(id, entry);
+    if (old != null) {
+      unlinkParent(id, old.acl);
+    }
+    DocId parent = entry.acl.getInheritFrom();
+    if (parent != null) {
+      Set<DocId> inheriting = children.get(parent);
+      if (inheriting == null) {
+        inheriting = new HashSet<DocId>();
+        children.put(parent, inheriting);
+      }
+      inheriting.add(id);
+    }
+  }
+
+  private void remove(DocId id) {
+    CacheEntry old = entries.remove(id);
+    if (old != null) {
+      unlinkParent(id, old.acl);
+    }
+  }
+
+  private void unlinkParent(DocId id, Acl acl) {
+    DocId parent = acl.getInheritFrom();
+    if (parent == null) {
+      return;
+    }
+    Set<DocId> inheriting = children.get(parent);
+    if (inheriting != null) {
+      inheriting.remove(id);
+      if (inheriting.isEmpty()) {
+        children.remove(parent);
+      }
+    }
+  }
+
+  private static class CacheEntry {
+    private final Acl acl;
+    /** Time in milliseconds after which the ACL is not used. */
+    private final long expires;
+
+    CacheEntry(Acl acl, long expires) {
+      this.acl = acl;
+      this.expires = expires;
+    }
+  }
+}
@@ -14,20 +14,34 @@
 
 package com.google.enterprise.adaptor;
 
-import java.io.ByteArrayOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -345,6 +359,15 @@ public class CommandStreamParser {
   private static final String HEADER_PREFIX = "GSA Adaptor Data Version";
   private static final String DISALLOWED_DELIMITER_CHARS_REGEX = "[a-zA-Z0-9:/\\-_ =\\+\\[\\]]";
   private static final Charset CHARSET = Charset.forName("UTF-8");
+  /** Initial size of the buffers, which grow to hold the longest token. */
+  private static final int BUFFER_SIZE = 8192;
+  private static final Marker HEADER_START = new Marker("[");
+  private static final Marker HEADER_END = new Marker("]");
+  /** Number of records sent per call to {@link DocIdPusher#pushRecords}. */
+  private static final int PUSH_BATCH_SIZE = 10000;
+  /** Placed in the queue of parsed records after the last one. */
+  private static final DocIdPusher.Record END_OF_RECORDS
+      = new DocIdPusher.Record.Builder(new DocId("")).build();
 
   private static final Map<String, Operation> STRING_TO_OPERATION;
   static {
@@ -368,8 +391,19 @@ public class CommandStreamParser {
   private InputStream inputStream;
   private int versionNumber = 0;
   private String delimiter;
+  private Marker delimiterMarker;
   private boolean inIdList;
 
+  /** Bytes read from {@link #inputStream} but not yet parsed are in
+   * {@code buffer[position..limit)}. */
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  private boolean endOfStream;
+  /** Reused to decode each token. */
+  private final CharsetDecoder decoder = CHARSET.newDecoder();
+  private char[] chars = new char[BUFFER_SIZE];
+
   /** */
   private static class Command {
 
@@ -493,7 +527,7 @@ public class CommandStreamParser {
         case ID:
           throw new IOException("Only one document ID can be specified in a retriever message");
         case CONTENT:
-          IOHelper.copyStream(inputStream, response.getOutputStream());
+          copyRemainingInput(response.getOutputStream());
           break;
         case META_NAME:
           String metaName = command.getArgument();
@@ -617,6 +651,8 @@ public class CommandStreamParser {
    * null}, then {@code pusher}'s default handler will be used. In case of failure sending in
    * {@code pusher}, the rest of the input stream may not be read.
    *
+   * <p>Records are sent on another thread, in batches, while the input continues to be parsed.
+   *
    * @param pusher doc id pusher
    * @param handler exception handler
    * @return {@code null} on success, otherwise the first Record to fail
@@ -625,8 +661,6 @@ public class CommandStreamParser {
    */
   public DocIdPusher.Record readFromLister(DocIdPusher pusher, ExceptionHandler handler)
       throws IOException, InterruptedException {
-    ArrayList<DocIdPusher.Record> result = new ArrayList<DocIdPusher.Record>();
-    DocIdPusher.Record.Builder builder = null;
     Command command = readCommand();
 
     // Starting out at end-of-stream so don't send anything.
@@ -639,19 +673,41 @@ public class CommandStreamParser {
       throw new IOException("Lister Error: the first operator must be a document ID. "
           + " Instead encountered '" + command.getOperation() + "'.");
     }
+    PushStage pushStage = new PushStage(pusher, handler);
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lister-push-%d").build());
+    try {
+      Future<DocIdPusher.Record> pushed = executor.submit(pushStage);
+      parseRecords(command, pushStage);
+      return pushed.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      // Stops pushing if parsing failed.
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Parses the records of a listing response, starting with {@code command}, and passes them to
+   * {@code pushStage}. Stops early if pushing fails.
+   */
+  private void parseRecords(Command command, PushStage pushStage)
+      throws IOException, InterruptedException {
+    DocIdPusher.Record.Builder builder = null;
     while (command != null) {
       switch (command.getOperation()) {
         case ID:
-          if (builder != null) {
-            result.add(builder.build());
-            // TODO(ejona): make threshold smarter.
-            if (result.size() >= 10000) {
-              DocIdPusher.Record errorRecord = pusher.pushRecords(result, handler);
-              if (errorRecord != null) {
-                return errorRecord;
-              }
-              result.clear();
-            }
+          if (builder != null && !pushStage.add(builder.build())) {
+            return;
           }
           builder = new DocIdPusher.Record.Builder(new DocId(command.getArgument()));
           break;
@@ -687,8 +743,9 @@ public class CommandStreamParser {
       }
       command = readCommand();
     }
-    result.add(builder.build());
-    return pusher.pushRecords(result, handler);
+    if (pushStage.add(builder.build())) {
+      pushStage.end();
+    }
   }
 
   /**
@@ -732,7 +789,7 @@ public class CommandStreamParser {
     checkHeader();
     String line = "";
     while (line.length() == 0) {
-      line = readCharsUntilMarker(delimiter);
+      line = readCharsUntilMarker(delimiterMarker);
       // On End-Of-Stream return the end-message command
       if (line == null) {
         return null;
@@ -748,7 +805,11 @@ public class CommandStreamParser {
     if (inIdList) {
       return new String[]{"id", line};
     }
-    return line.split("=", 2);
+    int equals = line.indexOf('=');
+    if (equals == -1) {
+      return new String[] {line};
+    }
+    return new String[] {line.substring(0, equals), line.substring(equals + 1)};
   }
 
   /**
@@ -759,7 +820,7 @@ public class CommandStreamParser {
       return;
     }
 
-    String line = readCharsUntilMarker("[");
+    String line = readCharsUntilMarker(HEADER_START);
     if ((line == null) || (line.length() < HEADER_PREFIX.length())
         || !line.substring(0, HEADER_PREFIX.length()).equals(HEADER_PREFIX)) {
       throw new IOException("Adaptor data must begin with '" + HEADER_PREFIX + "'");
@@ -772,7 +833,7 @@ public class CommandStreamParser {
           + " and one trailing space.");
     }
 
-    delimiter = readCharsUntilMarker("]");
+    delimiter = readCharsUntilMarker(HEADER_END);
     if ((delimiter == null) || (delimiter.length() < 1)) {
       throw new IOException("Delimiter must be at least one character long.");
     }
@@ -784,6 +845,8 @@ public class CommandStreamParser {
       throw new IOException("Invalid character in delimiter.");
     }
 
+    delimiterMarker = new Marker(delimiter);
+
     try {
       versionNumber = Integer.parseInt(versionNumberString.trim());
     } catch (NumberFormatException e) {
@@ -792,84 +855,132 @@ public class CommandStreamParser {
   }
 
 
-  private byte[] readBytesUntilMarker(byte[] marker) throws IOException {
-
-    if (marker.length == 0) {
-      throw new IOException("Internal Error: Marker length must be greater than zero.");
+  /**
+   * Reads the characters before the next {@code marker}, and skips the marker.
+   * Returns the remaining characters if the stream ends before a marker, or
+   * {@code null} if there are none.
+   */
+  private String readCharsUntilMarker(Marker marker) throws IOException {
+    int end = findMarker(marker);
+    int start = position;
+    if (end != -1) {
+      position = end + marker.bytes.length;
+    } else if (start == limit) {
+      return null;
+    } else {
+      end = limit;
+      position = limit;
     }
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    int matchPosition = 0;
-    int nextByte = 0;
+    return decode(start, end);
+  }
 
-    while (matchPosition < marker.length) {
-      nextByte = inputStream.read();
-      if (nextByte == ((int) marker[matchPosition] & 0xff)) {
-        matchPosition += 1;
-      } else {
-        if (matchPosition > 0) {
-          byteArrayOutputStream.write(marker, 0, matchPosition);
-          matchPosition = 0;
-        }
-        if (nextByte == -1) {
-          break;
-        } else {
-          byteArrayOutputStream.write(nextByte);
-        }
+  /**
+   * Returns the index in {@link #buffer} of the first {@code marker} after
+   * {@link #position}, reading more input as necessary, or {@code -1} if the
+   * stream ends first.
+   */
+  private int findMarker(Marker marker) throws IOException {
+    // Offset from position where the marker may start.
+    int from = 0;
+    while (true) {
+      int found = marker.indexIn(buffer, position + from, limit);
+      if (found != -1) {
+        return found;
+      }
+      if (endOfStream) {
+        return -1;
       }
+      // The buffered bytes may end with the beginning of the marker.
+      from = Math.max(from, limit - position - marker.bytes.length + 1);
+      fill();
     }
-    byte[] result = byteArrayOutputStream.toByteArray();
-    if (nextByte == -1 && result.length == 0) {
-      return null;
+  }
+
+  /**
+   * Reads more input into {@link #buffer}, first moving the unparsed bytes to
+   * its beginning, or growing it if they fill it.
+   */
+  private void fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    int read = inputStream.read(buffer, limit, buffer.length - limit);
+    if (read == -1) {
+      endOfStream = true;
     } else {
-      return result;
+      limit += read;
     }
   }
 
-  private String readCharsUntilMarker(String marker) throws IOException {
-    byte[] byteMarker = marker.getBytes(CHARSET);
-    byte[] bytes = readBytesUntilMarker(byteMarker);
-    if (bytes == null) {
-      return null;
+  /** Writes the unparsed input to {@code out}. */
+  private void copyRemainingInput(OutputStream out) throws IOException {
+    out.write(buffer, position, limit - position);
+    position = limit;
+    IOHelper.copyStream(inputStream, out);
+  }
+
+  /** Decodes {@code buffer[start..end)}, which may be modified. */
+  private String decode(int start, int end) throws IOException {
+    if (chars.length < end - start) {
+      chars = new char[end - start];
+    }
+    // Most tokens are ASCII, which need no decoder.
+    int i = start;
+    while (i < end && buffer[i] >= 0) {
+      chars[i - start] = (char) buffer[i];
+      i++;
+    }
+    if (i == end) {
+      return new String(chars, 0, end - start);
     }
-    bytes = convertModifiedUtf8ToStandardUtf8(bytes);
-    return CHARSET.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+    end = convertModifiedUtf8ToStandardUtf8(buffer, start, end);
+    CharBuffer out = CharBuffer.wrap(chars);
+    decoder.reset();
+    CoderResult result = decoder.decode(
+        ByteBuffer.wrap(buffer, start, end - start), out, true);
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+    result = decoder.flush(out);
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+    return new String(chars, 0, out.position());
   }
 
   /**
-   * Converts modified UTF-8 that supports 2-byte \n and \0 to standard UTF-8. It replaces
-   * 0xC0 0x80 with 0x00 and 0xC0 0x8a with 0x0a.
+   * Converts modified UTF-8 that supports 2-byte \n and \0 to standard UTF-8 in place, and
+   * returns the new end of the bytes. It replaces 0xC0 0x80 with 0x00 and 0xC0 0x8a with 0x0a.
    */
-  private static byte[] convertModifiedUtf8ToStandardUtf8(byte[] bytes) throws IOException {
+  private static int convertModifiedUtf8ToStandardUtf8(byte[] bytes, int start, int end)
+      throws IOException {
     // Byte 0xC0 is always invalid in standard UTF-8, so its presence implies modified UTF-8.
-    int numberOfByteC0 = 0;
-    for (int i = 0; i < bytes.length; i++) {
-      if (bytes[i] == (byte) 0xC0) {
-        numberOfByteC0++;
-      }
-    }
-    if (numberOfByteC0 == 0) {
-      return bytes;
-    }
     // In UTF-8 if byte 0xC0 was valid, it would mean the code point is stored in two bytes.
     // In modified UTF-8, it means that we have stored \0 or \n in two bytes.
-    byte[] newBytes = new byte[bytes.length - numberOfByteC0];
+    // Converted bytes are never longer, so are written over the original ones.
     boolean lastByteWasC0 = false;
-    for (int i = 0, j = 0; i < bytes.length; i++) {
+    int j = start;
+    for (int i = start; i < end; i++) {
       if (!lastByteWasC0) {
         if (bytes[i] == (byte) 0xC0) {
           lastByteWasC0 = true;
           // Don't copy C0, because we will encode the character as one byte.
         } else {
-          newBytes[j++] = bytes[i];
+          bytes[j++] = bytes[i];
         }
       } else {
         lastByteWasC0 = false;
         if (bytes[i] == (byte) 0x80) {
           // Null character
-          newBytes[j++] = 0x00;
+          bytes[j++] = 0x00;
         } else if (bytes[i] == (byte) 0x8a) {
           // Newline
-          newBytes[j++] = 0x0a;
+          bytes[j++] = 0x0a;
         } else {
           throw new IOException(
               "Invalid modified UTF-8 byte sequence: 192 " + (bytes[i] & 0xff));
@@ -879,6 +990,109 @@ public class CommandStreamParser {
     if (lastByteWasC0) {
       throw new IOException("Invalid modified UTF-8 byte sequence: trailing 192");
     }
-    return newBytes;
+    return j;
+  }
+
+  /**
+   * Sends the records parsed by {@link #readFromLister} in batches, so that the input continues
+   * to be read while they are sent. At most one batch waits to be sent, so a slow {@code pusher}
+   * still eventually blocks parsing.
+   */
+  private static class PushStage implements Callable<DocIdPusher.Record> {
+    private final BlockingQueue<DocIdPusher.Record> queue
+        = new ArrayBlockingQueue<DocIdPusher.Record>(PUSH_BATCH_SIZE);
+    private final DocIdPusher pusher;
+    private final ExceptionHandler handler;
+    /** Set once pushing stops before the end, after which records are no longer accepted. */
+    private volatile boolean stopped;
+
+    PushStage(DocIdPusher pusher, ExceptionHandler handler) {
+      this.pusher = pusher;
+      this.handler = handler;
+    }
+
+    /** Queues {@code record} to be sent, and returns {@code false} if pushing has stopped. */
+    boolean add(DocIdPusher.Record record) throws InterruptedException {
+      if (stopped) {
+        return false;
+      }
+      // Stopping empties the queue, so this can not block indefinitely.
+      queue.put(record);
+      return true;
+    }
+
+    /** Indicates that all records have been added. */
+    void end() throws InterruptedException {
+      add(END_OF_RECORDS);
+    }
+
+    /** Returns {@code null} on success, otherwise the first record to fail. */
+    @Override
+    public DocIdPusher.Record call() throws InterruptedException {
+      boolean ended = false;
+      try {
+        List<DocIdPusher.Record> batch = new ArrayList<DocIdPusher.Record>();
+        for (DocIdPusher.Record record; (record = queue.take()) != END_OF_RECORDS;) {
+          batch.add(record);
+          if (batch.size() == PUSH_BATCH_SIZE) {
+            DocIdPusher.Record errorRecord = pusher.pushRecords(batch, handler);
+            if (errorRecord != null) {
+              return errorRecord;
+            }
+            batch.clear();
+          }
+        }
+        ended = true;
+        return batch.isEmpty() ? null : pusher.pushRecords(batch, handler);
+      } finally {
+        if (!ended) {
+          stopped = true;
+          queue.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Byte sequence searched for with the Boyer-Moore-Horspool algorithm, which
+   * skips ahead by up to the length of the sequence after each mismatch.
+   */
+  private static class Marker {
+    private final byte[] bytes;
+    /** Distance to shift the search, by the last byte compared. */
+    private final int[] skip = new int[256];
+
+    Marker(String marker) {
+      bytes = marker.getBytes(CHARSET);
+      int last = bytes.length - 1;
+      Arrays.fill(skip, bytes.length);
+      for (int i = 0; i < last; i++) {
+        skip[bytes[i] & 0xff] = last - i;
+      }
+    }
+
+    /** Returns the index of the first occurrence in {@code buf[from..to)}, or {@code -1}. */
+    int indexIn(byte[] buf, int from, int to) {
+      int last = bytes.length - 1;
+      if (last == 0) {
+        byte b = bytes[0];
+        for (int i = from; i < to; i++) {
+          if (buf[i] == b) {
+            return i;
+          }
+        }
+        return -1;
+      }
+      for (int i = from; i + last < to; i += skip[buf[i + last] & 0xff]) {
+        int j = last;
+        while (buf[i + j] == bytes[j]) {
+          if (j == 0) {
+            return i;
+          }
+          j--;
+        }
+      }
+      return -1;
+    }
   }
 }
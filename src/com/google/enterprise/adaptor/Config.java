@@ -73,6 +73,44 @@ import java.util.regex.Pattern;
  * <tr><td> </td><td>adaptor.heartbeatTimeoutSecs </td><td> number of seconds
  *     adaptor has to send a heartbeat response before it is interrupted.
  *     Defaults to same value as adaptor.docHeaderTimeoutSecs.
+ * <tr><td> </td><td>adaptor.docCache.maxBytes </td><td> approximate number
+ *     of bytes of document responses to keep in memory so that unchanged
+ *     documents can be served without the adaptor resending their content.
+ *     Zero disables the cache. Defaults to 0
+ * <tr><td> </td><td>adaptor.docCache.maxDocumentBytes </td><td> largest
+ *     document content, in bytes, that is eligible for caching.
+ *     Defaults to 65536
+ * <tr><td> </td><td>adaptor.docCache.offHeap </td><td> whether cached
+ *     document content is stored in direct buffers outside of the Java heap.
+ *     Defaults to false
+ * <tr><td> </td><td>adaptor.metadata.internKeys </td><td> whether the
+ *     keys of metadata are interned, so that the many records and documents
+ *     with the same keys share the key strings. Defaults to false
+ * <tr><td> </td><td>adaptor.authzCache.maxEntries </td><td> number of
+ *     authorization decisions, each for one user and document, to remember so
+ *     that repeated checks do not reach the adaptor. Zero disables the cache.
+ *     Defaults to 0
+ * <tr><td> </td><td>adaptor.authzCache.permitTtlSecs </td><td> number of
+ *     seconds a cached PERMIT decision is used. Zero disables caching of
+ *     PERMIT decisions. Defaults to 30
+ * <tr><td> </td><td>adaptor.authzCache.denyTtlSecs </td><td> number of
+ *     seconds a cached DENY decision is used. Zero disables caching of DENY
+ *     decisions. Defaults to 10
+ * <tr><td> </td><td>adaptor.batchAuthz.threads </td><td> number of threads
+ *     checking parts of a batch authorization request from the GSA
+ *     concurrently. Zero checks each request in a single call on the request
+ *     thread. Defaults to 0
+ * <tr><td> </td><td>adaptor.batchAuthz.subBatchSize </td><td> maximum number
+ *     of documents checked in one call when adaptor.batchAuthz.threads is
+ *     positive. Defaults to 10
+ * <tr><td> </td><td>adaptor.batchAuthz.timeoutSecs </td><td> number of
+ *     seconds allowed for the decisions of one batch authorization request
+ *     when adaptor.batchAuthz.threads is positive. Documents without a
+ *     decision by then are denied. Defaults to 5
+ * <tr><td> </td><td>adaptor.resolveNestedGroups </td><td> whether to keep
+ *     the group definitions pushed by the adaptor in memory and add the groups
+ *     users belong to through nested groups to their identities before
+ *     authorization by the adaptor. Defaults to false
  * <tr><td> </td><td>adaptor.disableFullAndIncrementalListing </td><td>
  *      whether to disable calls to {@link Adaptor#getDocIds Adaptor.getDocIds}
  *      and {@link PollingIncrementalLister#getModifiedDocIds
@@ -160,6 +198,9 @@ import java.util.regex.Pattern;
  *     Defaults to adaptor
  * <tr><td> </td><td>server.maxWorkerThreads </td><td> number of maximum
  *     simultenous retrievals  allowed.  Defaults to 16
+ * <tr><td> </td><td>server.metricsHosts </td><td> hosts allowed to read
+ *     metrics from the dashboard's /metrics path without logging in.
+ *     Defaults to empty
  * <tr><td> </td><td>server.port </td><td> retriever port.  Defaults to 5678
  * <tr><td> </td><td>server.queueCapacity </td><td> max retriever queue size.
  *     Defaults to  160
@@ -183,6 +224,12 @@ import java.util.regex.Pattern;
  * <tr><td> </td><td>server.httpBasic.password </td><td> if http basic is
  *     enabled then this is the password that the requester must provide.
  *     Defaults to empty string "".
+ * <tr><td> </td><td>server.sessionDirectory </td><td> directory in which
+ *     user sessions are stored, so that adaptors sharing the directory behind
+ *     a load balancer share sessions. Completed SAML authentications are
+ *     shared, but not passwords. Session attributes set by the adaptor are
+ *     only shared if they are strings, numbers or booleans. Defaults to empty,
+ *     keeping sessions in memory only
  * <tr><td> </td><td>server.useCompression </td><td> compress retrieval
  *     responses. Defaults to false
  * <tr><td> </td><td>transform.acl.X </td><td> where X is an integer, match
@@ -252,6 +299,7 @@ public class Config {
     addKey("server.docIdPath", "/doc/");
     addKey("server.fullAccessHosts", "");
     addKey("server.skipCertCheckHosts", "");
+    addKey("server.metricsHosts", "");
     addKey("server.heartbeatPath", "/heartbeat/");
     addKey("server.secure", "false");
     addKey("server.httpBasic.username", "");
@@ -262,6 +310,7 @@ public class Config {
     // for each request.
     addKey("server.queueCapacity", "160");
     addKey("server.useCompression", "false");
+    addKey("server.sessionDirectory", "");
     addKey("server.asyncDocIdSenderQueueSize", "GENERATE",
         new ValueComputer() {
           public String compute(String rawValue) {
@@ -307,6 +356,17 @@ public class Config {
     addKey("adaptor.docContentTimeoutSecs", "180");
     addKey("adaptor.docHeaderTimeoutSecs", "30");
     addKey("adaptor.heartbeatTimeoutSecs", "");
+    addKey("adaptor.docCache.maxBytes", "0");
+    addKey("adaptor.docCache.maxDocumentBytes", "65536");
+    addKey("adaptor.docCache.offHeap", "false");
+    addKey("adaptor.metadata.internKeys", "false");
+    addKey("adaptor.authzCache.maxEntries", "0");
+    addKey("adaptor.authzCache.permitTtlSecs", "30");
+    addKey("adaptor.authzCache.denyTtlSecs", "10");
+    addKey("adaptor.batchAuthz.threads", "0");
+    addKey("adaptor.batchAuthz.subBatchSize", "10");
+    addKey("adaptor.batchAuthz.timeoutSecs", "5");
+    addKey("adaptor.resolveNestedGroups", "false");
     addKey("metadata.transform.pipeline", "");
     addKey("content.transform.pipeline", "");
     addKey("journal.reducedMem", "true");
@@ -439,6 +499,16 @@ public class Config {
     return getValue("server.fullAccessHosts").split(",");
   }
 
+  /**
+   * Comma-separated list of IPs or hostnames that are allowed to read the
+   * dashboard's metrics without logging in, such as a Prometheus server. The
+   * hostnames are resolved to IPs at startup. Other clients must log in to the
+   * dashboard to read the metrics.
+   */
+  String[] getServerMetricsHosts() {
+    return getValue("server.metricsHosts").split(",");
+  }
+
   /**
    * DANGER, use for debugging only.
    * Comma-separated list of IPs or hostnames that can skip
@@ -541,6 +611,14 @@ public class Config {
     return getValue("server.samlEntityId");
   }
 
+  /**
+   * Returns the directory for sharing sessions, or the empty string when
+   * sessions are not shared.
+   */
+  String getServerSessionDirectory() {
+    return getValue("server.sessionDirectory").trim();
+  }
+
   boolean isServerToUseCompression() {
     return Boolean.parseBoolean(getValue("server.useCompression"));
   }
@@ -640,11 +718,21 @@ public class Config {
   }
 
   private long validateTimeout(String property) {
+    return validateSeconds(property, false);
+  }
+
+  /** Same as {@link #validateTimeout}, but also accepts zero. */
+  private long validateNonNegativeSeconds(String property) {
+    return validateSeconds(property, true);
+  }
+
+  private long validateSeconds(String property, boolean zeroAccepted) {
     String secondsAsString = getValue(property).trim();
-    if ("0".equals(secondsAsString) || "".equals(secondsAsString)
-        || secondsAsString.startsWith("-")) {
+    if ("".equals(secondsAsString) || secondsAsString.startsWith("-")
+        || (!zeroAccepted && "0".equals(secondsAsString))) {
       throw new InvalidConfigurationException("Invalid value for " + property
-          + ". Zero, empty and negative values are not accepted.");
+          + (zeroAccepted ? ". Empty and negative values are not accepted."
+              : ". Zero, empty and negative values are not accepted."));
     } else {
       try {
         long seconds = Long.parseLong(secondsAsString);
@@ -656,7 +744,9 @@ public class Config {
         return seconds * 1000;
       } catch (NumberFormatException nfe) {
         throw new InvalidConfigurationException("Invalid value for "
-            + property + ". Only a positive integer value is accepted.");
+            + property + ". Only a "
+            + (zeroAccepted ? "non-negative" : "positive")
+            + " integer value is accepted.");
       }
     }
   }
@@ -682,6 +772,50 @@ public class Config {
     }
   }
 
+  long getAdaptorDocCacheMaxBytes() {
+    return Long.parseLong(getValue("adaptor.docCache.maxBytes"));
+  }
+
+  int getAdaptorDocCacheMaxDocumentBytes() {
+    return Integer.parseInt(getValue("adaptor.docCache.maxDocumentBytes"));
+  }
+
+  boolean isAdaptorDocCacheOffHeap() {
+    return Boolean.parseBoolean(getValue("adaptor.docCache.offHeap"));
+  }
+
+  boolean isAdaptorMetadataInternKeys() {
+    return Boolean.parseBoolean(getValue("adaptor.metadata.internKeys"));
+  }
+
+  int getAdaptorAuthzCacheMaxEntries() {
+    return Integer.parseInt(getValue("adaptor.authzCache.maxEntries"));
+  }
+
+  long getAdaptorAuthzCachePermitTtlMillis() {
+    return validateNonNegativeSeconds("adaptor.authzCache.permitTtlSecs");
+  }
+
+  long getAdaptorAuthzCacheDenyTtlMillis() {
+    return validateNonNegativeSeconds("adaptor.authzCache.denyTtlSecs");
+  }
+
+  int getAdaptorBatchAuthzThreads() {
+    return Integer.parseInt(getValue("adaptor.batchAuthz.threads"));
+  }
+
+  int getAdaptorBatchAuthzSubBatchSize() {
+    return Integer.parseInt(getValue("adaptor.batchAuthz.subBatchSize"));
+  }
+
+  long getAdaptorBatchAuthzTimeoutMillis() {
+    return validateTimeout("adaptor.batchAuthz.timeoutSecs");
+  }
+
+  boolean isAdaptorResolvingNestedGroups() {
+    return Boolean.parseBoolean(getValue("adaptor.resolveNestedGroups"));
+  }
+
   /**
    * Returns a list of maps correspending to each transform in the pipeline.
    * Each map is the configuration entries for that transform. The 'name'
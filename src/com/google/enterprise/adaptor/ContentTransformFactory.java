@@ -3,6 +3,7 @@ package com.google.enterprise.adaptor;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
@@ -29,23 +30,35 @@ class ContentTransformFactory {
     Constructor<ContentTransform> ctor;
     Map<String, String> config;
     Method method;
+    TransformMetrics.Stage stage;
   }
 
   private List<SingleTransform> transforms;
 
+  /**
+   * Same as {@code ContentTransformFactory(configs, new TransformMetrics())}.
+   */
+  public ContentTransformFactory(
+      final List<Map<String, String>> configs) {
+    this(configs, new TransformMetrics());
+  }
+
   /**
    * Constructs a new ContentTransformFactory. Also checks the basic
    * configuration values for the {@link ContentTransform}
    * instantiation.
    *
    * @param configs Configuration for each {@link ContentTransform}
+   * @param metrics   where the timings, bytes and failures of each {@link
+   *                  ContentTransform} are recorded, using its name
    * @throws InvalidConfigurationException If the class for a {@link
    *                                       ContentTransform} is missing
    * @throws RuntimeException              If the class does not match all
    *                                       criteria
    */
   public ContentTransformFactory(
-      final List<Map<String, String>> configs) {
+      final List<Map<String, String>> configs,
+      final TransformMetrics metrics) {
     transforms = new ArrayList<SingleTransform>();
     for (int i = 0; i < configs.size(); i++) {
       final Map<String, String> config = configs.get(i);
@@ -70,6 +83,9 @@ class ContentTransformFactory {
         s.ctor = constructor;
         s.config = new TreeMap<String, String>(config);
         s.method = m;
+        String name = config.get("name");
+        s.stage = metrics.register(TransformMetrics.Type.CONTENT,
+            Strings.isNullOrEmpty(name) ? className : name);
         transforms.add(s);
       } catch (Exception e) {
         throw new InvalidConfigurationException(
@@ -96,10 +112,14 @@ class ContentTransformFactory {
     int steps = transforms.size();
     for (int count = steps - 1; count >= 0; count--) {
       SingleTransform s = transforms.get(count);
+      MeteredOutputStream downstream
+          = new MeteredOutputStream(currentOutputStream);
       try {
-        currentOutputStream = s.ctor.newInstance(s.config, metadata,
-            calculateContentType(firstContentType, count), currentOutputStream);
+        currentOutputStream = new StageOutputStream(s.ctor.newInstance(
+            s.config, metadata, calculateContentType(firstContentType, count),
+            downstream), s.stage, downstream);
       } catch (Exception e) {
+        s.stage.record(0, true, false);
         throw new RuntimeException(
             "Cannot instantiate document content transform: "
                 + s.ctor.getName(), e);
@@ -150,4 +170,121 @@ class ContentTransformFactory {
     }
     return currentContentType;
   }
+
+  /**
+   * Counts the bytes written through it and the time spent writing them,
+   * including the time spent by the streams it writes to.
+   */
+  private static class MeteredOutputStream extends OutputStream {
+    private final OutputStream out;
+    long bytes;
+    long nanos;
+    /** Whether {@code out} threw an exception. */
+    boolean failed;
+
+    MeteredOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+        out.write(b);
+        ok = true;
+      } finally {
+        end(start, ok);
+      }
+      bytes++;
+    }
+
+    /** Forwarded as is, since transforms may only override this method. */
+    @Override
+    public void write(byte[] b) throws IOException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+        out.write(b);
+        ok = true;
+      } finally {
+        end(start, ok);
+      }
+      bytes += b.length;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+        out.write(b, off, len);
+        ok = true;
+      } finally {
+        end(start, ok);
+      }
+      bytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+        out.flush();
+        ok = true;
+      } finally {
+        end(start, ok);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+        out.close();
+        ok = true;
+      } finally {
+        end(start, ok);
+      }
+    }
+
+    private void end(long start, boolean ok) {
+      nanos += System.nanoTime() - start;
+      failed |= !ok;
+    }
+  }
+
+  /**
+   * Stream into a {@link ContentTransform}, which records the statistics of
+   * the transform once closed. The time and failures of the streams after the
+   * transform are not attributed to it.
+   */
+  private static class StageOutputStream extends MeteredOutputStream {
+    private final TransformMetrics.Stage stage;
+    private final MeteredOutputStream downstream;
+    private boolean recorded;
+
+    StageOutputStream(OutputStream transform, TransformMetrics.Stage stage,
+        MeteredOutputStream downstream) {
+      super(transform);
+      this.stage = stage;
+      this.downstream = downstream;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!recorded) {
+          recorded = true;
+          stage.recordBytes(bytes, downstream.bytes);
+          stage.record(nanos - downstream.nanos, failed && !downstream.failed,
+              false);
+        }
+      }
+    }
+  }
 }
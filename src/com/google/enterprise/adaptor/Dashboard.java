@@ -19,15 +19,22 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -96,6 +103,10 @@ class Dashboard {
         createAdminSecurityHandler(new DownloadDumpHandler(config,
             config.getFeedName().replace('_', '-'), statRpcMethod),
             config, sessionManager, secure)));
+    HttpHandler metricsHandler = gsaCommHandler.createMetricsHandler();
+    addFilters(scope.createContext("/metrics", new TrustedHostsHandler(
+        metricsHandler, createAdminSecurityHandler(metricsHandler, config,
+            sessionManager, secure), config.getServerMetricsHosts())));
     addFilters(scope.createContext("/",
         new RedirectHandler(dashboardContext.getPath())));
 
@@ -117,6 +128,48 @@ class Dashboard {
     return gsaCommHandler.addFilters(context);
   }
 
+  /**
+   * Sends requests from a fixed set of hosts directly to a handler, and all
+   * other requests to a fallback handler, which typically requires logging in.
+   */
+  static class TrustedHostsHandler implements HttpHandler {
+    private final HttpHandler trustedHandler;
+    private final HttpHandler untrustedHandler;
+    private final Set<InetAddress> trustedAddresses
+        = new HashSet<InetAddress>();
+
+    public TrustedHostsHandler(HttpHandler trustedHandler,
+        HttpHandler untrustedHandler, String[] trustedHosts) {
+      if (trustedHandler == null || untrustedHandler == null) {
+        throw new NullPointerException();
+      }
+      this.trustedHandler = trustedHandler;
+      this.untrustedHandler = untrustedHandler;
+      for (String hostname : trustedHosts) {
+        hostname = hostname.trim();
+        if ("".equals(hostname)) {
+          continue;
+        }
+        try {
+          trustedAddresses.addAll(
+              Arrays.asList(InetAddress.getAllByName(hostname)));
+        } catch (UnknownHostException ex) {
+          log.log(Level.WARNING, "Could not resolve hostname. Not adding it to "
+              + "trusted hosts: " + hostname, ex);
+        }
+      }
+    }
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      if (trustedAddresses.contains(ex.getRemoteAddress().getAddress())) {
+        trustedHandler.handle(ex);
+      } else {
+        untrustedHandler.handle(ex);
+      }
+    }
+  }
+
   private class StartFeedPushRpcMethod implements RpcHandler.RpcMethod {
     @Override
     public Object run(List<?> request) {
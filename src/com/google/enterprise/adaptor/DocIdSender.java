@@ -42,18 +42,31 @@ class DocIdSender extends AbstractDocIdPusher
   private final Journal journal;
   private final Config config;
   private final Adaptor adaptor;
+  /** Index of pushed groups, or {@code null}. */
+  private final GroupIndex groupIndex;
   private final ExceptionHandler defaultErrorHandler
       = ExceptionHandlers.defaultHandler();
 
   public DocIdSender(GsaFeedFileMaker fileMaker, GsaFeedFileSender fileSender,
       FeedArchiver fileArchiver, Journal journal, Config config,
       Adaptor adaptor) {
+    this(fileMaker, fileSender, fileArchiver, journal, config, adaptor, null);
+  }
+
+  /**
+   * @param groupIndex index updated with all pushed group definitions, or
+   *     {@code null}
+   */
+  public DocIdSender(GsaFeedFileMaker fileMaker, GsaFeedFileSender fileSender,
+      FeedArchiver fileArchiver, Journal journal, Config config,
+      Adaptor adaptor, GroupIndex groupIndex) {
     this.fileMaker = fileMaker;
     this.fileSender = fileSender;
     this.fileArchiver = fileArchiver;
     this.journal = journal;
     this.config = config;
     this.adaptor = adaptor;
+    this.groupIndex = groupIndex;
   }
 
   /**
@@ -321,6 +334,12 @@ class DocIdSender extends AbstractDocIdPusher
       Map<GroupPrincipal, T> defs,
       boolean caseSensitive, FeedType feedType, String groupSource,
       ExceptionHandler handler) throws InterruptedException {
+    if (groupIndex != null) {
+      // Indexed even if the GSA does not accept the definitions, since
+      // authorization by the adaptor still needs them.
+      groupIndex.update(defs, caseSensitive, feedType,
+          groupSource == null ? config.getFeedName() : groupSource);
+    }
     int numGroups = 0;
     int numMembers = 0;
     journal.recordGroupPushStarted();
@@ -441,8 +460,13 @@ class DocIdSender extends AbstractDocIdPusher
     for (int ntries = 1; keepGoing; ntries++) {
       try {
         log.info("sending groups to GSA host name: " + config.getGsaHostname());
-        fileSender.sendGroups(feedSourceName, feedType.toString(),
-            groupsDefXml, config.isServerToUseCompression());
+        journal.recordLatencyStart(Journal.Latency.FEED_SEND);
+        try {
+          fileSender.sendGroups(feedSourceName, feedType.toString(),
+              groupsDefXml, config.isServerToUseCompression());
+        } finally {
+          journal.recordLatencyEnd(Journal.Latency.FEED_SEND);
+        }
         keepGoing = false;  // Sent.
         success = true;
       } catch (IOException ex) {
@@ -476,7 +500,12 @@ class DocIdSender extends AbstractDocIdPusher
     log.log(Level.INFO, "Cleanup groups from {0}", feedSourceName);
     for (int ntries = 1; keepGoing; ntries++) {
       try {
-        fileSender.sendGroups(feedSourceName, "cleanup", "", false);
+        journal.recordLatencyStart(Journal.Latency.FEED_SEND);
+        try {
+          fileSender.sendGroups(feedSourceName, "cleanup", "", false);
+        } finally {
+          journal.recordLatencyEnd(Journal.Latency.FEED_SEND);
+        }
         keepGoing = false;  // Sent.
         success = true;
       } catch (IOException ex) {
@@ -508,8 +537,13 @@ class DocIdSender extends AbstractDocIdPusher
     for (int ntries = 1; keepGoing; ntries++) {
       try {
         log.info("Sending items to GSA host: " + config.getGsaHostname());
-        fileSender.sendMetadataAndUrl(feedSourceName, xmlFeedFile,
-                                      config.isServerToUseCompression());
+        journal.recordLatencyStart(Journal.Latency.FEED_SEND);
+        try {
+          fileSender.sendMetadataAndUrl(feedSourceName, xmlFeedFile,
+                                        config.isServerToUseCompression());
+        } finally {
+          journal.recordLatencyEnd(Journal.Latency.FEED_SEND);
+        }
         keepGoing = false;  // Sent.
         success = true;
       } catch (IOException ex) {
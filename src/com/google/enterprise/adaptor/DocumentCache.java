@@ -0,0 +1,497 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.enterprise.adaptor.MetadataTransform.TransmissionDecision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Size-bounded, least-recently-used cache of small document responses.
+ * Entries are the adaptor's own calls on {@link Response} (headers, metadata,
+ * ACLs, and body) before any transforms, so a cached response can be replayed
+ * into a new {@code Response} and go through the same transforms and
+ * security decisions as a fresh one.
+ *
+ * <p>An entry is only used after the adaptor confirms it is still current:
+ * {@link DocumentHandler} asks the adaptor for the document with the entry's
+ * last-modified date as the last access time and only replays the entry if
+ * the adaptor responds with {@link Response#respondNotModified}. Only
+ * responses that provided a last-modified date and whose body fits in {@code
+ * maxDocumentBytes} are cached.
+ *
+ * <p>This class is thread-safe.
+ */
+class DocumentCache {
+  /** Rough per-entry bookkeeping cost, in addition to the stored data. */
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+  private final long maxBytes;
+  private final int maxDocumentBytes;
+  private final boolean offHeap;
+  /** Access-ordered, so iteration begins with the least recently used. */
+  private final LinkedHashMap<DocId, CachedResponse> entries
+      = new LinkedHashMap<DocId, CachedResponse>(16, 0.75f, true);
+  private long currentBytes;
+
+  /**
+   * @param maxBytes approximate upper bound of memory used by all entries
+   * @param maxDocumentBytes largest document body that will be cached
+   * @param offHeap whether to store document bodies in direct buffers
+   */
+  public DocumentCache(long maxBytes, int maxDocumentBytes, boolean offHeap) {
+    if (maxBytes <= 0 || maxDocumentBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must be positive and "
+          + "maxDocumentBytes must be non-negative");
+    }
+    this.maxBytes = maxBytes;
+    this.maxDocumentBytes = maxDocumentBytes;
+    this.offHeap = offHeap;
+  }
+
+  /** Returns the cached response for {@code docId}, or {@code null}. */
+  public synchronized CachedResponse get(DocId docId) {
+    return entries.get(docId);
+  }
+
+  /**
+   * Stores {@code response}, replacing any previous entry for {@code docId}
+   * and evicting least recently used entries as necessary.
+   */
+  public synchronized void put(DocId docId, CachedResponse response) {
+    if (response.sizeInBytes > maxBytes) {
+      invalidate(docId);
+      return;
+    }
+    CachedResponse previous = entries.put(docId, response);
+    if (previous != null) {
+      currentBytes -= previous.sizeInBytes;
+    }
+    currentBytes += response.sizeInBytes;
+    Iterator<CachedResponse> it = entries.values().iterator();
+    while (currentBytes > maxBytes && it.hasNext()) {
+      currentBytes -= it.next().sizeInBytes;
+      it.remove();
+    }
+  }
+
+  /** Removes any entry for {@code docId}. */
+  public synchronized void invalidate(DocId docId) {
+    CachedResponse previous = entries.remove(docId);
+    if (previous != null) {
+      currentBytes -= previous.sizeInBytes;
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long getSizeInBytes() {
+    return currentBytes;
+  }
+
+  /**
+   * Creates a {@code Response} that forwards to {@code delegate} while
+   * recording what the adaptor provides. If {@code cached} is non-{@code
+   * null}, the adaptor is being asked to revalidate it and a call to {@link
+   * Response#respondNotModified} causes {@code cached} to be replayed into
+   * {@code delegate} instead, unless {@code clientRequest} shows the client is
+   * already up-to-date.
+   */
+  CachingResponse createCachingResponse(Response delegate,
+      CachedResponse cached, Request clientRequest) {
+    return new CachingResponse(delegate, cached, clientRequest);
+  }
+
+  /**
+   * A recorded adaptor response. Instances are immutable once added to the
+   * cache.
+   */
+  static class CachedResponse {
+    private String contentType;
+    private Date lastModified;
+    private final Metadata metadata = new Metadata();
+    private boolean aclSet;
+    private Acl acl;
+    private final Map<String, Acl> fragments = new TreeMap<String, Acl>();
+    private Boolean secure;
+    private final List<URI> anchorUris = new ArrayList<URI>();
+    private final List<String> anchorTexts = new ArrayList<String>();
+    private Boolean noIndex;
+    private Boolean noFollow;
+    private Boolean noArchive;
+    private URI displayUrl;
+    private Boolean crawlOnce;
+    private Boolean lock;
+    private TransmissionDecision forcedTransmissionDecision;
+    private final Map<String, String> params = new TreeMap<String, String>();
+    private byte[] body;
+    private ByteBuffer offHeapBody;
+    private long sizeInBytes;
+
+    Date getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * Calls the recorded setters on {@code response}, without starting the
+     * response.
+     */
+    void applyHeaders(Response response) {
+      if (contentType != null) {
+        response.setContentType(contentType);
+      }
+      if (lastModified != null) {
+        response.setLastModified(lastModified);
+      }
+      for (Map.Entry<String, String> e : metadata) {
+        response.addMetadata(e.getKey(), e.getValue());
+      }
+      if (aclSet) {
+        response.setAcl(acl);
+      }
+      for (Map.Entry<String, Acl> e : fragments.entrySet()) {
+        response.putNamedResource(e.getKey(), e.getValue());
+      }
+      if (secure != null) {
+        response.setSecure(secure);
+      }
+      for (int i = 0; i < anchorUris.size(); i++) {
+        response.addAnchor(anchorUris.get(i), anchorTexts.get(i));
+      }
+      if (noIndex != null) {
+        response.setNoIndex(noIndex);
+      }
+      if (noFollow != null) {
+        response.setNoFollow(noFollow);
+      }
+      if (noArchive != null) {
+        response.setNoArchive(noArchive);
+      }
+      if (displayUrl != null) {
+        response.setDisplayUrl(displayUrl);
+      }
+      if (crawlOnce != null) {
+        response.setCrawlOnce(crawlOnce);
+      }
+      if (lock != null) {
+        response.setLock(lock);
+      }
+      if (forcedTransmissionDecision != null) {
+        response.setForcedTransmissionDecision(forcedTransmissionDecision);
+      }
+      for (Map.Entry<String, String> e : params.entrySet()) {
+        response.setParam(e.getKey(), e.getValue());
+      }
+    }
+
+    /** Replays the complete response, including its body. */
+    void replay(Response response) throws IOException {
+      applyHeaders(response);
+      OutputStream os = response.getOutputStream();
+      if (body != null) {
+        os.write(body);
+      } else {
+        ByteBuffer buffer = offHeapBody.duplicate();
+        byte[] chunk = new byte[Math.min(8192, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+          int len = Math.min(chunk.length, buffer.remaining());
+          buffer.get(chunk, 0, len);
+          os.write(chunk, 0, len);
+        }
+      }
+    }
+
+    private void setBody(ByteArrayOutputStream captured, boolean offHeap) {
+      if (offHeap) {
+        byte[] bytes = captured.toByteArray();
+        offHeapBody = ByteBuffer.allocateDirect(bytes.length);
+        offHeapBody.put(bytes);
+        offHeapBody.flip();
+        offHeapBody = offHeapBody.asReadOnlyBuffer();
+      } else {
+        body = captured.toByteArray();
+      }
+      long size = ENTRY_OVERHEAD_BYTES + captured.size();
+      // Strings are roughly two bytes per character.
+      for (Map.Entry<String, String> e : metadata) {
+        size += 2 * (e.getKey().length() + e.getValue().length());
+      }
+      for (Map.Entry<String, String> e : params.entrySet()) {
+        size += 2 * (e.getKey().length() + e.getValue().length());
+      }
+      sizeInBytes = size;
+    }
+  }
+
+  /**
+   * {@code Response} that records the adaptor's calls and forwards them to the
+   * real response once the adaptor commits to a response. Setters are held
+   * back until then so that a revalidated entry can still be replayed into an
+   * untouched response. This class is not thread-safe.
+   */
+  class CachingResponse implements Response {
+    private final Response delegate;
+    private final CachedResponse cached;
+    private final Request clientRequest;
+    private final CachedResponse recording = new CachedResponse();
+    private boolean committed;
+    private boolean bodyStarted;
+    private boolean servedFromCache;
+    private ByteArrayOutputStream capture = new ByteArrayOutputStream();
+    private OutputStream os;
+
+    private CachingResponse(Response delegate, CachedResponse cached,
+        Request clientRequest) {
+      if (delegate == null || clientRequest == null) {
+        throw new NullPointerException();
+      }
+      this.delegate = delegate;
+      this.cached = cached;
+      this.clientRequest = clientRequest;
+    }
+
+    /** Whether the response was satisfied by the revalidated entry. */
+    boolean isServedFromCache() {
+      return servedFromCache;
+    }
+
+    /**
+     * Returns the recorded response if it may be stored in the cache, or
+     * {@code null}. Must only be called after the adaptor returned normally.
+     */
+    CachedResponse getCacheableResponse() {
+      if (!bodyStarted || capture == null || recording.lastModified == null) {
+        return null;
+      }
+      recording.setBody(capture, offHeap);
+      capture = null;
+      return recording;
+    }
+
+    private void commit() {
+      if (committed) {
+        throw new IllegalStateException("Already responded");
+      }
+      committed = true;
+      recording.applyHeaders(delegate);
+    }
+
+    @Override
+    public void respondNotModified() throws IOException {
+      if (committed) {
+        throw new IllegalStateException("Already responded");
+      }
+      committed = true;
+      if (cached == null) {
+        delegate.respondNotModified();
+      } else if (clientRequest.getLastAccessTime() != null
+          && !clientRequest.hasChangedSinceLastAccess(cached.lastModified)) {
+        servedFromCache = true;
+        delegate.respondNotModified();
+      } else {
+        servedFromCache = true;
+        cached.replay(delegate);
+      }
+    }
+
+    @Override
+    public void respondNotFound() throws IOException {
+      commit();
+      delegate.respondNotFound();
+    }
+
+    @Override
+    public void respondNoContent() throws IOException {
+      commit();
+      delegate.respondNoContent();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      if (bodyStarted) {
+        return os;
+      }
+      commit();
+      bodyStarted = true;
+      os = new CapturingOutputStream(delegate.getOutputStream());
+      return os;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+      if (committed) {
+        delegate.setContentType(contentType);
+      }
+      recording.contentType = contentType;
+    }
+
+    @Override
+    public void setLastModified(Date lastModified) {
+      if (committed) {
+        delegate.setLastModified(lastModified);
+      }
+      recording.lastModified = lastModified;
+    }
+
+    @Override
+    public void addMetadata(String key, String value) {
+      if (committed) {
+        delegate.addMetadata(key, value);
+      }
+      recording.metadata.add(key, value);
+    }
+
+    @Override
+    public void setAcl(Acl acl) {
+      if (committed) {
+        delegate.setAcl(acl);
+      }
+      recording.aclSet = true;
+      recording.acl = acl;
+    }
+
+    @Override
+    public void putNamedResource(String fragment, Acl acl) {
+      if (committed) {
+        delegate.putNamedResource(fragment, acl);
+      }
+      recording.fragments.put(fragment, acl);
+    }
+
+    @Override
+    public void setSecure(boolean secure) {
+      if (committed) {
+        delegate.setSecure(secure);
+      }
+      recording.secure = secure;
+    }
+
+    @Override
+    public void addAnchor(URI uri, String text) {
+      if (committed) {
+        delegate.addAnchor(uri, text);
+      }
+      if (uri == null) {
+        throw new NullPointerException();
+      }
+      recording.anchorUris.add(uri);
+      recording.anchorTexts.add(text);
+    }
+
+    @Override
+    public void setNoIndex(boolean noIndex) {
+      if (committed) {
+        delegate.setNoIndex(noIndex);
+      }
+      recording.noIndex = noIndex;
+    }
+
+    @Override
+    public void setNoFollow(boolean noFollow) {
+      if (committed) {
+        delegate.setNoFollow(noFollow);
+      }
+      recording.noFollow = noFollow;
+    }
+
+    @Override
+    public void setNoArchive(boolean noArchive) {
+      if (committed) {
+        delegate.setNoArchive(noArchive);
+      }
+      recording.noArchive = noArchive;
+    }
+
+    @Override
+    public void setDisplayUrl(URI displayUrl) {
+      if (committed) {
+        delegate.setDisplayUrl(displayUrl);
+      }
+      recording.displayUrl = displayUrl;
+    }
+
+    @Override
+    public void setCrawlOnce(boolean crawlOnce) {
+      if (committed) {
+        delegate.setCrawlOnce(crawlOnce);
+      }
+      recording.crawlOnce = crawlOnce;
+    }
+
+    @Override
+    public void setLock(boolean lock) {
+      if (committed) {
+        delegate.setLock(lock);
+      }
+      recording.lock = lock;
+    }
+
+    @Override
+    public void setForcedTransmissionDecision(
+        TransmissionDecision transmissionDecision) {
+      if (committed) {
+        delegate.setForcedTransmissionDecision(transmissionDecision);
+      }
+      recording.forcedTransmissionDecision = transmissionDecision;
+    }
+
+    @Override
+    public void setParam(String key, String value) {
+      if (committed) {
+        delegate.setParam(key, value);
+      }
+      if (!key.startsWith("X-")) {
+        throw new IllegalArgumentException(
+            "The param key must start with 'X-'");
+      }
+      recording.params.put(key, value);
+    }
+
+    /**
+     * Copies bytes into {@link #capture} until it grows beyond {@link
+     * #maxDocumentBytes}, at which point the document is no longer cacheable.
+     */
+    private class CapturingOutputStream extends FastFilterOutputStream {
+      public CapturingOutputStream(OutputStream out) {
+        super(out);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        if (capture != null) {
+          if (capture.size() + len > maxDocumentBytes) {
+            capture = null;
+          } else {
+            capture.write(b, off, len);
+          }
+        }
+      }
+    }
+  }
+}
@@ -97,10 +97,11 @@ class DocumentHandler implements HttpHandler {
   private final boolean alwaysGiveAcl;
   private final GsaVersion gsaVersion;
   private final boolean gsaSupports204;
+  private final DocumentCache docCache;
 
   /**
-   * {@code samlServiceProvider}, {@code metadataTransform} and
-   * {@code contentTransformFactory} may be {@code null}.
+   * {@code samlServiceProvider}, {@code metadataTransform},
+   * {@code contentTransformFactory} and {@code docCache} may be {@code null}.
    */
   public DocumentHandler(DocIdDecoder docIdDecoder, DocIdEncoder docIdEncoder,
                          Journal journal, Adaptor adaptor,
@@ -116,7 +117,7 @@ class DocumentHandler implements HttpHandler {
                          long headerTimeoutMillis,
                          long contentTimeoutMillis, String scoringType,
                          boolean provideAclsAndMetadata,
-                         GsaVersion gsaVersion) {
+                         GsaVersion gsaVersion, DocumentCache docCache) {
     if (docIdDecoder == null || docIdEncoder == null || journal == null
         || adaptor == null || aclTransform == null || watchdog == null
         || pusher == null || scoringType == null || gsaVersion == null) {
@@ -142,6 +143,7 @@ class DocumentHandler implements HttpHandler {
     this.alwaysGiveAcl = provideAclsAndMetadata;
     this.gsaVersion = gsaVersion;
     this.gsaSupports204 = gsaVersion.isAtLeast("7.4.0-0");
+    this.docCache = docCache;
     initFullAccess(gsaHostname, fullAccessHosts);
     initSkipCertAddresses(skipCertHosts);
   }
@@ -322,36 +324,82 @@ class DocumentHandler implements HttpHandler {
         return;
       }
 
-      Request request = new DocRequest(docId,
+      Request clientRequest = new DocRequest(docId,
           HttpExchanges.getIfModifiedSince(ex),
           gsaSupports204 || !requestIsFromFullyTrustedClient(ex));
-      DocumentResponse response
+      DocumentResponse docResponse
           = new DocumentResponse(ex, docId, Thread.currentThread());
+      Request request = clientRequest;
+      Response response = docResponse;
+      DocumentCache.CachingResponse cachingResponse = null;
+      if (docCache != null && "GET".equals(requestMethod)) {
+        DocumentCache.CachedResponse cached = docCache.get(docId);
+        if (cached != null) {
+          // Ask the adaptor whether our copy is still current. 204 is not
+          // permitted, since the client's copy may be older than ours.
+          request = new DocRequest(docId, cached.getLastModified(), false);
+        }
+        cachingResponse
+            = docCache.createCachingResponse(docResponse, cached, clientRequest);
+        response = cachingResponse;
+      }
       journal.recordRequestProcessingStart();
       watchdog.processingStarting(headerTimeoutMillis);
       try {
         adaptor.getDocContent(request, response);
       } catch (InterruptedException e) {
         journal.recordRequestProcessingFailure();
+        invalidateCachedResponse(docId);
         throw new RuntimeException("Retriever interrupted: " + docId, e);
       } catch (RuntimeException e) {
         journal.recordRequestProcessingFailure();
+        invalidateCachedResponse(docId);
         throw new RuntimeException("Exception in retriever: " + docId, e);
       } catch (IOException e) {
         journal.recordRequestProcessingFailure();
+        invalidateCachedResponse(docId);
         throw new IOException("Exception in retriever: " + docId, e);
       } finally {
         watchdog.processingCompleted();
       }
-      journal.recordRequestProcessingEnd(response.getWrittenContentSize());
+      journal.recordRequestProcessingEnd(docResponse.getWrittenContentSize());
+      if (cachingResponse != null) {
+        updateCachedResponse(docId, cachingResponse);
+      }
 
-      response.complete();
+      docResponse.complete();
     } else {
       HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_METHOD,
           Translation.HTTP_BAD_METHOD);
     }
   }
 
+  private void invalidateCachedResponse(DocId docId) {
+    if (docCache != null) {
+      docCache.invalidate(docId);
+    }
+  }
+
+  /**
+   * Record whether the cache satisfied the request and store the adaptor's
+   * response if it provided a new, cacheable one.
+   */
+  private void updateCachedResponse(DocId docId,
+      DocumentCache.CachingResponse cachingResponse) {
+    if (cachingResponse.isServedFromCache()) {
+      journal.recordDocumentCacheHit();
+      return;
+    }
+    journal.recordDocumentCacheMiss();
+    DocumentCache.CachedResponse fresh
+        = cachingResponse.getCacheableResponse();
+    if (fresh == null) {
+      docCache.invalidate(docId);
+    } else {
+      docCache.put(docId, fresh);
+    }
+  }
+
   /**
    * Check authz of user to access document.  If adaptor.markAllDocsAsPublic is
    * configured, treat it as though the user is authzed (regardless of docId).
@@ -797,6 +845,7 @@ class DocumentHandler implements HttpHandler {
           // bytes provided by adaptor instance itself.
           watchdog.processingCompleted(workingThread);
           watchdog.processingStarting(workingThread, contentTimeoutMillis);
+          journal.recordRequestHeadersSent();
           int rc = HttpURLConnection.HTTP_NOT_FOUND;
           HttpExchanges.startResponse(ex, rc, "text/plain", /*hasBody=*/ true);
           countingOs = new CountingOutputStream(new CloseNotifyOutputStream(
@@ -1110,6 +1159,7 @@ class DocumentHandler implements HttpHandler {
       // Here we stop the headers timer and start the content timer.     
       watchdog.processingCompleted(workingThread);
       watchdog.processingStarting(workingThread, contentTimeoutMillis);
+      journal.recordRequestHeadersSent();
       int responseCode;
       if (state == State.SEND_BODY || state == State.HEAD
           || state == State.SEND_BODY_TRANSFORMED_TO_HEAD) {
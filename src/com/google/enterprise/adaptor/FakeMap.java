@@ -1,35 +0,0 @@
-// Copyright 2012 Google Inc. All Rights Reserved.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//      http://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.google.enterprise.adaptor;
-
-import java.util.AbstractMap;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Set;
-
-/**
- * Fake modifiable map that doesn't store anything.
- */
-class FakeMap<K, V> extends AbstractMap<K, V> {
-  @Override
-  public Set<Map.Entry<K, V>> entrySet() {
-    return Collections.emptySet();
-  }
-
-  @Override
-  public V put(K key, V value) {
-    return null;
-  }
-}
@@ -0,0 +1,252 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Stores sessions as files in a directory, so that adaptors sharing the
+ * directory, for instance over a network file system, share sessions. Each
+ * session is a file named after its id whose modification time is the last
+ * access of the session.
+ *
+ * <p>Only {@link Serializable} attributes are stored; others are kept only by
+ * the instance that set them. Since anyone able to write to the directory
+ * could otherwise make the adaptors instantiate arbitrary classes, only
+ * attributes made of the classes the library itself stores in sessions, such
+ * as strings and authenticated identities, are read back. The directory should
+ * only be accessible to the adaptors, since sessions identify authenticated
+ * users.
+ */
+class FileSessionStore implements SessionManager.SessionStore {
+  private static final Logger log
+      = Logger.getLogger(FileSessionStore.class.getName());
+  /** Ids are provided by clients, so must be checked before use as names. */
+  private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9+/=]+");
+  private static final int MAX_ID_LENGTH = 64;
+  private static final String TEMP_SUFFIX = ".tmp";
+  /** Names of the classes that may be read from session files. */
+  private static final Set<String> ALLOWED_CLASSES
+      = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+          "[B",
+          "java.lang.Boolean",
+          "java.lang.Integer",
+          "java.lang.Long",
+          "java.lang.Number",
+          "java.lang.String",
+          "java.net.URI",
+          "java.util.Collections$UnmodifiableCollection",
+          "java.util.Collections$UnmodifiableSet",
+          "java.util.HashMap",
+          "java.util.HashSet",
+          AuthnIdentityImpl.class.getName(),
+          GroupPrincipal.class.getName(),
+          Principal.class.getName(),
+          SamlServiceProvider.AuthnState.class.getName(),
+          UserPrincipal.class.getName())));
+
+  private final File directory;
+
+  public FileSessionStore(File directory) throws IOException {
+    if (directory == null) {
+      throw new NullPointerException();
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create session directory: "
+          + directory);
+    }
+    this.directory = directory;
+  }
+
+  @Override
+  public Map<String, Object> load(String id, long lastAccessLimit) {
+    File file = getFile(id);
+    if (file == null) {
+      return null;
+    }
+    long lastModified = file.lastModified();
+    // lastModified is 0 when the file does not exist.
+    if (lastModified == 0 || lastAccessLimit > lastModified) {
+      return null;
+    }
+    Map<String, byte[]> serialized;
+    try {
+      ObjectInputStream ois = new SessionObjectInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        @SuppressWarnings("unchecked")
+        Map<String, byte[]> read = (Map<String, byte[]>) ois.readObject();
+        serialized = read;
+      } finally {
+        ois.close();
+      }
+    } catch (InvalidClassException ex) {
+      log.log(Level.WARNING, "Could not read session file " + file, ex);
+      return null;
+    } catch (IOException ex) {
+      // Removed by another instance, or not completely written.
+      log.log(Level.FINE, "Could not read session file " + file, ex);
+      return null;
+    } catch (ClassNotFoundException ex) {
+      log.log(Level.WARNING, "Could not read session file " + file, ex);
+      return null;
+    }
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    for (Map.Entry<String, byte[]> me : serialized.entrySet()) {
+      try {
+        attributes.put(me.getKey(), deserialize(me.getValue()));
+      } catch (Exception ex) {
+        log.log(Level.WARNING, "Could not read session attribute "
+            + me.getKey(), ex);
+      }
+    }
+    return attributes;
+  }
+
+  @Override
+  public void save(String id, Map<String, Object> attributes,
+      long lastAccess) {
+    File file = getFile(id);
+    if (file == null) {
+      return;
+    }
+    // Serialized separately so that one unserializable attribute does not
+    // prevent storing the others.
+    HashMap<String, byte[]> serialized = new HashMap<String, byte[]>();
+    for (Map.Entry<String, Object> me : attributes.entrySet()) {
+      if (!(me.getValue() instanceof Serializable)) {
+        continue;
+      }
+      try {
+        serialized.put(me.getKey(), serialize(me.getValue()));
+      } catch (IOException ex) {
+        log.log(Level.FINE, "Could not store session attribute "
+            + me.getKey(), ex);
+      }
+    }
+    // Written to a temporary file first, so that other instances never read
+    // a partial session.
+    File temp = null;
+    try {
+      temp = File.createTempFile("session", TEMP_SUFFIX, directory);
+      ObjectOutputStream oos = new ObjectOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        oos.writeObject(serialized);
+      } finally {
+        oos.close();
+      }
+      if (!temp.setLastModified(lastAccess) || !temp.renameTo(file)) {
+        throw new IOException("Could not replace " + file);
+      }
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not store session file " + file, ex);
+      if (temp != null) {
+        temp.delete();
+      }
+    }
+  }
+
+  @Override
+  public void removeExpired(long lastAccessLimit) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      log.log(Level.WARNING, "Could not list session directory {0}",
+          directory);
+      return;
+    }
+    for (File file : files) {
+      long lastModified = file.lastModified();
+      if (lastModified != 0 && lastAccessLimit > lastModified) {
+        file.delete();
+      }
+    }
+  }
+
+  /** Returns the file for {@code id}, or {@code null} if id is invalid. */
+  private File getFile(String id) {
+    if (id.length() > MAX_ID_LENGTH || !VALID_ID.matcher(id).matches()) {
+      log.log(Level.FINE, "Ignoring invalid session id {0}", id);
+      return null;
+    }
+    // Base64 uses '/', which is not allowed in file names.
+    return new File(directory, id.replace('/', '_'));
+  }
+
+  private static byte[] serialize(Object o) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(o);
+    oos.close();
+    return baos.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream ois
+        = new SessionObjectInputStream(new ByteArrayInputStream(bytes));
+    try {
+      return ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
+  /** Only reads objects of the {@link #ALLOWED_CLASSES}. */
+  private static class SessionObjectInputStream extends ObjectInputStream {
+    SessionObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException {
+      if (!ALLOWED_CLASSES.contains(desc.getName())) {
+        throw new InvalidClassException(desc.getName(),
+            "Class not allowed in session files");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces)
+        throws IOException, ClassNotFoundException {
+      throw new InvalidClassException("Proxy classes not allowed in session "
+          + "files: " + Arrays.asList(interfaces));
+    }
+  }
+}
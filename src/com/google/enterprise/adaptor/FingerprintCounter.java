@@ -0,0 +1,185 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory-efficient counts per key, for keeping track of many millions of
+ * distinct keys. Instead of storing keys, a 64-bit fingerprint of each key is
+ * stored in an open-addressing hash table of primitive arrays, using 17 to 34
+ * bytes per key. Distinct keys whose fingerprints collide are counted
+ * together, which is vanishingly rare below billions of keys.
+ *
+ * <p>The keys with the highest counts are also tracked, by name, so that the
+ * most frequent keys are still available. Since all counts are exact, the
+ * tracked keys are exactly the most frequent ones, with ties broken by which
+ * key reached the count first.
+ *
+ * <p>This class is not thread-safe.
+ */
+class FingerprintCounter {
+  private static final HashFunction HASH = Hashing.murmur3_128();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** Fingerprint value marking an empty slot. */
+  private static final long EMPTY = 0;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final double MAX_LOAD_FACTOR = 0.7;
+
+  private final int maxTopEntries;
+  private long[] fingerprints = new long[INITIAL_CAPACITY];
+  private int[] counts = new int[INITIAL_CAPACITY];
+  private int size;
+  /** The most frequent keys seen. At most {@code maxTopEntries} entries. */
+  private final Map<String, Integer> top = new HashMap<String, Integer>();
+  /** Smallest count in {@link #top}, valid when {@code top} is full. */
+  private int topMin;
+
+  /**
+   * @param maxTopEntries number of most frequent keys to remember by name
+   */
+  public FingerprintCounter(int maxTopEntries) {
+    if (maxTopEntries < 0) {
+      throw new IllegalArgumentException("maxTopEntries must be non-negative");
+    }
+    this.maxTopEntries = maxTopEntries;
+  }
+
+  /**
+   * Adds {@code delta} to the count for {@code key}.
+   *
+   * @return the new count for {@code key}
+   */
+  public int add(String key, int delta) {
+    int count = add(fingerprint(key), delta);
+    updateTop(key, count);
+    return count;
+  }
+
+  /** Returns the count for {@code key}, or zero if it was never added. */
+  public int get(String key) {
+    int slot = findSlot(fingerprint(key));
+    return fingerprints[slot] == EMPTY ? 0 : counts[slot];
+  }
+
+  /** Returns the number of distinct keys. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the most frequent keys with their counts, in decreasing order of
+   * count.
+   */
+  public List<Map.Entry<String, Integer>> getTopEntries() {
+    List<Map.Entry<String, Integer>> entries
+        = new ArrayList<Map.Entry<String, Integer>>(top.size());
+    for (Map.Entry<String, Integer> e : top.entrySet()) {
+      entries.add(new SimpleImmutableEntry<String, Integer>(e));
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> a,
+          Map.Entry<String, Integer> b) {
+        int cmp = b.getValue().compareTo(a.getValue());
+        return cmp != 0 ? cmp : a.getKey().compareTo(b.getKey());
+      }
+    });
+    return entries;
+  }
+
+  static long fingerprint(String key) {
+    long fingerprint = HASH.hashString(key, UTF_8).asLong();
+    // Avoid the empty marker; this merges two fingerprints, which is harmless.
+    return fingerprint == EMPTY ? 1 : fingerprint;
+  }
+
+  private int add(long fingerprint, int delta) {
+    int slot = findSlot(fingerprint);
+    if (fingerprints[slot] == EMPTY) {
+      fingerprints[slot] = fingerprint;
+      size++;
+      counts[slot] = delta;
+      if (size > fingerprints.length * MAX_LOAD_FACTOR) {
+        resize();
+      }
+      return delta;
+    }
+    counts[slot] += delta;
+    return counts[slot];
+  }
+
+  /**
+   * Returns the slot containing {@code fingerprint}, or the empty slot where
+   * it would be inserted. Uses linear probing.
+   */
+  private int findSlot(long fingerprint) {
+    int mask = fingerprints.length - 1;
+    int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    while (fingerprints[slot] != EMPTY && fingerprints[slot] != fingerprint) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] oldFingerprints = fingerprints;
+    int[] oldCounts = counts;
+    fingerprints = new long[oldFingerprints.length * 2];
+    counts = new int[oldCounts.length * 2];
+    for (int i = 0; i < oldFingerprints.length; i++) {
+      if (oldFingerprints[i] != EMPTY) {
+        int slot = findSlot(oldFingerprints[i]);
+        fingerprints[slot] = oldFingerprints[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  private void updateTop(String key, int count) {
+    if (maxTopEntries == 0) {
+      return;
+    }
+    if (top.containsKey(key) || top.size() < maxTopEntries) {
+      top.put(key, count);
+    } else if (count > topMin) {
+      // Replace the least frequent key.
+      String minKey = null;
+      for (Map.Entry<String, Integer> e : top.entrySet()) {
+        if (e.getValue() == topMin) {
+          minKey = e.getKey();
+          break;
+        }
+      }
+      top.remove(minKey);
+      top.put(key, count);
+    } else {
+      return;
+    }
+    if (top.size() == maxTopEntries) {
+      topMin = Collections.min(top.values());
+    }
+  }
+}
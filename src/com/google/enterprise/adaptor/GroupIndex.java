@@ -0,0 +1,284 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the group definitions pushed by the adaptor, used to find the
+ * groups a principal belongs to through nested groups. Adaptors authorizing
+ * with {@link Acl#isAuthorizedBatch} expect {@link AuthnIdentity#getGroups}
+ * to contain every group of the user, but the GSA may only provide the groups
+ * the user is directly a member of.
+ *
+ * <p>{@code INCREMENTAL} pushes redefine the groups they contain and {@code
+ * REPLACE} pushes also forget the other groups previously pushed from the
+ * same group source. The groups of the most recently used principals are
+ * remembered until a push changes them.
+ *
+ * <p>This class is thread-safe.
+ */
+class GroupIndex {
+  /** Default number of principals whose groups are remembered. */
+  static final int DEFAULT_CACHE_SIZE = 10000;
+
+  /** Definitions by key of the group. */
+  private final Map<String, Definition> groups
+      = new HashMap<String, Definition>();
+  /** Keys of the groups directly containing each member key. */
+  private final Map<String, Set<String>> memberOf
+      = new HashMap<String, Set<String>>();
+  /** Keys of the groups pushed from each group source. */
+  private final Map<String, Set<String>> sources
+      = new HashMap<String, Set<String>>();
+  /** Access-ordered, so iteration begins with the least recently used. */
+  private final Map<Principal, Closure> closures;
+
+  public GroupIndex() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  GroupIndex(final int cacheSize) {
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("cacheSize must be non-negative");
+    }
+    closures = new LinkedHashMap<Principal, Closure>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Principal, Closure> e) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Applies group definitions, as passed to {@link
+   * DocIdPusher#pushGroupDefinitions(Map, boolean, DocIdPusher.FeedType,
+   * String, ExceptionHandler)}.
+   */
+  public synchronized <T extends Collection<Principal>> void update(
+      Map<GroupPrincipal, T> defs, boolean caseSensitive,
+      DocIdPusher.FeedType feedType, String groupSource) {
+    Set<String> sourceGroups = sources.get(groupSource);
+    if (sourceGroups == null) {
+      sourceGroups = new HashSet<String>();
+      sources.put(groupSource, sourceGroups);
+    }
+    // Keys of the groups and members whose cached closures may change.
+    Set<String> changed = new HashSet<String>();
+    Set<String> defined = new HashSet<String>();
+    for (Map.Entry<GroupPrincipal, T> me : defs.entrySet()) {
+      String groupKey = key(me.getKey(), caseSensitive);
+      removeDefinition(groupKey, changed);
+      List<String> memberKeys = new ArrayList<String>(me.getValue().size());
+      for (Principal member : me.getValue()) {
+        String memberKey = key(member, caseSensitive);
+        memberKeys.add(memberKey);
+        Set<String> containing = memberOf.get(memberKey);
+        if (containing == null) {
+          containing = new HashSet<String>();
+          memberOf.put(memberKey, containing);
+        }
+        containing.add(groupKey);
+        changed.add(memberKey);
+      }
+      Definition def = new Definition(me.getKey(), groupSource, memberKeys);
+      groups.put(groupKey, def);
+      changed.addAll(lookupKeys(def.group));
+      sourceGroups.add(groupKey);
+      defined.add(groupKey);
+    }
+    if (feedType == DocIdPusher.FeedType.REPLACE) {
+      for (String groupKey : new ArrayList<String>(sourceGroups)) {
+        if (!defined.contains(groupKey)) {
+          removeDefinition(groupKey, changed);
+        }
+      }
+    }
+    if (sourceGroups.isEmpty()) {
+      sources.remove(groupSource);
+    }
+
+    for (Iterator<Closure> it = closures.values().iterator(); it.hasNext();) {
+      if (!Collections.disjoint(it.next().reachKeys, changed)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the groups {@code principal} belongs to, directly or through other
+   * groups, according to the pushed definitions.
+   */
+  public synchronized Set<GroupPrincipal> getGroups(Principal principal) {
+    Closure closure = closures.get(principal);
+    if (closure == null) {
+      closure = computeClosure(principal);
+      closures.put(principal, closure);
+    }
+    return closure.groups;
+  }
+
+  /**
+   * Returns {@code identity} with every group its user and groups belong to
+   * added to its groups.
+   */
+  public AuthnIdentity expand(AuthnIdentity identity) {
+    if (identity == null) {
+      return null;
+    }
+    Set<GroupPrincipal> expanded = new HashSet<GroupPrincipal>();
+    expanded.addAll(getGroups(identity.getUser()));
+    if (identity.getGroups() != null) {
+      for (GroupPrincipal group : identity.getGroups()) {
+        expanded.add(group);
+        expanded.addAll(getGroups(group));
+      }
+    }
+    int direct
+        = (identity.getGroups() == null) ? 0 : identity.getGroups().size();
+    if (expanded.size() == direct) {
+      return identity;
+    }
+    return new AuthnIdentityImpl.Builder(identity.getUser())
+        .setPassword(identity.getPassword()).setGroups(expanded).build();
+  }
+
+  synchronized int size() {
+    return closures.size();
+  }
+
+  private Closure computeClosure(Principal principal) {
+    Set<GroupPrincipal> found = new HashSet<GroupPrincipal>();
+    Set<String> reachKeys = new HashSet<String>(lookupKeys(principal));
+    Set<String> visited = new HashSet<String>();
+    Deque<Principal> pending = new ArrayDeque<Principal>();
+    pending.add(principal);
+    while (!pending.isEmpty()) {
+      for (String memberKey : lookupKeys(pending.remove())) {
+        Set<String> containing = memberOf.get(memberKey);
+        if (containing == null) {
+          continue;
+        }
+        // Cycles are harmless since each group is visited once.
+        for (String groupKey : containing) {
+          if (visited.add(groupKey)) {
+            GroupPrincipal group = groups.get(groupKey).group;
+            found.add(group);
+            reachKeys.addAll(lookupKeys(group));
+            pending.add(group);
+          }
+        }
+      }
+    }
+    return new Closure(Collections.unmodifiableSet(found), reachKeys);
+  }
+
+  private void removeDefinition(String groupKey, Set<String> changed) {
+    Definition old = groups.remove(groupKey);
+    if (old == null) {
+      return;
+    }
+    for (String memberKey : old.memberKeys) {
+      Set<String> containing = memberOf.get(memberKey);
+      if (containing != null) {
+        containing.remove(groupKey);
+        if (containing.isEmpty()) {
+          memberOf.remove(memberKey);
+        }
+      }
+    }
+    changed.addAll(lookupKeys(old.group));
+    Set<String> sourceGroups = sources.get(old.source);
+    if (sourceGroups != null) {
+      sourceGroups.remove(groupKey);
+    }
+  }
+
+  /**
+   * Returns the key of a principal. Principals pushed case-insensitively have
+   * case-folded keys.
+   */
+  private static String key(Principal p, boolean caseSensitive) {
+    // The type is included for case-insensitive keys as well.
+    return (p.isUser() ? "u" : "g") + Acl.matchKey(p, caseSensitive);
+  }
+
+  /** Returns the keys {@code p} may have been pushed as a member with. */
+  private static List<String> lookupKeys(Principal p) {
+    return Arrays.asList(key(p, true), key(p, false));
+  }
+
+  private static class Definition {
+    private final GroupPrincipal group;
+    private final String source;
+    private final List<String> memberKeys;
+
+    Definition(GroupPrincipal group, String source, List<String> memberKeys) {
+      this.group = group;
+      this.source = source;
+      this.memberKeys = memberKeys;
+    }
+  }
+
+  private static class Closure {
+    private final Set<GroupPrincipal> groups;
+    /**
+     * Keys of the principal and of its groups. A push mentioning any of them
+     * may change the groups.
+     */
+    private final Set<String> reachKeys;
+
+    Closure(Set<GroupPrincipal> groups, Set<String> reachKeys) {
+      this.groups = groups;
+      this.reachKeys = reachKeys;
+    }
+  }
+
+  /**
+   * Expands the groups of users with a {@link GroupIndex} before passing
+   * them to another {@link AuthzAuthority}.
+   */
+  static class ExpandingAuthzAuthority implements AuthzAuthority {
+    private final AuthzAuthority delegate;
+    private final GroupIndex index;
+
+    public ExpandingAuthzAuthority(AuthzAuthority delegate, GroupIndex index) {
+      if (delegate == null || index == null) {
+        throw new NullPointerException();
+      }
+      this.delegate = delegate;
+      this.index = index;
+    }
+
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) throws IOException {
+      return delegate.isUserAuthorized(index.expand(identity), ids);
+    }
+  }
+}
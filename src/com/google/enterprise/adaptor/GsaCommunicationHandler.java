@@ -28,6 +28,7 @@ import com.sun.net.httpserver.HttpsServer;
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.xml.ConfigurationException;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -114,15 +115,26 @@ public final class GsaCommunicationHandler {
    * purpose and is commonly used in conjunction with {@link #scheduleExecutor}.
    */
   private ExecutorService backgroundExecutor;
+  /**
+   * Executor checking parts of batch authorization requests concurrently, or
+   * {@code null} if requests are checked on the request thread.
+   */
+  private ExecutorService authzExecutor;
+  /** Pipeline used by the document handler, closed once it is stopped. */
+  private MetadataTransformPipeline metadataTransformPipeline;
   private DocIdCodec docIdCodec;
   private DocIdCodec heartbeatCodec;
   private DocIdSender docIdSender;
   private AsyncDocIdSender asyncDocIdSender;
+  /** Watchdogs guarding request processing, for reporting their timeouts. */
+  private List<Watchdog> watchdogs;
   private HttpServerScope dashboardScope;
   private Dashboard dashboard;
   private SensitiveValueCodec secureValueCodec;
   private KeyPair keyPair;
   private AclTransform aclTransform;
+  /** Index of pushed group definitions, or {@code null}. */
+  private GroupIndex groupIndex;
 
   private ShutdownWaiter waiter;
   private final List<Filter> commonFilters = Arrays.asList(new Filter[] {
@@ -136,6 +148,7 @@ public final class GsaCommunicationHandler {
     this.config = config;
 
     journal = new Journal(config.isJournalReducedMem());
+    Metadata.setInternKeys(config.isAdaptorMetadataInternKeys());
   }
 
   /**
@@ -199,8 +212,14 @@ public final class GsaCommunicationHandler {
     scope = new HttpServerScope(server, contextPrefix);
     waiter = new ShutdownWaiter();
 
+    SessionManager.SessionStore sessionStore = null;
+    if (!config.getServerSessionDirectory().isEmpty()) {
+      sessionStore = new FileSessionStore(
+          new File(config.getServerSessionDirectory()));
+    }
     sessionManager = new SessionManager<HttpExchange>(
           new SessionManager.HttpExchangeClientStore("sessid_" + port, secure),
+          sessionStore,
           30 * 60 * 1000 /* session lifetime: 30 minutes */,
           5 * 60 * 1000 /* max cleanup frequency: 5 minutes */);
 
@@ -236,8 +255,10 @@ public final class GsaCommunicationHandler {
         comments);
     GsaFeedFileArchiver fileArchiver =
         new GsaFeedFileArchiver(config.getFeedArchiveDirectory());
+    groupIndex = config.isAdaptorResolvingNestedGroups()
+        ? new GroupIndex() : null;
     docIdSender = new DocIdSender(fileMaker, fileSender, fileArchiver, journal,
-        config, adaptor);
+        config, adaptor, groupIndex);
     asyncDocIdSender = new AsyncDocIdSender(docIdSender,
         config.getFeedMaxUrls() /* batch size */,
         5 /* max latency */, TimeUnit.MINUTES,
@@ -272,6 +293,21 @@ public final class GsaCommunicationHandler {
           (ConfigModificationListener) adaptor);
     }*/
 
+    AuthzAuthority authzAuthority = adaptorContext.authzAuthority;
+    if (authzAuthority != null && groupIndex != null) {
+      authzAuthority
+          = new GroupIndex.ExpandingAuthzAuthority(authzAuthority, groupIndex);
+      log.config("Resolving nested groups before authorization");
+    }
+    if (authzAuthority != null && config.getAdaptorAuthzCacheMaxEntries() > 0) {
+      authzAuthority = new CachingAuthzAuthority(authzAuthority, journal,
+          config.getAdaptorAuthzCacheMaxEntries(),
+          config.getAdaptorAuthzCachePermitTtlMillis(),
+          config.getAdaptorAuthzCacheDenyTtlMillis());
+      log.log(Level.CONFIG, "Authorization cache enabled with {0} entries",
+          config.getAdaptorAuthzCacheMaxEntries());
+    }
+
     SamlServiceProvider samlServiceProvider = null;
     if (config.isServerSecure()) {
       bootstrapOpenSaml();
@@ -294,10 +330,25 @@ public final class GsaCommunicationHandler {
           = new SamlServiceProvider(sessionManager, metadata, keyPair, dmfmt);
       addFilters(scope.createContext("/samlassertionconsumer",
           samlServiceProvider.getAssertionConsumer()));
-      if (adaptorContext.authzAuthority != null) {
+      if (authzAuthority != null) {
         log.config("Adaptor-based authorization supported");
+        AuthzAuthority batchAuthzAuthority = authzAuthority;
+        int authzThreads = config.getAdaptorBatchAuthzThreads();
+        if (authzThreads > 0) {
+          authzExecutor = Executors.newFixedThreadPool(authzThreads,
+              new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("authz-%d")
+              .build());
+          // Outside of any cache, so that decisions missing the deadline are
+          // denied without being remembered.
+          batchAuthzAuthority = new ParallelAuthzAuthority(authzAuthority,
+              authzExecutor, config.getAdaptorBatchAuthzSubBatchSize(),
+              config.getAdaptorBatchAuthzTimeoutMillis());
+          log.log(Level.CONFIG, "Batch authorization uses {0} threads",
+              authzThreads);
+        }
         addFilters(scope.createContext("/saml-authz", new SamlBatchAuthzHandler(
-            adaptorContext.authzAuthority, docIdCodec, metadata, dmfmt)));
+            batchAuthzAuthority, docIdCodec, metadata, dmfmt, journal)));
       } else {
         log.config("Adaptor-based authorization not supported");
       }
@@ -306,6 +357,8 @@ public final class GsaCommunicationHandler {
         new ThreadFactoryBuilder().setDaemon(true).setNameFormat("schedule")
         .build());
     Watchdog watchdog = new Watchdog(scheduleExecutor);
+    Watchdog heartbeatWatchdog = new Watchdog(scheduleExecutor);
+    watchdogs = Arrays.asList(watchdog, heartbeatWatchdog);
 
     // The cachedThreadPool implementation created here is considerably better
     // than using ThreadPoolExecutor. ThreadPoolExecutor does not create threads
@@ -315,12 +368,21 @@ public final class GsaCommunicationHandler {
         .setNameFormat("background-%d")
         .build());
     backgroundExecutor.execute(waiter.runnable(asyncDocIdSender.worker()));
+    DocumentCache docCache = null;
+    if (config.getAdaptorDocCacheMaxBytes() > 0) {
+      docCache = new DocumentCache(config.getAdaptorDocCacheMaxBytes(),
+          config.getAdaptorDocCacheMaxDocumentBytes(),
+          config.isAdaptorDocCacheOffHeap());
+      log.log(Level.CONFIG, "Document cache enabled with {0} bytes",
+          config.getAdaptorDocCacheMaxBytes());
+    }
+    metadataTransformPipeline = createMetadataTransformPipeline();
     DocumentHandler docHandler = new DocumentHandler(
-        docIdCodec, docIdCodec, journal, adaptor, adaptorContext.authzAuthority,
+        docIdCodec, docIdCodec, journal, adaptor, authzAuthority,
         config.getGsaHostname(),
         config.getServerFullAccessHosts(),
         config.getServerSkipCertCheckHosts(),
-        samlServiceProvider, createMetadataTransformPipeline(),
+        samlServiceProvider, metadataTransformPipeline,
         aclTransform, createContentTransformFactory(),
         config.isServerToUseCompression(), watchdog,
         asyncDocIdSender,
@@ -330,13 +392,13 @@ public final class GsaCommunicationHandler {
         config.getAdaptorDocContentTimeoutMillis(),
         config.getScoringType(),
         config.requireHttpBasicAuthn(),
-        new GsaVersion(config.getGsaVersion()));
+        new GsaVersion(config.getGsaVersion()), docCache);
     String handlerPath = config.getServerBaseUri().getPath()
         + config.getServerDocIdPath();
     HttpContext docContext
         = addFilters(scope.createContext(handlerPath, docHandler));
     HeartbeatHandler heartbeatHandler = new HeartbeatHandler(heartbeatCodec,
-        docIdCodec, docHandler, new Watchdog(scheduleExecutor),
+        docIdCodec, docHandler, heartbeatWatchdog,
         config.getAdaptorHeartbeatTimeoutMillis());
     String heartbeatPath = config.getServerBaseUri().getPath()
         + config.getServerHeartbeatPath();
@@ -420,17 +482,25 @@ public final class GsaCommunicationHandler {
 
   private MetadataTransformPipeline createMetadataTransformPipeline() {
     return createMetadataTransformPipeline(
-        config.getMetadataTransformPipelineSpec());
+        config.getMetadataTransformPipelineSpec(),
+        journal.getTransformMetrics());
   }
 
   private ContentTransformFactory createContentTransformFactory() {
-    return new ContentTransformFactory(config.getContentTransformFactorySpec());
+    return new ContentTransformFactory(config.getContentTransformFactorySpec(),
+        journal.getTransformMetrics());
   }
 
-  @SuppressWarnings("deprecation")
   @VisibleForTesting
   static MetadataTransformPipeline createMetadataTransformPipeline(
       List<Map<String, String>> pipelineConfig) {
+    return createMetadataTransformPipeline(pipelineConfig,
+        new TransformMetrics());
+  }
+
+  @SuppressWarnings("deprecation")
+  private static MetadataTransformPipeline createMetadataTransformPipeline(
+      List<Map<String, String>> pipelineConfig, TransformMetrics metrics) {
     List<MetadataTransform> elements
         = new LinkedList<MetadataTransform>();
     List<String> names = new LinkedList<String>();
@@ -490,7 +560,7 @@ public final class GsaCommunicationHandler {
     }
     // If we created an empty pipeline, then we don't need the pipeline at all.
     return elements.size() > 0 
-        ? new MetadataTransformPipeline(elements, names)
+        ? new MetadataTransformPipeline(elements, names, metrics)
         : null;
   }
 
@@ -680,6 +750,10 @@ public final class GsaCommunicationHandler {
       scope = new HttpServerScope(
           scope.getHttpServer(), scope.getContextPrefix());
     }
+    if (authzExecutor != null) {
+      authzExecutor.shutdownNow();
+      authzExecutor = null;
+    }
     if (scheduleExecutor != null) {
       // Post-Adaptor.init() resources need to be stopped.
       dashboardScope.close();
@@ -716,6 +790,11 @@ public final class GsaCommunicationHandler {
       }
       waiter = new ShutdownWaiter();
     }
+    if (metadataTransformPipeline != null) {
+      // After requests finish, since they may still be using it.
+      metadataTransformPipeline.close();
+      metadataTransformPipeline = null;
+    }
     return clean;
   }
 
@@ -728,6 +807,7 @@ public final class GsaCommunicationHandler {
     dashboardScope = null;
     keyPair = null;
     aclTransform = null;
+    groupIndex = null;
     waiter = null;
 
     // Wait until after adaptor.destroy() to shutdown things accessible by
@@ -783,6 +863,15 @@ public final class GsaCommunicationHandler {
     return true;
   }
 
+  /** Creates a handler serving metrics of the running adaptor. */
+  MetricsHandler createMetricsHandler() {
+    if (watchdogs == null) {
+      throw new IllegalStateException("Can only be used after start()");
+    }
+    return new MetricsHandler(journal, asyncDocIdSender, backgroundExecutor,
+        watchdogs);
+  }
+
   boolean isAdaptorIncremental() {
     if (adaptorContext == null || adaptorContext.mutable) {
       throw new IllegalStateException("Can only be used after init()");
@@ -1059,5 +1148,13 @@ public final class GsaCommunicationHandler {
       }
       this.authzAuthority = authzAuthority;
     }
+
+    @Override
+    public synchronized void addAclCache(CachingBatchRetriever cache) {
+      if (!mutable) {
+        throw new IllegalStateException("After init()");
+      }
+      cache.setJournal(journal);
+    }
   }
 }
@@ -16,31 +16,54 @@ package com.google.enterprise.adaptor;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Contains registers and stats regarding runtime.
+ *
+ * <p>Statistics recorded while serving requests are kept in several {@link
+ * Stripe}s, each with its own lock. A thread only updates the stripe chosen by
+ * its thread id, so concurrent requests rarely contend with each other. The
+ * stripes are merged when the statistics are read.
  */
 class Journal {
-  private Map<DocId, Integer> timesPushed;
-  private long totalPushes;
+  /** Number of most frequent documents and groups to remember by name. */
+  static final int TOP_ENTRIES = 10;
 
-  private Map<DocId, Integer> timesGsaRequested;
-  private long totalGsaRequests;
-
-  private Map<DocId, Integer> timesNonGsaRequested;
-  private long totalNonGsaRequests;
+  /**
+   * Per-document counts, keyed by unique id. {@code null} when using reduced
+   * memory. Otherwise each counter is guarded by its own lock.
+   */
+  private final FingerprintCounter timesPushed;
+  private final FingerprintCounter timesGsaRequested;
+  private final FingerprintCounter timesNonGsaRequested;
+
+  /** Striped counters and time-based stats. Guarded by each stripe's lock. */
+  private final Stripe[] stripes;
+  /** Number of {@link Stats} in each stripe. */
+  private static final int TIME_STATS_COUNT = 3;
+  /** Index of the day-long {@link Stats}, with half-hour granularity. */
+  private static final int DAY_STATS = 2;
+  private static final int LATENCY_COUNT = Latency.values().length;
 
-  private Map<GroupPrincipal, Integer> timesGroupPushed;
+  /**
+   * Per-group counts, keyed by {@link #groupKey}. {@code null} when using
+   * reduced memory. Otherwise guarded by {@code this}.
+   */
+  private final FingerprintCounter timesGroupPushed;
   private long totalGroupPushes; // Equal to sum of values in timesGroupPushed.
 
   // accumulates total numbers of members pushed throughout all group pushes.
-  private Map<GroupPrincipal, Integer> groupMembersPushed;
+  private final FingerprintCounter groupMembersPushed;
   private long totalGroupMemberPushes; // Sum of values in groupMembersPushed.
 
+  /** Statistics of the stages of the transform pipelines. */
+  private final TransformMetrics transformMetrics = new TransformMetrics();
+
   private final TimeProvider timeProvider;
   private final long startedAt;
   /**
@@ -48,15 +71,21 @@ class Journal {
    */
   private final long timeResolution;
 
-  /**
-   * Time-based bookkeeping for charts. Each element in the array is for a
-   * different time period.
-   */
-  private Stats[] timeStats;
-  private Stats dayStatsByHalfHour;
-
   /** Request processing start time storage until processing completion. */
   private ThreadLocal<Long> requestProcessingStart = new ThreadLocal<Long>();
+  /** Time response headers were sent, until request processing completion. */
+  private ThreadLocal<Long> requestHeadersSent = new ThreadLocal<Long>();
+  /**
+   * Start times of operations in progress on this thread, indexed by {@link
+   * Latency#ordinal}. {@code Long.MIN_VALUE} when not started.
+   */
+  private ThreadLocal<long[]> latencyStart = new ThreadLocal<long[]>() {
+    @Override protected long[] initialValue() {
+      long[] starts = new long[Latency.values().length];
+      Arrays.fill(starts, Long.MIN_VALUE);
+      return starts;
+    }
+  };
 
   /**
    * Date in milliseconds of current full push start. If zero, then there is not
@@ -77,6 +106,8 @@ class Journal {
   private long currentGroupPushStart;
   private long lastSuccessfulGroupPushStart;
   private long lastSuccessfulGroupPushEnd;
+  /** Status of the most recent group push on any thread. */
+  private CompletionStatus lastGroupPushStatus = CompletionStatus.SUCCESS;
 
   private static class GroupPush {
     long currentGroupPushStart;
@@ -95,6 +126,22 @@ class Journal {
     FAILURE,
   }
 
+  /** Operations whose durations are tracked in {@link LatencyHistogram}s. */
+  enum Latency {
+    /** Processing of a document request, from start to completion. */
+    DOCUMENT_PROCESSING,
+    /** From the start of a document request until headers are sent. */
+    DOCUMENT_HEADER,
+    /** From sending headers until the document request completes. */
+    DOCUMENT_CONTENT,
+    /** One attempt to send a feed to the GSA. */
+    FEED_SEND,
+    /** A complete, successful group push. */
+    GROUP_PUSH,
+    /** One SAML batch authorization request. */
+    SAML_BATCH_AUTHZ,
+  }
+
   /**
    * @param reducedMem whether to use a fixed amount of memory, at the expense
    *     of some statistics being disabled
@@ -114,31 +161,49 @@ class Journal {
     this.timeProvider = timeProvider;
     this.startedAt = timeProvider.currentTimeMillis();
     this.timeResolution = determineTimeResolution();
-    // We want data within the Stats to agree with each other, so we provide the
-    // same time to each of them.
-    long time = startedAt;
-    this.timeStats = new Stats[] {
-      new Stats(60, 1000,           time), /* one minute, second granularity */
-      new Stats(60, 1000 * 60,      time), /* one hour, minute granularity */
-      new Stats(48, 1000 * 60 * 30, time), /* one day, half-hour granularity */
-    };
-    this.dayStatsByHalfHour = this.timeStats[this.timeStats.length - 1];
+    this.stripes = new Stripe[stripeCount()];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(startedAt);
+    }
     if (reducedMem) {
-      timesPushed = new NegSizeFakeMap<DocId, Integer>();
-      timesGsaRequested = new NegSizeFakeMap<DocId, Integer>();
-      timesNonGsaRequested = new NegSizeFakeMap<DocId, Integer>();
-      timesGroupPushed = new NegSizeFakeMap<GroupPrincipal, Integer>();
-      groupMembersPushed = new NegSizeFakeMap<GroupPrincipal, Integer>();
+      timesPushed = null;
+      timesGsaRequested = null;
+      timesNonGsaRequested = null;
+      timesGroupPushed = null;
+      groupMembersPushed = null;
     } else {
-      timesPushed = new HashMap<DocId, Integer>();
-      timesGsaRequested = new HashMap<DocId, Integer>();
-      timesNonGsaRequested = new HashMap<DocId, Integer>();
-      timesGroupPushed = new HashMap<GroupPrincipal, Integer>();
-      groupMembersPushed = new HashMap<GroupPrincipal, Integer>();
+      timesPushed = new FingerprintCounter(TOP_ENTRIES);
+      timesGsaRequested = new FingerprintCounter(TOP_ENTRIES);
+      timesNonGsaRequested = new FingerprintCounter(TOP_ENTRIES);
+      timesGroupPushed = new FingerprintCounter(TOP_ENTRIES);
+      groupMembersPushed = new FingerprintCounter(TOP_ENTRIES);
     }
   }
 
-  synchronized void recordDocIdPush(List<? extends DocIdSender.Item> pushed) {
+  /**
+   * Number of stripes to use: the number of processors rounded up to a power
+   * of two, but no more than 16.
+   */
+  private static int stripeCount() {
+    int processors = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+    int count = 1;
+    while (count < processors) {
+      count <<= 1;
+    }
+    return count;
+  }
+
+  TransformMetrics getTransformMetrics() {
+    return transformMetrics;
+  }
+
+  /** Returns the stripe the current thread should update. */
+  private Stripe currentStripe() {
+    long threadId = Thread.currentThread().getId();
+    return stripes[(int) (threadId & (stripes.length - 1))];
+  }
+
+  void recordDocIdPush(List<? extends DocIdSender.Item> pushed) {
     for (Object item : pushed) {
       if (item instanceof DocIdPusher.Record) {
         DocIdPusher.Record record = (DocIdPusher.Record) item;
@@ -150,39 +215,46 @@ class Journal {
                                            + item.getClass().getName());
       }
     }
-    totalPushes += pushed.size();
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.totalPushes += pushed.size();
+    }
   }
 
-  synchronized <T extends Collection<Principal>> void recordGroupPush(List<
+  <T extends Collection<Principal>> void recordGroupPush(List<
       Map.Entry<GroupPrincipal, T>> pushed) {
     long time = timeProvider.currentTimeMillis();
     long numberOfGroupsPushed = 0;
     long numberOfMembersPushed = 0;  // sum over all groups pushed
 
-    for (Map.Entry<GroupPrincipal, T> item : pushed) {
-      groupIncrement(timesGroupPushed, item.getKey(), 1);
-      groupIncrement(groupMembersPushed, item.getKey(), item.getValue().size());
-      numberOfGroupsPushed++;
-      numberOfMembersPushed += item.getValue().size();
+    synchronized (this) {
+      for (Map.Entry<GroupPrincipal, T> item : pushed) {
+        if (timesGroupPushed != null) {
+          String key = groupKey(item.getKey());
+          timesGroupPushed.add(key, 1);
+          groupMembersPushed.add(key, item.getValue().size());
+        }
+        numberOfGroupsPushed++;
+        numberOfMembersPushed += item.getValue().size();
+      }
+      totalGroupPushes += numberOfGroupsPushed;
+      totalGroupMemberPushes += numberOfMembersPushed;
     }
-    totalGroupPushes += numberOfGroupsPushed;
-    totalGroupMemberPushes += numberOfMembersPushed;
 
     // update dashboard graph stats
-    for (Stats stats : timeStats) {
-      Stat stat = stats.getCurrentStat(time);
-      stat.groupsPushed += numberOfGroupsPushed;
-      stat.membersPushed += numberOfMembersPushed;
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      for (Stats stats : stripe.timeStats) {
+        Stat stat = stats.getCurrentStat(time);
+        stat.groupsPushed += numberOfGroupsPushed;
+        stat.membersPushed += numberOfMembersPushed;
+      }
     }
   }
 
-  private static void groupIncrement(Map<GroupPrincipal, Integer> counts,
-      GroupPrincipal id, int count) {
-    if (!counts.containsKey(id)) {
-      counts.put(id, count);
-    } else {
-      counts.put(id, count + counts.get(id));
-    }
+  /** Returns a readable key that is unique for each group. */
+  private static String groupKey(GroupPrincipal group) {
+    return group.getName() + " (" + group.getNamespace() + ")";
   }
 
   /**
@@ -209,6 +281,11 @@ class Journal {
       this.lastSuccessfulGroupPushStart = gp.currentGroupPushStart;
       this.lastSuccessfulGroupPushEnd = endTime;
       this.currentGroupPushStart = 0;
+      this.lastGroupPushStatus = CompletionStatus.SUCCESS;
+    }
+    if (gp.currentGroupPushStart != 0) {
+      recordLatency(Latency.GROUP_PUSH, endTime - gp.currentGroupPushStart,
+          endTime);
     }
     gp.currentGroupPushStart = 0;
     gp.lastGroupPushStatus = CompletionStatus.SUCCESS;
@@ -226,6 +303,7 @@ class Journal {
     gp.lastGroupPushStatus = CompletionStatus.INTERRUPTION;
     synchronized (this) {
       this.currentGroupPushStart = 0;
+      this.lastGroupPushStatus = CompletionStatus.INTERRUPTION;
     }
   }
 
@@ -241,6 +319,7 @@ class Journal {
     gp.lastGroupPushStatus = CompletionStatus.FAILURE;
     synchronized (this) {
       this.currentGroupPushStart = 0;
+      this.lastGroupPushStatus = CompletionStatus.FAILURE;
     }
   }
 
@@ -252,19 +331,71 @@ class Journal {
 
   void recordGsaContentRequest(DocId docId) {
     long time = timeProvider.currentTimeMillis();
-    synchronized (this) {
-      increment(timesGsaRequested, docId);
-      totalGsaRequests++;
-      for (Stats stats : timeStats) {
+    increment(timesGsaRequested, docId);
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.totalGsaRequests++;
+      for (Stats stats : stripe.timeStats) {
         Stat stat = stats.getCurrentStat(time);
         stat.gsaRetrievedDocument = true;
       }
     }
   }
 
-  synchronized void recordNonGsaContentRequest(DocId requested) {
-    increment(timesNonGsaRequested, requested); 
-    totalNonGsaRequests++;
+  void recordNonGsaContentRequest(DocId requested) {
+    increment(timesNonGsaRequested, requested);
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.totalNonGsaRequests++;
+    }
+  }
+
+  /**
+   * Record that a content request was satisfied from the document cache after
+   * the adaptor confirmed the cached copy was current.
+   */
+  void recordDocumentCacheHit() {
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.documentCacheHits++;
+    }
+  }
+
+  /**
+   * Record that a cacheable content request could not be satisfied from the
+   * document cache.
+   */
+  void recordDocumentCacheMiss() {
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.documentCacheMisses++;
+    }
+  }
+
+  /**
+   * Record lookups in the authorization decision cache: {@code hits} decisions
+   * were found and {@code misses} had to be made by the adaptor.
+   */
+  void recordAuthzCacheLookups(int hits, int misses) {
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.authzCacheHits += hits;
+      stripe.authzCacheMisses += misses;
+    }
+  }
+
+  /**
+   * Record lookups in a {@link CachingBatchRetriever} of ACLs at inheritance
+   * {@code depth}: {@code hits} ACLs were remembered and {@code misses} had to
+   * be retrieved.
+   */
+  void recordAclCacheLookups(int depth, int hits, int misses) {
+    int bucket = Math.min(depth, CachingBatchRetriever.MAX_DEPTH);
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.aclCacheHits[bucket] += hits;
+      stripe.aclCacheMisses[bucket] += misses;
+    }
   }
 
   /**
@@ -273,6 +404,21 @@ class Journal {
    */
   void recordRequestProcessingStart() {
     requestProcessingStart.set(timeProvider.currentTimeMillis());
+    requestHeadersSent.remove();
+  }
+
+  /**
+   * Record that the response headers for the request being processed by this
+   * thread have been sent. Ignored if this thread is not processing a request.
+   */
+  void recordRequestHeadersSent() {
+    Long startTime = requestProcessingStart.get();
+    if (startTime == null || requestHeadersSent.get() != null) {
+      return;
+    }
+    long time = timeProvider.currentTimeMillis();
+    requestHeadersSent.set(time);
+    recordLatency(Latency.DOCUMENT_HEADER, time - startTime, time);
   }
 
   /**
@@ -285,14 +431,56 @@ class Journal {
 
   private void recordRequestProcessingEnd(long responseSize, long time) {
     long duration = endDuration(requestProcessingStart, time);
-    synchronized (this) {
-      for (Stats stats : timeStats) {
+    Long headersSent = requestHeadersSent.get();
+    requestHeadersSent.remove();
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      stripe.requestProcessings++;
+      stripe.requestProcessingsDurationSum += duration;
+      stripe.responseBytes += responseSize;
+      for (Stats stats : stripe.timeStats) {
         Stat stat = stats.getCurrentStat(time);
         stat.requestProcessingsCount++;
         stat.requestProcessingsDurationSum += duration;
         stat.requestProcessingsMaxDuration = Math.max(
             stat.requestProcessingsMaxDuration, duration);
         stat.requestProcessingsThroughput += responseSize;
+        stat.getLatency(Latency.DOCUMENT_PROCESSING).record(duration);
+        if (headersSent != null) {
+          stat.getLatency(Latency.DOCUMENT_CONTENT).record(time - headersSent);
+        }
+      }
+    }
+  }
+
+  /**
+   * Record that {@code latency} has started on this thread. Each thread can
+   * only track one operation of each kind at a time.
+   */
+  void recordLatencyStart(Latency latency) {
+    latencyStart.get()[latency.ordinal()] = timeProvider.currentTimeMillis();
+  }
+
+  /**
+   * Record that {@code latency} completed on this thread.
+   */
+  void recordLatencyEnd(Latency latency) {
+    long time = timeProvider.currentTimeMillis();
+    long[] starts = latencyStart.get();
+    long startTime = starts[latency.ordinal()];
+    if (startTime == Long.MIN_VALUE) {
+      throw new IllegalStateException("Record start must be called before "
+                                      + "record end");
+    }
+    starts[latency.ordinal()] = Long.MIN_VALUE;
+    recordLatency(latency, time - startTime, time);
+  }
+
+  private void recordLatency(Latency latency, long duration, long time) {
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
+      for (Stats stats : stripe.timeStats) {
+        stats.getCurrentStat(time).getLatency(latency).record(duration);
       }
     }
   }
@@ -303,9 +491,11 @@ class Journal {
    */
   void recordRequestProcessingFailure() {
     long time = timeProvider.currentTimeMillis();
-    synchronized (this) {
+    Stripe stripe = currentStripe();
+    synchronized (stripe) {
       recordRequestProcessingEnd(0, time);
-      for (Stats stats : timeStats) {
+      stripe.requestProcessingFailures++;
+      for (Stats stats : stripe.timeStats) {
         Stat stat = stats.getCurrentStat(time);
         stat.requestProcessingsFailureCount++;
       }
@@ -347,11 +537,36 @@ class Journal {
     return time - startTime;
   }
 
-  private static void increment(Map<DocId, Integer> counts, DocId id) {
-    if (!counts.containsKey(id)) {
-      counts.put(id, 1);
-    } else {
-      counts.put(id, 1 + counts.get(id));
+  private static void increment(FingerprintCounter counts, DocId id) {
+    if (counts == null) {
+      return;
+    }
+    synchronized (counts) {
+      counts.add(id.getUniqueId(), 1);
+    }
+  }
+
+  /** Returns the number of distinct keys, or -1 when using reduced memory. */
+  private static long sizeOf(FingerprintCounter counts) {
+    if (counts == null) {
+      return -1;
+    }
+    synchronized (counts) {
+      return counts.size();
+    }
+  }
+
+  /**
+   * Returns the most frequent keys, or an empty list when using reduced
+   * memory.
+   */
+  private static List<Map.Entry<String, Integer>> topOf(
+      FingerprintCounter counts) {
+    if (counts == null) {
+      return Collections.emptyList();
+    }
+    synchronized (counts) {
+      return counts.getTopEntries();
     }
   }
 
@@ -460,19 +675,14 @@ class Journal {
     long count = 0;
     long failures = 0;
 
-    synchronized (Journal.this) {
-      Stats stats = dayStatsByHalfHour;
-      // Update bookkeeping.
-      stats.getCurrentStat(currentTime);
-
-      for (int i = 0; i < stats.stats.length && count < maxCount; i++) {
-        // Walk through indexes in reverse order, starting with most current.
-        int index = (stats.currentStat - i + stats.stats.length)
-            % stats.stats.length;
-        Stat stat = stats.stats[index];
-        count += stat.requestProcessingsCount;
-        failures += stat.requestProcessingsFailureCount;
-      }
+    Stats stats = mergeStats(DAY_STATS, currentTime);
+    for (int i = 0; i < stats.stats.length && count < maxCount; i++) {
+      // Walk through indexes in reverse order, starting with most current.
+      int index = (stats.currentStat - i + stats.stats.length)
+          % stats.stats.length;
+      Stat stat = stats.stats[index];
+      count += stat.requestProcessingsCount;
+      failures += stat.requestProcessingsFailureCount;
     }
 
     double rate = 0;
@@ -484,15 +694,9 @@ class Journal {
 
   boolean hasGsaCrawledWithinLastDay() {
     long currentTime = timeProvider.currentTimeMillis();
-    synchronized (Journal.this) {
-      Stats stats = dayStatsByHalfHour;
-      // Update bookkeeping.
-      stats.getCurrentStat(currentTime);
-
-      for (Stat stat : stats.stats) {
-        if (stat.gsaRetrievedDocument) {
-          return true;
-        }
+    for (Stat stat : mergeStats(DAY_STATS, currentTime).stats) {
+      if (stat.gsaRetrievedDocument) {
+        return true;
       }
     }
     return false;
@@ -501,16 +705,59 @@ class Journal {
   /**
    * Access to the timeStats for use in {@link DashboardHandler} only.
    */
-  synchronized JournalSnapshot getSnapshot() {
+  JournalSnapshot getSnapshot() {
+    return getSnapshot(true);
+  }
+
+  /**
+   * Same as {@link #getSnapshot}, except that the time-based stats are not
+   * copied and {@link JournalSnapshot#timeStats} is {@code null}. This is
+   * cheap enough to be called frequently, for example by a metrics scraper.
+   */
+  JournalSnapshot getCountersSnapshot() {
+    return getSnapshot(false);
+  }
+
+  private JournalSnapshot getSnapshot(boolean includeTimeStats) {
     long currentTime = timeProvider.currentTimeMillis();
-    Stats[] timeStatsClone = new Stats[timeStats.length];
-    for (int i = 0; i < timeStats.length; i++) {
-      // Cause stats to update its internal structures
-      timeStats[i].getCurrentStat(currentTime);
-      timeStatsClone[i] = timeStats[i].clone();
+    Stats[] timeStatsClone = null;
+    if (includeTimeStats) {
+      timeStatsClone = new Stats[TIME_STATS_COUNT];
+      for (int i = 0; i < timeStatsClone.length; i++) {
+        timeStatsClone[i] = mergeStats(i, currentTime);
+      }
+    }
+    Counters totals = new Counters();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        totals.add(stripe);
+      }
     }
 
-    return new JournalSnapshot(this, currentTime, timeStatsClone);
+    synchronized (this) {
+      return new JournalSnapshot(this, totals, currentTime, timeStatsClone);
+    }
+  }
+
+  /**
+   * Returns a copy of the {@code window}th {@link Stats} of all the stripes
+   * combined, brought up-to-date with {@code currentTime}.
+   */
+  private Stats mergeStats(int window, long currentTime) {
+    Stats merged = null;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        Stats stats = stripe.timeStats[window];
+        // Cause stats to update its internal structures
+        stats.getCurrentStat(currentTime);
+        if (merged == null) {
+          merged = stats.clone();
+        } else {
+          merged.add(stats);
+        }
+      }
+    }
+    return merged;
   }
 
   static class JournalSnapshot {
@@ -523,6 +770,22 @@ class Journal {
     final long numTotalGsaRequests;
     final long numUniqueNonGsaRequests;
     final long numTotalNonGsaRequests;
+    final long numDocumentCacheHits;
+    final long numDocumentCacheMisses;
+    final long numAuthzCacheHits;
+    final long numAuthzCacheMisses;
+    /** Indexed by inheritance depth. */
+    final long[] numAclCacheHits;
+    final long[] numAclCacheMisses;
+    final long numRequestProcessings;
+    final long numRequestProcessingFailures;
+    final long requestProcessingsDurationSum;
+    final long numResponseBytes;
+    final List<Map.Entry<String, Integer>> mostPushedDocIds;
+    final List<Map.Entry<String, Integer>> mostGsaRequestedDocIds;
+    final List<Map.Entry<String, Integer>> mostNonGsaRequestedDocIds;
+    final List<Map.Entry<String, Integer>> mostPushedGroups;
+    final List<Map.Entry<String, Integer>> largestGroupsPushed;
     final long whenStarted;
     final long currentTime;
     final long timeResolution;
@@ -535,19 +798,42 @@ class Journal {
     final long lastSuccessfulGroupPushStart;
     final long lastSuccessfulGroupPushEnd;
     final long currentGroupPushStart;
+    final CompletionStatus lastFullPushStatus;
+    final CompletionStatus lastIncrementalPushStatus;
+    final CompletionStatus lastGroupPushStatus;
     final Stats[] timeStats;
 
+    /**
+     * Must be called while holding the lock on {@code journal}.
+     */
     @VisibleForTesting
-    JournalSnapshot(Journal journal, long currentTime, Stats[] timeStatsClone) {
-      this.numUniqueDocIdsPushed = journal.timesPushed.size();
-      this.numTotalDocIdsPushed = journal.totalPushes;
-      this.numUniqueGroupsPushed = journal.timesGroupPushed.size();
+    JournalSnapshot(Journal journal, Counters totals, long currentTime,
+        Stats[] timeStatsClone) {
+      this.numUniqueDocIdsPushed = sizeOf(journal.timesPushed);
+      this.numTotalDocIdsPushed = totals.totalPushes;
+      this.numUniqueGroupsPushed = sizeOf(journal.timesGroupPushed);
       this.numTotalGroupsPushed = journal.totalGroupPushes;
       this.numTotalGroupMembersPushed = journal.totalGroupMemberPushes;
-      this.numUniqueGsaRequests = journal.timesGsaRequested.size();
-      this.numTotalGsaRequests = journal.totalGsaRequests;
-      this.numUniqueNonGsaRequests = journal.timesNonGsaRequested.size();
-      this.numTotalNonGsaRequests = journal.totalNonGsaRequests;
+      this.numUniqueGsaRequests = sizeOf(journal.timesGsaRequested);
+      this.numTotalGsaRequests = totals.totalGsaRequests;
+      this.numUniqueNonGsaRequests = sizeOf(journal.timesNonGsaRequested);
+      this.numTotalNonGsaRequests = totals.totalNonGsaRequests;
+      this.numDocumentCacheHits = totals.documentCacheHits;
+      this.numDocumentCacheMisses = totals.documentCacheMisses;
+      this.numAuthzCacheHits = totals.authzCacheHits;
+      this.numAuthzCacheMisses = totals.authzCacheMisses;
+      this.numAclCacheHits = totals.aclCacheHits.clone();
+      this.numAclCacheMisses = totals.aclCacheMisses.clone();
+      this.numRequestProcessings = totals.requestProcessings;
+      this.numRequestProcessingFailures = totals.requestProcessingFailures;
+      this.requestProcessingsDurationSum
+          = totals.requestProcessingsDurationSum;
+      this.numResponseBytes = totals.responseBytes;
+      this.mostPushedDocIds = topOf(journal.timesPushed);
+      this.mostGsaRequestedDocIds = topOf(journal.timesGsaRequested);
+      this.mostNonGsaRequestedDocIds = topOf(journal.timesNonGsaRequested);
+      this.mostPushedGroups = topOf(journal.timesGroupPushed);
+      this.largestGroupsPushed = topOf(journal.groupMembersPushed);
       this.timeResolution = journal.timeResolution;
       this.lastSuccessfulFullPushStart = journal.lastSuccessfulFullPushStart;
       this.lastSuccessfulFullPushEnd = journal.lastSuccessfulFullPushEnd;
@@ -560,12 +846,71 @@ class Journal {
       this.lastSuccessfulGroupPushStart = journal.lastSuccessfulGroupPushStart;
       this.lastSuccessfulGroupPushEnd = journal.lastSuccessfulGroupPushEnd;
       this.currentGroupPushStart = journal.currentGroupPushStart;
+      this.lastFullPushStatus = journal.lastFullPushStatus;
+      this.lastIncrementalPushStatus = journal.lastIncrementalPushStatus;
+      this.lastGroupPushStatus = journal.lastGroupPushStatus;
       this.whenStarted = journal.startedAt;
       this.currentTime = currentTime;
       this.timeStats = timeStatsClone;
     }
   }
 
+  /** Counters that are summed over all stripes when read. */
+  static class Counters {
+    long totalPushes;
+    long totalGsaRequests;
+    long totalNonGsaRequests;
+    long documentCacheHits;
+    long documentCacheMisses;
+    long authzCacheHits;
+    long authzCacheMisses;
+    /** Indexed by inheritance depth. */
+    final long[] aclCacheHits = new long[CachingBatchRetriever.MAX_DEPTH + 1];
+    final long[] aclCacheMisses
+        = new long[CachingBatchRetriever.MAX_DEPTH + 1];
+    long requestProcessings;
+    long requestProcessingFailures;
+    long requestProcessingsDurationSum;
+    long responseBytes;
+
+    void add(Counters other) {
+      totalPushes += other.totalPushes;
+      totalGsaRequests += other.totalGsaRequests;
+      totalNonGsaRequests += other.totalNonGsaRequests;
+      documentCacheHits += other.documentCacheHits;
+      documentCacheMisses += other.documentCacheMisses;
+      authzCacheHits += other.authzCacheHits;
+      authzCacheMisses += other.authzCacheMisses;
+      for (int i = 0; i < aclCacheHits.length; i++) {
+        aclCacheHits[i] += other.aclCacheHits[i];
+        aclCacheMisses[i] += other.aclCacheMisses[i];
+      }
+      requestProcessings += other.requestProcessings;
+      requestProcessingFailures += other.requestProcessingFailures;
+      requestProcessingsDurationSum += other.requestProcessingsDurationSum;
+      responseBytes += other.responseBytes;
+    }
+  }
+
+  /**
+   * One stripe of counters and time-based bookkeeping for charts. Each element
+   * in {@link #timeStats} is for a different time period. Guarded by the
+   * stripe's own lock.
+   */
+  private static class Stripe extends Counters {
+    final Stats[] timeStats;
+
+    Stripe(long time) {
+      // We want data within the Stats to agree with each other, so we provide
+      // the same time to each of them.
+      timeStats = new Stats[] {
+        new Stats(60, 1000,           time), /* one minute, second granularity */
+        new Stats(60, 1000 * 60,      time), /* one hour, minute granularity */
+        new Stats(48, 1000 * 60 * 30, time), /* one day, half-hour granularity */
+      };
+    }
+  }
+
   static class Stats implements Cloneable {
     /**
      * Circular buffer containing all the statistics this object contains. When
@@ -607,7 +952,7 @@ class Journal {
     /**
      * Retrive the current {@code Stat} object that applies to {@code
      * currentTime}. {@code currentTime} is expected to be an actual point in
-     * time while the caller was holding the lock on {@link Journal}. It may
+     * time while the caller was holding the lock guarding this object. It may
      * never be less than the previous call.
      */
     public Stat getCurrentStat(long currentTime) {
@@ -635,6 +980,34 @@ class Journal {
       return stats[currentStat];
     }
 
+    /**
+     * Adds the statistics of {@code other}, which must have the same
+     * configuration, into this object. Periods are matched by time, not by
+     * index, so the two objects need not have been advanced identically.
+     * Periods of {@code other} newer than this object's current period are
+     * added into the current period.
+     */
+    void add(Stats other) {
+      if (other.stats.length != stats.length
+          || other.snapshotDurationMs != snapshotDurationMs) {
+        throw new IllegalArgumentException("Incompatible Stats");
+      }
+      for (int i = 0; i < other.stats.length; i++) {
+        int otherIndex = (other.currentStat - i + other.stats.length)
+            % other.stats.length;
+        long periodEnd = other.pendingStatPeriodEnd - i * snapshotDurationMs;
+        long periodsBack = (pendingStatPeriodEnd - periodEnd)
+            / snapshotDurationMs;
+        if (periodsBack >= stats.length) {
+          continue;
+        }
+        periodsBack = Math.max(0, periodsBack);
+        int index = (int) ((currentStat - periodsBack + stats.length)
+            % stats.length);
+        stats[index].add(other.stats[otherIndex]);
+      }
+    }
+
     public Stats clone() {
       Stats statsClone;
       try {
@@ -687,6 +1060,11 @@ class Journal {
      * Sum of number of members in all groups pushed by the adaptor.
      */
     long membersPushed;
+    /**
+     * Duration histograms, indexed by {@link Latency#ordinal}. Each histogram
+     * is {@code null} until its first duration is recorded.
+     */
+    LatencyHistogram[] latencies = new LatencyHistogram[LATENCY_COUNT];
 
     public Stat() {
       reset();
@@ -704,21 +1082,58 @@ class Journal {
       gsaRetrievedDocument = false;
       groupsPushed = 0;
       membersPushed = 0;
+      for (LatencyHistogram histogram : latencies) {
+        if (histogram != null) {
+          histogram.reset();
+        }
+      }
+    }
+
+    /** Returns the histogram for {@code latency}, creating it if needed. */
+    LatencyHistogram getLatency(Latency latency) {
+      LatencyHistogram histogram = latencies[latency.ordinal()];
+      if (histogram == null) {
+        histogram = new LatencyHistogram();
+        latencies[latency.ordinal()] = histogram;
+      }
+      return histogram;
+    }
+
+    /**
+     * Adds the statistics of {@code other}, which covers the same period, into
+     * this object.
+     */
+    void add(Stat other) {
+      requestProcessingsCount += other.requestProcessingsCount;
+      requestProcessingsFailureCount += other.requestProcessingsFailureCount;
+      requestProcessingsDurationSum += other.requestProcessingsDurationSum;
+      requestProcessingsMaxDuration = Math.max(requestProcessingsMaxDuration,
+          other.requestProcessingsMaxDuration);
+      requestProcessingsThroughput += other.requestProcessingsThroughput;
+      gsaRetrievedDocument |= other.gsaRetrievedDocument;
+      groupsPushed += other.groupsPushed;
+      membersPushed += other.membersPushed;
+      for (int i = 0; i < other.latencies.length; i++) {
+        if (other.latencies[i] != null) {
+          getLatency(Latency.values()[i]).add(other.latencies[i]);
+        }
+      }
     }
 
     public Stat clone() {
+      Stat statClone;
       try {
-        return (Stat) super.clone();
+        statClone = (Stat) super.clone();
       } catch (CloneNotSupportedException ex) {
         throw new AssertionError();
       }
-    }
-  }
-
-  private static class NegSizeFakeMap<K, V> extends FakeMap<K, V> {
-    @Override
-    public int size() {
-      return -1;
+      statClone.latencies = new LatencyHistogram[latencies.length];
+      for (int i = 0; i < latencies.length; i++) {
+        if (latencies[i] != null) {
+          statClone.latencies[i] = latencies[i].clone();
+        }
+      }
+      return statClone;
     }
   }
 }
@@ -0,0 +1,122 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory histogram of durations in milliseconds, or another unit chosen
+ * by the caller, with log-linear buckets. Each power of two is split into
+ * {@link #SUB_BUCKETS} equal-width buckets, so a reported percentile is within
+ * 25% of the actual value. Durations of {@link #MAX_TRACKABLE_MILLIS} or more
+ * are counted in the last bucket.
+ *
+ * <p>This class is not thread-safe.
+ */
+class LatencyHistogram implements Cloneable {
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Largest power of two that is tracked, about 4.6 hours. */
+  private static final int MAX_EXPONENT = 24;
+  static final long MAX_TRACKABLE_MILLIS = 1L << MAX_EXPONENT;
+  private static final int BUCKET_COUNT
+      = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private int[] counts = new int[BUCKET_COUNT];
+  private long totalCount;
+
+  /** Records one duration. Negative durations are treated as zero. */
+  public void record(long millis) {
+    counts[bucketIndex(millis)]++;
+    totalCount++;
+  }
+
+  /** Adds all the durations recorded in {@code other} to this histogram. */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns an upper bound for the duration below which {@code percentile}
+   * percent of the recorded durations fall, or zero if nothing was recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long target = (long) Math.ceil(totalCount * percentile / 100.);
+    target = Math.max(1, Math.min(totalCount, target));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return bucketUpperBound(i);
+      }
+    }
+    throw new AssertionError("counts do not add up to totalCount");
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+  }
+
+  @Override
+  public LatencyHistogram clone() {
+    LatencyHistogram histogramClone;
+    try {
+      histogramClone = (LatencyHistogram) super.clone();
+    } catch (CloneNotSupportedException ex) {
+      throw new AssertionError();
+    }
+    histogramClone.counts = counts.clone();
+    return histogramClone;
+  }
+
+  /**
+   * Values below {@code SUB_BUCKETS} each get their own bucket. Above that,
+   * the bucket is determined by the highest set bit and the {@code
+   * SUB_BUCKET_BITS} bits below it.
+   */
+  static int bucketIndex(long millis) {
+    if (millis < SUB_BUCKETS) {
+      return (int) Math.max(0, millis);
+    }
+    if (millis >= MAX_TRACKABLE_MILLIS) {
+      return BUCKET_COUNT - 1;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(millis);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (millis >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Largest value that is counted in bucket {@code index}. */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    int subBucket = index % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
@@ -17,13 +17,15 @@ package com.google.enterprise.adaptor;
 import static java.util.AbstractMap.SimpleImmutableEntry;
 import static java.util.Map.Entry;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
  * Allows storing multiple metadata values to a single key.
@@ -32,11 +34,34 @@ import java.util.TreeSet;
  * invalid as arguments. Duplicate key-value pairs are not stored.
  * Adding a key-value pair that is already present has no effect.
  * <p>
+ * Keys are kept in a sorted array and, since most keys have a single value,
+ * such a value is stored without any containing set. Keys may optionally be
+ * interned, so that the many records of a repository share their key strings.
+ * <p>
  * This class is mutable and not thread-safe.
  */
 public class Metadata implements Iterable<Entry<String, String>> {
-  private Map<String, Set<String>> mappings 
-      = new TreeMap<String, Set<String>>();
+  /** Interns the keys added to any instance, or {@code null} to not intern. */
+  private static volatile Interner<String> keyInterner;
+
+  private Mappings mappings = new Mappings();
+  /**
+   * Whether {@code mappings} may be shared with another instance, in which
+   * case it is copied before the first modification.
+   */
+  private boolean shared;
+
+  /**
+   * Sets whether keys added afterwards to any instance are interned, which
+   * saves memory when many instances have the same keys. Disabled by default.
+   */
+  static synchronized void setInternKeys(boolean internKeys) {
+    if (!internKeys) {
+      keyInterner = null;
+    } else if (keyInterner == null) {
+      keyInterner = Interners.newWeakInterner();
+    }
+  }
 
   /** Create empty instance. */
   public Metadata() {
@@ -47,9 +72,7 @@ public class Metadata implements Iterable<Entry<String, String>> {
    * @param m all key-value pairs that this instance should represent
    */
   public Metadata(Iterable<Entry<String, String>> m) {
-    for (Entry<String, String> e : m) {
-      add(e.getKey(), e.getValue());
-    }    
+    set(m);
   }
 
   /**
@@ -64,20 +87,8 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    TreeSet<String> single = new TreeSet<String>();
-    single.add(v);
-    mappings.put(k, single);
-  }
-
-  /** Throws NullPointerException if a null is found. */
-  private static void assureNoNulls(Set<String> items) {
-    // Can't use items.contains(null) because Set is permitted to throw NPE in
-    // such a case.
-    for (String s : items) {
-      if (s == null) {
-        throw new NullPointerException();
-      }
-    }
+    ensureOwned();
+    mappings.put(k, v);
   }
 
   /** 
@@ -92,12 +103,19 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    assureNoNulls(v);
-    if (v.isEmpty()) {
+    // Can't use v.contains(null) because Set is permitted to throw NPE in
+    // such a case.
+    String[] values = v.toArray(new String[v.size()]);
+    for (String s : values) {
+      if (s == null) {
+        throw new NullPointerException();
+      }
+    }
+    ensureOwned();
+    if (values.length == 0) {
       mappings.remove(k);
     } else {
-      v = new TreeSet<String>(v);
-      mappings.put(k, v);
+      mappings.put(k, toValue(values));
     }
   }
 
@@ -113,11 +131,12 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    Set<String> found = mappings.get(k);
-    if (null == found) {
-      set(k, v);
+    ensureOwned();
+    int i = mappings.indexOf(k);
+    if (i < 0) {
+      mappings.insert(-(i + 1), k, v);
     } else {
-      found.add(v);
+      mappings.values[i] = withValue(mappings.values[i], v);
     }
   }
 
@@ -126,6 +145,21 @@ public class Metadata implements Iterable<Entry<String, String>> {
    * @param it all key-value pairs that this instance should represent
    */
   public void set(Iterable<Entry<String, String>> it) {
+    if (it != this && it != null && it.getClass() == Metadata.class) {
+      Mappings other = ((Metadata) it).mappings;
+      if (shared) {
+        mappings = other.copy();
+        shared = false;
+      } else {
+        // Modified in place, since unmodifiable views share mappings.
+        mappings.setTo(other);
+      }
+      return;
+    }
+    if (shared) {
+      mappings = new Mappings();
+      shared = false;
+    }
     mappings.clear();
     for (Entry<String, String> e : it) {
       add(e.getKey(), e.getValue());
@@ -138,11 +172,7 @@ public class Metadata implements Iterable<Entry<String, String>> {
    * @return all values under provided key
    */
   public Set<String> getAllValues(String key) {
-    Set<String> found = mappings.get(key);
-    if (null == found) {
-      found = Collections.emptySet(); 
-    }
-    return Collections.unmodifiableSet(found);
+    return new ValueSet(key);
   }
 
   /** 
@@ -151,15 +181,11 @@ public class Metadata implements Iterable<Entry<String, String>> {
    * @return String one of the values under provided key
    */
   public String getOneValue(String key) {
-    Set<String> found = mappings.get(key);
-    String first = null;
-    if (null != found) {
-      if (found.isEmpty()) {
-        throw new AssertionError();
-      }
-      first = found.iterator().next(); 
+    Object found = mappings.get(key);
+    if (null == found || found instanceof String) {
+      return (String) found;
     }
-    return first;
+    return ((String[]) found)[0];
   }
 
   /**
@@ -167,7 +193,275 @@ public class Metadata implements Iterable<Entry<String, String>> {
    * @return all keys in this instance
    */
   public Set<String> getKeys() {
-    return mappings.keySet();
+    return new KeySet();
+  }
+
+  /**
+   * Returns an instance with the same key-value pairs as {@code source} that
+   * only copies them when it is first modified, so that instances which are
+   * only read do not allocate. {@code source} is never modified through the
+   * returned instance, but must not be modified while it is in use.
+   */
+  static Metadata copyOnWrite(Metadata source) {
+    Metadata view = new Metadata();
+    view.mappings = source.mappings;
+    view.shared = true;
+    return view;
+  }
+
+  /**
+   * Returns {@code true} if this instance was created by {@link #copyOnWrite}
+   * and has neither been modified nor given an {@link #unmodifiableView}
+   * since.
+   */
+  boolean isShared() {
+    return shared;
+  }
+
+  /** Copies {@code mappings} if it is shared, before it is modified. */
+  private void ensureOwned() {
+    if (shared) {
+      mappings = mappings.copy();
+      shared = false;
+    }
+  }
+
+  /** Returns the stored form of a non-empty array of values. */
+  private static Object toValue(String[] values) {
+    if (values.length == 1) {
+      return values[0];
+    }
+    Arrays.sort(values);
+    int unique = 1;
+    for (int i = 1; i < values.length; i++) {
+      if (!values[i].equals(values[unique - 1])) {
+        values[unique++] = values[i];
+      }
+    }
+    if (unique == 1) {
+      return values[0];
+    }
+    return unique == values.length ? values : Arrays.copyOf(values, unique);
+  }
+
+  /**
+   * Returns the stored form of {@code found} with {@code v} added. Arrays are
+   * replaced instead of modified, since they may be shared.
+   */
+  private static Object withValue(Object found, String v) {
+    if (found instanceof String) {
+      int cmp = ((String) found).compareTo(v);
+      if (cmp == 0) {
+        return found;
+      }
+      return cmp < 0 ? new String[] {(String) found, v}
+          : new String[] {v, (String) found};
+    }
+    String[] values = (String[]) found;
+    int i = Arrays.binarySearch(values, v);
+    if (i >= 0) {
+      return values;
+    }
+    i = -(i + 1);
+    String[] added = new String[values.length + 1];
+    System.arraycopy(values, 0, added, 0, i);
+    added[i] = v;
+    System.arraycopy(values, i, added, i + 1, values.length - i);
+    return added;
+  }
+
+  /**
+   * Sorted keys and their values. The value of a key is its only value, or
+   * a sorted array of at least two values that is never modified.
+   */
+  private static final class Mappings {
+    private static final String[] NO_KEYS = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private String[] keys = NO_KEYS;
+    private Object[] values = NO_VALUES;
+    private int size;
+
+    int indexOf(Object key) {
+      if (key == null) {
+        throw new NullPointerException();
+      }
+      return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    Object get(Object key) {
+      int i = indexOf(key);
+      return i < 0 ? null : values[i];
+    }
+
+    void put(String key, Object value) {
+      int i = indexOf(key);
+      if (i < 0) {
+        insert(-(i + 1), key, value);
+      } else {
+        values[i] = value;
+      }
+    }
+
+    void insert(int i, String key, Object value) {
+      if (size == keys.length) {
+        int capacity = Math.max(4, size * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      System.arraycopy(keys, i, keys, i + 1, size - i);
+      System.arraycopy(values, i, values, i + 1, size - i);
+      Interner<String> interner = keyInterner;
+      keys[i] = interner == null ? key : interner.intern(key);
+      values[i] = value;
+      size++;
+    }
+
+    boolean remove(Object key) {
+      int i = indexOf(key);
+      if (i < 0) {
+        return false;
+      }
+      removeAt(i);
+      return true;
+    }
+
+    void removeAt(int i) {
+      size--;
+      System.arraycopy(keys, i + 1, keys, i, size - i);
+      System.arraycopy(values, i + 1, values, i, size - i);
+      keys[size] = null;
+      values[size] = null;
+    }
+
+    void clear() {
+      Arrays.fill(keys, 0, size, null);
+      Arrays.fill(values, 0, size, null);
+      size = 0;
+    }
+
+    /** Value arrays are never modified, so they are shared with the copy. */
+    Mappings copy() {
+      Mappings copy = new Mappings();
+      copy.setTo(this);
+      return copy;
+    }
+
+    void setTo(Mappings other) {
+      if (other.size == 0) {
+        clear();
+        return;
+      }
+      keys = Arrays.copyOf(other.keys, other.size);
+      values = Arrays.copyOf(other.values, other.size);
+      size = other.size;
+    }
+  }
+
+  /**
+   * Unmodifiable values of a key, looked up on each use so that later changes
+   * to this instance are reflected.
+   */
+  private class ValueSet extends AbstractSet<String> {
+    private final String key;
+
+    ValueSet(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public int size() {
+      Object found = mappings.get(key);
+      if (null == found) {
+        return 0;
+      }
+      return found instanceof String ? 1 : ((String[]) found).length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      Object found = mappings.get(key);
+      if (null == found || found instanceof String) {
+        return o != null && o.equals(found);
+      }
+      return o instanceof String
+          && Arrays.binarySearch((String[]) found, o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      Object found = mappings.get(key);
+      if (null == found) {
+        return Collections.<String>emptySet().iterator();
+      }
+      if (found instanceof String) {
+        return Collections.singleton((String) found).iterator();
+      }
+      // Arrays of values are replaced instead of modified, so the iterator
+      // is unaffected by later changes.
+      return Collections.unmodifiableList(Arrays.asList((String[]) found))
+          .iterator();
+    }
+  }
+
+  /** Keys of this instance, which copies shared mappings before removals. */
+  private class KeySet extends AbstractSet<String> {
+    @Override
+    public int size() {
+      return mappings.size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return mappings.indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!contains(o)) {
+        return false;
+      }
+      ensureOwned();
+      return mappings.remove(o);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        private int next;
+        private boolean removable;
+
+        @Override
+        public boolean hasNext() {
+          return next < mappings.size;
+        }
+
+        @Override
+        public String next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          removable = true;
+          return mappings.keys[next++];
+        }
+
+        @Override
+        public void remove() {
+          if (!removable) {
+            throw new IllegalStateException();
+          }
+          // A copy has the same indexes as the shared mappings.
+          ensureOwned();
+          mappings.removeAt(--next);
+          removable = false;
+        }
+      };
+    }
   }
 
   /**
@@ -185,24 +479,13 @@ public class Metadata implements Iterable<Entry<String, String>> {
 
   /** Loops through keys and for each key all values. */
   private class EntriesIterator implements Iterator<Entry<String, String>> {
-    private Iterator<Entry<String, Set<String>>> byKey
-        = mappings.entrySet().iterator();
-    private String currentKey;
-    private Iterator<String> currentValues
-        = Collections.<String>emptyList().iterator();
+    private final Mappings iterated = mappings;
+    private int keyIndex;
+    private int valueIndex;
 
     @Override
     public boolean hasNext() {
-      if (currentValues.hasNext()) {
-        return true;
-      }
-      if (!byKey.hasNext()) {
-        return false;
-      }
-      Entry<String, Set<String>> currentEntry = byKey.next();
-      currentKey = currentEntry.getKey();
-      currentValues = currentEntry.getValue().iterator();
-      return hasNext();
+      return keyIndex < iterated.size;
     }
 
     @Override
@@ -210,7 +493,20 @@ public class Metadata implements Iterable<Entry<String, String>> {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      String k = currentKey, v = currentValues.next();
+      String k = iterated.keys[keyIndex];
+      Object found = iterated.values[keyIndex];
+      String v;
+      if (found instanceof String) {
+        v = (String) found;
+        keyIndex++;
+      } else {
+        String[] values = (String[]) found;
+        v = values[valueIndex++];
+        if (valueIndex == values.length) {
+          keyIndex++;
+          valueIndex = 0;
+        }
+      }
       return new SimpleImmutableEntry<String, String>(k, v);
     }
 
@@ -230,20 +526,50 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (this == o) {
       return true;
     }
-    Metadata other = (Metadata) o;
-    return mappings.equals(other.mappings);
+    Mappings a = mappings;
+    Mappings b = ((Metadata) o).mappings;
+    if (a.size != b.size) {
+      return false;
+    }
+    // Stored values are canonical, so equal values are stored alike.
+    for (int i = 0; i < a.size; i++) {
+      if (!a.keys[i].equals(b.keys[i])) {
+        return false;
+      }
+      Object va = a.values[i];
+      Object vb = b.values[i];
+      if (va instanceof String ? !va.equals(vb) : !(vb instanceof String[])
+          || !Arrays.equals((String[]) va, (String[]) vb)) {
+        return false;
+      }
+    }
+    return true;
   }
 
+  /** Same as the hash code of a map from each key to its set of values. */
   @Override
   public int hashCode() {
-    return mappings.hashCode();
+    int hash = 0;
+    for (int i = 0; i < mappings.size; i++) {
+      Object found = mappings.values[i];
+      int valuesHash = 0;
+      if (found instanceof String) {
+        valuesHash = found.hashCode();
+      } else {
+        for (String v : (String[]) found) {
+          valuesHash += v.hashCode();
+        }
+      }
+      hash += mappings.keys[i].hashCode() ^ valuesHash;
+    }
+    return hash;
   }
 
   /**
    * @return boolean {@code true} when instance has 0 entries
    */
   public boolean isEmpty() {
-    return mappings.isEmpty();
+    return mappings.size == 0;
   }
 
   /** Contains every key and value pair; useful for debugging. */
@@ -294,10 +620,12 @@ public class Metadata implements Iterable<Entry<String, String>> {
    * @return Metadata copy that cannot be changed
    */
   public Metadata unmodifiableView() {
+    // Mappings that are shared would be replaced on the first modification,
+    // which the view would not see.
+    ensureOwned();
     Metadata unmodifiable = new ReadableMetadata();
-    // Extra precaution against mappings use, but not against moding
-    // sets that are values inside it.
-    unmodifiable.mappings = Collections.unmodifiableMap(this.mappings); 
+    // Shares mappings, so changes to this instance remain visible.
+    unmodifiable.mappings = this.mappings;
     return unmodifiable;
   }
 }
@@ -175,6 +175,35 @@ public interface MetadataTransform {
    */
   public void transform(Metadata metadata, Map<String, String> params);
 
+  /**
+   * A transform whose only effect is setting the {@link
+   * #KEY_TRANSMISSION_DECISION} of documents. When several filters follow
+   * each other in a pipeline, only the decision of the last filter making one
+   * matters, so they are evaluated together starting with the last one, and
+   * the filters before the first decision found are not evaluated.
+   */
+  public interface TransmissionFilter extends MetadataTransform {
+    /**
+     * Returns the decision that {@link #transform transform} would put in
+     * {@code params}, or {@code null} if it would not put one. Must not modify
+     * {@code metadata} or {@code params}. The pipeline logs the decision, so
+     * this method need not. This method must be thread-safe.
+     * @param metadata of document
+     * @param params are extra contextual information
+     * @return decision for the document, or {@code null}
+     */
+    public TransmissionDecision decide(Metadata metadata,
+        Map<String, String> params);
+
+    /**
+     * Whether {@link #decide decide} reads the decisions of previous
+     * transforms from {@code params}, in which case previous filters are
+     * always evaluated first.
+     * @return {@code true} if previous decisions are read
+     */
+    public boolean readsTransmissionDecision();
+  }
+
   /** 
    * Versions prior to 4.1.1 used class named "DocumentTransform".
    * This wrapper class allows historical classes of that previous 
@@ -14,11 +14,17 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.base.Objects;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Modify metadata using multiple serial transforms. The transforms
@@ -28,12 +34,33 @@ import java.util.Map;
  * <p>This class is thread-safe.
  */
 class MetadataTransformPipeline {
+  private static final Logger log
+      = Logger.getLogger(MetadataTransformPipeline.class.getName());
+
   private final List<MetadataTransform> transformList;
   private final List<String> names;
+  /**
+   * For each transform, the end of the run of {@link
+   * MetadataTransform.TransmissionFilter}s it starts, which are evaluated
+   * together.
+   */
+  private final int[] filterRunEnds;
+  /** Statistics of each transform. */
+  private final TransformMetrics.Stage[] stages;
 
   public MetadataTransformPipeline(
       List<? extends MetadataTransform> transforms,
       List<String> names) {
+    this(transforms, names, new TransformMetrics());
+  }
+
+  /**
+   * @param metrics where the timings and outcomes of each transform are
+   *     recorded, using its name
+   */
+  public MetadataTransformPipeline(
+      List<? extends MetadataTransform> transforms,
+      List<String> names, TransformMetrics metrics) {
     if (transforms.size() != names.size()) {
       throw new IllegalArgumentException(
           "Transforms and names must be the same size");
@@ -50,33 +77,134 @@ class MetadataTransformPipeline {
     if (names.contains(null)) {
       throw new NullPointerException("Names must not contain null values");
     }
+    filterRunEnds = new int[transformList.size()];
+    for (int i = 0; i < transformList.size();) {
+      int end = i + 1;
+      // Only the first filter of a run may read previous decisions, since
+      // those made within the run are not available.
+      MetadataTransform transform = transformList.get(i);
+      if (transform instanceof MetadataTransform.TransmissionFilter) {
+        while (end < transformList.size()
+            && isIndependentFilter(transformList.get(end))) {
+          end++;
+        }
+      }
+      filterRunEnds[i] = end;
+      i = end;
+    }
+    stages = new TransformMetrics.Stage[transformList.size()];
+    for (int i = 0; i < stages.length; i++) {
+      stages[i] = metrics.register(
+          TransformMetrics.Type.METADATA, this.names.get(i));
+    }
+  }
+
+  private static boolean isIndependentFilter(MetadataTransform transform) {
+    return transform instanceof MetadataTransform.TransmissionFilter
+        && !((MetadataTransform.TransmissionFilter) transform)
+            .readsTransmissionDecision();
   }
 
   /**
-   * Transform {@code metadata}.
+   * Transform {@code metadata}. Neither {@code metadata} nor {@code params}
+   * are modified if a transform throws an exception. Metadata is only copied
+   * once a transform modifies it.
    */
   public void transform(Metadata metadata, Map<String, String> params) {
     if (transformList.isEmpty()) {
       return;
     }
 
-    Metadata metadataInTransit = new Metadata(metadata);
+    Metadata metadataInTransit = Metadata.copyOnWrite(metadata);
     Map<String, String> paramsInTransit = Collections.checkedMap(
         new HashMap<String, String>(params), String.class, String.class);
 
-    for (int i = 0; i < transformList.size(); i++) {
+    for (int i = 0; i < transformList.size(); i = filterRunEnds[i]) {
+      if (filterRunEnds[i] - i > 1) {
+        decide(i, metadataInTransit, paramsInTransit);
+        continue;
+      }
       MetadataTransform transform = transformList.get(i);
+      String decision
+          = paramsInTransit.get(MetadataTransform.KEY_TRANSMISSION_DECISION);
+      long start = System.nanoTime();
       try {
         transform.transform(metadataInTransit, paramsInTransit);
       } catch (RuntimeException e) {
+        stages[i].record(System.nanoTime() - start, true, false);
         throw new RuntimeException(
             "Exception during transform " + names.get(i), e);
       }
+      String newDecision
+          = paramsInTransit.get(MetadataTransform.KEY_TRANSMISSION_DECISION);
+      stages[i].record(System.nanoTime() - start, false,
+          !Objects.equal(decision, newDecision));
     }
 
-    metadata.set(metadataInTransit);
-    params.clear();
-    params.putAll(paramsInTransit);
+    if (!metadataInTransit.isShared()) {
+      metadata.set(metadataInTransit);
+    }
+    if (!paramsInTransit.equals(params)) {
+      params.clear();
+      params.putAll(paramsInTransit);
+    }
+  }
+
+  /**
+   * Evaluates the run of filters starting at {@code start}, from the last,
+   * until one makes a decision. Since {@link
+   * MetadataTransform.TransmissionFilter#decide} does not log, the decision
+   * is logged here as the filter's {@code transform} would have.
+   */
+  private void decide(int start, Metadata metadata,
+      Map<String, String> params) {
+    String previous = params.get(MetadataTransform.KEY_TRANSMISSION_DECISION);
+    for (int i = filterRunEnds[start] - 1; i >= start; i--) {
+      MetadataTransform.TransmissionDecision decision;
+      long startNanos = System.nanoTime();
+      try {
+        decision = ((MetadataTransform.TransmissionFilter) transformList.get(i))
+            .decide(metadata, params);
+      } catch (RuntimeException e) {
+        stages[i].record(System.nanoTime() - startNanos, true, false);
+        throw new RuntimeException(
+            "Exception during transform " + names.get(i), e);
+      }
+      long nanos = System.nanoTime() - startNanos;
+      if (decision != null) {
+        stages[i].record(nanos, false,
+            !decision.toString().equals(previous));
+        String docId = params.get(MetadataTransform.KEY_DOC_ID);
+        if (null == docId || docId.isEmpty()) {
+          docId = "with no docId";
+        }
+        log.log(Level.INFO, "Transmission decision of {0} for document {1}, "
+            + "because of transform {2}",
+            new Object[] { decision, docId, names.get(i) });
+        params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
+            decision.toString());
+        return;
+      }
+      stages[i].record(nanos, false, false);
+    }
+  }
+
+  /**
+   * Closes the transforms that are {@link Closeable}, such as those running
+   * processes, once the pipeline is no longer used.
+   */
+  public void close() {
+    for (int i = 0; i < transformList.size(); i++) {
+      MetadataTransform transform = transformList.get(i);
+      if (transform instanceof Closeable) {
+        try {
+          ((Closeable) transform).close();
+        } catch (IOException ex) {
+          log.log(Level.WARNING, "Failed to close transform " + names.get(i),
+              ex);
+        }
+      }
+    }
   }
 
   /**
@@ -0,0 +1,390 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Serves adaptor metrics in the Prometheus text exposition format, for
+ * scraping by monitoring systems. The response is written directly to the
+ * client as it is generated, using only a counters-only {@link
+ * Journal.JournalSnapshot}, so frequent scrapes are cheap.
+ */
+class MetricsHandler implements HttpHandler {
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Journal journal;
+  /** May be {@code null}. */
+  private final AsyncDocIdSender asyncDocIdSender;
+  /** May be {@code null}. */
+  private final ExecutorService backgroundExecutor;
+  private final List<Watchdog> watchdogs;
+
+  /**
+   * @param journal source of counters and push status
+   * @param asyncDocIdSender sender whose queue depth is reported, or {@code
+   *     null}
+   * @param backgroundExecutor executor whose utilization is reported, or
+   *     {@code null}
+   * @param watchdogs watchdogs whose timeouts are reported
+   */
+  public MetricsHandler(Journal journal, AsyncDocIdSender asyncDocIdSender,
+      ExecutorService backgroundExecutor, Collection<Watchdog> watchdogs) {
+    if (journal == null || watchdogs == null) {
+      throw new NullPointerException();
+    }
+    this.journal = journal;
+    this.asyncDocIdSender = asyncDocIdSender;
+    this.backgroundExecutor = backgroundExecutor;
+    this.watchdogs = new ArrayList<Watchdog>(watchdogs);
+  }
+
+  @Override
+  public void handle(HttpExchange ex) throws IOException {
+    String requestMethod = ex.getRequestMethod();
+    if (!"GET".equals(requestMethod) && !"HEAD".equals(requestMethod)) {
+      HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_METHOD,
+          Translation.HTTP_BAD_METHOD);
+      return;
+    }
+    if (!ex.getRequestURI().getPath().equals(ex.getHttpContext().getPath())) {
+      HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_NOT_FOUND,
+          Translation.HTTP_NOT_FOUND);
+      return;
+    }
+    if ("HEAD".equals(requestMethod)) {
+      HttpExchanges.respond(ex, HttpURLConnection.HTTP_OK, CONTENT_TYPE, null);
+      return;
+    }
+    HttpExchanges.startResponse(
+        ex, HttpURLConnection.HTTP_OK, CONTENT_TYPE, true);
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(ex.getResponseBody(), UTF_8));
+    writeMetrics(writer);
+    writer.close();  // Not in a "finally"; the connection is killed on error.
+    ex.close();
+  }
+
+  /** Writes all metrics to {@code writer}, without flushing or closing it. */
+  void writeMetrics(Writer writer) throws IOException {
+    Journal.JournalSnapshot snap = journal.getCountersSnapshot();
+
+    writeHeader(writer, "adaptor_start_time_seconds", "gauge",
+        "Time the adaptor started, in seconds since the epoch.");
+    writeSample(writer, "adaptor_start_time_seconds", null,
+        seconds(snap.whenStarted));
+
+    writeCounter(writer, "adaptor_docids_pushed_total",
+        "DocIds pushed to the GSA.", snap.numTotalDocIdsPushed);
+    writeUniqueGauge(writer, "adaptor_docids_pushed_unique",
+        "Distinct DocIds pushed to the GSA.", snap.numUniqueDocIdsPushed);
+    writeCounter(writer, "adaptor_gsa_requests_total",
+        "Document requests from the GSA.", snap.numTotalGsaRequests);
+    writeUniqueGauge(writer, "adaptor_gsa_requests_unique",
+        "Distinct documents requested by the GSA.", snap.numUniqueGsaRequests);
+    writeCounter(writer, "adaptor_non_gsa_requests_total",
+        "Document requests from clients other than the GSA.",
+        snap.numTotalNonGsaRequests);
+    writeUniqueGauge(writer, "adaptor_non_gsa_requests_unique",
+        "Distinct documents requested by clients other than the GSA.",
+        snap.numUniqueNonGsaRequests);
+    writeCounter(writer, "adaptor_request_processings_total",
+        "Document requests processed, including failures.",
+        snap.numRequestProcessings);
+    writeCounter(writer, "adaptor_request_processing_failures_total",
+        "Document requests that failed.", snap.numRequestProcessingFailures);
+    writeHeader(writer, "adaptor_request_processing_seconds_total", "counter",
+        "Time spent processing document requests.");
+    writeSample(writer, "adaptor_request_processing_seconds_total", null,
+        seconds(snap.requestProcessingsDurationSum));
+    writeCounter(writer, "adaptor_response_bytes_total",
+        "Bytes of document content sent.", snap.numResponseBytes);
+    writeCounter(writer, "adaptor_document_cache_hits_total",
+        "Document requests served from the document cache.",
+        snap.numDocumentCacheHits);
+    writeCounter(writer, "adaptor_document_cache_misses_total",
+        "Cacheable document requests not found in the document cache.",
+        snap.numDocumentCacheMisses);
+    writeCounter(writer, "adaptor_authz_cache_hits_total",
+        "Authorization decisions answered from the authorization cache.",
+        snap.numAuthzCacheHits);
+    writeCounter(writer, "adaptor_authz_cache_misses_total",
+        "Authorization decisions that had to be made by the adaptor.",
+        snap.numAuthzCacheMisses);
+    writeDepthCounter(writer, "adaptor_acl_cache_hits_total",
+        "ACLs found in a registered ACL cache, by inheritance depth.",
+        snap.numAclCacheHits);
+    writeDepthCounter(writer, "adaptor_acl_cache_misses_total",
+        "ACLs a registered ACL cache had to retrieve, by inheritance depth.",
+        snap.numAclCacheMisses);
+    writeCounter(writer, "adaptor_groups_pushed_total",
+        "Group definitions pushed to the GSA.", snap.numTotalGroupsPushed);
+    writeUniqueGauge(writer, "adaptor_groups_pushed_unique",
+        "Distinct groups pushed to the GSA.", snap.numUniqueGroupsPushed);
+    writeCounter(writer, "adaptor_group_members_pushed_total",
+        "Group members pushed to the GSA.", snap.numTotalGroupMembersPushed);
+
+    writePushMetrics(writer, snap);
+    writeTransformMetrics(writer,
+        journal.getTransformMetrics().getSnapshots());
+
+    long timeouts = 0;
+    for (Watchdog watchdog : watchdogs) {
+      timeouts += watchdog.getTimeoutCount();
+    }
+    writeCounter(writer, "adaptor_watchdog_timeouts_total",
+        "Requests interrupted for taking too long.", timeouts);
+
+    if (asyncDocIdSender != null) {
+      writeGauge(writer, "adaptor_async_docid_queue_size",
+          "Items waiting to be pushed asynchronously.",
+          asyncDocIdSender.getQueueSize());
+      writeGauge(writer, "adaptor_async_docid_queue_capacity",
+          "Maximum number of items that can wait to be pushed asynchronously.",
+          asyncDocIdSender.getQueueCapacity());
+    }
+
+    if (backgroundExecutor instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor executor = (ThreadPoolExecutor) backgroundExecutor;
+      writeGauge(writer, "adaptor_background_threads_active",
+          "Background threads running a task.", executor.getActiveCount());
+      writeGauge(writer, "adaptor_background_threads",
+          "Background threads, idle or not.", executor.getPoolSize());
+      writeCounter(writer, "adaptor_background_tasks_completed_total",
+          "Background tasks completed.", executor.getCompletedTaskCount());
+    }
+  }
+
+  private void writePushMetrics(Writer writer, Journal.JournalSnapshot snap)
+      throws IOException {
+    writeHeader(writer, "adaptor_push_running", "gauge",
+        "Whether a push of the given type is running.");
+    writeSample(writer, "adaptor_push_running", "full",
+        snap.currentFullPushStart == 0 ? "0" : "1");
+    writeSample(writer, "adaptor_push_running", "incremental",
+        snap.currentIncrementalPushStart == 0 ? "0" : "1");
+    writeSample(writer, "adaptor_push_running", "group",
+        snap.currentGroupPushStart == 0 ? "0" : "1");
+
+    writeHeader(writer, "adaptor_push_last_success_start_time_seconds",
+        "gauge", "Start of the last successful push, or zero if none.");
+    writeSample(writer, "adaptor_push_last_success_start_time_seconds", "full",
+        seconds(snap.lastSuccessfulFullPushStart));
+    writeSample(writer, "adaptor_push_last_success_start_time_seconds",
+        "incremental", seconds(snap.lastSuccessfulIncrementalPushStart));
+    writeSample(writer, "adaptor_push_last_success_start_time_seconds",
+        "group", seconds(snap.lastSuccessfulGroupPushStart));
+
+    writeHeader(writer, "adaptor_push_last_success_end_time_seconds",
+        "gauge", "End of the last successful push, or zero if none.");
+    writeSample(writer, "adaptor_push_last_success_end_time_seconds", "full",
+        seconds(snap.lastSuccessfulFullPushEnd));
+    writeSample(writer, "adaptor_push_last_success_end_time_seconds",
+        "incremental", seconds(snap.lastSuccessfulIncrementalPushEnd));
+    writeSample(writer, "adaptor_push_last_success_end_time_seconds", "group",
+        seconds(snap.lastSuccessfulGroupPushEnd));
+
+    writeHeader(writer, "adaptor_push_last_status", "gauge",
+        "One for the status of the last completed push, zero otherwise.");
+    writeStatus(writer, "full", snap.lastFullPushStatus);
+    writeStatus(writer, "incremental", snap.lastIncrementalPushStatus);
+    writeStatus(writer, "group", snap.lastGroupPushStatus);
+  }
+
+  private static void writeTransformMetrics(Writer writer,
+      List<TransformMetrics.StageSnapshot> stages) throws IOException {
+    if (stages.isEmpty()) {
+      return;
+    }
+    String duration = "adaptor_transform_duration_seconds";
+    writeHeader(writer, duration, "summary",
+        "Time spent in each transform stage, per document.");
+    for (TransformMetrics.StageSnapshot stage : stages) {
+      writeStageSample(writer, duration, stage, "0.5",
+          Double.toString(stage.p50 / 1e6));
+      writeStageSample(writer, duration, stage, "0.95",
+          Double.toString(stage.p95 / 1e6));
+      writeStageSample(writer, duration, stage, "0.99",
+          Double.toString(stage.p99 / 1e6));
+      writeStageSample(writer, duration + "_sum", stage, null,
+          Double.toString(stage.durationNanos / 1e9));
+      writeStageSample(writer, duration + "_count", stage, null,
+          Long.toString(stage.invocations));
+    }
+
+    writeHeader(writer, "adaptor_transform_exceptions_total", "counter",
+        "Documents for which a transform stage threw an exception.");
+    for (TransformMetrics.StageSnapshot stage : stages) {
+      writeStageSample(writer, "adaptor_transform_exceptions_total", stage,
+          null, Long.toString(stage.exceptions));
+    }
+
+    writeHeader(writer, "adaptor_transform_decision_changes_total", "counter",
+        "Documents whose transmission decision a transform stage changed.");
+    for (TransformMetrics.StageSnapshot stage : stages) {
+      if (stage.type == TransformMetrics.Type.METADATA) {
+        writeStageSample(writer, "adaptor_transform_decision_changes_total",
+            stage, null, Long.toString(stage.decisionChanges));
+      }
+    }
+
+    writeHeader(writer, "adaptor_transform_bytes_in_total", "counter",
+        "Bytes of content written to a content transform stage.");
+    for (TransformMetrics.StageSnapshot stage : stages) {
+      if (stage.type == TransformMetrics.Type.CONTENT) {
+        writeStageSample(writer, "adaptor_transform_bytes_in_total", stage,
+            null, Long.toString(stage.bytesIn));
+      }
+    }
+    writeHeader(writer, "adaptor_transform_bytes_out_total", "counter",
+        "Bytes of content written by a content transform stage.");
+    for (TransformMetrics.StageSnapshot stage : stages) {
+      if (stage.type == TransformMetrics.Type.CONTENT) {
+        writeStageSample(writer, "adaptor_transform_bytes_out_total", stage,
+            null, Long.toString(stage.bytesOut));
+      }
+    }
+  }
+
+  /**
+   * Writes a sample labeled with the pipeline and name of {@code stage}.
+   *
+   * @param quantile value of the {@code quantile} label, or {@code null} for
+   *     none
+   */
+  private static void writeStageSample(Writer writer, String name,
+      TransformMetrics.StageSnapshot stage, String quantile, String value)
+      throws IOException {
+    writer.write(name);
+    writer.write("{pipeline=\"");
+    writer.write(stage.type.name().toLowerCase(Locale.ENGLISH));
+    writer.write("\",stage=\"");
+    writer.write(escapeLabelValue(stage.name));
+    if (quantile != null) {
+      writer.write("\",quantile=\"");
+      writer.write(quantile);
+    }
+    writer.write("\"} ");
+    writer.write(value);
+    writer.write('\n');
+  }
+
+  /** Escapes a label value, which may come from the configuration. */
+  static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\n");
+  }
+
+  private static void writeStatus(Writer writer, String type,
+      Journal.CompletionStatus status) throws IOException {
+    for (Journal.CompletionStatus s : Journal.CompletionStatus.values()) {
+      writer.write("adaptor_push_last_status{type=\"");
+      writer.write(type);
+      writer.write("\",status=\"");
+      writer.write(s.name().toLowerCase(Locale.ENGLISH));
+      writer.write("\"} ");
+      writer.write(s == status ? "1" : "0");
+      writer.write('\n');
+    }
+  }
+
+  private static void writeCounter(Writer writer, String name, String help,
+      long value) throws IOException {
+    writeHeader(writer, name, "counter", help);
+    writeSample(writer, name, null, Long.toString(value));
+  }
+
+  /**
+   * Writes a counter labeled with the inheritance depth, which is the index of
+   * each value.
+   */
+  private static void writeDepthCounter(Writer writer, String name,
+      String help, long[] values) throws IOException {
+    writeHeader(writer, name, "counter", help);
+    for (int depth = 0; depth < values.length; depth++) {
+      writer.write(name);
+      writer.write("{depth=\"");
+      writer.write(Integer.toString(depth));
+      writer.write("\"} ");
+      writer.write(Long.toString(values[depth]));
+      writer.write('\n');
+    }
+  }
+
+  private static void writeGauge(Writer writer, String name, String help,
+      long value) throws IOException {
+    writeHeader(writer, name, "gauge", help);
+    writeSample(writer, name, null, Long.toString(value));
+  }
+
+  /**
+   * Writes a gauge of distinct keys, unless it is unavailable due to reduced
+   * memory mode.
+   */
+  private static void writeUniqueGauge(Writer writer, String name, String help,
+      long value) throws IOException {
+    if (value >= 0) {
+      writeGauge(writer, name, help, value);
+    }
+  }
+
+  private static void writeHeader(Writer writer, String name, String type,
+      String help) throws IOException {
+    writer.write("# HELP ");
+    writer.write(name);
+    writer.write(' ');
+    writer.write(help);
+    writer.write("\n# TYPE ");
+    writer.write(name);
+    writer.write(' ');
+    writer.write(type);
+    writer.write('\n');
+  }
+
+  /**
+   * @param type value of the {@code type} label, or {@code null} for no labels
+   */
+  private static void writeSample(Writer writer, String name, String type,
+      String value) throws IOException {
+    writer.write(name);
+    if (type != null) {
+      writer.write("{type=\"");
+      writer.write(type);
+      writer.write("\"}");
+    }
+    writer.write(' ');
+    writer.write(value);
+    writer.write('\n');
+  }
+
+  private static String seconds(long millis) {
+    return Double.toString(millis / 1000.);
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits large authorization requests into sub-batches that are passed to
+ * another {@link AuthzAuthority} concurrently. This helps adaptors whose
+ * repositories check one document at a time, which would otherwise check a
+ * whole batch from the GSA serially.
+ *
+ * <p>All decisions must be made within {@code timeoutMillis}. DocIds without a
+ * decision by then, or whose sub-batch failed, are left out of the returned
+ * map; callers must treat them as {@link AuthzStatus#DENY}, as {@link
+ * SamlBatchAuthzHandler} does. Sub-batches still running at the deadline are
+ * interrupted.
+ */
+class ParallelAuthzAuthority implements AuthzAuthority {
+  private static final Logger log
+      = Logger.getLogger(ParallelAuthzAuthority.class.getName());
+
+  private final AuthzAuthority delegate;
+  private final ExecutorService executor;
+  private final int subBatchSize;
+  private final long timeoutMillis;
+
+  /**
+   * @param delegate authority making the decisions
+   * @param executor executor running the sub-batches; its size bounds the
+   *     concurrency
+   * @param subBatchSize maximum number of DocIds passed to {@code delegate}
+   *     at once
+   * @param timeoutMillis time allowed for all the decisions of one request
+   */
+  public ParallelAuthzAuthority(AuthzAuthority delegate,
+      ExecutorService executor, int subBatchSize, long timeoutMillis) {
+    if (delegate == null || executor == null) {
+      throw new NullPointerException();
+    }
+    if (subBatchSize <= 0 || timeoutMillis <= 0) {
+      throw new IllegalArgumentException(
+          "subBatchSize and timeoutMillis must be positive");
+    }
+    this.delegate = delegate;
+    this.executor = executor;
+    this.subBatchSize = subBatchSize;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public Map<DocId, AuthzStatus> isUserAuthorized(
+      final AuthnIdentity userIdentity, Collection<DocId> ids)
+      throws IOException {
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    List<DocId> all = new ArrayList<DocId>(ids);
+    List<List<DocId>> batches = new ArrayList<List<DocId>>();
+    List<Future<Map<DocId, AuthzStatus>>> futures
+        = new ArrayList<Future<Map<DocId, AuthzStatus>>>();
+    for (int i = 0; i < all.size(); i += subBatchSize) {
+      final List<DocId> batch = Collections.unmodifiableList(
+          all.subList(i, Math.min(i + subBatchSize, all.size())));
+      batches.add(batch);
+      futures.add(executor.submit(new Callable<Map<DocId, AuthzStatus>>() {
+        @Override
+        public Map<DocId, AuthzStatus> call() throws IOException {
+          return delegate.isUserAuthorized(userIdentity, batch);
+        }
+      }));
+    }
+
+    Map<DocId, AuthzStatus> result
+        = new HashMap<DocId, AuthzStatus>(all.size() * 2);
+    int undecided = 0;
+    for (int i = 0; i < futures.size(); i++) {
+      Future<Map<DocId, AuthzStatus>> future = futures.get(i);
+      List<DocId> batch = batches.get(i);
+      Map<DocId, AuthzStatus> statuses;
+      try {
+        statuses = future.get(Math.max(0, deadline - System.nanoTime()),
+            TimeUnit.NANOSECONDS);
+      } catch (TimeoutException ex) {
+        future.cancel(true);
+        undecided += batch.size();
+        continue;
+      } catch (ExecutionException ex) {
+        log.log(Level.WARNING, "Exception while authorizing "
+            + batch.size() + " DocIds", ex.getCause());
+        undecided += batch.size();
+        continue;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        for (Future<?> f : futures.subList(i, futures.size())) {
+          f.cancel(true);
+        }
+        throw new IOException("Interrupted while authorizing", ex);
+      }
+      if (statuses == null) {
+        undecided += batch.size();
+        continue;
+      }
+      for (DocId id : batch) {
+        AuthzStatus status = statuses.get(id);
+        if (status != null) {
+          result.put(id, status);
+        }
+      }
+    }
+    if (undecided > 0) {
+      log.log(Level.WARNING, "{0} of {1} DocIds had no decision within "
+          + "{2} ms and are denied", new Object[] {undecided, all.size(),
+          timeoutMillis});
+    }
+    return Collections.unmodifiableMap(result);
+  }
+}
@@ -14,16 +14,32 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.Serializable;
 import java.util.Arrays;
 
 /**
  * Represents either a user or a group.
  */
-public abstract class Principal implements Comparable<Principal> {
+public abstract class Principal
+    implements Comparable<Principal>, Serializable {
   public static final String DEFAULT_NAMESPACE = "Default";
 
+  /**
+   * Instances shared by {@link #intern}. Weak, so that principals no longer
+   * used are not retained.
+   */
+  private static final Interner<Principal> interner
+      = Interners.newWeakInterner();
+
   private final String name;
   private final String namespace;
+  /** Parsed form of {@link #name}, computed on first use. */
+  private transient volatile ParsedPrincipal parsed;
+  /** Hash code, computed on first use; 0 when not yet computed. */
+  private transient int hash;
 
   /** The name is trimmed because GSA trims principal names.
    *  An empty name results in IllegalArgumentException.  */
@@ -70,8 +86,14 @@ public abstract class Principal implements Comparable<Principal> {
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(new Object[]{ isUser(), parse().domain,
-        parse().plainName, namespace });
+    int h = hash;
+    if (h == 0) {
+      // Benign race; all threads compute the same value.
+      h = Arrays.hashCode(new Object[]{ isUser(), parse().domain,
+          parse().plainName, namespace });
+      hash = h;
+    }
+    return h;
   }
 
   @Override
@@ -105,7 +127,36 @@ public abstract class Principal implements Comparable<Principal> {
     return parse().plainName.compareTo(other.parse().plainName);
   }
 
+  /**
+   * Returns a shared instance identical to {@code p}, which is {@code p} unless
+   * an identical principal was interned before and is still in use. Storing
+   * the returned instance lets many equal principals share one object, such as
+   * when building ACLs for millions of documents.
+   */
+  static <P extends Principal> P intern(P p) {
+    Principal shared = interner.intern(p);
+    // Equal principals may still differ in how their domain is written.
+    if (shared != p && shared.isUser() == p.isUser()
+        && shared.name.equals(p.getName())
+        && shared.namespace.equals(p.getNamespace())) {
+      @SuppressWarnings("unchecked")
+      P identical = (P) shared;
+      return identical;
+    }
+    return p;
+  }
+
   ParsedPrincipal parse() {
+    ParsedPrincipal p = parsed;
+    if (p == null) {
+      // Benign race; ParsedPrincipal is immutable.
+      p = parseName();
+      parsed = p;
+    }
+    return p;
+  }
+
+  private ParsedPrincipal parseName() {
     for (int i = 0; i < name.length(); i++) {
       char c = name.charAt(i);
       switch (c) {
@@ -65,14 +65,19 @@ class SamlBatchAuthzHandler implements HttpHandler {
   private final SamlMetadata metadata;
   private DocIdDecoder docIdDecoder;
   private final Principal.DomainFormat domainFormat;
+  private final Journal journal;
 
   public SamlBatchAuthzHandler(AuthzAuthority authzAuthority,
       DocIdDecoder docIdDecoder, SamlMetadata samlMetadata,
-      Principal.DomainFormat dmfmt) {
+      Principal.DomainFormat dmfmt, Journal journal) {
+    if (journal == null) {
+      throw new NullPointerException();
+    }
     this.authzAuthority = authzAuthority;
     this.docIdDecoder = docIdDecoder;
     this.metadata = samlMetadata;
     this.domainFormat = dmfmt;
+    this.journal = journal;
   }
 
   @Override
@@ -87,6 +92,16 @@ class SamlBatchAuthzHandler implements HttpHandler {
           Translation.HTTP_NOT_FOUND);
       return;
     }
+    journal.recordLatencyStart(Journal.Latency.SAML_BATCH_AUTHZ);
+    try {
+      handleAuthzRequest(ex);
+    } finally {
+      journal.recordLatencyEnd(Journal.Latency.SAML_BATCH_AUTHZ);
+    }
+  }
+
+  /** Decodes, processes, and responds to a batch of authz queries. */
+  private void handleAuthzRequest(HttpExchange ex) throws IOException {
     // Setup SAML context.
     SAMLMessageContext<AuthzDecisionQuery, Response, NameID> context
         = OpenSamlUtil.makeSamlMessageContext();
@@ -95,7 +110,8 @@ class SamlBatchAuthzHandler implements HttpHandler {
         new HttpExchangeOutTransportAdapter(ex));
 
     // Decode request.
-    HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder();
+    HTTPSOAP11MultiContextDecoder decoder
+        = new HTTPSOAP11MultiContextDecoder(OpenSamlUtil.getParserPool());
     List<AuthzDecisionQuery> queries = new ArrayList<AuthzDecisionQuery>();
     while (true) {
       try {
@@ -118,9 +134,9 @@ class SamlBatchAuthzHandler implements HttpHandler {
     }
 
     // Figure out if the user is authorized.
-    List<Response> responses;
+    List<AuthzStatus> statuses;
     try {
-      responses = processQueries(queries, HttpExchanges.getRequestUri(ex));
+      statuses = processQueries(queries, HttpExchanges.getRequestUri(ex));
     } catch (TranslationIllegalArgumentException e) {
       log.log(Level.INFO, "Error processing queries", e);
       HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
@@ -128,10 +144,13 @@ class SamlBatchAuthzHandler implements HttpHandler {
       return;
     }
 
-    // Encode response.
+    // Encode response. Each response is built and written in turn, so they are
+    // not all in memory at once.
+    DateTime now = new DateTime();
     HTTPSOAP11MultiContextEncoder encoder = new HTTPSOAP11MultiContextEncoder();
-    for (Response resp : responses) {
-      context.setOutboundSAMLMessage(resp);
+    for (int i = 0; i < queries.size(); i++) {
+      context.setOutboundSAMLMessage(
+          createResponse(queries.get(i), statuses.get(i), now));
       try {
         encoder.encode(context);
       } catch (MessageEncodingException e) {
@@ -148,9 +167,9 @@ class SamlBatchAuthzHandler implements HttpHandler {
     ex.close();
   }
 
-  private List<Response> processQueries(List<AuthzDecisionQuery> queries,
-                                        URI requestUri) {
-    DateTime now = new DateTime();
+  /** Returns the decision for each query, in the same order as queries. */
+  private List<AuthzStatus> processQueries(List<AuthzDecisionQuery> queries,
+                                           URI requestUri) {
     // Convert URIs into DocIds, but maintain a mapping of the relationship to
     // later determine the relationship of query to response.
     Map<AuthzDecisionQuery, DocId> docIds
@@ -223,8 +242,8 @@ class SamlBatchAuthzHandler implements HttpHandler {
       statuses = Collections.emptyMap();
     }
 
-    // For each query, build a SAML response based on Adaptor's response.
-    List<Response> result = new ArrayList<Response>(queries.size());
+    // For each query, decide the SAML response based on Adaptor's response.
+    List<AuthzStatus> result = new ArrayList<AuthzStatus>(queries.size());
     for (AuthzDecisionQuery query : queries) {
       AuthzStatus status;
       DocId docId = docIds.get(query);
@@ -236,13 +255,13 @@ class SamlBatchAuthzHandler implements HttpHandler {
         // INDETERMINATE means that the document doesn't exist, so the GSA must
         // have an old copy of some file. It isn't safe to do anything but DENY.
 
-        // null means that the adaptor threw an exception or is buggy. The only
-        // safe thing to do is DENY.
+        // null means that the adaptor threw an exception, is buggy, or did not
+        // decide in time. The only safe thing to do is DENY.
         if (status == null || status == AuthzStatus.INDETERMINATE) {
           status = AuthzStatus.DENY;
         }
       }
-      result.add(createResponse(query, status, now));
+      result.add(status);
     }
     return result;
   }
@@ -55,7 +55,6 @@ import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
-import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.xml.security.SecurityException;
@@ -68,7 +67,6 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyPair;
 import java.util.Collections;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -209,9 +207,7 @@ class SamlIdentityProvider {
       context.setLocalEntityId(metadata.getLocalEntity().getEntityID());
       context.setLocalEntityMetadata(metadata.getLocalEntity());
       context.setLocalEntityRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
-      context.setLocalEntityRoleMetadata(
-          getFirst(metadata.getLocalEntity().getRoleDescriptors(
-              IDPSSODescriptor.DEFAULT_ELEMENT_NAME)));
+      context.setLocalEntityRoleMetadata(metadata.getLocalIdpRole());
       context.setOutboundMessageIssuer(metadata.getLocalEntity().getEntityID());
       context.setOutboundSAMLMessageSigningCredential(cred);
 
@@ -262,8 +258,7 @@ class SamlIdentityProvider {
       if (peerEntityId != null
           && peerEntityId.equals(metadata.getPeerEntity().getEntityID())) {
         entityDescriptor = metadata.getPeerEntity();
-        roleDescriptor = getFirst(entityDescriptor.getRoleDescriptors(
-            SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+        roleDescriptor = metadata.getPeerSpRole();
       } else {
         log.log(Level.INFO, "Unknown Peer Entity Id: {0}", peerEntityId);
       }
@@ -274,10 +269,6 @@ class SamlIdentityProvider {
 
       return selector.selectEndpoint();
     }
-
-    private <V> V getFirst(List<V> list) {
-      return list.isEmpty() ? null : list.get(0);
-    }
   }
 
   private class AuthnCallback implements AuthnAuthority.Callback {
@@ -303,6 +294,7 @@ class SamlIdentityProvider {
      * @param requestUri the URI the client used to make the request
      */
     public RequestUriRedirectDeflateDecoder(URI requestUri) {
+      super(OpenSamlUtil.getParserPool());
       try {
         // Remove query parameters from URI.
         requestUri = new URI(requestUri.getScheme(), requestUri.getAuthority(),
@@ -26,6 +26,8 @@ import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.SingleSignOnService;
 import org.opensaml.xml.XMLObjectBuilderFactory;
 
+import java.util.List;
+
 import javax.xml.namespace.QName;
 
 /**
@@ -38,6 +40,9 @@ import javax.xml.namespace.QName;
 class SamlMetadata {
   private final EntityDescriptor localEntity;
   private final EntityDescriptor peerEntity;
+  /** Role descriptors, found once instead of for every message. */
+  private final IDPSSODescriptor localIdpRole;
+  private final SPSSODescriptor peerSpRole;
   private final XMLObjectBuilderFactory objectBuilderFactory =
       Configuration.getBuilderFactory();
 
@@ -45,6 +50,10 @@ class SamlMetadata {
       String gsaEntityId, String adaptorEntityId) {
     localEntity = createLocalEntity(hostname, port, adaptorEntityId);
     peerEntity = createPeerEntity(gsaHostname, gsaEntityId);
+    localIdpRole = (IDPSSODescriptor) getFirst(localEntity.getRoleDescriptors(
+        IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
+    peerSpRole = (SPSSODescriptor) getFirst(peerEntity.getRoleDescriptors(
+        SPSSODescriptor.DEFAULT_ELEMENT_NAME));
   }
 
   private EntityDescriptor createLocalEntity(String hostname, int port,
@@ -141,4 +150,18 @@ class SamlMetadata {
   public EntityDescriptor getPeerEntity() {
     return peerEntity;
   }
+
+  /** Returns the identity provider role of the local entity. */
+  public IDPSSODescriptor getLocalIdpRole() {
+    return localIdpRole;
+  }
+
+  /** Returns the service provider role of the peer entity. */
+  public SPSSODescriptor getPeerSpRole() {
+    return peerSpRole;
+  }
+
+  private static <V> V getFirst(List<V> list) {
+    return list.isEmpty() ? null : list.get(0);
+  }
 }
@@ -30,6 +30,7 @@ import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.security.KeyPair;
@@ -216,6 +217,9 @@ class SamlServiceProvider {
           authnState);
 
       if (authnSuccess) {
+        // Setting the state again saves it for other adaptors sharing
+        // sessions.
+        session.setAttribute(SESSION_STATE_ATTR_NAME, authnState);
         HttpExchanges.sendRedirect(ex, origUri); 
       } else {
         HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_FORBIDDEN,
@@ -333,9 +337,12 @@ class SamlServiceProvider {
    * authentication attempt or a completed authentication.
    */
   @VisibleForTesting
-  static class AuthnState {
-    /** Client used for pending authn attempt. */
-    private SamlClient client;
+  static class AuthnState implements Serializable {
+    /**
+     * Client used for pending authn attempt. It is not shared with other
+     * adaptors, so an attempt must complete on the adaptor that began it.
+     */
+    private transient SamlClient client;
     /** Original URL that was accessed that caused this authn attempt. */
     private URI originalUri;
     /** Successfully authned identity for the user. */
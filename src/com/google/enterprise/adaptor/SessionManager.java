@@ -19,11 +19,16 @@ import com.sun.net.httpserver.HttpExchange;
 import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.bind.DatatypeConverter;
 
 /**
@@ -32,18 +37,50 @@ import javax.xml.bind.DatatypeConverter;
  * old sessions as it creates a new session, so it is fine with keeping a
  * session around for days past its expiration time if no new sessions are being
  * created.
+ *
+ * <p>Sessions are kept in a concurrent map and no lock is shared between
+ * sessions. To avoid scanning every session during cleanup, session ids are
+ * also grouped into buckets by the period of their last access, with periods
+ * the length of the cleanup frequency. Cleanup only visits the buckets old
+ * enough to contain expired sessions. An id is added to a newer bucket when its
+ * session is used in a later period and is left behind in the older bucket,
+ * where cleanup skips it.
+ *
+ * <p>When a {@link SessionStore} is provided, sessions are also saved to it so
+ * that they are available to other instances sharing the store, such as
+ * adaptors behind a load balancer. Sessions are saved whenever an attribute is
+ * set or removed, and at most once per period when only accessed. A session
+ * already used by an instance is not reloaded from the store, so clients
+ * should still mostly stay with one instance.
  */
 class SessionManager<E> {
+  private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new SecureRandom();
+    }
+  };
+
   private final TimeProvider timeProvider;
   private final ClientStore<E> clientStore;
-  private final Map<String, Session> sessions = new HashMap<String, Session>();
-  private final Map<String, Long> lastAccess = new HashMap<String, Long>();
+  /** Storage shared with other instances, or {@code null}. */
+  private final SessionStore sessionStore;
+  private final ConcurrentMap<String, Entry> sessions
+      = new ConcurrentHashMap<String, Entry>();
+  /** Session ids keyed by the period containing their last access. */
+  private final ConcurrentNavigableMap<Long, Set<String>> buckets
+      = new ConcurrentSkipListMap<Long, Set<String>>();
   /** Lifetime of sessions, in milliseconds. */
   private final long sessionLifetime;
   /** Maximum frequency to check for expired sessions, in milliseconds. */
   private final long cleanupFrequency;
-  private long nextCleanup;
-  private final Random random = new SecureRandom();
+  /**
+   * Length of the periods of {@link #buckets}, in milliseconds. It is no longer
+   * than the session lifetime, so that recently used sessions are never in the
+   * buckets being cleaned up.
+   */
+  private final long bucketLength;
+  private final AtomicLong nextCleanup = new AtomicLong();
 
   /**
    * @param clientStore storage for communicating session id with client
@@ -53,17 +90,40 @@ class SessionManager<E> {
    */
   public SessionManager(ClientStore<E> clientStore, long sessionLifetime,
                         long cleanupFrequency) {
-    this(new SystemTimeProvider(), clientStore, sessionLifetime,
+    this(clientStore, null, sessionLifetime, cleanupFrequency);
+  }
+
+  /**
+   * @param clientStore storage for communicating session id with client
+   * @param sessionStore storage for sharing sessions with other instances, or
+   *    {@code null}
+   * @param sessionLifetime lifetime of sessions, in milliseconds
+   * @param cleanupFrequency maximum frequency to check for expired sessions, in
+   *    milliseconds
+   */
+  public SessionManager(ClientStore<E> clientStore, SessionStore sessionStore,
+                        long sessionLifetime, long cleanupFrequency) {
+    this(new SystemTimeProvider(), clientStore, sessionStore, sessionLifetime,
          cleanupFrequency);
   }
 
   protected SessionManager(TimeProvider timeProvider,
                            ClientStore<E> clientStore, long sessionLifetime,
                            long cleanupFrequency) {
+    this(timeProvider, clientStore, null, sessionLifetime, cleanupFrequency);
+  }
+
+  protected SessionManager(TimeProvider timeProvider,
+                           ClientStore<E> clientStore,
+                           SessionStore sessionStore, long sessionLifetime,
+                           long cleanupFrequency) {
     this.timeProvider = timeProvider;
     this.clientStore = clientStore;
+    this.sessionStore = sessionStore;
     this.sessionLifetime = sessionLifetime;
     this.cleanupFrequency = cleanupFrequency;
+    this.bucketLength
+        = Math.max(1, Math.min(cleanupFrequency, sessionLifetime));
   }
 
   public Session getSession(E clientState) {
@@ -77,76 +137,127 @@ class SessionManager<E> {
       return create ? createSession(clientState) : null;
     }
 
-    synchronized (this) {
-      // Check for expiration now.
-      cleanupIfExpiredSession(value);
-      Session session = sessions.get(value);
-      if (session != null) {
-        updateLastAccess(value);
-        return session;
-      }
-
-      // Could not find session specified. Assume it expired.
-      return create ? createSession(clientState) : null;
+    // Check for expiration now.
+    cleanupIfExpiredSession(value);
+    Entry entry = sessions.get(value);
+    if (entry == null && sessionStore != null) {
+      entry = loadSession(value);
     }
+    if (entry != null) {
+      updateLastAccess(value);
+      return entry.session;
+    }
+
+    // Could not find session specified. Assume it expired.
+    return create ? createSession(clientState) : null;
   }
 
-  protected synchronized Session createSession(E clientState) {
+  protected Session createSession(E clientState) {
     cleanupExpiredSessions();
-    Session session = new HashMapSession();
     String id = generateRandomIdentifier();
-    sessions.put(id, session);
+    Entry entry = new Entry(sessionStore == null ? new HashMapSession()
+        : new StoredSession(id, Collections.<String, Object>emptyMap(),
+            sessionStore, timeProvider));
+    sessions.put(id, entry);
     clientStore.store(clientState, id);
     updateLastAccess(id);
-    return session;
+    return entry.session;
   }
 
-  protected synchronized void updateLastAccess(String id) {
-    lastAccess.put(id, timeProvider.currentTimeMillis());
+  /** Makes the session available, if {@link #sessionStore} still has it. */
+  private Entry loadSession(String id) {
+    long lastAccessLimit = timeProvider.currentTimeMillis() - sessionLifetime;
+    Map<String, Object> attributes = sessionStore.load(id, lastAccessLimit);
+    if (attributes == null) {
+      return null;
+    }
+    Entry entry = new Entry(
+        new StoredSession(id, attributes, sessionStore, timeProvider));
+    Entry existing = sessions.putIfAbsent(id, entry);
+    return existing == null ? entry : existing;
+  }
+
+  protected void updateLastAccess(String id) {
+    Entry entry = sessions.get(id);
+    if (entry == null) {
+      return;
+    }
+    long currentTime = timeProvider.currentTimeMillis();
+    entry.lastAccess = currentTime;
+    long bucket = currentTime / bucketLength;
+    if (entry.bucket == bucket) {
+      return;
+    }
+    entry.bucket = bucket;
+    Set<String> ids = buckets.get(bucket);
+    if (ids == null) {
+      ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      Set<String> existing = buckets.putIfAbsent(bucket, ids);
+      if (existing != null) {
+        ids = existing;
+      }
+    }
+    ids.add(id);
+    if (sessionStore != null) {
+      // Lets other instances know the session is still in use.
+      ((StoredSession) entry.session).save();
+    }
   }
 
-  protected synchronized void cleanupExpiredSessions() {
+  protected void cleanupExpiredSessions() {
     long currentTime = timeProvider.currentTimeMillis();
-    if (nextCleanup > currentTime) {
+    long next = nextCleanup.get();
+    // Only one thread cleans up in each period.
+    if (next > currentTime
+        || !nextCleanup.compareAndSet(next, currentTime + cleanupFrequency)) {
       return;
     }
 
-    List<String> toRemove = new LinkedList<String>();
     long lastAccessLimit = currentTime - sessionLifetime;
-    for (Map.Entry<String, Long> me : lastAccess.entrySet()) {
-      if (lastAccessLimit > me.getValue()) {
-        toRemove.add(me.getKey());
+    for (Map.Entry<Long, Set<String>> me : buckets.headMap(
+        lastAccessLimit / bucketLength, true).entrySet()) {
+      Set<String> ids = me.getValue();
+      for (Iterator<String> idIt = ids.iterator(); idIt.hasNext();) {
+        String id = idIt.next();
+        Entry entry = sessions.get(id);
+        if (entry == null || entry.bucket != me.getKey()) {
+          // Removed or accessed since.
+          idIt.remove();
+        } else if (lastAccessLimit > entry.lastAccess) {
+          sessions.remove(id, entry);
+          idIt.remove();
+        }
+      }
+      if (ids.isEmpty()) {
+        buckets.remove(me.getKey(), ids);
       }
     }
 
-    for (String id : toRemove) {
-      sessions.remove(id);
-      lastAccess.remove(id);
+    if (sessionStore != null) {
+      sessionStore.removeExpired(lastAccessLimit);
     }
-
-    nextCleanup = currentTime + cleanupFrequency;
   }
 
-  protected synchronized void cleanupIfExpiredSession(String id) {
-    Long lastAccessForId = lastAccess.get(id);
-    if (lastAccessForId == null) {
+  protected void cleanupIfExpiredSession(String id) {
+    Entry entry = sessions.get(id);
+    if (entry == null) {
       return;
     }
 
     long currentTime = timeProvider.currentTimeMillis();
     long lastAccessLimit = currentTime - sessionLifetime;
-    if (lastAccessLimit > lastAccessForId) {
-      sessions.remove(id);
-      lastAccess.remove(id);
+    if (lastAccessLimit > entry.lastAccess) {
+      // Its bucket is cleaned up later.
+      sessions.remove(id, entry);
     }
   }
 
   /**
    * Generate a secure, random, 128-bit, base64-encoded identifier.
    */
-  synchronized String generateRandomIdentifier() {
+  String generateRandomIdentifier() {
     byte[] rawId = new byte[16];
-    random.nextBytes(rawId);
+    random.get().nextBytes(rawId);
     return DatatypeConverter.printBase64Binary(rawId);
   }
 
@@ -154,6 +265,87 @@ class SessionManager<E> {
     return sessions.size();
   }
 
+  /** State kept for each session. */
+  private static class Entry {
+    private final Session session;
+    private volatile long lastAccess;
+    /** The last bucket the session id was added to. */
+    private volatile long bucket = Long.MIN_VALUE;
+
+    Entry(Session session) {
+      this.session = session;
+    }
+  }
+
+  /** Session saving itself to {@link #sessionStore} when modified. */
+  private static class StoredSession implements Session {
+    private final String id;
+    private final Map<String, Object> attributes;
+    private final SessionStore sessionStore;
+    private final TimeProvider timeProvider;
+
+    StoredSession(String id, Map<String, Object> attributes,
+        SessionStore sessionStore, TimeProvider timeProvider) {
+      this.id = id;
+      this.attributes = new HashMap<String, Object>(attributes);
+      this.sessionStore = sessionStore;
+      this.timeProvider = timeProvider;
+    }
+
+    @Override
+    public void setAttribute(String key, Object value) {
+      synchronized (this) {
+        attributes.put(key, value);
+      }
+      save();
+    }
+
+    @Override
+    public synchronized Object getAttribute(String key) {
+      return attributes.get(key);
+    }
+
+    @Override
+    public Object removeAttribute(String key) {
+      Object value;
+      synchronized (this) {
+        value = attributes.remove(key);
+      }
+      save();
+      return value;
+    }
+
+    void save() {
+      Map<String, Object> copy;
+      synchronized (this) {
+        copy = new HashMap<String, Object>(attributes);
+      }
+      sessionStore.save(id, copy, timeProvider.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Storage of sessions shared by several instances. Implementations must be
+   * thread-safe.
+   */
+  public static interface SessionStore {
+    /**
+     * Returns the attributes saved for the session, or {@code null} if it was
+     * never saved or was last accessed before {@code lastAccessLimit}.
+     */
+    public Map<String, Object> load(String id, long lastAccessLimit);
+
+    /**
+     * Saves the attributes of the session. Attributes that can not be stored
+     * may be skipped.
+     */
+    public void save(String id, Map<String, Object> attributes,
+        long lastAccess);
+
+    /** Removes sessions last accessed before {@code lastAccessLimit}. */
+    public void removeExpired(long lastAccessLimit);
+  }
+
   /** A single-value storage per client. */
   public static interface ClientStore<E> {
     /** Returns the previously-stored value or {@code null}. */
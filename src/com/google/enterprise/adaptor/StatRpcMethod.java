@@ -17,6 +17,7 @@ package com.google.enterprise.adaptor;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -80,6 +81,12 @@ class StatRpcMethod implements RpcHandler.RpcMethod {
       simple.put("numTotalNonGsaRequests", journalSnap.numTotalNonGsaRequests);
       simple.put("numUniqueNonGsaRequests",
                  journalSnap.numUniqueNonGsaRequests);
+      simple.put("numDocumentCacheHits", journalSnap.numDocumentCacheHits);
+      simple.put("numDocumentCacheMisses", journalSnap.numDocumentCacheMisses);
+      simple.put("numAuthzCacheHits", journalSnap.numAuthzCacheHits);
+      simple.put("numAuthzCacheMisses", journalSnap.numAuthzCacheMisses);
+      simple.put("numAclCacheHits", asList(journalSnap.numAclCacheHits));
+      simple.put("numAclCacheMisses", asList(journalSnap.numAclCacheMisses));
       simple.put("timeResolution", journalSnap.timeResolution);
       simple.put("lastSuccessfulFullPushStart",
                  journalSnap.lastSuccessfulFullPushStart);
@@ -101,6 +108,19 @@ class StatRpcMethod implements RpcHandler.RpcMethod {
       map.put("simpleStats", simple);
     }
 
+    {
+      Map<String, Object> topMap = new TreeMap<String, Object>();
+      topMap.put("mostPushedDocIds", getTop(journalSnap.mostPushedDocIds));
+      topMap.put("mostGsaRequestedDocIds",
+                 getTop(journalSnap.mostGsaRequestedDocIds));
+      topMap.put("mostNonGsaRequestedDocIds",
+                 getTop(journalSnap.mostNonGsaRequestedDocIds));
+      topMap.put("mostPushedGroups", getTop(journalSnap.mostPushedGroups));
+      topMap.put("largestGroupsPushed",
+                 getTop(journalSnap.largestGroupsPushed));
+      map.put("topStats", topMap);
+    }
+
     {
       Map<String, Object> versionMap = new TreeMap<String, Object>();
 
@@ -139,9 +159,54 @@ class StatRpcMethod implements RpcHandler.RpcMethod {
       map.put("stats", statsList);
     }
 
+    {
+      List<Object> stagesList = new ArrayList<Object>();
+      for (TransformMetrics.StageSnapshot stage
+          : journal.getTransformMetrics().getSnapshots()) {
+        stagesList.add(getStage(stage));
+      }
+      map.put("transformStats", stagesList);
+    }
+
     return map;
   }
 
+  private Map<String, Object> getStage(TransformMetrics.StageSnapshot stage) {
+    Map<String, Object> stageMap = new TreeMap<String, Object>();
+    stageMap.put("pipeline", stage.type.name().toLowerCase(Locale.ENGLISH));
+    stageMap.put("name", stage.name);
+    stageMap.put("invocations", stage.invocations);
+    stageMap.put("durationSumMicros", stage.durationNanos / 1000);
+    stageMap.put("p50Micros", stage.p50);
+    stageMap.put("p95Micros", stage.p95);
+    stageMap.put("p99Micros", stage.p99);
+    stageMap.put("exceptions", stage.exceptions);
+    if (stage.type == TransformMetrics.Type.METADATA) {
+      stageMap.put("decisionChanges", stage.decisionChanges);
+    } else {
+      stageMap.put("bytesIn", stage.bytesIn);
+      stageMap.put("bytesOut", stage.bytesOut);
+    }
+    return stageMap;
+  }
+
+  private static List<Long> asList(long[] values) {
+    List<Long> list = new ArrayList<Long>(values.length);
+    for (long value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  /** Converts entries to a list of {@code [key, count]} pairs. */
+  private List<Object> getTop(List<Map.Entry<String, Integer>> entries) {
+    List<Object> top = new ArrayList<Object>(entries.size());
+    for (Map.Entry<String, Integer> entry : entries) {
+      top.add(Arrays.<Object>asList(entry.getKey(), (long) entry.getValue()));
+    }
+    return top;
+  }
+
   private Map<String, Object> getStat(Journal.Stat stat, long time) {
     Map<String, Object> statMap = new TreeMap<String, Object>();
     statMap.put("time", time);
@@ -154,6 +219,20 @@ class StatRpcMethod implements RpcHandler.RpcMethod {
                 stat.requestProcessingsThroughput);
     statMap.put("groupsPushed", stat.groupsPushed);
     statMap.put("membersPushed", stat.membersPushed);
+    Map<String, Object> latencies = new TreeMap<String, Object>();
+    for (Journal.Latency latency : Journal.Latency.values()) {
+      LatencyHistogram histogram = stat.latencies[latency.ordinal()];
+      if (histogram == null || histogram.getTotalCount() == 0) {
+        continue;
+      }
+      Map<String, Object> percentiles = new TreeMap<String, Object>();
+      percentiles.put("count", histogram.getTotalCount());
+      percentiles.put("p50", histogram.getValueAtPercentile(50));
+      percentiles.put("p95", histogram.getValueAtPercentile(95));
+      percentiles.put("p99", histogram.getValueAtPercentile(99));
+      latencies.put(latency.name(), percentiles);
+    }
+    statMap.put("latencies", latencies);
     return statMap;
   }
 
@@ -0,0 +1,155 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and outcomes of each stage of the metadata and content transform
+ * pipelines, so that slow or failing transforms can be found. Statistics are
+ * kept from when the stage was registered.
+ *
+ * <p>This class is thread-safe.
+ */
+class TransformMetrics {
+  /** Pipeline a stage belongs to. */
+  enum Type {
+    METADATA,
+    CONTENT,
+  }
+
+  /** Guarded by {@code this}. */
+  private final List<Stage> stages = new ArrayList<Stage>();
+
+  /**
+   * Returns the stage named {@code name} of the {@code type} pipeline,
+   * registering it if necessary. Pipelines created again with the same names,
+   * as happens when the adaptor is restarted, continue the same statistics.
+   */
+  public synchronized Stage register(Type type, String name) {
+    if (type == null || name == null) {
+      throw new NullPointerException();
+    }
+    for (Stage stage : stages) {
+      if (stage.type == type && stage.name.equals(name)) {
+        return stage;
+      }
+    }
+    Stage stage = new Stage(type, name);
+    stages.add(stage);
+    return stage;
+  }
+
+  /** Returns snapshots of all stages, in order of registration. */
+  public List<StageSnapshot> getSnapshots() {
+    List<Stage> copy;
+    synchronized (this) {
+      copy = new ArrayList<Stage>(stages);
+    }
+    List<StageSnapshot> snapshots = new ArrayList<StageSnapshot>(copy.size());
+    for (Stage stage : copy) {
+      snapshots.add(stage.getSnapshot());
+    }
+    return snapshots;
+  }
+
+  /** Statistics of one stage. */
+  static class Stage {
+    private final Type type;
+    private final String name;
+    /** Remaining fields are guarded by {@code this}. */
+    private long invocations;
+    private long exceptions;
+    private long decisionChanges;
+    private long durationNanos;
+    private long bytesIn;
+    private long bytesOut;
+    /**
+     * Durations in microseconds, since most metadata transforms take well
+     * under a millisecond. Durations of about 17 seconds or more are counted
+     * together.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private Stage(Type type, String name) {
+      this.type = type;
+      this.name = name;
+    }
+
+    /**
+     * Records one invocation of the stage.
+     *
+     * @param nanos time spent in the stage itself
+     * @param failed whether the stage threw an exception
+     * @param decisionChanged whether the stage changed the transmission
+     *     decision of the document
+     */
+    public synchronized void record(long nanos, boolean failed,
+        boolean decisionChanged) {
+      invocations++;
+      durationNanos += nanos;
+      latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+      if (failed) {
+        exceptions++;
+      }
+      if (decisionChanged) {
+        decisionChanges++;
+      }
+    }
+
+    /** Records bytes written to and by a content stage. */
+    public synchronized void recordBytes(long in, long out) {
+      bytesIn += in;
+      bytesOut += out;
+    }
+
+    synchronized StageSnapshot getSnapshot() {
+      return new StageSnapshot(this);
+    }
+  }
+
+  /** Copy of the statistics of a stage. */
+  static class StageSnapshot {
+    final Type type;
+    final String name;
+    final long invocations;
+    final long exceptions;
+    final long decisionChanges;
+    final long durationNanos;
+    final long bytesIn;
+    final long bytesOut;
+    /** Percentiles of the duration, in microseconds. */
+    final long p50;
+    final long p95;
+    final long p99;
+
+    /** Must be called while holding the lock on {@code stage}. */
+    private StageSnapshot(Stage stage) {
+      this.type = stage.type;
+      this.name = stage.name;
+      this.invocations = stage.invocations;
+      this.exceptions = stage.exceptions;
+      this.decisionChanges = stage.decisionChanges;
+      this.durationNanos = stage.durationNanos;
+      this.bytesIn = stage.bytesIn;
+      this.bytesOut = stage.bytesOut;
+      this.p50 = stage.latency.getValueAtPercentile(50);
+      this.p95 = stage.latency.getValueAtPercentile(95);
+      this.p99 = stage.latency.getValueAtPercentile(99);
+    }
+  }
+}
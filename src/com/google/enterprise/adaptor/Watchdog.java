@@ -20,6 +20,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Calls Thread.interrupt() when a thread takes too long to complete a task.
@@ -39,6 +40,8 @@ class Watchdog {
   private final ScheduledExecutorService executor;
   private final ConcurrentMap<Thread, FutureInfo> inProcess
       = new ConcurrentHashMap<Thread, FutureInfo>();
+  /** Number of times a thread has been interrupted for taking too long. */
+  private final AtomicLong timeouts = new AtomicLong();
 
   /**
    * @param executor executor to schedule tasks
@@ -63,7 +66,7 @@ class Watchdog {
           + "thread");
     }
     AtomicBoolean interruptNeeded = new AtomicBoolean(true);
-    Runnable task = new Interrupter(thread, interruptNeeded);
+    Runnable task = new Interrupter(thread, interruptNeeded, timeouts);
     Future<?> future = executor.schedule(task, timeout, TimeUnit.MILLISECONDS);
     FutureInfo info = new FutureInfo(future, interruptNeeded);
     if (inProcess.putIfAbsent(thread, info) != null) {
@@ -102,6 +105,11 @@ class Watchdog {
     }
   }
 
+  /** Returns the number of times processing took too long. */
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
   private static class Interrupter implements Runnable {
     private final Thread thread;
     /**
@@ -109,10 +117,13 @@ class Watchdog {
      * must be cleared after the thread has been interrupted.
      */
     private AtomicBoolean interruptNeeded;
+    private final AtomicLong timeouts;
 
-    public Interrupter(Thread thread, AtomicBoolean interruptNeeded) {
+    public Interrupter(Thread thread, AtomicBoolean interruptNeeded,
+        AtomicLong timeouts) {
       this.thread = thread;
       this.interruptNeeded = interruptNeeded;
+      this.timeouts = timeouts;
     }
 
     public void run() {
@@ -122,6 +133,7 @@ class Watchdog {
         if (interruptNeeded.get()) {
           thread.interrupt();
           interruptNeeded.set(false);
+          timeouts.incrementAndGet();
         }
       }
     }
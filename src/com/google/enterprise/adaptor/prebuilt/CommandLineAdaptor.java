@@ -31,8 +31,10 @@ import com.google.enterprise.adaptor.prebuilt.StreamingCommand.OutputSink;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,15 +47,33 @@ import java.util.logging.Logger;
 
 /**
  * Command Line Adaptor
+ *
+ * <p>By default the retriever and authorizer commands are run once per request. With a positive
+ * {@code commandline.retriever.workers} or {@code commandline.authorizer.workers}, that many
+ * long-running processes are started instead, and concurrent requests are spread among them. A
+ * worker handles one request at a time: it reads a request frame from stdin and writes a response
+ * frame to stdout. A frame is its length in bytes, in decimal digits followed by a newline, and
+ * then that many bytes of data in the format read by {@link CommandStreamParser}.
+ *
+ * <p>A retriever request contains the {@code id} of the document, which may use the 2-byte
+ * encoding of newline and null, and {@code last-crawled}, the milliseconds passed to the command
+ * as its last argument otherwise, both with newline as delimiter. An authorizer request contains
+ * what is written to the stdin of the command otherwise. Responses are the same as the output of
+ * the commands. Workers that exit, write an invalid frame or take longer than the {@code
+ * workerTimeoutSecs} of the command are restarted, and should exit when stdin is closed.
  */
 public class CommandLineAdaptor extends AbstractAdaptor
     implements AuthzAuthority {
   private static final Logger log = Logger.getLogger(CommandLineAdaptor.class.getName());
+  private static final Charset FRAME_LENGTH_CHARSET = Charset.forName("US-ASCII");
   private Charset encoding = Charset.forName("UTF-8");
   private List<String> listerCommand;
   private List<String> retrieverCommand;
   private List<String> authorizerCommand;
   private String authzDelimiter;
+  /** Long-running processes handling requests, or {@code null} to run a command per request. */
+  private ProcessPool retrieverPool;
+  private ProcessPool authorizerPool;
 
   @Override
   public void initConfig(Config config) {
@@ -64,6 +84,14 @@ public class CommandLineAdaptor extends AbstractAdaptor
     config.addKey("commandline.lister.cmd", null);
     config.addKey("commandline.retriever.cmd", null);
     config.addKey("commandline.authorizer.delimeter", "\0");
+    // Number of long-running processes handling requests, or 0 to run the
+    // command for each request.
+    config.addKey("commandline.retriever.workers", "0");
+    config.addKey("commandline.authorizer.workers", "0");
+    // Time a worker may take to handle a request, after which it is
+    // restarted.
+    config.addKey("commandline.retriever.workerTimeoutSecs", "30");
+    config.addKey("commandline.authorizer.workerTimeoutSecs", "30");
   }
 
 
@@ -85,6 +113,18 @@ public class CommandLineAdaptor extends AbstractAdaptor
     return command;
   }
 
+  /** Returns the workers configured for the command, or {@code null} if there are none. */
+  private ProcessPool createWorkerPool(AdaptorContext context, String prefix,
+      List<String> command) {
+    Config config = context.getConfig();
+    int workers = Integer.parseInt(config.getValue(prefix + "workers"));
+    if (workers <= 0 || command == null) {
+      return null;
+    }
+    long timeoutSecs = Long.parseLong(config.getValue(prefix + "workerTimeoutSecs"));
+    return new ProcessPool(command, null, workers, timeoutSecs * 1000);
+  }
+
   @Override
   public void init(AdaptorContext context) throws Exception {
 
@@ -105,6 +145,21 @@ public class CommandLineAdaptor extends AbstractAdaptor
     if (authorizerCommand != null) {
       context.setAuthzAuthority(this);
     }
+
+    retrieverPool = createWorkerPool(context, "commandline.retriever.", retrieverCommand);
+    authorizerPool = createWorkerPool(context, "commandline.authorizer.", authorizerCommand);
+  }
+
+  @Override
+  public void destroy() {
+    if (retrieverPool != null) {
+      retrieverPool.close();
+      retrieverPool = null;
+    }
+    if (authorizerPool != null) {
+      authorizerPool.close();
+      authorizerPool = null;
+    }
   }
 
   public void setListerCommand(List<String> commandWithArgs) {
@@ -160,15 +215,19 @@ public class CommandLineAdaptor extends AbstractAdaptor
   @Override
   public void getDocContent(Request req, final Response resp) throws IOException {
     final DocId id = req.getDocId();
+    Date lastCrawled = req.getLastAccessTime();
+    long lastCrawledMillis = 0;
+    if (lastCrawled != null) {
+      lastCrawledMillis = lastCrawled.getTime();
+    }
+    if (retrieverPool != null) {
+      getDocContentFromWorker(id, lastCrawledMillis, resp);
+      return;
+    }
     int commandResult;
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
     try {
-      Date lastCrawled = req.getLastAccessTime();
-      long lastCrawledMillis = 0;
-      if (lastCrawled != null) {
-        lastCrawledMillis = lastCrawled.getTime();
-      }
       String[] commandLine = new String[retrieverCommand.size() + 2];
       retrieverCommand.toArray(commandLine);
       commandLine[retrieverCommand.size()] = id.getUniqueId();
@@ -260,6 +319,16 @@ public class CommandLineAdaptor extends AbstractAdaptor
     }
     String stdin = stdinStringBuilder.toString();
 
+    if (authorizerPool != null) {
+      log.finest("Request to authorizer worker: " + ids);
+      byte[] response = exchangeWithWorker(authorizerPool, stdin.getBytes(encoding));
+      try {
+        return new CommandStreamParser(new ByteArrayInputStream(response)).readFromAuthorizer();
+      } catch (IOException e) {
+        throw new IOException("Worker could not handle request.", e);
+      }
+    }
+
     Command.Result commandResult;
 
     try {
@@ -287,6 +356,90 @@ public class CommandLineAdaptor extends AbstractAdaptor
     return parser.readFromAuthorizer();
   }
 
+  private void getDocContentFromWorker(DocId id, long lastCrawledMillis, Response resp)
+      throws IOException {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    request.write("GSA Adaptor Data Version 1 [\n]\nid=".getBytes(encoding));
+    // Newline and null are written in 2 bytes, so they are not taken for the delimiter.
+    for (byte b : id.getUniqueId().getBytes(encoding)) {
+      if (b == '\n' || b == 0) {
+        request.write(0xc0);
+        request.write(0x80 | b);
+      } else {
+        request.write(b);
+      }
+    }
+    request.write(("\nlast-crawled=" + lastCrawledMillis + "\n").getBytes(encoding));
+    log.finest("Request to retriever worker: " + id);
+    byte[] response = exchangeWithWorker(retrieverPool, request.toByteArray());
+    try {
+      new CommandStreamParser(new ByteArrayInputStream(response)).readFromRetriever(id, resp);
+    } catch (IOException e) {
+      throw new IOException("Worker could not handle request.", e);
+    }
+  }
+
+  /**
+   * Sends a request frame to a worker of {@code pool}, and returns the data of its response frame.
+   * The data is parsed by the caller rather than within the exchange, so that a slow consumer of
+   * the response does not count against the worker's timeout, and the response is never written
+   * to after a timeout.
+   */
+  private static byte[] exchangeWithWorker(ProcessPool pool, final byte[] request)
+      throws IOException {
+    try {
+      return pool.execute(new ProcessPool.Exchange<byte[]>() {
+        @Override
+        public byte[] exchange(OutputStream stdin, InputStream stdout) throws IOException {
+          stdin.write((request.length + "\n").getBytes(FRAME_LENGTH_CHARSET));
+          stdin.write(request);
+          stdin.flush();
+          return readFrameData(stdout, readFrameLength(stdout));
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new IOException("Thread interrupted while waiting for worker.", e);
+    } catch (IOException e) {
+      throw new IOException("Worker could not handle request.", e);
+    }
+  }
+
+  /** Reads the decimal length, followed by a newline, starting a frame. */
+  private static long readFrameLength(InputStream in) throws IOException {
+    long length = 0;
+    int digits = 0;
+    for (int b; (b = in.read()) != '\n';) {
+      if (b == -1) {
+        throw new EOFException("Worker closed stdout");
+      }
+      if (b < '0' || b > '9' || digits == 18) {
+        throw new IOException("Invalid frame length from worker");
+      }
+      length = length * 10 + (b - '0');
+      digits++;
+    }
+    if (digits == 0) {
+      throw new IOException("Missing frame length from worker");
+    }
+    return length;
+  }
+
+  /** Reads the {@code length} bytes of data of a frame. */
+  private static byte[] readFrameData(InputStream in, long length) throws IOException {
+    // Not allocated up front, since the length comes from the worker.
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (long remaining = length; remaining > 0;) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read == -1) {
+        throw new EOFException("Worker closed stdout before the end of the frame");
+      }
+      data.write(buffer, 0, read);
+      remaining -= read;
+    }
+    return data.toByteArray();
+  }
+
   protected int executeLister(String[] commandLine, InputSource stdin,
       OutputSink stdout, OutputSink stderr) throws IOException,
       InterruptedException {
@@ -20,10 +20,14 @@ import com.google.enterprise.adaptor.IOHelper;
 import com.google.enterprise.adaptor.Metadata;
 import com.google.enterprise.adaptor.MetadataTransform;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -38,8 +42,17 @@ import java.util.logging.Logger;
 /**
  * A conduit that allows a simple way to create a document transform based on
  * a command line program.
+ *
+ * <p>By default the command is run once per document. With a positive number
+ * of workers, that many long-running processes are started instead, which
+ * each transform one document at a time. A worker reads the metadata and then
+ * the params from stdin and writes the transformed metadata and params to
+ * stdout. Each is a sequence of null-terminated keys and values, as in the
+ * files passed to the command, followed by an extra null character. Workers
+ * that exit, fail or take longer than the timeout are restarted, and should
+ * exit when stdin is closed.
  */
-public class CommandLineTransform implements MetadataTransform {
+public class CommandLineTransform implements MetadataTransform, Closeable {
   private static final Logger log
       = Logger.getLogger(CommandLineTransform.class.getName());
   private static final int STDERR_BUFFER_SIZE = 51200; // 50 kB
@@ -48,11 +61,16 @@ public class CommandLineTransform implements MetadataTransform {
   private boolean commandAcceptsParameters = true;
   private List<String> transformCommand;
   private File workingDirectory;
+  private int workers;
+  private long workerTimeoutSecs = 30;
+  /** Created when first needed, when using workers. */
+  private ProcessPool pool;
 
   public CommandLineTransform() {}
 
   /**
-   * Accepts keys {@code "cmd"}, {@code "workingDirectory"}, and {@code "arg?"}.
+   * Accepts keys {@code "cmd"}, {@code "workingDirectory"}, {@code "workers"},
+   * {@code "workerTimeoutSecs"}, and {@code "arg?"}.
    * The {@code "arg?"} configuration values should be numerically increasing
    * starting from one: {@code "arg1"}, {@code "arg2"}, {@code "arg3}, ...
    *
@@ -81,6 +99,16 @@ public class CommandLineTransform implements MetadataTransform {
           = Boolean.parseBoolean(cmdAcceptsParameters);
     }
 
+    String workers = config.get("workers");
+    if (workers != null) {
+      transform.setWorkers(Integer.parseInt(workers));
+    }
+
+    String workerTimeoutSecs = config.get("workerTimeoutSecs");
+    if (workerTimeoutSecs != null) {
+      transform.setWorkerTimeoutSecs(Long.parseLong(workerTimeoutSecs));
+    }
+
     for (int i = 1;; i++) {
       String value = config.get("arg" + i);
       if (value == null) {
@@ -97,6 +125,10 @@ public class CommandLineTransform implements MetadataTransform {
     if (transformCommand == null) {
       throw new NullPointerException("transformCommand must not be null");
     }
+    if (workers > 0) {
+      transformWithWorker(metadata, params);
+      return;
+    }
     File metadataFile = null;
     File paramsFile = null;
     try {
@@ -152,6 +184,92 @@ public class CommandLineTransform implements MetadataTransform {
     }
   }
 
+  private void transformWithWorker(Metadata metadata,
+      Map<String, String> params) {
+    StringBuilder sb = new StringBuilder();
+    appendFrame(sb, metadata);
+    appendFrame(sb, params.entrySet());
+    final byte[] request = sb.toString().getBytes(charset);
+    Response response;
+    try {
+      response = getPool().execute(new ProcessPool.Exchange<Response>() {
+        @Override
+        public Response exchange(OutputStream stdin, InputStream stdout)
+            throws IOException {
+          stdin.write(request);
+          stdin.flush();
+          List<Map.Entry<String, String>> metadata = readFrame(stdout);
+          return new Response(metadata, readFrame(stdout));
+        }
+      });
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    }
+    metadata.set(response.metadata);
+    params.clear();
+    for (Map.Entry<String, String> e : response.params) {
+      params.put(e.getKey(), e.getValue());
+    }
+  }
+
+  private synchronized ProcessPool getPool() {
+    if (pool == null) {
+      pool = new ProcessPool(transformCommand, workingDirectory, workers,
+          workerTimeoutSecs * 1000);
+    }
+    return pool;
+  }
+
+  /**
+   * Stops the worker processes, if any. They are started again if the
+   * transform is used afterwards.
+   */
+  @Override
+  public synchronized void close() {
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+  }
+
+  /** Appends entries followed by the extra null character ending them. */
+  private void appendFrame(StringBuilder sb,
+      Iterable<Map.Entry<String, String>> it) {
+    for (Map.Entry<String, String> me : it) {
+      // An empty key would end the frame early.
+      if (me.getKey().isEmpty()) {
+        throw new RuntimeException("Key cannot be empty when using workers");
+      }
+    }
+    appendEntries(sb, it);
+    sb.append('\0');
+  }
+
+  /** Reads entries up to the extra null character ending them. */
+  private List<Map.Entry<String, String>> readFrame(InputStream is)
+      throws IOException {
+    List<Map.Entry<String, String>> all
+        = new ArrayList<Map.Entry<String, String>>();
+    for (String key; !(key = readToken(is)).isEmpty();) {
+      all.add(new SimpleEntry<String, String>(key, readToken(is)));
+    }
+    return all;
+  }
+
+  private String readToken(InputStream is) throws IOException {
+    ByteArrayOutputStream token = new ByteArrayOutputStream();
+    for (int b; (b = is.read()) != 0;) {
+      if (b == -1) {
+        throw new EOFException("Worker closed stdout");
+      }
+      token.write(b);
+    }
+    return new String(token.toByteArray(), charset);
+  }
+
   private File writeMapToTempFile(Map<String, String> map)
       throws IOException {
     return writeIterableToTempFile(map.entrySet());
@@ -160,6 +278,12 @@ public class CommandLineTransform implements MetadataTransform {
   private File writeIterableToTempFile(Iterable<Map.Entry<String, String>> it)
       throws IOException {
     StringBuilder sb = new StringBuilder();
+    appendEntries(sb, it);
+    return IOHelper.writeToTempFile(sb.toString(), charset);
+  }
+
+  private void appendEntries(StringBuilder sb,
+      Iterable<Map.Entry<String, String>> it) {
     for (Map.Entry<String, String> me : it) {
       if (me.getKey().contains("\0")) {
         throw new RuntimeException("Key cannot contain the null character: "
@@ -172,7 +296,6 @@ public class CommandLineTransform implements MetadataTransform {
       sb.append(me.getKey()).append('\0');
       sb.append(me.getValue()).append('\0');
     }
-    return IOHelper.writeToTempFile(sb.toString(), charset);
   }
 
   private List<Map.Entry<String, String>> readListFromFile(File file) throws IOException {
@@ -258,4 +381,54 @@ public class CommandLineTransform implements MetadataTransform {
   public File getWorkingDirectory() {
     return workingDirectory;
   }
+
+  /**
+   * Sets the number of long-running worker processes transforming documents,
+   * or zero to run the command once per document. When using workers, the
+   * command does not receive file names as parameters.
+   *
+   * @param workers number of worker processes
+   * @throws IllegalArgumentException if {@code workers} is negative
+   */
+  public void setWorkers(int workers) {
+    if (workers < 0) {
+      throw new IllegalArgumentException("workers must not be negative");
+    }
+    this.workers = workers;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  /**
+   * Sets the time a worker process may take to transform one document, after
+   * which it is killed and restarted.
+   *
+   * @param workerTimeoutSecs timeout in seconds
+   * @throws IllegalArgumentException if {@code workerTimeoutSecs} is not
+   *     positive
+   */
+  public void setWorkerTimeoutSecs(long workerTimeoutSecs) {
+    if (workerTimeoutSecs <= 0) {
+      throw new IllegalArgumentException(
+          "workerTimeoutSecs must be positive");
+    }
+    this.workerTimeoutSecs = workerTimeoutSecs;
+  }
+
+  public long getWorkerTimeoutSecs() {
+    return workerTimeoutSecs;
+  }
+
+  private static class Response {
+    private final List<Map.Entry<String, String>> metadata;
+    private final List<Map.Entry<String, String>> params;
+
+    Response(List<Map.Entry<String, String>> metadata,
+        List<Map.Entry<String, String>> params) {
+      this.metadata = metadata;
+      this.params = params;
+    }
+  }
 }
@@ -20,16 +20,20 @@ import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdPusher;
 import com.google.enterprise.adaptor.IOHelper;
+import com.google.enterprise.adaptor.PollingIncrementalLister;
 import com.google.enterprise.adaptor.Request;
 import com.google.enterprise.adaptor.Response;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -40,6 +44,15 @@ public class FileSystemAdaptor extends AbstractAdaptor {
   private static final String CONFIG_SRC = "filesystemadaptor.src";
   private static final String CONFIG_INCLUDE = "filesystemadaptor.include";
   private static final String CONFIG_EXCLUDE = "filesystemadaptor.exclude";
+  private static final String CONFIG_LISTING_THREADS
+      = "filesystemadaptor.listingThreads";
+  private static final String CONFIG_INCREMENTAL
+      = "filesystemadaptor.incremental";
+  /**
+   * Allowance for file systems with coarse modification times and for clock
+   * differences with file servers when checking for changes.
+   */
+  private static final long MODIFIED_SLACK_MILLIS = 10 * 1000;
 
   private static Logger log
       = Logger.getLogger(FileSystemAdaptor.class.getName());
@@ -47,6 +60,8 @@ public class FileSystemAdaptor extends AbstractAdaptor {
   private File serveDir;
   private Pattern include;
   private Pattern exclude;
+  private int listingThreads;
+  private int feedMaxUrls;
 
   @Override
   public void initConfig(Config config) {
@@ -63,6 +78,15 @@ public class FileSystemAdaptor extends AbstractAdaptor {
     // Black list (overrides white list) of files to not serve. See include.
     // This default matches nothing (meaning nothing is excluded).
     config.addKey(CONFIG_EXCLUDE, "$^");
+    // Number of directories listed at the same time during full listings.
+    // Listing is mostly spent waiting for the file system, so more threads
+    // than processors help, especially on network file systems.
+    config.addKey(CONFIG_LISTING_THREADS, "4");
+    // Whether to check for changed files every
+    // adaptor.incrementalPollPeriodSecs, so that changes are noticed before
+    // the next full listing. Each check reads the modification time of every
+    // file, but only pushes those changed since the previous check.
+    config.addKey(CONFIG_INCREMENTAL, "false");
   }
 
   @Override
@@ -78,31 +102,40 @@ public class FileSystemAdaptor extends AbstractAdaptor {
 
     String strExclude = config.getValue(CONFIG_EXCLUDE);
     exclude = Pattern.compile(strExclude, Pattern.DOTALL);
+
+    listingThreads = Integer.parseInt(config.getValue(CONFIG_LISTING_THREADS));
+    feedMaxUrls = Integer.parseInt(config.getValue("feed.maxUrls"));
+
+    if (Boolean.parseBoolean(config.getValue(CONFIG_INCREMENTAL))) {
+      context.setPollingIncrementalLister(
+          new ModifiedFileLister(System.currentTimeMillis()));
+    }
   }
 
+  /**
+   * Pushes the files as they are found, in feed-sized chunks, so the whole
+   * listing is never held in memory.
+   */
   @Override
-  public void getDocIds(DocIdPusher pusher) throws IOException,
+  public void getDocIds(final DocIdPusher pusher) throws IOException,
          InterruptedException {
-    ArrayList<DocId> mockDocIds = new ArrayList<DocId>();
-    String parent = serveDir.toString();
-    try {
-      for (File file : new RecursiveFileIterator(serveDir)) {
-        String name = file.toString();
-        if (!name.startsWith(parent)) {
-          throw new IllegalStateException(
-              "Internal problem: the file's path does not begin with parent.");
-        }
-        if (!isFileAllowed(file)) {
-          continue;
-        }
-        // +1 for slash
-        name = name.substring(parent.length() + 1);
-        mockDocIds.add(new DocId(name));
+    FileFilter allowed = new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return isFileAllowed(file);
       }
-    } catch (RecursiveFileIterator.WrappedIOException ex) {
-      throw ex.getCause();
-    }
-    pusher.pushDocIds(mockDocIds);
+    };
+    new ParallelFileWalker(listingThreads, feedMaxUrls).walk(serveDir, allowed,
+        new ParallelFileWalker.Handler() {
+          @Override
+          public void handle(List<File> files) throws InterruptedException {
+            List<DocId> docIds = new ArrayList<DocId>(files.size());
+            for (File file : files) {
+              docIds.add(toDocId(file));
+            }
+            pusher.pushDocIds(docIds);
+          }
+        });
   }
 
   @Override
@@ -132,6 +165,17 @@ public class FileSystemAdaptor extends AbstractAdaptor {
     }
   }
 
+  private DocId toDocId(File file) {
+    String parent = serveDir.toString();
+    String name = file.toString();
+    if (!name.startsWith(parent)) {
+      throw new IllegalStateException(
+          "Internal problem: the file's path does not begin with parent.");
+    }
+    // +1 for slash
+    return new DocId(name.substring(parent.length() + 1));
+  }
+
   private boolean isFileDescendantOfServeDir(File file) {
     while (file != null) {
       if (file.equals(serveDir)) {
@@ -147,6 +191,89 @@ public class FileSystemAdaptor extends AbstractAdaptor {
         && !exclude.matcher(file.getPath()).find();
   }
 
+  /**
+   * Pushes the files modified since the previous check, and the files of
+   * directories whose entries changed since then, which includes files moved
+   * or copied with their original modification time. Deleted files are
+   * noticed when the GSA recrawls them.
+   */
+  private class ModifiedFileLister implements PollingIncrementalLister {
+    /** Start of the previous check. Only used by one thread at a time. */
+    private long lastCheck;
+
+    ModifiedFileLister(long lastCheck) {
+      this.lastCheck = lastCheck;
+    }
+
+    @Override
+    public void getModifiedDocIds(final DocIdPusher pusher)
+        throws IOException, InterruptedException {
+      long checkStart = System.currentTimeMillis();
+      new ParallelFileWalker(listingThreads, feedMaxUrls).walk(serveDir,
+          new ModifiedFileFilter(lastCheck - MODIFIED_SLACK_MILLIS),
+          new ParallelFileWalker.Handler() {
+            @Override
+            public void handle(List<File> files) throws InterruptedException {
+              List<DocIdPusher.Record> records
+                  = new ArrayList<DocIdPusher.Record>(files.size());
+              for (File file : files) {
+                records.add(new DocIdPusher.Record.Builder(toDocId(file))
+                    .setCrawlImmediately(true).build());
+              }
+              log.log(Level.FINE, "Pushing {0} modified files", files.size());
+              pusher.pushRecords(records);
+            }
+          });
+      lastCheck = checkStart;
+    }
+  }
+
+  /**
+   * Accepts allowed files modified since a time, or in a directory modified
+   * since then.
+   */
+  private class ModifiedFileFilter implements FileFilter {
+    private final long since;
+    /**
+     * Directory whose files each thread last checked. Walkers check the files
+     * of one directory together, so each directory is usually only checked
+     * once.
+     */
+    private final ThreadLocal<CheckedDirectory> lastDirectory
+        = new ThreadLocal<CheckedDirectory>();
+
+    ModifiedFileFilter(long since) {
+      this.since = since;
+    }
+
+    @Override
+    public boolean accept(File file) {
+      if (!isFileAllowed(file)) {
+        return false;
+      }
+      if (file.lastModified() >= since) {
+        return true;
+      }
+      File dir = file.getParentFile();
+      CheckedDirectory last = lastDirectory.get();
+      if (last == null || !last.dir.equals(dir)) {
+        last = new CheckedDirectory(dir, dir.lastModified() >= since);
+        lastDirectory.set(last);
+      }
+      return last.modified;
+    }
+  }
+
+  private static class CheckedDirectory {
+    private final File dir;
+    private final boolean modified;
+
+    CheckedDirectory(File dir, boolean modified) {
+      this.dir = dir;
+      this.modified = modified;
+    }
+  }
+
   /** Call default main for adaptors. 
    *  @param args argv
    */
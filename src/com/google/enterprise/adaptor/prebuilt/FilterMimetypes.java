@@ -53,7 +53,7 @@ import java.util.logging.Logger;
  *       that has a wildcard (*).
  * </ol>
  */
-public class FilterMimetypes implements MetadataTransform {
+public class FilterMimetypes implements MetadataTransform.TransmissionFilter {
   private static final Logger log
       = Logger.getLogger(FilterMimetypes.class.getName());
 
@@ -63,13 +63,13 @@ public class FilterMimetypes implements MetadataTransform {
   private Set<String> supportedGlobs = new TreeSet<String>();
   private Set<String> unsupportedGlobs = new TreeSet<String>();
   private Set<String> excludedGlobs = new TreeSet<String>();
-  private Map<String, String> decided;
+  private Map<String, TransmissionDecision> decided;
 
-  private synchronized String lookupDecision(String ct) {
+  private synchronized TransmissionDecision lookupDecision(String ct) {
     return decided.get(ct);
   }
 
-  private synchronized void insertDecision(String ct, String d) {
+  private synchronized void insertDecision(String ct, TransmissionDecision d) {
     decided.put(ct, d);
   }
 
@@ -86,7 +86,7 @@ public class FilterMimetypes implements MetadataTransform {
     supportedGlobs = Collections.unmodifiableSet(supportedGlobs);
     unsupportedGlobs = Collections.unmodifiableSet(unsupportedGlobs);
     excludedGlobs = Collections.unmodifiableSet(excludedGlobs);
-    decided = new HashMap<String, String>();
+    decided = new HashMap<String, TransmissionDecision>();
   }
 
   private void split(Set<String> globs, Set<String> explicit, Set<String> src) {
@@ -119,9 +119,19 @@ public class FilterMimetypes implements MetadataTransform {
 
   @Override
   public void transform(Metadata metadata, Map<String, String> params) {
+    TransmissionDecision decision = decide(metadata, params);
+    if (null != decision) {
+      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
+          decision.toString());
+    }
+  }
+
+  @Override
+  public TransmissionDecision decide(Metadata metadata,
+      Map<String, String> params) {
     String ct = params.get(MetadataTransform.KEY_CONTENT_TYPE);
     if (ct == null) {
-      return;
+      return null;
     }
     // parse Content-Type per RFC 2616's Section 3.7 Media Types
     int semicolonIndex = ct.indexOf(";");
@@ -130,41 +140,41 @@ public class FilterMimetypes implements MetadataTransform {
     }
     ct = ct.trim().toLowerCase();
     // First look in the cache to see if we have encounted this mimetype before.
-    String decision = lookupDecision(ct);
+    TransmissionDecision decision = lookupDecision(ct);
     if (null != decision) {
-      if (!decision.equals(TransmissionDecision.AS_IS.toString())) {
-        params.put(MetadataTransform.KEY_TRANSMISSION_DECISION, decision);
-      }
-      return;
+      return decision == TransmissionDecision.AS_IS ? null : decision;
     }
     if (supportedExplicit.contains(ct)) {
       log.log(Level.FINE, ct + "is explicitly supported");
       // Even though we do not explicitly set the decision, still cache
       // the result for future encounters of this same mime-type.
-      insertDecision(ct, TransmissionDecision.AS_IS.toString());
+      insertDecision(ct, TransmissionDecision.AS_IS);
+      return null;
     } else if (unsupportedExplicit.contains(ct)) {
       log.log(Level.FINE, ct + "is explicitly unsupported");
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
+      decision = TransmissionDecision.DO_NOT_INDEX_CONTENT;
     } else if (excludedExplicit.contains(ct)) {
       log.log(Level.FINE, ct + "is explicitly excluded");
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX.toString());
+      decision = TransmissionDecision.DO_NOT_INDEX;
     } else if (matches(supportedGlobs, ct, "supported by glob")) {
-      insertDecision(ct, TransmissionDecision.AS_IS.toString());
+      insertDecision(ct, TransmissionDecision.AS_IS);
+      return null;
     } else if (matches(unsupportedGlobs, ct, "unsupported by glob")) {
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
+      decision = TransmissionDecision.DO_NOT_INDEX_CONTENT;
     } else if (matches(excludedGlobs, ct, "excluded by glob")) {
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX.toString());
+      decision = TransmissionDecision.DO_NOT_INDEX;
     } else {
       log.info("unknown mime-type: " + ct);
+      return null;
     }
+    insertDecision(ct, decision);
+    return decision;
+  }
+
+  /** Only reads the content type. */
+  @Override
+  public boolean readsTransmissionDecision() {
+    return false;
   }
 
   /**
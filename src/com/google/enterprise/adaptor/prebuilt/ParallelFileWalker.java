@@ -0,0 +1,171 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the files below a directory with several threads, each listing one
+ * directory at a time, and hands them to the calling thread in chunks as they
+ * are found. Only a bounded number of found files wait to be handled, so the
+ * memory used does not depend on the number of files.
+ *
+ * <p>Files are handled in no particular order.
+ */
+class ParallelFileWalker {
+  /** Receives the files found, on the thread calling {@link #walk}. */
+  interface Handler {
+    void handle(List<File> files) throws IOException, InterruptedException;
+  }
+
+  /** Placed in the queue of found files once the walk ends. */
+  private static final File END = new File("");
+
+  private final int threads;
+  private final int chunkSize;
+
+  /**
+   * @param threads number of directories listed concurrently
+   * @param chunkSize maximum number of files passed to each {@link
+   *     Handler#handle} call
+   */
+  public ParallelFileWalker(int threads, int chunkSize) {
+    if (threads <= 0 || chunkSize <= 0) {
+      throw new IllegalArgumentException(
+          "threads and chunkSize must be positive");
+    }
+    this.threads = threads;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Passes each file below {@code root} accepted by {@code filter} to {@code
+   * handler}. Directories are not passed, and are descended into regardless
+   * of {@code filter}, which may be called concurrently.
+   *
+   * @throws IOException if a directory could not be listed, or thrown by
+   *     {@code handler}. The walk stops, but files already found may have
+   *     been handled
+   */
+  public void walk(File root, FileFilter filter, Handler handler)
+      throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("file-walker-%d").build());
+    Walk walk = new Walk(executor, filter);
+    try {
+      walk.start(root);
+      List<File> chunk = new ArrayList<File>(chunkSize);
+      for (File file; (file = walk.found.take()) != END;) {
+        chunk.add(file);
+        if (chunk.size() == chunkSize) {
+          handler.handle(chunk);
+          chunk = new ArrayList<File>(chunkSize);
+        }
+      }
+      if (walk.failure != null) {
+        throw walk.failure;
+      }
+      if (!chunk.isEmpty()) {
+        handler.handle(chunk);
+      }
+    } finally {
+      // Stops listing if the walk did not complete.
+      executor.shutdownNow();
+    }
+  }
+
+  /** State of one call to {@link #walk}. */
+  private class Walk {
+    private final ExecutorService executor;
+    private final FileFilter filter;
+    private final BlockingQueue<File> found
+        = new ArrayBlockingQueue<File>(2 * chunkSize);
+    /** Directories being listed or waiting to be. */
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile IOException failure;
+
+    Walk(ExecutorService executor, FileFilter filter) {
+      this.executor = executor;
+      this.filter = filter;
+    }
+
+    void start(File dir) {
+      pending.incrementAndGet();
+      executor.execute(new ListTask(dir));
+    }
+
+    /** Ends the walk with {@code ex}, unless it has already failed. */
+    synchronized void fail(IOException ex) throws InterruptedException {
+      if (failure == null) {
+        failure = ex;
+        found.put(END);
+      }
+    }
+
+    private class ListTask implements Runnable {
+      private final File dir;
+
+      ListTask(File dir) {
+        this.dir = dir;
+      }
+
+      @Override
+      public void run() {
+        try {
+          try {
+            if (failure == null) {
+              list();
+            }
+          } catch (RuntimeException ex) {
+            fail(new IOException("Exception while listing " + dir, ex));
+          }
+          if (pending.decrementAndGet() == 0 && failure == null) {
+            found.put(END);
+          }
+        } catch (InterruptedException ex) {
+          // The walk was stopped.
+        }
+      }
+
+      private void list() throws InterruptedException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+          fail(new IOException(
+              "Exception while getting directory listing for: " + dir));
+          return;
+        }
+        for (File child : children) {
+          if (child.isDirectory()) {
+            start(child);
+          } else if (filter.accept(child)) {
+            found.put(child);
+          }
+        }
+      }
+    }
+  }
+}
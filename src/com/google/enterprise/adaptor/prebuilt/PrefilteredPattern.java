@@ -0,0 +1,87 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import java.util.regex.Pattern;
+
+/**
+ * A {@link Pattern} that first checks values for a literal its matches must
+ * contain, which is much cheaper than running the regular expression on
+ * values that cannot match.
+ */
+class PrefilteredPattern {
+  private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+  private static final String QUANTIFIERS = "?*+{";
+
+  private final Pattern pattern;
+  /** Literal every match contains, or the empty string if unknown. */
+  private final String literal;
+
+  public PrefilteredPattern(Pattern pattern) {
+    if (pattern == null) {
+      throw new NullPointerException();
+    }
+    this.pattern = pattern;
+    this.literal = requiredLiteral(pattern);
+  }
+
+  /** Same as {@code pattern.matcher(value).find()}. */
+  public boolean find(String value) {
+    if (!value.contains(literal)) {
+      return false;
+    }
+    return pattern.matcher(value).find();
+  }
+
+  public Pattern getPattern() {
+    return pattern;
+  }
+
+  String getLiteral() {
+    return literal;
+  }
+
+  @Override
+  public String toString() {
+    return pattern.toString();
+  }
+
+  /**
+   * Returns the literal the regular expression starts with, which every match
+   * contains, or the empty string if it does not start with one.
+   */
+  static String requiredLiteral(Pattern pattern) {
+    // Flags may make literals match other strings.
+    if (pattern.flags() != 0) {
+      return "";
+    }
+    String regex = pattern.pattern();
+    // An alternative may not contain the literal.
+    if (regex.indexOf('|') != -1) {
+      return "";
+    }
+    int end = 0;
+    while (end < regex.length()
+        && METACHARACTERS.indexOf(regex.charAt(end)) == -1) {
+      end++;
+    }
+    // A quantifier applies to the last character, which may then be absent.
+    if (end > 0 && end < regex.length()
+        && QUANTIFIERS.indexOf(regex.charAt(end)) != -1) {
+      end--;
+    }
+    return regex.substring(0, end);
+  }
+}
@@ -0,0 +1,245 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-running processes that each handle one request at a time over their
+ * stdin and stdout, which avoids starting a process per request. Processes
+ * are started when first needed and restarted when they exit or fail a
+ * request. Lines written to stderr are logged.
+ *
+ * <p>Processes should exit when their stdin is closed, as happens when the
+ * pool is closed or the JVM exits.
+ *
+ * <p>This class is thread-safe.
+ */
+class ProcessPool {
+  private static final Logger log
+      = Logger.getLogger(ProcessPool.class.getName());
+  private static final Charset STDERR_CHARSET = Charset.forName("UTF-8");
+
+  /** Exchange of one request and its response with a process. */
+  interface Exchange<T> {
+    /**
+     * Writes a request to {@code stdin} and reads the complete response from
+     * {@code stdout}. Throwing leaves the streams in an unknown state, so the
+     * process is restarted.
+     */
+    T exchange(OutputStream stdin, InputStream stdout) throws IOException;
+  }
+
+  private final List<String> command;
+  private final File workingDirectory;
+  private final long timeoutMillis;
+  private final BlockingQueue<Worker> idle;
+  private final List<Worker> all = new ArrayList<Worker>();
+  private final ExecutorService executor;
+  private volatile boolean closed;
+
+  /**
+   * @param command command starting a process
+   * @param workingDirectory working directory of the processes, or {@code
+   *     null} for the current directory
+   * @param size number of processes
+   * @param timeoutMillis time allowed for each exchange, after which the
+   *     process is killed
+   */
+  public ProcessPool(List<String> command, File workingDirectory, int size,
+      long timeoutMillis) {
+    if (command == null) {
+      throw new NullPointerException();
+    }
+    if (command.isEmpty()) {
+      throw new IllegalArgumentException("command must not be empty");
+    }
+    if (size <= 0 || timeoutMillis <= 0) {
+      throw new IllegalArgumentException(
+          "size and timeoutMillis must be positive");
+    }
+    this.command = new ArrayList<String>(command);
+    this.workingDirectory = workingDirectory;
+    this.timeoutMillis = timeoutMillis;
+    this.idle = new LinkedBlockingQueue<Worker>();
+    for (int i = 0; i < size; i++) {
+      Worker worker = new Worker();
+      all.add(worker);
+      idle.add(worker);
+    }
+    this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("process-pool-%d").build());
+  }
+
+  /**
+   * Runs {@code exchange} with an idle process, waiting for one to become
+   * idle if necessary.
+   *
+   * @throws IOException if the process could not be started, or the exchange
+   *     failed or did not complete in time
+   */
+  public <T> T execute(final Exchange<T> exchange)
+      throws IOException, InterruptedException {
+    final Worker worker = idle.take();
+    try {
+      if (closed) {
+        throw new IOException("Process pool is closed");
+      }
+      worker.ensureRunning();
+      final OutputStream stdin = worker.stdin;
+      final InputStream stdout = worker.stdout;
+      Future<T> future = executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws IOException {
+          return exchange.exchange(stdin, stdout);
+        }
+      });
+      try {
+        return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException ex) {
+        worker.stop();
+        future.cancel(true);
+        throw new IOException("Process did not respond within "
+            + timeoutMillis + " ms: " + command);
+      } catch (InterruptedException ex) {
+        worker.stop();
+        future.cancel(true);
+        throw ex;
+      } catch (ExecutionException ex) {
+        worker.stop();
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
+      }
+    } finally {
+      idle.add(worker);
+    }
+  }
+
+  /** Stops every process. Requests not yet started fail. */
+  public void close() {
+    closed = true;
+    for (Worker worker : all) {
+      worker.stop();
+    }
+    executor.shutdownNow();
+  }
+
+  private class Worker {
+    private Process process;
+    private OutputStream stdin;
+    private InputStream stdout;
+
+    /** Starts the process if it is not running. */
+    synchronized void ensureRunning() throws IOException {
+      if (process != null) {
+        try {
+          int exitCode = process.exitValue();
+          log.log(Level.WARNING, "Process exited with code {0}, restarting: "
+              + "{1}", new Object[] {exitCode, command});
+          stop();
+        } catch (IllegalThreadStateException ex) {
+          // Still running.
+          return;
+        }
+      }
+      log.log(Level.FINE, "Starting process: {0}", command);
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.directory(workingDirectory);
+      process = builder.start();
+      stdin = new BufferedOutputStream(process.getOutputStream());
+      stdout = new BufferedInputStream(process.getInputStream());
+      Thread drainer
+          = new Thread(new StderrLogger(process.getErrorStream()));
+      drainer.setName("process-pool-stderr");
+      drainer.setDaemon(true);
+      drainer.start();
+    }
+
+    /** Kills the process, if any, so the next request restarts it. */
+    synchronized void stop() {
+      if (process == null) {
+        return;
+      }
+      try {
+        process.getOutputStream().close();
+      } catch (IOException ex) {
+        // Killed anyway.
+      }
+      process.destroy();
+      process = null;
+      stdin = null;
+      stdout = null;
+    }
+  }
+
+  /** Logs each line a process writes to stderr. */
+  private class StderrLogger implements Runnable {
+    private final InputStream stderr;
+
+    StderrLogger(InputStream stderr) {
+      this.stderr = stderr;
+    }
+
+    @Override
+    public void run() {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(stderr, STDERR_CHARSET));
+      try {
+        for (String line; (line = reader.readLine()) != null;) {
+          log.log(Level.INFO, "Stderr of {0}: {1}",
+              new Object[] {command.get(0), line});
+        }
+      } catch (IOException ex) {
+        // The process was stopped.
+      } finally {
+        try {
+          reader.close();
+        } catch (IOException ex) {
+          // Ignore.
+        }
+      }
+    }
+  }
+}
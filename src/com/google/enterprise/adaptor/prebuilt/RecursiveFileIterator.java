@@ -16,10 +16,9 @@ package com.google.enterprise.adaptor.prebuilt;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -32,7 +31,12 @@ public class RecursiveFileIterator implements Iterator<File>, Iterable<File> {
    * directory is at the front of the list, then we descend into it, remove it
    * from the list, and add its children to the front of the list.
    */
-  private List<File> traversalStateStack = new LinkedList<File>();
+  private Deque<File> traversalStateStack = new ArrayDeque<File>();
+  /**
+   * Whether the file at the front of the list is known not to be a
+   * directory, so that each file is only checked once.
+   */
+  private boolean frontIsFile;
 
   /**
    * @param rootFile directory to recursively list contents
@@ -49,20 +53,25 @@ public class RecursiveFileIterator implements Iterator<File>, Iterable<File> {
   }
 
   /**
-   * Make {@code traversalStateStack.get(0)} be the file that would be returned
-   * by {@link #next}, or have traversalStateStack be empty. If things are
-   * already in the right place, then no action is performed.
+   * Make {@code traversalStateStack.getFirst()} be the file that would be
+   * returned by {@link #next}, or have traversalStateStack be empty. If things
+   * are already in the right place, then no action is performed.
    */
   private void setPositionToNextFile() throws IOException {
-    while (!traversalStateStack.isEmpty()
-           && traversalStateStack.get(0).isDirectory()) {
-      File dir = traversalStateStack.remove(0);
+    while (!frontIsFile && !traversalStateStack.isEmpty()) {
+      if (!traversalStateStack.getFirst().isDirectory()) {
+        frontIsFile = true;
+        return;
+      }
+      File dir = traversalStateStack.removeFirst();
       File[] files = dir.listFiles();
       if (files == null) {
         throw new IOException("Exception while getting directory listing for: "
                               + dir.getName());
       }
-      traversalStateStack.addAll(0, Arrays.asList(files));
+      for (int i = files.length - 1; i >= 0; i--) {
+        traversalStateStack.addFirst(files[i]);
+      }
     }
   }
 
@@ -94,7 +103,8 @@ public class RecursiveFileIterator implements Iterator<File>, Iterable<File> {
     if (!hasNext()) {
       throw new NoSuchElementException();
     }
-    return traversalStateStack.remove(0);
+    frontIsFile = false;
+    return traversalStateStack.removeFirst();
   }
 
   /**
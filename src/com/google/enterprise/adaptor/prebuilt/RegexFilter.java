@@ -79,7 +79,7 @@ import java.util.regex.Pattern;
  *
  * @since 4.1.4
  */
-public class RegexFilter implements MetadataTransform {
+public class RegexFilter implements MetadataTransform.TransmissionFilter {
   /**
    * Make decision based upon whether the regular expression matches or not.
    */
@@ -139,6 +139,7 @@ public class RegexFilter implements MetadataTransform {
    * that any value is considered a match).
    */
   private final Pattern pattern;
+  private final PrefilteredPattern prefiltered;
 
   /**
    * If {@code found}, make a transmission decision on a match;
@@ -156,6 +157,7 @@ public class RegexFilter implements MetadataTransform {
     this.key = key;
     this.keyset = keyset;
     this.pattern = pattern;
+    this.prefiltered = new PrefilteredPattern(pattern);
     this.when = when;
     this.decision = decision;
   }
@@ -176,13 +178,15 @@ public class RegexFilter implements MetadataTransform {
       }
     }
     for (String value : values) {
-      if (pattern.matcher(value).find()) {
+      if (prefiltered.find(value)) {
         found = true;
         break;
       }
     }
-    log.log(Level.FINE, "{0} find matching pattern for key {1} in metadata.",
-        new Object[] { (found ? "Did" : "Did not"), key });
+    if (log.isLoggable(Level.FINE)) {
+      log.log(Level.FINE, "{0} find matching pattern for key {1} in metadata.",
+          new Object[] { (found ? "Did" : "Did not"), key });
+    }
     return found;
   }
 
@@ -198,12 +202,14 @@ public class RegexFilter implements MetadataTransform {
       if (value == null) {
         value = "";
       }
-      found = pattern.matcher(value).find();
+      found = prefiltered.find(value);
     } else {
       log.log(Level.FINEST, "No key {0} in params.", key);
     }
-    log.log(Level.FINE, "{0} find matching pattern for key {1} in params.",
-        new Object[] { (found ? "Did" : "Did not"), key });
+    if (log.isLoggable(Level.FINE)) {
+      log.log(Level.FINE, "{0} find matching pattern for key {1} in params.",
+          new Object[] { (found ? "Did" : "Did not"), key });
+    }
     return found;
   }
 
@@ -215,17 +221,7 @@ public class RegexFilter implements MetadataTransform {
    */
   @Override
   public void transform(Metadata metadata, Map<String, String> params) {
-    boolean found;
-    switch (keyset) {
-      case METADATA:
-        found = foundInMetadata(metadata);
-        break;
-      case PARAMS:
-        found = foundInParams(params);
-        break;
-      default:
-        throw new AssertionError("Invalid keyset: " + keyset);
-    }
+    boolean found = found(metadata, params);
 
     String docId = params.get(MetadataTransform.KEY_DOC_ID);
     if (null == docId || docId.isEmpty()) {
@@ -259,6 +255,30 @@ public class RegexFilter implements MetadataTransform {
     }
   }
 
+  @Override
+  public TransmissionDecision decide(Metadata metadata,
+      Map<String, String> params) {
+    return found(metadata, params) == (when == When.FOUND) ? decision : null;
+  }
+
+  @Override
+  public boolean readsTransmissionDecision() {
+    return keyset == Keyset.PARAMS
+        && (MetadataTransform.KEY_TRANSMISSION_DECISION.equals(key)
+            || MetadataTransform.KEY_FORCED_TRANSMISSION_DECISION.equals(key));
+  }
+
+  private boolean found(Metadata metadata, Map<String, String> params) {
+    switch (keyset) {
+      case METADATA:
+        return foundInMetadata(metadata);
+      case PARAMS:
+        return foundInParams(params);
+      default:
+        throw new AssertionError("Invalid keyset: " + keyset);
+    }
+  }
+
   @Override
   public String toString() {
     return new StringBuilder("RegexFilter(")
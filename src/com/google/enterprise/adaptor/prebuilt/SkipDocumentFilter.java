@@ -73,7 +73,8 @@ import java.util.regex.Pattern;
    metadata.transform.pipeline.skipDocumentFilter.corpora=metadata
    </code></pre>
  */
-public class SkipDocumentFilter implements MetadataTransform {
+public class SkipDocumentFilter
+    implements MetadataTransform.TransmissionFilter {
   /**
    * Which collections of keys/values to search.  Metadata, params, or both.
    */
@@ -114,6 +115,7 @@ public class SkipDocumentFilter implements MetadataTransform {
    * that any value is considered a match).
    */
   private Pattern pattern;
+  private PrefilteredPattern prefiltered;
 
   /**
    * If {@code true}, skip the document on a match;
@@ -132,6 +134,7 @@ public class SkipDocumentFilter implements MetadataTransform {
       boolean skipOnMatch, Corpora corpora) {
     this.propertyName = propertyName;
     this.pattern = pattern;
+    this.prefiltered = new PrefilteredPattern(pattern);
     this.skipOnMatch = skipOnMatch;
     this.corpora = corpora;
   }
@@ -153,13 +156,15 @@ public class SkipDocumentFilter implements MetadataTransform {
       }
     }
     for (String value : values) {
-      if (pattern.matcher(value).find()) {
+      if (prefiltered.find(value)) {
         found = true;
         break;
       }
     }
-    log.log(Level.FINE, "{0} find matching pattern for key {1} in metadata.",
-        new Object[] { (found ? "Did" : "Did not"), propertyName });
+    if (log.isLoggable(Level.FINE)) {
+      log.log(Level.FINE, "{0} find matching pattern for key {1} in metadata.",
+          new Object[] { (found ? "Did" : "Did not"), propertyName });
+    }
     return found;
   }
 
@@ -175,12 +180,14 @@ public class SkipDocumentFilter implements MetadataTransform {
       if (value == null) {
         value = "";
       }
-      found = pattern.matcher(value).find();
+      found = prefiltered.find(value);
     } else {
       log.log(Level.FINEST, "No key {0} in params.", propertyName);
     }
-    log.log(Level.FINE, "{0} find matching pattern for key {1} in params.",
-        new Object[] { (found ? "Did" : "Did not"), propertyName });
+    if (log.isLoggable(Level.FINE)) {
+      log.log(Level.FINE, "{0} find matching pattern for key {1} in params.",
+          new Object[] { (found ? "Did" : "Did not"), propertyName });
+    }
     return found;
   }
 
@@ -194,18 +201,7 @@ public class SkipDocumentFilter implements MetadataTransform {
    */
   @Override
   public void transform(Metadata metadata, Map<String, String> params) {
-    boolean found;
-    switch (corpora) {
-      case METADATA:
-        found = foundInMetadata(metadata);
-        break;
-      case PARAMS:
-        found = foundInParams(params);
-        break;
-      case METADATA_OR_PARAMS:
-      default:
-        found = foundInMetadata(metadata) || foundInParams(params);
-    }
+    boolean found = found(metadata, params);
 
     String docId = params.get(MetadataTransform.KEY_DOC_ID);
     if (null == docId || docId.isEmpty()) {
@@ -239,6 +235,33 @@ public class SkipDocumentFilter implements MetadataTransform {
     }
   }
 
+  @Override
+  public TransmissionDecision decide(Metadata metadata,
+      Map<String, String> params) {
+    return found(metadata, params) == skipOnMatch
+        ? TransmissionDecision.DO_NOT_INDEX : null;
+  }
+
+  @Override
+  public boolean readsTransmissionDecision() {
+    return corpora != Corpora.METADATA
+        && (MetadataTransform.KEY_TRANSMISSION_DECISION.equals(propertyName)
+            || MetadataTransform.KEY_FORCED_TRANSMISSION_DECISION.equals(
+                propertyName));
+  }
+
+  private boolean found(Metadata metadata, Map<String, String> params) {
+    switch (corpora) {
+      case METADATA:
+        return foundInMetadata(metadata);
+      case PARAMS:
+        return foundInParams(params);
+      case METADATA_OR_PARAMS:
+      default:
+        return foundInMetadata(metadata) || foundInParams(params);
+    }
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
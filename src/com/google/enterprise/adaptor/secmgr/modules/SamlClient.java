@@ -14,6 +14,7 @@
 
 package com.google.enterprise.adaptor.secmgr.modules;
 
+import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.getParserPool;
 import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.initializeLocalEntity;
 import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.initializePeerEntity;
 import static com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil.makeAction;
@@ -79,6 +80,7 @@ import java.net.URL;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -350,7 +352,7 @@ public class SamlClient {
     // Decode the response.
     context.setInboundMessageTransport(new HttpExchangeToInTransport(exchange));
     try {
-      runDecoder(new HTTPSOAP11Decoder(), context);
+      runDecoder(new HTTPSOAP11Decoder(getParserPool()), context);
     } catch (IOException e) {
       LOGGER.warning("IOException: " + e.getMessage());
       return null;
@@ -392,7 +394,7 @@ public class SamlClient {
       // Decode the response
       HttpExchangeToInTransport in = new HttpExchangeToInTransport(exchange);
       context.setInboundMessageTransport(in);
-      runDecoder(new HTTPSOAP11Decoder(), context);
+      runDecoder(new HTTPSOAP11Decoder(getParserPool()), context);
 
     } finally {
       exchange.close();
@@ -455,7 +457,7 @@ public class SamlClient {
       // Decode the responses
       HttpExchangeToInTransport in = new HttpExchangeToInTransport(exchange);
       context.setInboundMessageTransport(in);
-      HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder();
+      HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder(getParserPool());
 
       AuthzResult.Builder builder = AuthzResult.builder(urlStrings);
       while (true) {
@@ -510,7 +512,9 @@ public class SamlClient {
             makeSubject(username),
             urlString,
             makeAction(Action.HTTP_GET_ACTION, Action.GHPP_NS_URI));
-    LOGGER.info(SamlLogUtil.xmlMessage("AuthzDecisionQuery", query));
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info(SamlLogUtil.xmlMessage("AuthzDecisionQuery", query));
+    }
     context.setOutboundSAMLMessage(query);
     context.setOutboundMessageTransport(out);
     runEncoder(encoder, context);
@@ -518,7 +522,9 @@ public class SamlClient {
 
   private DecodedAuthzResponse decodeAuthzResponse(Response response, String username)
       throws IOException {
-    LOGGER.info(SamlLogUtil.xmlMessage("response", response));
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info(SamlLogUtil.xmlMessage("response", response));
+    }
 
     String statusValue = response.getStatus().getStatusCode().getValue();
     if (!StatusCode.SUCCESS_URI.equals(statusValue)) {
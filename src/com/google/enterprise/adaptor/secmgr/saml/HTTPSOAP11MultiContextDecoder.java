@@ -14,45 +14,81 @@
 
 package com.google.enterprise.adaptor.secmgr.saml;
 
+import org.opensaml.Configuration;
 import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SignableSAMLObject;
 import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.binding.decoding.BaseSAML2MessageDecoder;
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
-import org.opensaml.ws.soap.soap11.Envelope;
-import org.opensaml.ws.soap.soap11.Header;
 import org.opensaml.ws.transport.http.HTTPInTransport;
-import org.opensaml.xml.AttributeExtensibleXMLObject;
 import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.ParserPool;
-import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.parse.XMLParserException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * SAML 2.0 SOAP 1.1 over HTTP MultiContext binding decoder.
  * Based on OpenSaml's HTTPSOAP11Decoder
+ *
+ * <p>The SOAP envelope is read incrementally: each call to {@link #decode}
+ * parses and unmarshalls only the next message in the SOAP body, so the
+ * envelope as a whole is never materialized. The DOM of unsigned messages is
+ * released once they are unmarshalled.
  */
 public class HTTPSOAP11MultiContextDecoder extends BaseSAML2MessageDecoder {
 
   /** Class logger. */
   private static final Logger log = Logger.getLogger(HTTPSOAP11MultiContextDecoder.class.getName());
 
+  private static final QName SOAP_ENVELOPE = new QName(SAMLConstants.SOAP11ENV_NS, "Envelope");
+  private static final QName SOAP_HEADER = new QName(SAMLConstants.SOAP11ENV_NS, "Header");
+  private static final QName SOAP_BODY = new QName(SAMLConstants.SOAP11ENV_NS, "Body");
+
+  // XMLInputFactories are relatively expensive to create, and StAX does not guarantee that they
+  // can be used from multiple threads.
+  private static final ThreadLocal<XMLInputFactory> inputFactory
+      = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+          XMLInputFactory factory = XMLInputFactory.newInstance();
+          factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+          factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+          factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+          return factory;
+        }
+      };
+
   /** QNames of understood SOAP headers. */
   private final List<QName> understoodHeaders = new ArrayList<QName>();
 
   /** QName of SOAP mustUnderstand header attribute. */
   private final QName soapMustUnderstand = new QName(SAMLConstants.SOAP11ENV_NS, "mustUnderstand");
 
-  private Envelope soapMessage;
-  private List<XMLObject> soapBodyChildren;
-  private int thisChild;
+  /** Reader positioned within the SOAP body, or {@code null} before starting. */
+  private XMLStreamReader reader;
+  /** Namespaces declared by the envelope and body, inherited by messages. */
+  private final Map<String, String> inheritedNamespaces = new HashMap<String, String>();
+  private int decodedChildren;
 
   /** Constructor. */
   public HTTPSOAP11MultiContextDecoder() {
@@ -109,25 +145,26 @@ public class HTTPSOAP11MultiContextDecoder extends BaseSAML2MessageDecoder {
     SAMLMessageContext<SAMLObject, SAMLObject, SAMLObject> samlMsgCtx =
         (SAMLMessageContext<SAMLObject, SAMLObject, SAMLObject>) messageContext;
 
-    samlMsgCtx.setInboundMessage(soapMessage);
-    if (soapMessage == null) {
+    if (reader == null) {
       start(samlMsgCtx);
     }
 
-    if (soapBodyChildren.size() < 1) {
-      throw new MessageDecodingException(
-          "Unexpected number of children in the SOAP body, " + soapBodyChildren.size()
-          + ". Unable to extract SAML message");
-    }
-
-    if (thisChild >= soapBodyChildren.size()) {
-      // indicates to the caller that there are no more messages to decode
-      // this should be caught and recovered from
-      throw new IndexOutOfBoundsException();
+    XMLObject incomingMessage;
+    try {
+      if (nextBodyChild() != XMLStreamConstants.START_ELEMENT) {
+        if (decodedChildren == 0) {
+          throw new MessageDecodingException(
+              "No children in the SOAP body. Unable to extract SAML message");
+        }
+        // indicates to the caller that there are no more messages to decode
+        // this should be caught and recovered from
+        throw new IndexOutOfBoundsException();
+      }
+      incomingMessage = unmarshallElement(readElement());
+    } catch (XMLStreamException e) {
+      throw new MessageDecodingException("Unable to parse SOAP message", e);
     }
-
-    XMLObject incomingMessage = soapBodyChildren.get(thisChild);
-    thisChild++;
+    decodedChildren++;
 
     if (!(incomingMessage instanceof SAMLObject)) {
       throw new MessageDecodingException(
@@ -135,44 +172,38 @@ public class HTTPSOAP11MultiContextDecoder extends BaseSAML2MessageDecoder {
               + incomingMessage.getElementQName());
     }
     SAMLObject samlMessage = (SAMLObject) incomingMessage;
+    if (!(samlMessage instanceof SignableSAMLObject)
+        || !((SignableSAMLObject) samlMessage).isSigned()) {
+      // Only signature verification needs the DOM.
+      samlMessage.releaseDOM();
+      samlMessage.releaseChildrenDOM(true);
+    }
 
     log.log(Level.FINE,
-        "Decoded SOAP messaged which included SAML message of type {}",
+        "Decoded SOAP messaged which included SAML message of type {0}",
         samlMessage.getElementQName());
+    samlMsgCtx.setInboundMessage(samlMessage);
     samlMsgCtx.setInboundSAMLMessage(samlMessage);
 
     populateMessageContext(samlMsgCtx);
   }
 
   /**
-   * Checks that all SOAP headers that require understanding are in the understood header
+   * Checks that a SOAP header that requires understanding is in the understood header
    * list.
    *
-   * @param headers SOAP headers to check
-   *
-   * @throws MessageDecodingException thrown if a SOAP header requires
+   * @throws MessageDecodingException thrown if the SOAP header requires
    *         understanding but is not understood by the decoder
    */
-  protected void checkUnderstoodSOAPHeaders(List<XMLObject> headers)
-      throws MessageDecodingException {
-    if (headers == null || headers.isEmpty()) {
-      return;
-    }
-
-    AttributeExtensibleXMLObject attribExtensObject;
-    for (XMLObject header : headers) {
-      if (header instanceof AttributeExtensibleXMLObject) {
-        attribExtensObject = (AttributeExtensibleXMLObject) header;
-        if (DatatypeHelper.safeEquals("1", attribExtensObject.getUnknownAttributes().get(
-            soapMustUnderstand))) {
-          if (!understoodHeaders.contains(header.getElementQName())) {
-            throw new MessageDecodingException(
-                "SOAP decoder encountered a  header, "
-                + header.getElementQName()
-                + ", that requires undestanding, "
-                + "however this decoder does not understand that header");
-          }
-        }
+  private void checkUnderstoodSOAPHeader() throws MessageDecodingException {
+    if ("1".equals(reader.getAttributeValue(soapMustUnderstand.getNamespaceURI(),
+        soapMustUnderstand.getLocalPart()))) {
+      if (!understoodHeaders.contains(reader.getName())) {
+        throw new MessageDecodingException(
+            "SOAP decoder encountered a  header, "
+            + reader.getName()
+            + ", that requires undestanding, "
+            + "however this decoder does not understand that header");
       }
     }
   }
@@ -190,14 +221,179 @@ public class HTTPSOAP11MultiContextDecoder extends BaseSAML2MessageDecoder {
           "This message deocoder only supports the HTTP POST method");
     }
 
-    log.fine("Unmarshalling SOAP message");
-    soapMessage = Envelope.class.cast(unmarshallMessage(inTransport.getIncomingStream()));
+    log.fine("Reading SOAP message");
+    try {
+      reader = inputFactory.get().createXMLStreamReader(inTransport.getIncomingStream());
+      if (nextElement() != XMLStreamConstants.START_ELEMENT
+          || !SOAP_ENVELOPE.equals(reader.getName())) {
+        throw new MessageDecodingException("Expected a SOAP envelope");
+      }
+      addInheritedNamespaces();
+      if (nextElement() == XMLStreamConstants.START_ELEMENT
+          && SOAP_HEADER.equals(reader.getName())) {
+        while (nextElement() == XMLStreamConstants.START_ELEMENT) {
+          checkUnderstoodSOAPHeader();
+          skipElement();
+        }
+        nextElement();
+      }
+      if (reader.getEventType() != XMLStreamConstants.START_ELEMENT
+          || !SOAP_BODY.equals(reader.getName())) {
+        throw new MessageDecodingException("Expected a SOAP body");
+      }
+      addInheritedNamespaces();
+    } catch (XMLStreamException e) {
+      throw new MessageDecodingException("Unable to parse SOAP message", e);
+    }
+    decodedChildren = 0;
+  }
+
+  /**
+   * Advances to the next start or end element, returning its event type.
+   *
+   * @throws MessageDecodingException if the message contains a DTD
+   */
+  private int nextElement() throws XMLStreamException, MessageDecodingException {
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT
+          || event == XMLStreamConstants.END_ELEMENT) {
+        return event;
+      } else if (event == XMLStreamConstants.DTD) {
+        throw new MessageDecodingException("DTDs are not permitted in SOAP messages");
+      }
+    }
+    return XMLStreamConstants.END_DOCUMENT;
+  }
 
-    Header messageHeader = soapMessage.getHeader();
-    if (messageHeader != null) {
-      checkUnderstoodSOAPHeaders(soapMessage.getHeader().getUnknownXMLObjects());
+  /** Advances to the next child of the SOAP body, or the end of the body. */
+  private int nextBodyChild() throws XMLStreamException, MessageDecodingException {
+    if (reader.getEventType() == XMLStreamConstants.END_ELEMENT
+        && SOAP_BODY.equals(reader.getName())) {
+      return XMLStreamConstants.END_ELEMENT;
     }
-    soapBodyChildren = soapMessage.getBody().getUnknownXMLObjects();
-    thisChild = 0;
+    return nextElement();
+  }
+
+  /** Skips past the end of the element the reader is positioned at. */
+  private void skipElement() throws XMLStreamException, MessageDecodingException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = nextElement();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else {
+        throw new XMLStreamException("Unexpected end of document");
+      }
+    }
+  }
+
+  private void addInheritedNamespaces() {
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String prefix = reader.getNamespacePrefix(i);
+      inheritedNamespaces.put(prefix == null ? "" : prefix, reader.getNamespaceURI(i));
+    }
+  }
+
+  /**
+   * Reads the element the reader is positioned at into its own DOM document. Namespaces
+   * declared by the envelope and body are declared on the element, since they may be
+   * referenced by attribute values such as {@code xsi:type}.
+   */
+  private Element readElement() throws XMLStreamException, MessageDecodingException {
+    Document document;
+    try {
+      document = getParserPool().newDocument();
+    } catch (XMLParserException e) {
+      throw new MessageDecodingException("Unable to create DOM document", e);
+    }
+    Element root = null;
+    Node current = document;
+    while (true) {
+      switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          Element element = createElement(document);
+          if (root == null) {
+            root = element;
+            for (Map.Entry<String, String> ns : inheritedNamespaces.entrySet()) {
+              String attr = ns.getKey().isEmpty()
+                  ? XMLConstants.XMLNS_ATTRIBUTE
+                  : XMLConstants.XMLNS_ATTRIBUTE + ":" + ns.getKey();
+              if (!root.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                  ns.getKey().isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : ns.getKey())) {
+                root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attr, ns.getValue());
+              }
+            }
+          }
+          current.appendChild(element);
+          current = element;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          current = current.getParentNode();
+          if (current == document) {
+            return root;
+          }
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          current.appendChild(document.createTextNode(reader.getText()));
+          break;
+        case XMLStreamConstants.CDATA:
+          current.appendChild(document.createCDATASection(reader.getText()));
+          break;
+        case XMLStreamConstants.DTD:
+          throw new MessageDecodingException("DTDs are not permitted in SOAP messages");
+        default:
+          // Comments and processing instructions are dropped.
+          break;
+      }
+      if (!reader.hasNext()) {
+        throw new XMLStreamException("Unexpected end of document");
+      }
+      reader.next();
+    }
+  }
+
+  /** Creates an element for the start element the reader is positioned at. */
+  private Element createElement(Document document) {
+    Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()),
+        qualifiedName(reader.getPrefix(), reader.getLocalName()));
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String prefix = reader.getNamespacePrefix(i);
+      element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+          qualifiedName(prefix == null || prefix.isEmpty() ? null : XMLConstants.XMLNS_ATTRIBUTE,
+              prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : prefix),
+          reader.getNamespaceURI(i));
+    }
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)),
+          qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+          reader.getAttributeValue(i));
+    }
+    return element;
+  }
+
+  private XMLObject unmarshallElement(Element element) throws MessageDecodingException {
+    Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(element);
+    if (unmarshaller == null) {
+      throw new MessageDecodingException(
+          "Unable to unmarshall message, no unmarshaller registered for "
+          + element.getNamespaceURI() + ":" + element.getLocalName());
+    }
+    try {
+      return unmarshaller.unmarshall(element);
+    } catch (UnmarshallingException e) {
+      throw new MessageDecodingException("Unable to unmarshall SOAP body content", e);
+    }
+  }
+
+  private static String qualifiedName(String prefix, String localName) {
+    return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+
+  private static String emptyToNull(String s) {
+    return s == null || s.isEmpty() ? null : s;
   }
 }
@@ -14,22 +14,20 @@
 
 package com.google.enterprise.adaptor.secmgr.saml;
 
-import org.opensaml.Configuration;
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.binding.encoding.BaseSAML2MessageEncoder;
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
-import org.opensaml.ws.soap.common.SOAPObjectBuilder;
-import org.opensaml.ws.soap.soap11.Body;
-import org.opensaml.ws.soap.soap11.Envelope;
 import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.ws.transport.http.HTTPTransportUtils;
-import org.opensaml.xml.XMLObjectBuilderFactory;
-import org.opensaml.xml.util.XMLHelper;
 import org.w3c.dom.Element;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSOutput;
+import org.w3c.dom.ls.LSSerializer;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
@@ -39,12 +37,20 @@ import java.util.logging.Logger;
 /**
  * SAML 2.0 SOAP 1.1 over HTTP MultiContext binding encoder.
  * Based on OpenSaml's HTTPSOAP11Encoder
+ *
+ * <p>Each message is written to the outbound transport as soon as it is
+ * encoded, and its DOM is then released, so a large batch of messages is
+ * never held in memory at once. {@link #finish} completes the SOAP envelope.
  */
 public class HTTPSOAP11MultiContextEncoder extends BaseSAML2MessageEncoder {
 
-  private Envelope envelope;
-  private Body body;
+  private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<soap11:Envelope xmlns:soap11=\"" + SAMLConstants.SOAP11ENV_NS + "\">"
+      + "<soap11:Body>";
+  private static final String ENVELOPE_END = "</soap11:Body></soap11:Envelope>";
+
   private HTTPOutTransport outTransport;
+  private Writer out;
 
   /** Class logger. */
   private static final Logger log = Logger.getLogger(HTTPSOAP11MultiContextEncoder.class.getName());
@@ -90,57 +96,69 @@ public class HTTPSOAP11MultiContextEncoder extends BaseSAML2MessageEncoder {
     }
     outTransport = (HTTPOutTransport) messageContext.getOutboundMessageTransport();
 
-    if (envelope == null) {
-      buildSOAPMessage();
-    }
-
     SAMLObject samlMessage = samlMsgCtx.getOutboundSAMLMessage();
     if (samlMessage == null) {
       throw new MessageEncodingException("No outbound SAML message contained in message context");
     }
 
     signMessage(samlMsgCtx);
-    samlMsgCtx.setOutboundMessage(envelope);
+    samlMsgCtx.setOutboundMessage(samlMessage);
 
-    log.fine("Adding SAML message to the SOAP message's body");
-
-    body.getUnknownXMLObjects().add(samlMessage);
+    log.fine("Writing SAML message to the SOAP message's body");
+    Element messageElem = marshallMessage(samlMessage);
+    try {
+      if (out == null) {
+        startSOAPMessage();
+      }
+      writeElement(messageElem);
+    } catch (IOException e) {
+      throw new MessageEncodingException("Unable to write message content to outbound stream", e);
+    }
+    // The message has been written, so its DOM is no longer needed.
+    samlMessage.releaseDOM();
+    samlMessage.releaseChildrenDOM(true);
   }
 
   public void finish() throws MessageEncodingException {
-    Element envelopeElem = marshallMessage(envelope);
+    if (outTransport == null) {
+      throw new MessageEncodingException("No messages have been encoded");
+    }
     try {
-      HTTPTransportUtils.addNoCacheHeaders(outTransport);
-      HTTPTransportUtils.setUTF8Encoding(outTransport);
-      HTTPTransportUtils.setContentType(outTransport, "text/xml");
-      outTransport.setHeader("SOAPAction", "http://www.oasis-open.org/committees/security");
-      Writer out = new OutputStreamWriter(outTransport.getOutgoingStream(), "UTF-8");
-      XMLHelper.writeNode(envelopeElem, out);
+      if (out == null) {
+        startSOAPMessage();
+      }
+      out.write(ENVELOPE_END);
       out.flush();
-    } catch (UnsupportedEncodingException e) {
-      throw new MessageEncodingException("JVM does not support required UTF-8 encoding");
     } catch (IOException e) {
       throw new MessageEncodingException("Unable to write message content to outbound stream", e);
     }
   }
 
   /**
-   * Builds the SOAP message to be encoded.
+   * Sets the response headers and writes the start of the SOAP message.
    */
-  protected void buildSOAPMessage() {
-    log.fine("Building SOAP message");
-    XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
-
-    @SuppressWarnings("unchecked")
-    SOAPObjectBuilder<Envelope> envBuilder =
-        (SOAPObjectBuilder<Envelope>) builderFactory.getBuilder(Envelope.DEFAULT_ELEMENT_NAME);
-    envelope = envBuilder.buildObject();
-
-    @SuppressWarnings("unchecked")
-    SOAPObjectBuilder<Body> bodyBuilder =
-        (SOAPObjectBuilder<Body>) builderFactory.getBuilder(Body.DEFAULT_ELEMENT_NAME);
-    body = bodyBuilder.buildObject();
+  protected void startSOAPMessage() throws MessageEncodingException, IOException {
+    log.fine("Starting SOAP message");
+    HTTPTransportUtils.addNoCacheHeaders(outTransport);
+    HTTPTransportUtils.setUTF8Encoding(outTransport);
+    HTTPTransportUtils.setContentType(outTransport, "text/xml");
+    outTransport.setHeader("SOAPAction", "http://www.oasis-open.org/committees/security");
+    try {
+      out = new BufferedWriter(new OutputStreamWriter(outTransport.getOutgoingStream(), "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new MessageEncodingException("JVM does not support required UTF-8 encoding");
+    }
+    out.write(ENVELOPE_START);
+  }
 
-    envelope.setBody(body);
+  /** Writes {@code element} without an XML declaration. */
+  private void writeElement(Element element) throws IOException {
+    DOMImplementationLS domImplLS = (DOMImplementationLS)
+        element.getOwnerDocument().getImplementation().getFeature("LS", "3.0");
+    LSSerializer serializer = domImplLS.createLSSerializer();
+    serializer.getDomConfig().setParameter("xml-declaration", Boolean.FALSE);
+    LSOutput output = domImplLS.createLSOutput();
+    output.setCharacterStream(out);
+    serializer.write(element, output);
   }
 }
@@ -87,6 +87,7 @@ import org.opensaml.xml.XMLObjectBuilderFactory;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.ParserPool;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.SecurityHelper;
@@ -871,6 +872,27 @@ public final class OpenSamlUtil {
    * Context and codecs
    */
 
+  /**
+   * Parser pool shared by all decoders. OpenSAML's decoders otherwise create a pool, and with
+   * it a new parser factory and parser, for every message they decode.
+   */
+  private static final BasicParserPool parserPool = new BasicParserPool();
+
+  static {
+    // Enough parsers are kept for a burst of concurrent logins.
+    parserPool.setMaxPoolSize(50);
+  }
+
+  /**
+   * Get the parser pool to be used for decoding messages and reading metadata.  The pool is
+   * thread-safe and reuses parsers across messages.
+   *
+   * @return The shared parser pool.
+   */
+  public static ParserPool getParserPool() {
+    return parserPool;
+  }
+
   /**
    * Static factory for OpenSAML message-context objects.
    *
@@ -955,7 +977,7 @@ public final class OpenSamlUtil {
   public static ObservableMetadataProvider getMetadataFromFile(File file)
       throws MetadataProviderException {
     FilesystemMetadataProvider provider = new FilesystemMetadataProvider(file);
-    provider.setParserPool(new BasicParserPool());
+    provider.setParserPool(parserPool);
     // Causes null-pointer errors in OpenSAML code:
     //provider.setRequireValidMetadata(true);
     return provider;
@@ -1094,7 +1116,7 @@ public final class OpenSamlUtil {
    */
   public static SAMLArtifactMap makeArtifactMap(int artifactLifetime) {
     return new BasicSAMLArtifactMap(
-        new BasicParserPool(),
+        parserPool,
         new MapBasedStorageService<String, SAMLArtifactMapEntry>(),
         artifactLifetime);
   }
@@ -18,6 +18,7 @@ import com.google.enterprise.adaptor.AdaptorContext;
 import com.google.enterprise.adaptor.AsyncDocIdPusher;
 import com.google.enterprise.adaptor.AuthnAuthority;
 import com.google.enterprise.adaptor.AuthzAuthority;
+import com.google.enterprise.adaptor.CachingBatchRetriever;
 import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocIdEncoder;
 import com.google.enterprise.adaptor.DocIdPusher;
@@ -143,4 +144,10 @@ public class UnsupportedAdaptorContext implements AdaptorContext {
     throw new UnsupportedOperationException(
         "UnsupportedAdaptorContext was called");
   }
+
+  @Override
+  public void addAclCache(CachingBatchRetriever cache) {
+    throw new UnsupportedOperationException(
+        "UnsupportedAdaptorContext was called");
+  }
 }
@@ -16,7 +16,9 @@ package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -37,6 +39,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Test cases for {@link Acl}.
@@ -1230,6 +1233,86 @@ public class AclTest {
         createIdentity("someuser@domain", (List<String>) null)));
   }
 
+  @Test
+  public void testPrincipalsDistinguished() {
+    Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("a:b", "ns")))
+        .setDenyGroups(Arrays.asList(new GroupPrincipal("user")))
+        .build();
+    // Same name, different namespace.
+    assertEquals(AuthzStatus.INDETERMINATE, acl.isAuthorizedLocal(
+        new AuthnIdentityImpl.Builder(new UserPrincipal("a:b", "ns:a"))
+        .build()));
+    assertEquals(AuthzStatus.PERMIT, acl.isAuthorizedLocal(
+        new AuthnIdentityImpl.Builder(new UserPrincipal("a:b", "ns"))
+        .build()));
+    // A group with the same name as the user is not the user.
+    assertEquals(AuthzStatus.INDETERMINATE, acl.isAuthorizedLocal(
+        createIdentity("user")));
+  }
+
+  @Test
+  public void testManyGroups() {
+    List<String> userGroups = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      userGroups.add("group" + i);
+    }
+    Acl fewGroups = new Acl.Builder().setPermitGroups(group("GROUP99"))
+        .setEverythingCaseInsensitive().build();
+    Acl manyGroups = new Acl.Builder().setPermitGroups(group(
+        userGroups.subList(50, 100).toArray(new String[0])))
+        .setDenyGroups(group("other1", "other2", "other3")).build();
+    AuthnIdentity identity = createIdentity("user", userGroups);
+    assertEquals(AuthzStatus.PERMIT, fewGroups.isAuthorizedLocal(identity));
+    assertEquals(AuthzStatus.PERMIT, manyGroups.isAuthorizedLocal(identity));
+    assertEquals(AuthzStatus.INDETERMINATE, manyGroups.isAuthorizedLocal(
+        createIdentity("user", userGroups.subList(0, 50))));
+    assertEquals(AuthzStatus.DENY, manyGroups.isAuthorizedLocal(
+        createIdentity("user", "other2", "group99")));
+  }
+
+  @Test
+  public void testIsAuthorizedBatchPreparesGroupsOnce() throws IOException {
+    final AtomicInteger getGroupsCalls = new AtomicInteger();
+    final AuthnIdentity delegate = createIdentity("user", "Group");
+    AuthnIdentity identity = new AuthnIdentity() {
+      @Override
+      public UserPrincipal getUser() {
+        return delegate.getUser();
+      }
+
+      @Override
+      public String getPassword() {
+        return null;
+      }
+
+      @Override
+      public Set<GroupPrincipal> getGroups() {
+        getGroupsCalls.incrementAndGet();
+        return delegate.getGroups();
+      }
+    };
+    DocId parent = new DocId("parent");
+    Map<DocId, Acl> acls = new HashMap<DocId, Acl>();
+    acls.put(parent, new Acl.Builder().setPermitGroups(group("group"))
+        .setEverythingCaseInsensitive()
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build());
+    List<DocId> ids = new ArrayList<DocId>();
+    for (int i = 0; i < 10; i++) {
+      DocId id = new DocId("file" + i);
+      ids.add(id);
+      acls.put(id, new Acl.Builder().setInheritFrom(parent)
+          .setDenyGroups(group("Other")).build());
+    }
+    Map<DocId, AuthzStatus> results = Acl.isAuthorizedBatch(identity, ids,
+        new MockBatchRetriever(acls));
+    for (DocId id : ids) {
+      assertEquals(AuthzStatus.PERMIT, results.get(id));
+    }
+    // Once for each case sensitivity.
+    assertEquals(2, getGroupsCalls.get());
+  }
+
   private AuthnIdentity createIdentity(String username, String... groups) {
     return createIdentity(username, Arrays.asList(groups));
   }
@@ -5906,4 +5989,64 @@ public class AclTest {
     assertEquals(AuthzStatus.DENY, Acl.isAuthorized(createIdentity(user),
         Arrays.asList(website, subsite, file)));
   }
+
+  @Test
+  public void testIdenticalAclsShared() {
+    Acl acl1 = new Acl.Builder().setInheritFrom(new DocId("parent"))
+        .setPermitUsers(Arrays.asList(new UserPrincipal("user"),
+            new UserPrincipal("other"))).build();
+    Acl acl2 = new Acl.Builder().setInheritFrom(new DocId("parent"))
+        .setPermitUsers(Arrays.asList(new UserPrincipal("other"),
+            new UserPrincipal("user"))).build();
+    assertSame(acl1, acl2);
+    assertSame(acl1.getPermitUsers().iterator().next(),
+        acl2.getPermitUsers().iterator().next());
+    assertNotSame(acl1, new Acl.Builder(acl1)
+        .setInheritFrom(new DocId("other")).build());
+  }
+
+  @Test
+  public void testEqualButNotIdenticalAclsNotShared() {
+    Acl acl1 = new Acl.Builder().setEverythingCaseInsensitive()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("user"))).build();
+    Acl acl2 = new Acl.Builder().setEverythingCaseInsensitive()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("USER"))).build();
+    assertEquals(acl1, acl2);
+    assertNotSame(acl1, acl2);
+    assertEquals("USER", acl2.getPermitUsers().iterator().next().getName());
+
+    Acl acl3 = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("dom\\user"))).build();
+    Acl acl4 = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("dom/user"))).build();
+    assertEquals(acl3, acl4);
+    assertNotSame(acl3, acl4);
+    assertEquals("dom/user", acl4.getPermitUsers().iterator().next().getName());
+  }
+
+  @Test
+  public void testPrincipalSetsBehaveLikeTreeSets() {
+    List<UserPrincipal> users = Arrays.asList(new UserPrincipal("b"),
+        new UserPrincipal("B"), new UserPrincipal("a"), new UserPrincipal("b"));
+    Acl sensitive = new Acl.Builder().setPermitUsers(users).build();
+    assertEquals(
+        new ArrayList<UserPrincipal>(new TreeSet<UserPrincipal>(users)),
+        new ArrayList<UserPrincipal>(sensitive.getPermitUsers()));
+    assertTrue(sensitive.getPermitUsers().contains(new UserPrincipal("B")));
+    assertFalse(sensitive.getPermitUsers().contains(new GroupPrincipal("a")));
+    assertFalse(sensitive.getPermitUsers().contains("a"));
+
+    Acl insensitive = new Acl.Builder(sensitive)
+        .setEverythingCaseInsensitive().build();
+    assertEquals(2, insensitive.getPermitUsers().size());
+    assertEquals(Arrays.asList(new UserPrincipal("a"), new UserPrincipal("B")),
+        new ArrayList<UserPrincipal>(insensitive.getPermitUsers()));
+    assertTrue(insensitive.getPermitUsers().contains(new UserPrincipal("A")));
+    assertEquals(new HashSet<UserPrincipal>(Arrays.asList(
+        new UserPrincipal("a"), new UserPrincipal("B"))),
+        insensitive.getPermitUsers());
+
+    thrown.expect(UnsupportedOperationException.class);
+    sensitive.getPermitUsers().clear();
+  }
 }
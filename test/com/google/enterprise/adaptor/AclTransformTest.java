@@ -267,4 +267,51 @@ public class AclTransformTest {
     assertFalse(t1.equals(t4));
     assertFalse(t1.equals(new Object()));
   }
+
+  @Test
+  public void testLiteralPrefix() {
+    assertEquals("", MatchData.literalPrefix(null));
+    assertEquals("abc", MatchData.literalPrefix("abc"));
+    assertEquals("ab", MatchData.literalPrefix("ab.*"));
+    assertEquals("a", MatchData.literalPrefix("ab?"));
+    assertEquals("a", MatchData.literalPrefix("ab{2}c"));
+    assertEquals("", MatchData.literalPrefix("abc|def"));
+    assertEquals("", MatchData.literalPrefix("(?i)abc"));
+    assertEquals("ab", MatchData.literalPrefix("ab\\.c"));
+  }
+
+  @Test
+  public void testPrefixDoesNotRejectMatches() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, "us?er(.*)", null, null),
+          new MatchData(null, "member\\name1", null, null)),
+        new Rule(new MatchData(true, "ab*c", null, null),
+          new MatchData(null, "matched", null, null)));
+    AclTransform transform = new AclTransform(rules);
+    assertEquals(new UserPrincipal("member1"),
+        transform.transform(new UserPrincipal("uer1")));
+    assertEquals(new GroupPrincipal("matched"),
+        transform.transform(new GroupPrincipal("ac")));
+    Principal unchanged = new UserPrincipal("ac");
+    assertSame(unchanged, transform.transform(unchanged));
+  }
+
+  @Test
+  public void testTransformsRemembered() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, "u(.*)", null, null),
+          new MatchData(null, "user\\name1", null, null)));
+    AclTransform transform = new AclTransform(rules, 2);
+    Principal first = transform.transform(new UserPrincipal("u1"));
+    assertEquals(new UserPrincipal("user1"), first);
+    assertSame(first, transform.transform(new UserPrincipal("u1")));
+    // Principals equal except for domain format are kept apart.
+    assertEquals("D1\\user1",
+        transform.transform(new UserPrincipal("D1\\u1")).getName());
+    assertEquals("D1/user1",
+        transform.transform(new UserPrincipal("D1/u1")).getName());
+    // Groups are kept apart from users.
+    assertEquals(new GroupPrincipal("user1"),
+        transform.transform(new GroupPrincipal("u1")));
+  }
 }
@@ -0,0 +1,166 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link CachingAuthzAuthority}.
+ */
+public class CachingAuthzAuthorityTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final DocId permitted = new DocId("permitted");
+  private final DocId denied = new DocId("denied");
+  private final DocId missing = new DocId("missing");
+  private final RecordingAuthzAuthority delegate
+      = new RecordingAuthzAuthority();
+  private final MockTimeProvider timeProvider = new MockTimeProvider();
+  private final Journal journal = new Journal(timeProvider);
+  private final AuthnIdentity user = new AuthnIdentityImpl.Builder(
+      new UserPrincipal("user")).setGroups(new HashSet<GroupPrincipal>(
+          Arrays.asList(new GroupPrincipal("group")))).build();
+  private CachingAuthzAuthority authority;
+
+  {
+    timeProvider.autoIncrement = false;
+    authority = new CachingAuthzAuthority(delegate, journal, 10, 1000, 100,
+        timeProvider);
+  }
+
+  @Test
+  public void testNullDelegate() {
+    thrown.expect(NullPointerException.class);
+    new CachingAuthzAuthority(null, journal, 10, 1000, 100);
+  }
+
+  @Test
+  public void testZeroEntries() {
+    thrown.expect(IllegalArgumentException.class);
+    new CachingAuthzAuthority(delegate, journal, 0, 1000, 100);
+  }
+
+  @Test
+  public void testOnlyMissesForwarded() throws IOException {
+    Map<DocId, AuthzStatus> golden = new HashMap<DocId, AuthzStatus>();
+    golden.put(permitted, AuthzStatus.PERMIT);
+    golden.put(denied, AuthzStatus.DENY);
+    assertEquals(golden,
+        authority.isUserAuthorized(user, Arrays.asList(permitted, denied)));
+    assertEquals(1, delegate.calls.size());
+
+    golden.put(missing, AuthzStatus.INDETERMINATE);
+    assertEquals(golden, authority.isUserAuthorized(user,
+        Arrays.asList(permitted, denied, missing)));
+    assertEquals(2, delegate.calls.size());
+    assertEquals(Arrays.asList(missing), delegate.calls.get(1));
+
+    // INDETERMINATE is never cached.
+    authority.isUserAuthorized(user, Arrays.asList(permitted, missing));
+    assertEquals(Arrays.asList(missing), delegate.calls.get(2));
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(3, snapshot.numAuthzCacheHits);
+    assertEquals(4, snapshot.numAuthzCacheMisses);
+  }
+
+  @Test
+  public void testAllHitsSkipDelegate() throws IOException {
+    authority.isUserAuthorized(user, Arrays.asList(permitted));
+    assertEquals(Collections.singletonMap(permitted, AuthzStatus.PERMIT),
+        authority.isUserAuthorized(user, Arrays.asList(permitted)));
+    assertEquals(1, delegate.calls.size());
+  }
+
+  @Test
+  public void testSeparateTtls() throws IOException {
+    List<DocId> ids = Arrays.asList(permitted, denied);
+    authority.isUserAuthorized(user, ids);
+    timeProvider.time += 100;
+    authority.isUserAuthorized(user, ids);
+    assertEquals(Arrays.asList(denied), delegate.calls.get(1));
+    timeProvider.time += 900;
+    authority.isUserAuthorized(user, ids);
+    assertEquals(ids, delegate.calls.get(2));
+  }
+
+  @Test
+  public void testIdentitiesDistinguished() throws IOException {
+    List<DocId> ids = Arrays.asList(permitted);
+    authority.isUserAuthorized(user, ids);
+    authority.isUserAuthorized(null, ids);
+    authority.isUserAuthorized(new AuthnIdentityImpl.Builder(
+        new UserPrincipal("user")).build(), ids);
+    authority.isUserAuthorized(new AuthnIdentityImpl.Builder(
+        new UserPrincipal("user")).setGroups(user.getGroups())
+        .setPassword("pass").build(), ids);
+    assertEquals(4, delegate.calls.size());
+    // Equal identities share decisions.
+    authority.isUserAuthorized(new AuthnIdentityImpl.Builder(
+        new UserPrincipal("user")).setGroups(new HashSet<GroupPrincipal>(
+            user.getGroups())).build(), ids);
+    authority.isUserAuthorized(null, ids);
+    assertEquals(4, delegate.calls.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() throws IOException {
+    authority = new CachingAuthzAuthority(delegate, journal, 2, 1000, 1000,
+        timeProvider);
+    authority.isUserAuthorized(user, Arrays.asList(permitted));
+    authority.isUserAuthorized(user, Arrays.asList(denied));
+    authority.isUserAuthorized(user, Arrays.asList(permitted));
+    authority.isUserAuthorized(user, Arrays.asList(new DocId("other")));
+    assertEquals(2, authority.size());
+    authority.isUserAuthorized(user, Arrays.asList(permitted, denied));
+    assertEquals(Arrays.asList(denied), delegate.calls.get(3));
+  }
+
+  private class RecordingAuthzAuthority implements AuthzAuthority {
+    final List<List<DocId>> calls = new ArrayList<List<DocId>>();
+
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) {
+      calls.add(new ArrayList<DocId>(ids));
+      Map<DocId, AuthzStatus> result = new HashMap<DocId, AuthzStatus>();
+      for (DocId id : ids) {
+        if (id.equals(missing)) {
+          result.put(id, AuthzStatus.INDETERMINATE);
+        } else if (id.equals(denied)) {
+          result.put(id, AuthzStatus.DENY);
+        } else {
+          result.put(id, AuthzStatus.PERMIT);
+        }
+      }
+      return result;
+    }
+  }
+}
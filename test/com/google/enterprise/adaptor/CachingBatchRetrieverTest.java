@@ -0,0 +1,190 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link CachingBatchRetriever}.
+ */
+public class CachingBatchRetrieverTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final DocId root = new DocId("root");
+  private final DocId folder = new DocId("folder");
+  private final DocId doc1 = new DocId("doc1");
+  private final DocId doc2 = new DocId("doc2");
+  private final AuthnIdentity user = new AuthnIdentityImpl.Builder(
+      new UserPrincipal("user")).build();
+  private final RecordingBatchRetriever delegate
+      = new RecordingBatchRetriever();
+  private final MockTimeProvider timeProvider = new MockTimeProvider();
+  private CachingBatchRetriever retriever;
+
+  {
+    timeProvider.autoIncrement = false;
+    retriever = new CachingBatchRetriever(delegate, 10, 1000, timeProvider);
+    delegate.acls.put(root, new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("user")))
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build());
+    delegate.acls.put(folder, new Acl.Builder().setInheritFrom(root)
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build());
+    delegate.acls.put(doc1, new Acl.Builder().setInheritFrom(folder).build());
+    delegate.acls.put(doc2, new Acl.Builder().setInheritFrom(folder).build());
+  }
+
+  @Test
+  public void testNullDelegate() {
+    thrown.expect(NullPointerException.class);
+    new CachingBatchRetriever(null, 10, 1000);
+  }
+
+  @Test
+  public void testZeroEntries() {
+    thrown.expect(IllegalArgumentException.class);
+    new CachingBatchRetriever(delegate, 0, 1000);
+  }
+
+  @Test
+  public void testParentsRetrievedOnce() throws IOException {
+    Map<DocId, AuthzStatus> golden = new HashMap<DocId, AuthzStatus>();
+    golden.put(doc1, AuthzStatus.PERMIT);
+    assertEquals(golden,
+        Acl.isAuthorizedBatch(user, Arrays.asList(doc1), retriever));
+    assertEquals(3, delegate.calls.size());
+
+    golden.clear();
+    golden.put(doc2, AuthzStatus.PERMIT);
+    assertEquals(golden,
+        Acl.isAuthorizedBatch(user, Arrays.asList(doc2), retriever));
+    assertEquals(4, delegate.calls.size());
+    assertEquals(set(doc2), delegate.calls.get(3));
+
+    assertEquals(0, retriever.getHitCount(0));
+    assertEquals(2, retriever.getMissCount(0));
+    assertEquals(1, retriever.getHitCount(1));
+    assertEquals(1, retriever.getMissCount(1));
+    assertEquals(1, retriever.getHitCount(2));
+    assertEquals(1, retriever.getMissCount(2));
+    assertEquals(0, retriever.getHitCount(CachingBatchRetriever.MAX_DEPTH));
+  }
+
+  @Test
+  public void testLookupsReportedToJournal() throws IOException {
+    Journal journal = new Journal(new MockTimeProvider());
+    retriever.setJournal(journal);
+    Acl.isAuthorizedBatch(user, Arrays.asList(doc1), retriever);
+    Acl.isAuthorizedBatch(user, Arrays.asList(doc2), retriever);
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(0, snapshot.numAclCacheHits[0]);
+    assertEquals(2, snapshot.numAclCacheMisses[0]);
+    assertEquals(1, snapshot.numAclCacheHits[1]);
+    assertEquals(1, snapshot.numAclCacheMisses[1]);
+    assertEquals(1, snapshot.numAclCacheHits[2]);
+    assertEquals(1, snapshot.numAclCacheMisses[2]);
+  }
+
+  @Test
+  public void testMissingNotCached() throws IOException {
+    DocId missing = new DocId("missing");
+    retriever.retrieveAcls(set(missing));
+    retriever.retrieveAcls(set(missing));
+    assertEquals(2, delegate.calls.size());
+    assertEquals(0, retriever.size());
+  }
+
+  @Test
+  public void testExpired() throws IOException {
+    retriever.retrieveAcls(set(root));
+    timeProvider.time += 999;
+    retriever.retrieveAcls(set(root));
+    assertEquals(1, delegate.calls.size());
+    timeProvider.time += 1;
+    retriever.retrieveAcls(set(root));
+    assertEquals(2, delegate.calls.size());
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    Set<DocId> all = set(root, folder, doc1, doc2);
+    retriever.retrieveAcls(all);
+    retriever.invalidate(folder);
+    retriever.retrieveAcls(all);
+    assertEquals(set(folder), delegate.calls.get(1));
+
+    retriever.invalidateInheriting(folder);
+    retriever.retrieveAcls(all);
+    assertEquals(set(folder, doc1, doc2), delegate.calls.get(2));
+
+    retriever.invalidateInheriting(root);
+    assertEquals(0, retriever.size());
+    retriever.retrieveAcls(all);
+    retriever.invalidateAll();
+    assertEquals(0, retriever.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() throws IOException {
+    retriever = new CachingBatchRetriever(delegate, 2, 1000, timeProvider);
+    retriever.retrieveAcls(set(root));
+    retriever.retrieveAcls(set(folder));
+    retriever.retrieveAcls(set(root));
+    retriever.retrieveAcls(set(doc1));
+    assertEquals(2, retriever.size());
+    retriever.retrieveAcls(set(root, folder));
+    assertEquals(set(folder), delegate.calls.get(3));
+    // The evicted ACL no longer prevents invalidating its parent's children.
+    retriever.invalidateInheriting(folder);
+    assertEquals(1, retriever.size());
+  }
+
+  private static Set<DocId> set(DocId... ids) {
+    return new HashSet<DocId>(Arrays.asList(ids));
+  }
+
+  private static class RecordingBatchRetriever
+      implements Acl.BatchRetriever {
+    final Map<DocId, Acl> acls = new HashMap<DocId, Acl>();
+    final List<Set<DocId>> calls = new ArrayList<Set<DocId>>();
+
+    @Override
+    public Map<DocId, Acl> retrieveAcls(Set<DocId> ids) {
+      calls.add(new HashSet<DocId>(ids));
+      Map<DocId, Acl> result = new HashMap<DocId, Acl>();
+      for (DocId id : ids) {
+        if (acls.containsKey(id)) {
+          result.put(id, acls.get(id));
+        }
+      }
+      return Collections.unmodifiableMap(result);
+    }
+  }
+}
@@ -662,4 +662,84 @@ public class CommandStreamParserTest {
     assertEquals(goldenIds, pusher.getDocIds());
 
   }
+
+  @Test
+  public void testListerPushFailure() throws Exception {
+    StringBuilder sb = new StringBuilder("GSA Adaptor Data Version 1 [\n]\n");
+    for (int i = 0; i < 30001; i++) {
+      sb.append("id=").append(i).append("\n");
+    }
+    InputStream inputStream = new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+    CommandStreamParser parser = new CommandStreamParser(inputStream);
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher() {
+      @Override
+      public Record pushRecords(Iterable<Record> records, ExceptionHandler handler)
+          throws InterruptedException {
+        // Fails the second batch.
+        if (!getRecords().isEmpty()) {
+          return records.iterator().next();
+        }
+        return super.pushRecords(records, handler);
+      }
+    };
+
+    DocIdPusher.Record failed = parser.readFromLister(pusher, null);
+    assertEquals(new DocId("10000"), failed.getDocId());
+    assertEquals(10000, pusher.getDocIds().size());
+  }
+
+  @Test
+  public void testListerPushException() throws Exception {
+    String source = "GSA Adaptor Data Version 1 [\n]\nid=1\nid=2\n";
+    InputStream inputStream = new ByteArrayInputStream(source.getBytes("UTF-8"));
+    CommandStreamParser parser = new CommandStreamParser(inputStream);
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher() {
+      @Override
+      public Record pushRecords(Iterable<Record> records, ExceptionHandler handler) {
+        throw new IllegalStateException("push failed");
+      }
+    };
+
+    thrown.expect(IllegalStateException.class);
+    parser.readFromLister(pusher, null);
+  }
+
+  @Test
+  public void testMultiByteDelimiter() throws Exception {
+    String source = "GSA Adaptor Data Version 1 [\r\n]\r\nid=1\r\r\nid=2\r\n"
+        + "id=3\r\n\r";
+
+    InputStream inputStream = new ByteArrayInputStream(source.getBytes("UTF-8"));
+    CommandStreamParser parser = new CommandStreamParser(inputStream);
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+
+    parser.readFromLister(pusher, null);
+    assertEquals(Arrays.asList(new DocId("1\r"), new DocId("2"), new DocId("3")),
+        pusher.getDocIds());
+  }
+
+  @Test
+  public void testValuesLongerThanBuffer() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      sb.append("a\u00e9\u4e2d");
+    }
+    String longId = sb.toString();
+    String source = "GSA Adaptor Data Version 1 [|~|]|~|id=" + longId + "|~|id=short|~|"
+        + "id=" + longId + "|~|";
+
+    // Returns few bytes per read, so that delimiters span the reads.
+    InputStream inputStream = new ByteArrayInputStream(source.getBytes("UTF-8")) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1000));
+      }
+    };
+    CommandStreamParser parser = new CommandStreamParser(inputStream);
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+
+    parser.readFromLister(pusher, null);
+    assertEquals(Arrays.asList(new DocId(longId), new DocId("short"), new DocId(longId)),
+        pusher.getDocIds());
+  }
 }
@@ -384,6 +384,31 @@ public class ConfigTest {
     }
   }
 
+  @Test
+  public void testAuthzCacheTtls() throws Exception {
+    configFile.setFileContents("gsa.hostname=not_used\n"
+                               + "adaptor.authzCache.permitTtlSecs=60\n"
+                               + "adaptor.authzCache.denyTtlSecs=0\n");
+    config.load(configFile);
+    assertEquals(TimeUnit.SECONDS.toMillis(60),
+        config.getAdaptorAuthzCachePermitTtlMillis());
+    assertEquals(0, config.getAdaptorAuthzCacheDenyTtlMillis());
+
+    String invalidValuesToVerify[] = {"-15", "NotValidValue", ""};
+    for (int i = 0; i < invalidValuesToVerify.length; i++) {
+      configFile.setFileContents(" gsa.hostname=not_used\n"
+          + "adaptor.authzCache.denyTtlSecs=" + invalidValuesToVerify[i]);
+      config.load(configFile);
+      try {
+        config.getAdaptorAuthzCacheDenyTtlMillis();
+        fail("Expected InvalidConfigurationException for value "
+             + invalidValuesToVerify[i]);
+      } catch (InvalidConfigurationException ice) {
+        assertTrue(ice.getMessage().contains("Invalid value for"));
+      }
+    }
+  }
+
   @Test
   public void testPropertiesHeartbeatTimeoutMillis() throws Exception {
     // docheartbeatTimeoutSecs=0 and docheartbeatTimeoutSecs=-15 are invalid
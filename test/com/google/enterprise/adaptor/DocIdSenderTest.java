@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.adaptor.Journal.CompletionStatus;
 
 import org.junit.Before;
@@ -377,6 +378,20 @@ public class DocIdSenderTest {
     assertEquals(CompletionStatus.SUCCESS, journal.getLastGroupPushStatus());
   }
 
+  @Test
+  public void testPushGroupsUpdatesGroupIndex() throws Exception {
+    GroupIndex groupIndex = new GroupIndex();
+    docIdSender = new DocIdSender(fileMaker, fileSender, fileArchiver, journal,
+        config, adaptor, groupIndex);
+    config.setValue("gsa.version", "7.0.0-0");
+    // The GSA does not accept groups, but they are still indexed.
+    assertNotNull(docIdSender.pushGroupDefinitions(sampleGroups(), false,
+        null));
+    assertEquals(ImmutableSet.of(new GroupPrincipal("g1"),
+        new GroupPrincipal("g2"), new GroupPrincipal("g3")),
+        groupIndex.getGroups(new UserPrincipal("u3")));
+  }
+
   @Test
   public void testPushGroupsAllDocsPublic() throws Exception {
     config.setValue("adaptor.markAllDocsAsPublic", "true");
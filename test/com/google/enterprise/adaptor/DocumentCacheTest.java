@@ -0,0 +1,202 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.testing.RecordingResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Tests for {@link DocumentCache}.
+ */
+public class DocumentCacheTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final DocId docId = new DocId("doc");
+  private final Date lastModified = new Date(1000 * 1000);
+  private final Request noAccessRequest = new DocRequest(docId, null, false);
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testInvalidMaxBytes() {
+    thrown.expect(IllegalArgumentException.class);
+    new DocumentCache(0, 100, false);
+  }
+
+  @Test
+  public void testRecordAndReplay() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    DocumentCache.CachedResponse cached = populate(cache, docId, "hello");
+    assertNotNull(cached);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse replayed = new RecordingResponse(baos);
+    cached.replay(replayed);
+    assertEquals("text/plain", replayed.getContentType());
+    assertEquals(lastModified, replayed.getLastModified());
+    assertEquals(new Metadata() {{ add("key", "value"); }},
+        replayed.getMetadata());
+    assertEquals(new Acl.Builder().setPermitUsers(
+        Arrays.asList(new UserPrincipal("user"))).build(), replayed.getAcl());
+    assertTrue(replayed.isSecure());
+    assertArrayEquals("hello".getBytes(UTF_8), baos.toByteArray());
+  }
+
+  @Test
+  public void testRecordAndReplayOffHeap() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, true);
+    DocumentCache.CachedResponse cached = populate(cache, docId, "hello");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    cached.replay(new RecordingResponse(baos));
+    cached.replay(new RecordingResponse(baos));
+    assertArrayEquals("hellohello".getBytes(UTF_8), baos.toByteArray());
+  }
+
+  @Test
+  public void testTooLargeNotCached() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 4, false);
+    assertNull(populate(cache, docId, "hello"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testNoLastModifiedNotCached() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    DocumentCache.CachingResponse response = cache.createCachingResponse(
+        new RecordingResponse(), null, noAccessRequest);
+    response.getOutputStream().write(1);
+    assertNull(response.getCacheableResponse());
+  }
+
+  @Test
+  public void testNotFoundNotCached() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    RecordingResponse delegate = new RecordingResponse();
+    DocumentCache.CachingResponse response = cache.createCachingResponse(
+        delegate, null, noAccessRequest);
+    response.setLastModified(lastModified);
+    response.respondNotFound();
+    assertEquals(RecordingResponse.State.NOT_FOUND, delegate.getState());
+    assertEquals(lastModified, delegate.getLastModified());
+    assertNull(response.getCacheableResponse());
+  }
+
+  @Test
+  public void testLruEviction() throws Exception {
+    DocumentCache cache = new DocumentCache(700, 100, false);
+    DocId doc1 = new DocId("1");
+    DocId doc2 = new DocId("2");
+    DocId doc3 = new DocId("3");
+    populate(cache, doc1, "one");
+    populate(cache, doc2, "two");
+    // Touch doc1 so that doc2 is the least recently used.
+    assertNotNull(cache.get(doc1));
+    populate(cache, doc3, "three");
+    assertTrue(cache.getSizeInBytes() <= 700);
+    assertNotNull(cache.get(doc1));
+    assertNull(cache.get(doc2));
+    assertNotNull(cache.get(doc3));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    populate(cache, docId, "hello");
+    cache.invalidate(docId);
+    assertNull(cache.get(docId));
+    assertEquals(0, cache.getSizeInBytes());
+  }
+
+  @Test
+  public void testRevalidatedEntryReplayed() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    DocumentCache.CachedResponse cached = populate(cache, docId, "hello");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse delegate = new RecordingResponse(baos);
+    DocumentCache.CachingResponse response
+        = cache.createCachingResponse(delegate, cached, noAccessRequest);
+    response.respondNotModified();
+    assertTrue(response.isServedFromCache());
+    assertEquals(RecordingResponse.State.SEND_BODY, delegate.getState());
+    assertEquals(lastModified, delegate.getLastModified());
+    assertArrayEquals("hello".getBytes(UTF_8), baos.toByteArray());
+  }
+
+  @Test
+  public void testRevalidatedEntryClientUpToDate() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    DocumentCache.CachedResponse cached = populate(cache, docId, "hello");
+
+    RecordingResponse delegate = new RecordingResponse();
+    DocumentCache.CachingResponse response = cache.createCachingResponse(
+        delegate, cached, new DocRequest(docId, lastModified, false));
+    response.respondNotModified();
+    assertTrue(response.isServedFromCache());
+    assertEquals(RecordingResponse.State.NOT_MODIFIED, delegate.getState());
+  }
+
+  @Test
+  public void testChangedEntryNotServedFromCache() throws Exception {
+    DocumentCache cache = new DocumentCache(100000, 100, false);
+    DocumentCache.CachedResponse cached = populate(cache, docId, "hello");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse delegate = new RecordingResponse(baos);
+    DocumentCache.CachingResponse response
+        = cache.createCachingResponse(delegate, cached, noAccessRequest);
+    response.setLastModified(new Date(2000 * 1000));
+    response.getOutputStream().write("bye".getBytes(UTF_8));
+    assertFalse(response.isServedFromCache());
+    assertArrayEquals("bye".getBytes(UTF_8), baos.toByteArray());
+    assertNotNull(response.getCacheableResponse());
+  }
+
+  private DocumentCache.CachedResponse populate(DocumentCache cache,
+      DocId id, String content) throws IOException {
+    DocumentCache.CachingResponse response = cache.createCachingResponse(
+        new RecordingResponse(), null, noAccessRequest);
+    response.setContentType("text/plain");
+    response.setLastModified(lastModified);
+    response.addMetadata("key", "value");
+    response.setAcl(new Acl.Builder().setPermitUsers(
+        Arrays.asList(new UserPrincipal("user"))).build());
+    response.setSecure(true);
+    response.getOutputStream().write(content.getBytes(UTF_8));
+    DocumentCache.CachedResponse cached = response.getCacheableResponse();
+    if (cached != null) {
+      cache.put(id, cached);
+    }
+    return cached;
+  }
+}
@@ -1072,6 +1072,55 @@ public class DocumentHandlerTest {
     assertEquals("3", new String(ex.getResponseBytes()));
   }
 
+  @Test
+  public void testContentTransformMetrics() throws Exception {
+    TransformMetrics metrics = new TransformMetrics();
+    ContentTransformFactory contentTransformFactory =
+        new ContentTransformFactory(
+            new ArrayList<Map<String, String>>() {
+            {
+                add(new HashMap<String, String>() {{
+                  put("class", SampleDocumentContentTransform.class.getName());
+                  put("name", "sample");
+                }});
+                add(new HashMap<String, String>() {{
+                  put("class", ContentTransform.class.getName());
+                  put("name", "identity");
+                }});
+            }
+        }, metrics);
+    mockAdaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(final Request request, final Response response)
+          throws IOException, InterruptedException {
+        response.setContentType("image/jpeg");
+        OutputStream os = response.getOutputStream();
+        os.write("some cool stuff".getBytes(Charsets.UTF_8));
+        os.close();
+      }
+    };
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[]{remoteIp})
+        .setContentTransformPipeline(contentTransformFactory)
+        .build();
+    handler.handle(ex);
+    assertEquals("some changed stuff", new String(ex.getResponseBytes()));
+
+    List<TransformMetrics.StageSnapshot> stages = metrics.getSnapshots();
+    assertEquals(2, stages.size());
+    assertEquals("sample", stages.get(0).name);
+    assertEquals(TransformMetrics.Type.CONTENT, stages.get(0).type);
+    assertEquals(1, stages.get(0).invocations);
+    assertEquals(15, stages.get(0).bytesIn);
+    assertEquals(18, stages.get(0).bytesOut);
+    assertEquals(0, stages.get(0).exceptions);
+    assertEquals("identity", stages.get(1).name);
+    assertEquals(18, stages.get(1).bytesIn);
+    assertEquals(18, stages.get(1).bytesOut);
+  }
+
   private static class Write1 extends ContentTransform {
     public Write1(Map<String, String> config, Metadata metadata,
         String contentType, OutputStream originalStream) {
@@ -1325,6 +1374,59 @@ public class DocumentHandlerTest {
     handler.handle(ex);
   }
 
+  @Test
+  public void testDocumentCache() throws Exception {
+    final Date lastModified = new Date(1000 * 1000);
+    final List<Date> lastAccessTimes = new ArrayList<Date>();
+    MockAdaptor adaptor = new MockAdaptor() {
+          @Override
+          public void getDocContent(Request request, Response response)
+              throws IOException {
+            lastAccessTimes.add(request.getLastAccessTime());
+            if (!request.hasChangedSinceLastAccess(lastModified)) {
+              response.respondNotModified();
+              return;
+            }
+            response.setLastModified(lastModified);
+            response.getOutputStream().write(documentBytes);
+          }
+        };
+    Journal journal = new Journal(new MockTimeProvider());
+    DocumentCache docCache = new DocumentCache(100000, 1024, false);
+    DocumentHandler handler = createHandlerBuilder().setAdaptor(adaptor)
+        .setAuthzAuthority(adaptor).setJournal(journal).setDocCache(docCache)
+        .build();
+
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertArrayEquals(mockAdaptor.documentBytes, ex.getResponseBytes());
+    assertEquals(1, docCache.size());
+
+    MockHttpExchange ex2 = new MockHttpExchange("GET", defaultPath,
+        new MockHttpContext("/"));
+    handler.handle(ex2);
+    assertEquals(200, ex2.getResponseCode());
+    assertArrayEquals(mockAdaptor.documentBytes, ex2.getResponseBytes());
+    assertEquals(
+        dateFormatRfc1123.get().format(lastModified),
+        ex2.getResponseHeaders().getFirst("Last-Modified"));
+    assertEquals(Arrays.asList(null, lastModified), lastAccessTimes);
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(1, snapshot.numDocumentCacheHits);
+    assertEquals(1, snapshot.numDocumentCacheMisses);
+  }
+
+  @Test
+  public void testDocumentCacheNotUsedForHead() throws Exception {
+    DocumentCache docCache = new DocumentCache(100000, 1024, false);
+    DocumentHandler handler = createHandlerBuilder()
+        .setAuthzAuthority(mockAdaptor).setDocCache(docCache).build();
+    handler.handle(headEx);
+    assertEquals(200, headEx.getResponseCode());
+    assertEquals(0, docCache.size());
+  }
+
   @Test
   public void testNoContentGSARequest() throws Exception {
     MockAdaptor adaptor = new MockAdaptor() {
@@ -3186,6 +3288,7 @@ public class DocumentHandlerTest {
     private String scoring = "content";
     private boolean alwaysGiveAclsAndMetadata = false;
     private GsaVersion gsaVersion = new GsaVersion("7.2.0-0");
+    private DocumentCache docCache;
     
     public DocumentHandlerBuilder setDocIdDecoder(DocIdDecoder docIdDecoder) {
       this.docIdDecoder = docIdDecoder;
@@ -3299,6 +3402,11 @@ public class DocumentHandlerTest {
       return this;
     }
 
+    public DocumentHandlerBuilder setDocCache(DocumentCache docCache) {
+      this.docCache = docCache;
+      return this;
+    }
+
     public DocumentHandlerBuilder setAlwaysGiveAclsAndMetadata(
         boolean alwaysGiveAclsAndMetadata) {
       this.alwaysGiveAclsAndMetadata = alwaysGiveAclsAndMetadata;
@@ -3311,7 +3419,7 @@ public class DocumentHandlerTest {
           transform, aclTransform, contentTransformPipeline, useCompression,
           watchdog, pusher, sendDocControls, markDocsPublic,
           headerTimeoutMillis, contentTimeoutMillis, scoring,
-          alwaysGiveAclsAndMetadata, gsaVersion);
+          alwaysGiveAclsAndMetadata, gsaVersion, docCache);
     }
   }
 }
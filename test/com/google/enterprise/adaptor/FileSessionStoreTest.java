@@ -0,0 +1,157 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link FileSessionStore}.
+ */
+public class FileSessionStoreTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final long now = System.currentTimeMillis();
+  private FileSessionStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new FileSessionStore(temp.getRoot());
+  }
+
+  @Test
+  public void testNullDirectory() throws Exception {
+    thrown.expect(NullPointerException.class);
+    new FileSessionStore(null);
+  }
+
+  @Test
+  public void testRoundTrip() {
+    AuthnIdentity identity = new AuthnIdentityImpl.Builder(
+        new UserPrincipal("user")).setPassword("secret").build();
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("string", "value");
+    attributes.put("identity", identity);
+    attributes.put("unserializable", new Object());
+    store.save("a/b+c==", attributes, now);
+
+    Map<String, Object> loaded = store.load("a/b+c==", now - 1000);
+    assertEquals(2, loaded.size());
+    assertEquals("value", loaded.get("string"));
+    AuthnIdentity loadedIdentity = (AuthnIdentity) loaded.get("identity");
+    assertEquals(identity.getUser(), loadedIdentity.getUser());
+    assertNull(loadedIdentity.getPassword());
+  }
+
+  @Test
+  public void testAuthnStateRoundTrip() {
+    AuthnIdentity identity = new AuthnIdentityImpl.Builder(
+        new UserPrincipal("user"))
+        .setGroups(new HashSet<GroupPrincipal>(
+            Collections.singleton(new GroupPrincipal("group"))))
+        .build();
+    SamlServiceProvider.AuthnState state
+        = new SamlServiceProvider.AuthnState();
+    state.authenticated(identity, now + 10000);
+    state.startAttempt(null, URI.create("http://localhost/doc/a"));
+    store.save("state", Collections.<String, Object>singletonMap(
+        "state", state), now);
+
+    SamlServiceProvider.AuthnState loaded = (SamlServiceProvider.AuthnState)
+        store.load("state", now - 1000).get("state");
+    assertEquals(URI.create("http://localhost/doc/a"),
+        loaded.getOriginalUri());
+    assertEquals(identity.getGroups(), loaded.getIdentity().getGroups());
+  }
+
+  @Test
+  public void testDisallowedClassInFileRejected() throws Exception {
+    writeSessionFile("file", new TreeMap<String, byte[]>());
+    assertNull(store.load("file", 0));
+  }
+
+  @Test
+  public void testDisallowedClassInAttributeRejected() throws Exception {
+    HashMap<String, byte[]> serialized = new HashMap<String, byte[]>();
+    serialized.put("list", serialize(new ArrayList<String>()));
+    serialized.put("string", serialize("value"));
+    writeSessionFile("attribute", serialized);
+    assertEquals(Collections.singletonMap("string", "value"),
+        store.load("attribute", 0));
+  }
+
+  @Test
+  public void testExpired() {
+    Map<String, Object> attributes = Collections.<String, Object>emptyMap();
+    store.save("old", attributes, now - 10000);
+    store.save("new", attributes, now);
+    assertNull(store.load("old", now - 1000));
+    assertEquals(attributes, store.load("new", now - 1000));
+
+    store.removeExpired(now - 1000);
+    assertEquals(1, temp.getRoot().list().length);
+    assertNull(store.load("old", 0));
+  }
+
+  @Test
+  public void testInvalidIdIgnored() {
+    store.save("../escape", Collections.<String, Object>emptyMap(), now);
+    assertEquals(0, temp.getRoot().list().length);
+    assertFalse(new File(temp.getRoot().getParentFile(), "escape").exists());
+    assertNull(store.load("../escape", 0));
+    assertNull(store.load("missing", 0));
+  }
+
+  private void writeSessionFile(String id, Object o) throws IOException {
+    FileOutputStream os = new FileOutputStream(new File(temp.getRoot(), id));
+    try {
+      os.write(serialize(o));
+    } finally {
+      os.close();
+    }
+  }
+
+  private static byte[] serialize(Object o) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(o);
+    oos.close();
+    return baos.toByteArray();
+  }
+}
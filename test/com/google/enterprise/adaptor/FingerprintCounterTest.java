@@ -0,0 +1,95 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link FingerprintCounter}.
+ */
+public class FingerprintCounterTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNegativeTopEntries() {
+    thrown.expect(IllegalArgumentException.class);
+    new FingerprintCounter(-1);
+  }
+
+  @Test
+  public void testCounts() {
+    FingerprintCounter counter = new FingerprintCounter(0);
+    assertEquals(0, counter.size());
+    assertEquals(0, counter.get("a"));
+    assertEquals(1, counter.add("a", 1));
+    assertEquals(3, counter.add("a", 2));
+    assertEquals(1, counter.add("b", 1));
+    assertEquals(2, counter.size());
+    assertEquals(3, counter.get("a"));
+    assertEquals(1, counter.get("b"));
+    assertEquals(Collections.emptyList(), counter.getTopEntries());
+  }
+
+  @Test
+  public void testGrowth() {
+    FingerprintCounter counter = new FingerprintCounter(0);
+    for (int i = 0; i < 100000; i++) {
+      counter.add("doc" + i, 1);
+    }
+    counter.add("doc5", 1);
+    assertEquals(100000, counter.size());
+    assertEquals(2, counter.get("doc5"));
+    assertEquals(1, counter.get("doc99999"));
+    assertEquals(0, counter.get("doc100000"));
+  }
+
+  @Test
+  public void testTopEntries() {
+    FingerprintCounter counter = new FingerprintCounter(2);
+    counter.add("a", 1);
+    counter.add("b", 2);
+    counter.add("c", 1);
+    assertEquals(entries("b", 2, "a", 1), counter.getTopEntries());
+    // c overtakes a.
+    counter.add("c", 2);
+    assertEquals(entries("c", 3, "b", 2), counter.getTopEntries());
+    // Keys already in the top have their counts updated.
+    counter.add("b", 5);
+    assertEquals(entries("b", 7, "c", 3), counter.getTopEntries());
+    // a's full count is known when it re-enters.
+    counter.add("a", 3);
+    assertEquals(entries("b", 7, "a", 4), counter.getTopEntries());
+  }
+
+  private static List<Map.Entry<String, Integer>> entries(String key1,
+      int value1, String key2, int value2) {
+    List<Map.Entry<String, Integer>> entries
+        = new ArrayList<Map.Entry<String, Integer>>();
+    entries.add(new SimpleImmutableEntry<String, Integer>(key1, value1));
+    entries.add(new SimpleImmutableEntry<String, Integer>(key2, value2));
+    return entries;
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static com.google.enterprise.adaptor.DocIdPusher.FeedType.INCREMENTAL;
+import static com.google.enterprise.adaptor.DocIdPusher.FeedType.REPLACE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link GroupIndex}.
+ */
+public class GroupIndexTest {
+  private final UserPrincipal user = new UserPrincipal("user");
+  private final GroupPrincipal inner = new GroupPrincipal("inner");
+  private final GroupPrincipal middle = new GroupPrincipal("middle");
+  private final GroupPrincipal outer = new GroupPrincipal("outer");
+  private final GroupIndex index = new GroupIndex();
+
+  @Test
+  public void testNestedGroups() {
+    Map<GroupPrincipal, List<Principal>> defs
+        = new HashMap<GroupPrincipal, List<Principal>>();
+    defs.put(inner, Arrays.<Principal>asList(user));
+    defs.put(middle, Arrays.<Principal>asList(inner));
+    defs.put(outer, Arrays.<Principal>asList(middle, outer));
+    index.update(defs, true, INCREMENTAL, "source");
+    assertEquals(set(inner, middle, outer), index.getGroups(user));
+    assertEquals(set(middle, outer), index.getGroups(inner));
+    assertEquals(set(outer), index.getGroups(outer));
+    assertEquals(set(), index.getGroups(new UserPrincipal("other")));
+    // Users and groups of the same name are distinct.
+    assertEquals(set(), index.getGroups(new GroupPrincipal("user")));
+  }
+
+  @Test
+  public void testIncrementalUpdateInvalidates() {
+    index.update(Collections.singletonMap(inner,
+        Arrays.<Principal>asList(user)), true, INCREMENTAL, "source");
+    index.update(Collections.singletonMap(outer,
+        Arrays.<Principal>asList(middle)), true, INCREMENTAL, "source");
+    assertEquals(set(inner), index.getGroups(user));
+    assertEquals(set(outer), index.getGroups(middle));
+
+    index.update(Collections.singletonMap(middle,
+        Arrays.<Principal>asList(inner)), true, INCREMENTAL, "source");
+    assertEquals(set(inner, middle, outer), index.getGroups(user));
+
+    // Redefining a group removes its old members.
+    index.update(Collections.singletonMap(inner,
+        Collections.<Principal>emptyList()), true, INCREMENTAL, "source");
+    assertEquals(set(), index.getGroups(user));
+    assertEquals(set(middle, outer), index.getGroups(inner));
+  }
+
+  @Test
+  public void testReplaceForgetsGroupsOfSameSource() {
+    index.update(Collections.singletonMap(inner,
+        Arrays.<Principal>asList(user)), true, INCREMENTAL, "source");
+    index.update(Collections.singletonMap(middle,
+        Arrays.<Principal>asList(user)), true, INCREMENTAL, "other");
+    assertEquals(set(inner, middle), index.getGroups(user));
+    index.update(Collections.singletonMap(outer,
+        Arrays.<Principal>asList(user)), true, REPLACE, "source");
+    assertEquals(set(middle, outer), index.getGroups(user));
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    index.update(Collections.singletonMap(inner,
+        Arrays.<Principal>asList(new UserPrincipal("USER"))), false,
+        INCREMENTAL, "source");
+    index.update(Collections.singletonMap(outer,
+        Arrays.<Principal>asList(new UserPrincipal("USER"))), true,
+        INCREMENTAL, "source");
+    assertEquals(set(inner), index.getGroups(user));
+  }
+
+  @Test
+  public void testExpand() throws IOException {
+    Map<GroupPrincipal, List<Principal>> defs
+        = new HashMap<GroupPrincipal, List<Principal>>();
+    defs.put(middle, Arrays.<Principal>asList(inner));
+    defs.put(outer, Arrays.<Principal>asList(user));
+    index.update(defs, true, INCREMENTAL, "source");
+    AuthnIdentity identity = new AuthnIdentityImpl.Builder(user)
+        .setPassword("pass").setGroups(set(inner)).build();
+    AuthnIdentity expanded = index.expand(identity);
+    assertEquals(user, expanded.getUser());
+    assertEquals("pass", expanded.getPassword());
+    assertEquals(set(inner, middle, outer), expanded.getGroups());
+
+    AuthnIdentity unrelated = new AuthnIdentityImpl.Builder(
+        new UserPrincipal("other")).build();
+    assertSame(unrelated, index.expand(unrelated));
+
+    final AuthnIdentity[] seen = new AuthnIdentity[1];
+    AuthzAuthority authority = new GroupIndex.ExpandingAuthzAuthority(
+        new AuthzAuthority() {
+          @Override
+          public Map<DocId, AuthzStatus> isUserAuthorized(
+              AuthnIdentity identity, Collection<DocId> ids) {
+            seen[0] = identity;
+            return Collections.emptyMap();
+          }
+        }, index);
+    authority.isUserAuthorized(identity, Arrays.asList(new DocId("doc")));
+    assertEquals(set(inner, middle, outer), seen[0].getGroups());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() {
+    GroupIndex index = new GroupIndex(1);
+    index.getGroups(user);
+    index.getGroups(inner);
+    assertEquals(1, index.size());
+  }
+
+  private static Set<GroupPrincipal> set(GroupPrincipal... groups) {
+    return new HashSet<GroupPrincipal>(Arrays.asList(groups));
+  }
+}
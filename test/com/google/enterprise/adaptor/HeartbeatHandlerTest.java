@@ -442,7 +442,8 @@ public class HeartbeatHandlerTest {
         new MockWatchdog(), new MockPusher(), false /* sendDocControls */,
         false /* markDocsPublic */, 30000 /* headerTimeoutMillis */,
         180000 /* contentTimeoutMillis */, "content",
-        false /* alwaysGiveAclsAndMetadata */, new GsaVersion("7.2.0-0")) {
+        false /* alwaysGiveAclsAndMetadata */, new GsaVersion("7.2.0-0"),
+        null /* docCache */) {
           @Override
           public void handle(HttpExchange ex) throws IOException {
             // add a header that starts with "X-Gsa"
@@ -702,7 +703,7 @@ public class HeartbeatHandlerTest {
           transform, aclTransform, contentTransformPipeline, useCompression,
           watchdog, pusher, sendDocControls, markDocsPublic,
           headerTimeoutMillis, contentTimeoutMillis, scoring,
-          alwaysGiveAclsAndMetadata, gsaVersion);
+          alwaysGiveAclsAndMetadata, gsaVersion, null /* docCache */);
     }
   }
 
@@ -90,6 +90,15 @@ public class JournalTest {
     assertEquals(7, journal.getSnapshot().numTotalGroupsPushed);
     assertEquals(3, journal.getSnapshot().numUniqueGroupsPushed);
     assertEquals(11, journal.getSnapshot().numTotalGroupMembersPushed);
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(4, snapshot.mostPushedDocIds.size());
+    assertEquals("id1", snapshot.mostPushedDocIds.get(0).getKey());
+    assertEquals(3, (int) snapshot.mostPushedDocIds.get(0).getValue());
+    assertEquals("id4", snapshot.mostPushedDocIds.get(3).getKey());
+    assertEquals(1, (int) snapshot.mostPushedDocIds.get(3).getValue());
+    assertEquals("group1 (Default)",
+        snapshot.largestGroupsPushed.get(0).getKey());
+    assertEquals(6, (int) snapshot.largestGroupsPushed.get(0).getValue());
   }
 
   @Test
@@ -101,6 +110,7 @@ public class JournalTest {
     assertEquals(-1, journal.getSnapshot().numUniqueGroupsPushed);
     assertEquals(0, journal.getSnapshot().numTotalGroupsPushed);
     assertEquals(0, journal.getSnapshot().numTotalGroupMembersPushed);
+    assertEquals(0, journal.getSnapshot().mostPushedDocIds.size());
   }
 
   @Test
@@ -541,4 +551,97 @@ public class JournalTest {
     timeProvider.time += 2 * dayInMillis;
     assertFalse(journal.hasGsaCrawledWithinLastDay());
   }
+
+  @Test
+  public void testStatsAddAlignsPeriodsByTime() {
+    Journal.Stats behind = new Journal.Stats(4, 100, 0);
+    Journal.Stats ahead = new Journal.Stats(4, 100, 0);
+    behind.getCurrentStat(50).requestProcessingsCount = 1;
+    ahead.getCurrentStat(50).requestProcessingsCount = 2;
+    ahead.getCurrentStat(150).requestProcessingsCount = 4;
+    behind.getCurrentStat(150).requestProcessingsCount = 8;
+    // Advance ahead by a period not yet seen by behind.
+    ahead.getCurrentStat(250).requestProcessingsCount = 16;
+
+    behind.add(ahead);
+    Journal.Stat current = behind.stats[behind.currentStat];
+    assertEquals(8 + 4 + 16, current.requestProcessingsCount);
+    Journal.Stat previous = behind.stats[(behind.currentStat - 1 + 4) % 4];
+    assertEquals(1 + 2, previous.requestProcessingsCount);
+  }
+
+  @Test
+  public void testCountersMergedAcrossThreads() throws InterruptedException {
+    final Journal journal = new Journal(new MockTimeProvider());
+    final DocId docId = new DocId("a");
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100; j++) {
+            journal.recordGsaContentRequest(docId);
+            journal.recordRequestProcessingStart();
+            journal.recordRequestProcessingEnd(1);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(800, snapshot.numTotalGsaRequests);
+    assertEquals(1, snapshot.numUniqueGsaRequests);
+    long count = 0;
+    long throughput = 0;
+    for (Journal.Stat stat : snapshot.timeStats[2].stats) {
+      count += stat.requestProcessingsCount;
+      throughput += stat.requestProcessingsThroughput;
+    }
+    assertEquals(800, count);
+    assertEquals(800, throughput);
+  }
+
+  @Test
+  public void testLatencies() {
+    final MockTimeProvider timeProvider = new MockTimeProvider();
+    final Journal journal = new Journal(timeProvider);
+    timeProvider.autoIncrement = false;
+
+    journal.recordRequestProcessingStart();
+    timeProvider.time += 10;
+    journal.recordRequestHeadersSent();
+    timeProvider.time += 30;
+    journal.recordRequestProcessingEnd(0);
+
+    journal.recordLatencyStart(Journal.Latency.FEED_SEND);
+    timeProvider.time += 5;
+    journal.recordLatencyEnd(Journal.Latency.FEED_SEND);
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    Journal.Stats stats = snapshot.timeStats[2];
+    Journal.Stat stat = stats.stats[stats.currentStat];
+    // Percentiles are reported as the upper bound of the matching bucket.
+    assertEquals(47, stat.latencies[Journal.Latency.DOCUMENT_PROCESSING
+        .ordinal()].getValueAtPercentile(50));
+    assertEquals(11, stat.latencies[Journal.Latency.DOCUMENT_HEADER
+        .ordinal()].getValueAtPercentile(50));
+    assertEquals(31, stat.latencies[Journal.Latency.DOCUMENT_CONTENT
+        .ordinal()].getValueAtPercentile(50));
+    assertEquals(5, stat.latencies[Journal.Latency.FEED_SEND
+        .ordinal()].getValueAtPercentile(50));
+    assertEquals(null,
+        stat.latencies[Journal.Latency.SAML_BATCH_AUTHZ.ordinal()]);
+  }
+
+  @Test
+  public void testLatencyEndWithoutStart() {
+    Journal journal = new Journal(new MockTimeProvider());
+    thrown.expect(IllegalStateException.class);
+    journal.recordLatencyEnd(Journal.Latency.FEED_SEND);
+  }
 }
@@ -0,0 +1,94 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getTotalCount());
+    assertEquals(0, histogram.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testSmallValuesExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(1);
+    histogram.record(2);
+    histogram.record(3);
+    assertEquals(4, histogram.getTotalCount());
+    assertEquals(0, histogram.getValueAtPercentile(25));
+    assertEquals(1, histogram.getValueAtPercentile(50));
+    assertEquals(3, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testBucketBoundsContainValue() {
+    for (long value = 0; value < 100000; value += 7) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+      if (index > 0) {
+        assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+      }
+      // Upper bound is within 25% of the value.
+      assertTrue(LatencyHistogram.bucketUpperBound(index) <= value * 1.25 + 1);
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    long p50 = histogram.getValueAtPercentile(50);
+    assertTrue(p50 >= 500 && p50 <= 625);
+    long p99 = histogram.getValueAtPercentile(99);
+    assertTrue(p99 >= 990 && p99 <= 1238);
+  }
+
+  @Test
+  public void testOverflowCountedInLastBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_MILLIS - 1,
+        histogram.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void testAddAndClone() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    a.record(1);
+    b.record(1000);
+    LatencyHistogram copy = a.clone();
+    a.add(b);
+    assertEquals(2, a.getTotalCount());
+    assertTrue(a.getValueAtPercentile(100) >= 1000);
+    assertEquals(1, copy.getTotalCount());
+    assertEquals(1, copy.getValueAtPercentile(100));
+    a.reset();
+    assertEquals(0, a.getTotalCount());
+  }
+}
@@ -18,16 +18,21 @@ import static java.util.AbstractMap.SimpleEntry;
 import static java.util.Map.Entry;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /** Test cases for {@link Metadata}. */
@@ -223,6 +228,20 @@ public class MetadataTest {
     all.remove("bar");
   }
 
+  @Test
+  public void testReturnedValuesReflectChanges() {
+    Metadata m = new Metadata();
+    Set<String> all = m.getAllValues("foo");
+    assertEquals(makeSet(), all);
+    m.add("foo", "bar");
+    assertEquals(makeSet("bar"), all);
+    m.add("foo", "home");
+    assertEquals(makeSet("bar", "home"), all);
+    assertTrue(all.contains("home"));
+    m.set(new Metadata());
+    assertEquals(makeSet(), all);
+  }
+
   @Test
   public void testEasyToWriteModificationLoopOverValues() {
     Metadata m = new Metadata();
@@ -251,6 +270,98 @@ public class MetadataTest {
     assertEquals(keys, m.getKeys());
   }
 
+  @Test
+  public void testHashCodeMatchesMapOfSets() {
+    Metadata m = new Metadata();
+    m.set("foo", makeSet("bar", "home"));
+    m.add("sna", "fu");
+    Map<String, Set<String>> golden = new TreeMap<String, Set<String>>();
+    golden.put("foo", makeSet("bar", "home"));
+    golden.put("sna", makeSet("fu"));
+    assertEquals(golden.hashCode(), m.hashCode());
+  }
+
+  @Test
+  public void testSingleAndMultipleValuesMixed() {
+    Metadata m = new Metadata();
+    m.add("b", "2");
+    m.add("a", "1");
+    m.set("c", makeSet("3"));
+    m.add("b", "1");
+    m.add("b", "2");
+    m.set("a", makeSet("x", "x"));
+    assertEquals("[a=x, b=1, b=2, c=3]", m.toString());
+    assertEquals("1", m.getOneValue("b"));
+    assertTrue(m.getAllValues("b").contains("2"));
+    assertFalse(m.getAllValues("b").contains("3"));
+    m.set("b", makeSet("4"));
+    assertEquals(makeSet("4"), m.getAllValues("b"));
+    assertEquals(Arrays.asList("a", "b", "c"),
+        new ArrayList<String>(m.getKeys()));
+  }
+
+  @Test
+  public void testUnmodifiableViewOfCopyOnWriteSeesChanges() {
+    Metadata source = new Metadata();
+    source.add("foo", "bar");
+    Metadata m = Metadata.copyOnWrite(source);
+    Metadata view = m.unmodifiableView();
+    m.add("foo", "home");
+    assertEquals(makeSet("bar", "home"), view.getAllValues("foo"));
+    m.set(new Metadata());
+    assertTrue(view.isEmpty());
+    assertEquals(makeSet("bar"), source.getAllValues("foo"));
+  }
+
+  @Test
+  public void testUnmodifiableViewSeesReplacedEntries() {
+    Metadata m = new Metadata();
+    m.add("foo", "bar");
+    Metadata view = m.unmodifiableView();
+    Metadata other = new Metadata();
+    other.add("sna", "fu");
+    m.set(other);
+    assertEquals(other, view);
+    other.add("sna", "fi");
+    assertEquals(makeSet("fu"), view.getAllValues("sna"));
+  }
+
+  @Test
+  public void testCopyOnWriteLeavesSourceUnchanged() {
+    Metadata source = new Metadata();
+    source.set("foo", makeSet("bar", "home"));
+    source.set("sna", makeSet("fu"));
+    Metadata golden = new Metadata(source);
+    Metadata m = Metadata.copyOnWrite(source);
+    assertEquals(golden, m);
+    assertTrue(m.isShared());
+    m.add("foo", "villa");
+    assertFalse(m.isShared());
+    assertEquals(makeSet("bar", "home", "villa"), m.getAllValues("foo"));
+    assertEquals(golden, source);
+  }
+
+  @Test
+  public void testCopyOnWriteKeyRemoval() {
+    Metadata source = new Metadata();
+    source.set("foo", makeSet("bar"));
+    source.set("sna", makeSet("fu"));
+    source.set("zed", makeSet("zz"));
+    Metadata golden = new Metadata(source);
+    Metadata m = Metadata.copyOnWrite(source);
+    Set<String> keys = m.getKeys();
+    assertFalse(keys.remove("missing"));
+    assertTrue(m.isShared());
+    for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+      if (!"sna".equals(it.next())) {
+        it.remove();
+      }
+    }
+    assertEquals(makeSet("sna"), m.getKeys());
+    assertEquals(1, keys.size());
+    assertEquals(golden, source);
+  }
+
   @Test
   public void testIteratingOverImmutableEntries() {
     Metadata m = new Metadata();
@@ -462,4 +573,24 @@ public class MetadataTest {
     thrown.expect(UnsupportedOperationException.class);
     keys.remove("sna");
   }
+
+  @Test
+  public void testKeysInterned() {
+    Metadata m1 = new Metadata();
+    Metadata m2 = new Metadata();
+    m1.add(new String("key"), "a");
+    m2.add(new String("key"), "b");
+    assertNotSame(m1.getKeys().iterator().next(),
+        m2.getKeys().iterator().next());
+
+    Metadata.setInternKeys(true);
+    try {
+      m1.add(new String("internedKey"), "a");
+      m2.add(new String("internedKey"), "b");
+    } finally {
+      Metadata.setInternKeys(false);
+    }
+    assertSame(m1.getKeys().iterator().next(),
+        m2.getKeys().iterator().next());
+  }
 }
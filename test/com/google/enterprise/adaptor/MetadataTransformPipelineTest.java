@@ -15,11 +15,15 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.MetadataTransform.TransmissionDecision;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -93,6 +97,159 @@ public class MetadataTransformPipelineTest {
     assertEquals(2, params.size());
   }
 
+  @Test
+  public void testReadOnlyTransformDoesNotCopy() throws IOException {
+    Metadata metadata = new Metadata();
+    metadata.add("key1", "value1");
+    final List<Metadata> seen = new ArrayList<Metadata>();
+    List<MetadataTransform> transforms
+        = new ArrayList<MetadataTransform>();
+    transforms.add(new MetadataTransform() {
+        @Override
+        public void transform(Metadata m, Map<String, String> p) {
+          m.getKeys().contains("key1");
+          m.getOneValue("key1");
+          seen.add(m);
+        }
+      });
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        transforms, Arrays.asList("t1"));
+    pipeline.transform(metadata, new HashMap<String, String>());
+
+    assertTrue(seen.get(0).isShared());
+    assertEquals(Collections.singleton("key1"), metadata.getKeys());
+  }
+
+  @Test
+  public void testFiltersEvaluatedFromLast() throws IOException {
+    List<String> evaluated = new ArrayList<String>();
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(
+            new RecordingFilter("f1", evaluated, TransmissionDecision.AS_IS),
+            new RecordingFilter("f2", evaluated,
+                TransmissionDecision.DO_NOT_INDEX),
+            new RecordingFilter("f3", evaluated, null)),
+        Arrays.asList("f1", "f2", "f3"));
+    Map<String, String> params = new HashMap<String, String>();
+    pipeline.transform(new Metadata(), params);
+
+    assertEquals(Arrays.asList("f3", "f2"), evaluated);
+    assertEquals("do-not-index",
+        params.get(MetadataTransform.KEY_TRANSMISSION_DECISION));
+  }
+
+  @Test
+  public void testFilterReadingDecisionStartsRun() throws IOException {
+    List<String> evaluated = new ArrayList<String>();
+    RecordingFilter reading
+        = new RecordingFilter("f2", evaluated, TransmissionDecision.AS_IS);
+    reading.readsDecision = true;
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(
+            new RecordingFilter("f1", evaluated,
+                TransmissionDecision.DO_NOT_INDEX),
+            reading,
+            new RecordingFilter("f3", evaluated, null)),
+        Arrays.asList("f1", "f2", "f3"));
+    Map<String, String> params = new HashMap<String, String>();
+    pipeline.transform(new Metadata(), params);
+
+    assertEquals(Arrays.asList("f1", "f3", "f2"), evaluated);
+    assertEquals("as-is",
+        params.get(MetadataTransform.KEY_TRANSMISSION_DECISION));
+  }
+
+  @Test
+  public void testStageMetrics() throws IOException {
+    TransformMetrics metrics = new TransformMetrics();
+    List<String> evaluated = new ArrayList<String>();
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(
+            new IncrementTransform(),
+            new RecordingFilter("f1", evaluated,
+                TransmissionDecision.DO_NOT_INDEX),
+            new RecordingFilter("f2", evaluated, null),
+            new ErroringTransform()),
+        Arrays.asList("it", "f1", "f2", "et"), metrics);
+    Metadata metadata = new Metadata();
+    metadata.set("int", "0");
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("int", "1");
+    try {
+      pipeline.transform(metadata, params);
+    } catch (RuntimeException expected) {
+      // The last transform always fails.
+    }
+
+    List<TransformMetrics.StageSnapshot> stages = metrics.getSnapshots();
+    assertEquals(4, stages.size());
+    assertEquals("it", stages.get(0).name);
+    assertEquals(TransformMetrics.Type.METADATA, stages.get(0).type);
+    assertEquals(1, stages.get(0).invocations);
+    assertEquals(0, stages.get(0).decisionChanges);
+    assertEquals(1, stages.get(1).invocations);
+    assertEquals(1, stages.get(1).decisionChanges);
+    assertEquals(1, stages.get(2).invocations);
+    assertEquals(0, stages.get(2).decisionChanges);
+    assertEquals(1, stages.get(3).invocations);
+    assertEquals(1, stages.get(3).exceptions);
+    assertEquals(0, stages.get(0).exceptions);
+  }
+
+  @Test
+  public void testCloseClosesCloseableTransforms() {
+    final List<String> closed = new ArrayList<String>();
+    class CloseableTransform implements MetadataTransform, Closeable {
+      @Override
+      public void transform(Metadata metadata, Map<String, String> p) {}
+
+      @Override
+      public void close() {
+        closed.add("ct");
+      }
+    }
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(new IncrementTransform(), new CloseableTransform()),
+        Arrays.asList("it", "ct"));
+    pipeline.close();
+    assertEquals(Arrays.asList("ct"), closed);
+  }
+
+  private static class RecordingFilter
+      implements MetadataTransform.TransmissionFilter {
+    private final String name;
+    private final List<String> evaluated;
+    private final TransmissionDecision decision;
+    boolean readsDecision;
+
+    RecordingFilter(String name, List<String> evaluated,
+        TransmissionDecision decision) {
+      this.name = name;
+      this.evaluated = evaluated;
+      this.decision = decision;
+    }
+
+    @Override
+    public void transform(Metadata metadata, Map<String, String> params) {
+      TransmissionDecision d = decide(metadata, params);
+      if (d != null) {
+        params.put(KEY_TRANSMISSION_DECISION, d.toString());
+      }
+    }
+
+    @Override
+    public TransmissionDecision decide(Metadata metadata,
+        Map<String, String> params) {
+      evaluated.add(name);
+      return decision;
+    }
+
+    @Override
+    public boolean readsTransmissionDecision() {
+      return readsDecision;
+    }
+  }
+
   private static class ErroringTransform implements MetadataTransform {
     @Override
     public void transform(Metadata metadata, Map<String, String> p) {
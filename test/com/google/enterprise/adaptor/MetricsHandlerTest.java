@@ -0,0 +1,239 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MetricsHandler}.
+ */
+public class MetricsHandlerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final MockTimeProvider timeProvider = new MockTimeProvider();
+  private final Journal journal = new Journal(timeProvider);
+  private final ScheduledExecutorService scheduleExecutor
+      = Executors.newSingleThreadScheduledExecutor();
+  private final ExecutorService backgroundExecutor
+      = Executors.newCachedThreadPool();
+  private final Watchdog watchdog = new Watchdog(scheduleExecutor);
+  private final AsyncDocIdSender asyncDocIdSender = new AsyncDocIdSender(
+      new AsyncDocIdSender.ItemPusher() {
+        @Override
+        public <T extends DocIdSender.Item> T pushItems(Iterator<T> items,
+            ExceptionHandler handler) {
+          return null;
+        }
+      }, 10, 1, TimeUnit.SECONDS, 5);
+  private final MetricsHandler handler = new MetricsHandler(journal,
+      asyncDocIdSender, backgroundExecutor,
+      Collections.singletonList(watchdog));
+
+  @After
+  public void shutdown() {
+    scheduleExecutor.shutdownNow();
+    backgroundExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testNullJournal() {
+    thrown.expect(NullPointerException.class);
+    new MetricsHandler(null, null, null, Collections.<Watchdog>emptyList());
+  }
+
+  @Test
+  public void testCounters() throws Exception {
+    timeProvider.time = 5000;
+    timeProvider.autoIncrement = false;
+    journal.recordGsaContentRequest(new DocId("a"));
+    journal.recordGsaContentRequest(new DocId("a"));
+    journal.recordNonGsaContentRequest(new DocId("b"));
+    journal.recordRequestProcessingStart();
+    timeProvider.time += 1500;
+    journal.recordRequestProcessingEnd(100);
+    journal.recordRequestProcessingStart();
+    journal.recordRequestProcessingFailure();
+    journal.recordFullPushStarted();
+    journal.recordFullPushFailed();
+    asyncDocIdSender.pushDocId(new DocId("c"));
+    journal.recordAclCacheLookups(1, 3, 2);
+
+    String metrics = writeMetrics(handler);
+    assertContainsLine(metrics, "# TYPE adaptor_gsa_requests_total counter");
+    assertContainsLine(metrics, "adaptor_gsa_requests_total 2");
+    assertContainsLine(metrics, "adaptor_gsa_requests_unique 1");
+    assertContainsLine(metrics, "adaptor_non_gsa_requests_total 1");
+    assertContainsLine(metrics, "adaptor_request_processings_total 2");
+    assertContainsLine(metrics, "adaptor_request_processing_failures_total 1");
+    assertContainsLine(metrics,
+        "adaptor_request_processing_seconds_total 1.5");
+    assertContainsLine(metrics, "adaptor_response_bytes_total 100");
+    assertContainsLine(metrics, "adaptor_push_running{type=\"full\"} 0");
+    assertContainsLine(metrics,
+        "adaptor_push_last_status{type=\"full\",status=\"failure\"} 1");
+    assertContainsLine(metrics,
+        "adaptor_push_last_status{type=\"full\",status=\"success\"} 0");
+    assertContainsLine(metrics,
+        "adaptor_push_last_status{type=\"group\",status=\"success\"} 1");
+    assertContainsLine(metrics, "adaptor_acl_cache_hits_total{depth=\"1\"} 3");
+    assertContainsLine(metrics,
+        "adaptor_acl_cache_misses_total{depth=\"1\"} 2");
+    assertContainsLine(metrics, "adaptor_acl_cache_hits_total{depth=\"0\"} 0");
+    assertContainsLine(metrics, "adaptor_watchdog_timeouts_total 0");
+    assertContainsLine(metrics, "adaptor_async_docid_queue_size 1");
+    assertContainsLine(metrics, "adaptor_async_docid_queue_capacity 5");
+    assertContainsLine(metrics, "adaptor_background_threads 0");
+    assertTrue(metrics.endsWith("\n"));
+  }
+
+  @Test
+  public void testTransformMetrics() throws Exception {
+    TransformMetrics transformMetrics = journal.getTransformMetrics();
+    transformMetrics.register(TransformMetrics.Type.METADATA, "filter")
+        .record(300000, false, true);
+    TransformMetrics.Stage content = transformMetrics.register(
+        TransformMetrics.Type.CONTENT, "strip \"tags\"");
+    content.record(0, true, false);
+    content.recordBytes(10, 4);
+
+    String metrics = writeMetrics(handler);
+    assertContainsLine(metrics,
+        "# TYPE adaptor_transform_duration_seconds summary");
+    assertContainsLine(metrics, "adaptor_transform_duration_seconds"
+        + "{pipeline=\"metadata\",stage=\"filter\",quantile=\"0.5\"} 3.19E-4");
+    assertContainsLine(metrics, "adaptor_transform_duration_seconds_count"
+        + "{pipeline=\"metadata\",stage=\"filter\"} 1");
+    assertContainsLine(metrics, "adaptor_transform_decision_changes_total"
+        + "{pipeline=\"metadata\",stage=\"filter\"} 1");
+    assertContainsLine(metrics, "adaptor_transform_exceptions_total"
+        + "{pipeline=\"content\",stage=\"strip \\\"tags\\\"\"} 1");
+    assertContainsLine(metrics, "adaptor_transform_bytes_out_total"
+        + "{pipeline=\"content\",stage=\"strip \\\"tags\\\"\"} 4");
+  }
+
+  @Test
+  public void testUniqueCountsOmittedWithReducedMemory() throws Exception {
+    MetricsHandler handler = new MetricsHandler(
+        new Journal(true, timeProvider), null, null,
+        Collections.<Watchdog>emptyList());
+    String metrics = writeMetrics(handler);
+    assertContainsLine(metrics, "adaptor_gsa_requests_total 0");
+    assertFalse(metrics.contains("adaptor_gsa_requests_unique"));
+    assertFalse(metrics.contains("adaptor_async_docid_queue_size"));
+    assertFalse(metrics.contains("adaptor_background_threads"));
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    MockHttpExchange ex = new MockHttpExchange("GET", "/metrics",
+        new MockHttpContext(handler, "/metrics"));
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(MetricsHandler.CONTENT_TYPE,
+        ex.getResponseHeaders().getFirst("Content-Type"));
+    assertEquals(writeMetrics(handler),
+        new String(ex.getResponseBytes(), UTF_8));
+  }
+
+  @Test
+  public void testHead() throws Exception {
+    MockHttpExchange ex = new MockHttpExchange("HEAD", "/metrics",
+        new MockHttpContext(handler, "/metrics"));
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(0, ex.getResponseBytes().length);
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    MockHttpExchange ex = new MockHttpExchange("POST", "/metrics",
+        new MockHttpContext(handler, "/metrics"));
+    handler.handle(ex);
+    assertEquals(405, ex.getResponseCode());
+  }
+
+  @Test
+  public void testWrongPath() throws Exception {
+    MockHttpExchange ex = new MockHttpExchange("GET", "/metrics/other",
+        new MockHttpContext(handler, "/metrics"));
+    handler.handle(ex);
+    assertEquals(404, ex.getResponseCode());
+  }
+
+  @Test
+  public void testTrustedHostsHandler() throws Exception {
+    RecordingHandler trusted = new RecordingHandler();
+    RecordingHandler untrusted = new RecordingHandler();
+    HttpHandler hostsHandler = new Dashboard.TrustedHostsHandler(trusted,
+        untrusted, new String[] {" 127.0.0.5", "", "127.0.0.6 "});
+    MockHttpExchange ex = new MockHttpExchange("GET", "/metrics",
+        new MockHttpContext(hostsHandler, "/metrics"));
+    hostsHandler.handle(ex);
+    assertEquals(0, trusted.count);
+    assertEquals(1, untrusted.count);
+
+    ex.setRemoteAddress(new InetSocketAddress(
+        InetAddress.getByAddress(new byte[] {127, 0, 0, 6}), 65000));
+    hostsHandler.handle(ex);
+    assertEquals(1, trusted.count);
+    assertEquals(1, untrusted.count);
+  }
+
+  private static String writeMetrics(MetricsHandler handler)
+      throws IOException {
+    StringWriter writer = new StringWriter();
+    handler.writeMetrics(writer);
+    return writer.toString();
+  }
+
+  private static void assertContainsLine(String text, String line) {
+    assertTrue("Missing line: " + line + "\n" + text,
+        ("\n" + text).contains("\n" + line + "\n"));
+  }
+
+  private static class RecordingHandler implements HttpHandler {
+    int count;
+
+    @Override
+    public void handle(HttpExchange ex) {
+      count++;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ParallelAuthzAuthority}.
+ */
+public class ParallelAuthzAuthorityTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final DocId doc1 = new DocId("1");
+  private final DocId doc2 = new DocId("2");
+  private final DocId doc3 = new DocId("3");
+  private final DocId slow = new DocId("slow");
+  private final DocId broken = new DocId("broken");
+  private final List<List<DocId>> calls
+      = Collections.synchronizedList(new ArrayList<List<DocId>>());
+  /** Counted down by each call, so calls can wait for each other. */
+  private final CountDownLatch started = new CountDownLatch(2);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private final AuthzAuthority delegate = new AuthzAuthority() {
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) throws IOException {
+      calls.add(new ArrayList<DocId>(ids));
+      started.countDown();
+      Map<DocId, AuthzStatus> result = new HashMap<DocId, AuthzStatus>();
+      for (DocId id : ids) {
+        if (id.equals(slow)) {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            throw new IOException(ex);
+          }
+        } else if (id.equals(broken)) {
+          throw new IOException("broken");
+        }
+        result.put(id, id.equals(doc2) ? AuthzStatus.DENY : AuthzStatus.PERMIT);
+      }
+      return result;
+    }
+  };
+
+  @After
+  public void shutdown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testNullDelegate() {
+    thrown.expect(NullPointerException.class);
+    new ParallelAuthzAuthority(null, executor, 10, 1000);
+  }
+
+  @Test
+  public void testZeroSubBatchSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new ParallelAuthzAuthority(delegate, executor, 0, 1000);
+  }
+
+  @Test
+  public void testSubBatches() throws Exception {
+    AuthzAuthority authority
+        = new ParallelAuthzAuthority(delegate, executor, 2, 10000);
+    Map<DocId, AuthzStatus> golden = new HashMap<DocId, AuthzStatus>();
+    golden.put(doc1, AuthzStatus.PERMIT);
+    golden.put(doc2, AuthzStatus.DENY);
+    golden.put(doc3, AuthzStatus.PERMIT);
+    assertEquals(golden,
+        authority.isUserAuthorized(null, Arrays.asList(doc1, doc2, doc3)));
+    assertEquals(2, calls.size());
+    assertTrue(calls.contains(Arrays.asList(doc1, doc2)));
+    assertTrue(calls.contains(Arrays.asList(doc3)));
+  }
+
+  @Test
+  public void testSubBatchesRunConcurrently() throws Exception {
+    final AuthzAuthority authority
+        = new ParallelAuthzAuthority(delegate, executor, 1, 10000);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          authority.isUserAuthorized(null, Arrays.asList(slow, doc1));
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    };
+    thread.start();
+    // Both calls start even though the first has not completed.
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    release.countDown();
+    thread.join();
+  }
+
+  @Test
+  public void testDeadlineMissedAndFailuresOmitted() throws Exception {
+    AuthzAuthority authority
+        = new ParallelAuthzAuthority(delegate, executor, 1, 100);
+    assertEquals(Collections.singletonMap(doc1, AuthzStatus.PERMIT),
+        authority.isUserAuthorized(null, Arrays.asList(slow, broken, doc1)));
+  }
+}
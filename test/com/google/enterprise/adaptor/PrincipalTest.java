@@ -16,6 +16,7 @@ package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.enterprise.adaptor.Principal.DomainFormat;
@@ -347,4 +348,22 @@ public class PrincipalTest {
     assertEquals(new ParsedPrincipal(false, "a", "b", DomainFormat.DNS, "z"),
         p.namespace("z"));
   }
+
+  @Test
+  public void testIntern() {
+    UserPrincipal user = Principal.intern(new UserPrincipal("dom\\user"));
+    assertSame(user, Principal.intern(new UserPrincipal("dom\\user")));
+    // Equal, but written differently.
+    UserPrincipal other = new UserPrincipal("dom/user");
+    assertSame(other, Principal.intern(other));
+    GroupPrincipal group = new GroupPrincipal("dom\\user");
+    assertSame(group, Principal.intern(group));
+  }
+
+  @Test
+  public void testParseCached() {
+    Principal p = new UserPrincipal("user@dom");
+    assertSame(p.parse(), p.parse());
+    assertEquals(p.hashCode(), new UserPrincipal("user@dom").hashCode());
+  }
 }
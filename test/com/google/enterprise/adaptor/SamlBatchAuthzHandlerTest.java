@@ -45,11 +45,13 @@ public class SamlBatchAuthzHandlerTest {
   private static final String DEFAULT_SUBJECT = "Polly Hedra";
 
   private AuthzAuthority adaptor = new MockAdaptor();
+  private Journal journal = new Journal(new MockTimeProvider());
   private SamlMetadata samlMetadata = new SamlMetadata("localhost", 80,
       "localhost", "http://google.com/enterprise/gsa/security-manager",
       "http://google.com/enterprise/gsa/adaptor");
   private SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
-      adaptor, new MockDocIdCodec(), samlMetadata, Principal.DomainFormat.DNS);
+      adaptor, new MockDocIdCodec(), samlMetadata, Principal.DomainFormat.DNS,
+      journal);
   private MockHttpExchange ex = new MockHttpExchange("POST", "/",
       new MockHttpContext(handler, "/"));
   private Charset charset = Charset.forName("UTF-8");
@@ -99,7 +101,7 @@ public class SamlBatchAuthzHandlerTest {
   public void testDenyAuthz() throws Exception {
     SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
         new PrivateMockAdaptor(), new MockDocIdCodec(), samlMetadata,
-        Principal.DomainFormat.DNS);
+        Principal.DomainFormat.DNS, journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
     String request
@@ -130,7 +132,7 @@ public class SamlBatchAuthzHandlerTest {
     SamlBatchAuthzHandler handler =
         new SamlBatchAuthzHandler(new AuthzByPasswordMockAdaptor(
             usernamePasswordMap), new MockDocIdCodec(), samlMetadata,
-            Principal.DomainFormat.DNS);
+            Principal.DomainFormat.DNS, journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
 
@@ -212,7 +214,8 @@ public class SamlBatchAuthzHandlerTest {
     
     SamlBatchAuthzHandler handler =
         new SamlBatchAuthzHandler(new AuthzByAclMockAdaptor(aclMap),
-            new MockDocIdCodec(), samlMetadata, Principal.DomainFormat.DNS);
+            new MockDocIdCodec(), samlMetadata, Principal.DomainFormat.DNS,
+            journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
 
@@ -274,7 +277,7 @@ public class SamlBatchAuthzHandlerTest {
     SamlBatchAuthzHandler handler =
         new SamlBatchAuthzHandler(new AuthzByAclMockAdaptor(aclMap),
             new MockDocIdCodec(), samlMetadata,
-            Principal.DomainFormat.NETBIOS);
+            Principal.DomainFormat.NETBIOS, journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
 
@@ -328,7 +331,7 @@ public class SamlBatchAuthzHandlerTest {
     };
     SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
         adaptor, new MockDocIdCodec(), samlMetadata,
-        Principal.DomainFormat.DNS);
+        Principal.DomainFormat.DNS, journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
     String request
@@ -362,7 +365,7 @@ public class SamlBatchAuthzHandlerTest {
     };
     SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
         adaptor, new MockDocIdCodec(), samlMetadata,
-        Principal.DomainFormat.DNS);
+        Principal.DomainFormat.DNS, journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
     String request
@@ -394,7 +397,7 @@ public class SamlBatchAuthzHandlerTest {
     };
     SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
         adaptor, new MockDocIdCodec(), samlMetadata,
-        Principal.DomainFormat.DNS);
+        Principal.DomainFormat.DNS, journal);
     MockHttpExchange ex = new MockHttpExchange("POST", "/",
         new MockHttpContext(handler, "/"));
     String request
@@ -561,6 +564,63 @@ public class SamlBatchAuthzHandlerTest {
     assertEquals(400, ex.getResponseCode());
   }
 
+  @Test
+  public void testNamespacesDeclaredOnEnvelope() throws Exception {
+    String request
+        = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<soap11:Envelope "
+        +   "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" "
+        +   "xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" "
+        +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<soap11:Header>"
+        +   "<Ignored xmlns=\"urn:example\"><Nested/></Ignored>"
+        + "</soap11:Header>"
+        + "<soap11:Body>\n"
+        + "<samlp:AuthzDecisionQuery "
+        +   "ID=\"aoeuaoeu\" "
+        +   "IssueInstant=\"2009-10-20T17:52:29Z\" "
+        +   "Version=\"2.0\" "
+        +   "Resource=\"http://localhost/doc/1234\">"
+        +   "<saml:Subject>"
+        +     "<saml:NameID>" + DEFAULT_SUBJECT + "</saml:NameID>"
+        +   "</saml:Subject>"
+        + "</samlp:AuthzDecisionQuery>\n"
+        + generateAuthzDecisionQuery("http://localhost/doc/1235",
+                                     "aoeuaoeu2", DEFAULT_SUBJECT, null)
+        + SOAP_FOOTER;
+    String goldenResponse
+        = SOAP_HEADER
+        + generateGoldenResponse("http://localhost/doc/1234",
+                                 "aoeuaoeu", DEFAULT_SUBJECT, "Permit")
+        + generateGoldenResponse("http://localhost/doc/1235",
+                                 "aoeuaoeu2", DEFAULT_SUBJECT, "Permit")
+        + SOAP_FOOTER;
+    ex.setRequestBody(stringToStream(request));
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    String response = new String(ex.getResponseBytes(), charset);
+    response = massageResponse(response);
+    assertEquals(goldenResponse, response);
+  }
+
+  @Test
+  public void testMustUnderstandHeader() throws Exception {
+    String request
+        = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<soap11:Envelope "
+        +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<soap11:Header>"
+        +   "<Unknown soap11:mustUnderstand=\"1\" xmlns=\"urn:example\"/>"
+        + "</soap11:Header>"
+        + "<soap11:Body>"
+        + generateAuthzDecisionQuery("http://localhost/doc/1234",
+                                     "aoeuaoeu", DEFAULT_SUBJECT, null)
+        + SOAP_FOOTER;
+    ex.setRequestBody(stringToStream(request));
+    handler.handle(ex);
+    assertEquals(400, ex.getResponseCode());
+  }
+
   @Test
   public void testNoResource() throws Exception {
     String request
@@ -26,6 +26,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Test cases for {@link SessionManager}.
  */
@@ -110,6 +113,60 @@ public class SessionManagerTest {
     assertNotSame(sess1, sess2);
   }
 
+  @Test
+  public void testExpiredSessionsCleanedUpOverManyPeriods() {
+    Reference ref1 = new Reference();
+    sessionManager.getSession(ref1);
+    timeProvider.time += 600;
+    Reference ref2 = new Reference();
+    sessionManager.getSession(ref2);
+    timeProvider.time += 600;
+    // Keeps ref2 alive across periods.
+    assertNotNull(sessionManager.getSession(ref2, false));
+    timeProvider.time += 600;
+    sessionManager.getSession(new Reference());
+    assertEquals(2, sessionManager.getSessionCount());
+    assertNull(sessionManager.getSession(ref1, false));
+    assertNotNull(sessionManager.getSession(ref2, false));
+  }
+
+  @Test
+  public void testRandomIdentifiersDiffer() {
+    assertNotSame(sessionManager.generateRandomIdentifier(),
+        sessionManager.generateRandomIdentifier());
+    assertEquals(24, sessionManager.generateRandomIdentifier().length());
+  }
+
+  @Test
+  public void testSessionShared() {
+    MapSessionStore store = new MapSessionStore();
+    SessionManager<Reference> node1 = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), store, 1000, 500);
+    SessionManager<Reference> node2 = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), store, 1000, 500);
+    Reference ref = new Reference();
+    node1.getSession(ref).setAttribute("name", "value");
+
+    Session shared = node2.getSession(ref, false);
+    assertNotNull(shared);
+    assertEquals("value", shared.getAttribute("name"));
+    shared.removeAttribute("name");
+    assertEquals(0, store.attributes.get(ref.ref).size());
+  }
+
+  @Test
+  public void testSharedSessionExpires() {
+    MapSessionStore store = new MapSessionStore();
+    SessionManager<Reference> node1 = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), store, 1000, 500);
+    SessionManager<Reference> node2 = new SessionManager<Reference>(
+        timeProvider, new ReferenceClientStore(), store, 1000, 500);
+    Reference ref = new Reference();
+    node1.getSession(ref);
+    timeProvider.time += 1000;
+    assertNull(node2.getSession(ref, false));
+  }
+
   @Test
   public void testHttpExchangeClientStoreInitNull() {
     thrown.expect(NullPointerException.class);
@@ -142,6 +199,32 @@ public class SessionManagerTest {
     }
   }
 
+  private static class MapSessionStore
+      implements SessionManager.SessionStore {
+    final Map<String, Map<String, Object>> attributes
+        = new HashMap<String, Map<String, Object>>();
+    final Map<String, Long> lastAccess = new HashMap<String, Long>();
+
+    @Override
+    public Map<String, Object> load(String id, long lastAccessLimit) {
+      Long accessed = lastAccess.get(id);
+      if (accessed == null || lastAccessLimit > accessed) {
+        return null;
+      }
+      return attributes.get(id);
+    }
+
+    @Override
+    public void save(String id, Map<String, Object> attributes,
+        long lastAccess) {
+      this.attributes.put(id, attributes);
+      this.lastAccess.put(id, lastAccess);
+    }
+
+    @Override
+    public void removeExpired(long lastAccessLimit) {}
+  }
+
   private static class Reference {
     public Object ref;
   }
@@ -46,6 +46,14 @@ public class StatRpcMethodTest {
       simpleStats.put("numUniqueDocIdsPushed", 0L);
       simpleStats.put("numUniqueGsaRequests", 0L);
       simpleStats.put("numUniqueNonGsaRequests", 0L);
+      simpleStats.put("numDocumentCacheHits", 0L);
+      simpleStats.put("numDocumentCacheMisses", 0L);
+      simpleStats.put("numAuthzCacheHits", 0L);
+      simpleStats.put("numAuthzCacheMisses", 0L);
+      List<Long> zeroByDepth
+          = Collections.nCopies(CachingBatchRetriever.MAX_DEPTH + 1, 0L);
+      simpleStats.put("numAclCacheHits", zeroByDepth);
+      simpleStats.put("numAclCacheMisses", zeroByDepth);
       simpleStats.put("timeResolution", 1L);
       simpleStats.put("lastSuccessfulFullPushStart", 0L);
       simpleStats.put("lastSuccessfulFullPushEnd", 0L);
@@ -62,6 +70,14 @@ public class StatRpcMethodTest {
       simpleStats.put("whenStarted", 0L);
       golden.put("simpleStats", simpleStats);
 
+      Map<String, Object> topStats = new HashMap<String, Object>();
+      topStats.put("mostPushedDocIds", Collections.emptyList());
+      topStats.put("mostGsaRequestedDocIds", Collections.emptyList());
+      topStats.put("mostNonGsaRequestedDocIds", Collections.emptyList());
+      topStats.put("mostPushedGroups", Collections.emptyList());
+      topStats.put("largestGroupsPushed", Collections.emptyList());
+      golden.put("topStats", topStats);
+
       Locale locale = Locale.ENGLISH;
       Map<String, Object> versionMap = new HashMap<String, Object>();
       versionMap.put("versionJvm", System.getProperty("java.version"));
@@ -88,6 +104,7 @@ public class StatRpcMethodTest {
       data.put("requestProcessingsThroughput", 0L);
       data.put("groupsPushed", 0L);
       data.put("membersPushed", 0L);
+      data.put("latencies", Collections.emptyMap());
       data.put("time", -100L);
       datas.add(data);
       data = new HashMap<String, Object>();
@@ -97,11 +114,13 @@ public class StatRpcMethodTest {
       data.put("requestProcessingsThroughput", 0L);
       data.put("groupsPushed", 0L);
       data.put("membersPushed", 0L);
+      data.put("latencies", Collections.emptyMap());
       data.put("time", 0L);
       datas.add(data);
       stat.put("statData", datas);
       stats.add(stat);
       golden.put("stats", stats);
+      golden.put("transformStats", Collections.emptyList());
 
       golden = Collections.unmodifiableMap(golden);
     }
@@ -117,7 +136,7 @@ public class StatRpcMethodTest {
 
     @Override
     JournalSnapshot getSnapshot() {
-      return new JournalSnapshot(this, 0, new Stats[] {
+      return new JournalSnapshot(this, new Counters(), 0, new Stats[] {
         new Stats(2, 100, 0),
       });
     }
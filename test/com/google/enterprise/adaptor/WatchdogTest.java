@@ -14,6 +14,7 @@
 
 package com.google.enterprise.adaptor;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
@@ -59,6 +60,23 @@ public class WatchdogTest {
     }
   }
 
+  @Test
+  public void testTimeoutCount() throws InterruptedException {
+    watchdog = new Watchdog(executor);
+    watchdog.processingStarting(10000);
+    watchdog.processingCompleted();
+    assertEquals(0, watchdog.getTimeoutCount());
+    watchdog.processingStarting(1);
+    try {
+      Thread.sleep(1000);
+    } catch (InterruptedException ex) {
+      // Expected.
+    } finally {
+      watchdog.processingCompleted();
+    }
+    assertEquals(1, watchdog.getTimeoutCount());
+  }
+
   @Test
   public void testDifferentThread() throws InterruptedException {
     watchdog = new Watchdog(executor);
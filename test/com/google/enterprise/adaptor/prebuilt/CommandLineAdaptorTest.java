@@ -18,6 +18,7 @@ import static com.google.enterprise.adaptor.TestHelper.getDocIds;
 import static java.util.Map.Entry;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import com.google.enterprise.adaptor.AuthnIdentity;
 import com.google.enterprise.adaptor.AuthzStatus;
@@ -26,6 +27,7 @@ import com.google.enterprise.adaptor.DocRequest;
 import com.google.enterprise.adaptor.GroupPrincipal;
 import com.google.enterprise.adaptor.Metadata;
 import com.google.enterprise.adaptor.Request;
+import com.google.enterprise.adaptor.TestHelper;
 import com.google.enterprise.adaptor.UserPrincipal;
 import com.google.enterprise.adaptor.prebuilt.StreamingCommand.InputSource;
 import com.google.enterprise.adaptor.prebuilt.StreamingCommand.OutputSink;
@@ -323,4 +325,89 @@ public class CommandLineAdaptorTest {
       }
     }
   }
+
+  /**
+   * Retriever worker answering with its pid as content, or with the wrong document if asked for
+   * "bad".
+   */
+  private static final String RETRIEVER_WORKER = "while read len; do"
+      + "  id=$(head -c \"$len\" | sed -n 's/^id=//p');"
+      + "  if [ \"$id\" = bad ]; then id=other; fi;"
+      + "  resp=$(printf 'GSA Adaptor Data Version 1 [\\n]\\nid=%s\\ncontent\\n%s' \"$id\" $$);"
+      + "  printf '%s\\n%s' ${#resp} \"$resp\";"
+      + " done";
+
+  @Test
+  public void testRetrieverWorker() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    CommandLineAdaptor adaptor = new CommandLineAdaptor();
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("commandline.lister.cmd", "true");
+    config.put("commandline.retriever.cmd", "/bin/sh");
+    config.put("commandline.retriever.arg1", "-c");
+    config.put("commandline.retriever.arg2", RETRIEVER_WORKER);
+    config.put("commandline.retriever.workers", "1");
+    getDocIds(adaptor, config);
+    try {
+      String first = retrieveContent(adaptor, "1001");
+      try {
+        retrieveContent(adaptor, "bad");
+        fail("IOException expected");
+      } catch (IOException ex) {
+        // Expected.
+      }
+      // The same worker handles each request, despite the invalid response.
+      assertEquals(first, retrieveContent(adaptor, "1002"));
+    } finally {
+      adaptor.destroy();
+    }
+  }
+
+  @Test
+  public void testAuthorizerWorker() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    CommandLineAdaptor adaptor = new CommandLineAdaptor();
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("commandline.lister.cmd", "true");
+    config.put("commandline.retriever.cmd", "true");
+    config.put("commandline.authorizer.cmd", "/bin/sh");
+    config.put("commandline.authorizer.arg1", "-c");
+    config.put("commandline.authorizer.arg2", "while read len; do"
+        + "  head -c \"$len\" > /dev/null;"
+        + "  resp='GSA Adaptor Data Version 1 [|]|id=1001|authz-status=PERMIT|';"
+        + "  printf '%s\\n%s' ${#resp} \"$resp\";"
+        + " done");
+    config.put("commandline.authorizer.workers", "2");
+    getDocIds(adaptor, config);
+    final UserPrincipal user = new UserPrincipal("user1");
+    AuthnIdentity identity = new AuthnIdentity() {
+      @Override
+      public UserPrincipal getUser() {
+        return user;
+      }
+      @Override
+      public String getPassword() {
+        return null;
+      }
+      @Override
+      public Set<GroupPrincipal> getGroups() {
+        return null;
+      }
+    };
+    try {
+      for (int i = 0; i < 3; i++) {
+        assertEquals(Collections.singletonMap(new DocId("1001"), AuthzStatus.PERMIT),
+            adaptor.isUserAuthorized(identity, Arrays.asList(new DocId("1001"))));
+      }
+    } finally {
+      adaptor.destroy();
+    }
+  }
+
+  private static String retrieveContent(CommandLineAdaptor adaptor, String id)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    adaptor.getDocContent(new DocRequest(new DocId(id)), new RecordingResponse(baos));
+    return baos.toString("US-ASCII");
+  }
 }
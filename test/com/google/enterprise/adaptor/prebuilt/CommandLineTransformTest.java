@@ -24,6 +24,7 @@ import org.junit.Test;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -80,4 +81,31 @@ public class CommandLineTransformTest {
     assertEquals("value3", params.get("key3"));
     assertEquals(1, params.size());
   }
+
+  @Test
+  public void testWorkers() throws IOException {
+    TestHelper.assumeOsIsNotWindows();
+
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("cmd", "cat");
+    config.put("workers", "2");
+    CommandLineTransform cmd = CommandLineTransform.create(config);
+    assertEquals(2, cmd.getWorkers());
+    try {
+      for (int i = 0; i < 3; i++) {
+        Metadata metadata = new Metadata();
+        metadata.add("metaKey1", "metaValue" + i);
+        metadata.add("metaKey1", "other");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("key1", "value" + i);
+        Metadata golden = new Metadata(metadata);
+        cmd.transform(metadata, params);
+
+        assertEquals(golden, metadata);
+        assertEquals(Collections.singletonMap("key1", "value" + i), params);
+      }
+    } finally {
+      cmd.close();
+    }
+  }
 }
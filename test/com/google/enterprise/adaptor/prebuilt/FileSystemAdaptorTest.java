@@ -0,0 +1,127 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.PollingIncrementalLister;
+import com.google.enterprise.adaptor.TestHelper;
+import com.google.enterprise.adaptor.testing.RecordingDocIdPusher;
+import com.google.enterprise.adaptor.testing.UnsupportedAdaptorContext;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link FileSystemAdaptor}.
+ */
+public class FileSystemAdaptorTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testGetDocIds() throws Exception {
+    temp.newFile("file1");
+    temp.newFolder("dir1", "dir2");
+    temp.newFile("dir1/file2");
+    temp.newFile("dir1/dir2/file3");
+    temp.newFile("dir1/dir2/excluded");
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("filesystemadaptor.src", temp.getRoot().getPath());
+    config.put("filesystemadaptor.exclude", "excluded");
+    config.put("feed.maxUrls", "2");
+
+    List<DocId> docIds = new ArrayList<DocId>(
+        TestHelper.getDocIds(new FileSystemAdaptor(), config));
+    Collections.sort(docIds);
+    assertEquals(Arrays.asList(
+        new DocId("dir1" + File.separator + "dir2" + File.separator + "file3"),
+        new DocId("dir1" + File.separator + "file2"),
+        new DocId("file1")), docIds);
+  }
+
+  @Test
+  public void testIncrementalDisabledByDefault() throws Exception {
+    RecordingContext context = new RecordingContext(temp.getRoot());
+    new FileSystemAdaptor().init(context);
+    assertNull(context.lister);
+  }
+
+  @Test
+  public void testModifiedDocIds() throws Exception {
+    long old = System.currentTimeMillis() - 24 * 60 * 60 * 1000;
+    temp.newFolder("unchanged");
+    setLastModified(temp.newFile("unchanged/old"), old);
+    setLastModified(temp.newFile("unchanged/modified"), old);
+    setLastModified(new File(temp.getRoot(), "unchanged"), old);
+    temp.newFolder("added");
+    setLastModified(temp.newFile("added/moved"), old);
+    RecordingContext context = new RecordingContext(temp.getRoot());
+    context.config.overrideKey("filesystemadaptor.incremental", "true");
+    new FileSystemAdaptor().init(context);
+
+    setLastModified(new File(temp.getRoot(), "unchanged/modified"),
+        System.currentTimeMillis());
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+    context.lister.getModifiedDocIds(pusher);
+
+    List<DocId> docIds = new ArrayList<DocId>(pusher.getDocIds());
+    Collections.sort(docIds);
+    assertEquals(Arrays.asList(
+        new DocId("added" + File.separator + "moved"),
+        new DocId("unchanged" + File.separator + "modified")), docIds);
+    for (DocIdPusher.Record record : pusher.getRecords()) {
+      assertTrue(record.isToBeCrawledImmediately());
+    }
+  }
+
+  private static void setLastModified(File file, long time) {
+    assertTrue(file.setLastModified(time));
+  }
+
+  private static class RecordingContext extends UnsupportedAdaptorContext {
+    final Config config = new Config();
+    PollingIncrementalLister lister;
+
+    RecordingContext(File src) {
+      new FileSystemAdaptor().initConfig(config);
+      config.overrideKey("filesystemadaptor.src", src.getPath());
+    }
+
+    @Override
+    public Config getConfig() {
+      return config;
+    }
+
+    @Override
+    public void setPollingIncrementalLister(PollingIncrementalLister lister) {
+      this.lister = lister;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link ParallelFileWalker}.
+ */
+public class ParallelFileWalkerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private static final FileFilter ACCEPT_ALL = new FileFilter() {
+    @Override
+    public boolean accept(File file) {
+      return true;
+    }
+  };
+
+  @Test
+  public void testInvalidChunkSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new ParallelFileWalker(1, 0);
+  }
+
+  @Test
+  public void testWalk() throws Exception {
+    File root = temp.getRoot();
+    temp.newFile("file1");
+    temp.newFolder("dir1", "dir2");
+    temp.newFolder("empty");
+    temp.newFile("dir1/file2");
+    temp.newFile("dir1/dir2/file3");
+    temp.newFile("dir1/dir2/skipped");
+    temp.newFile("dir1/dir2/file4");
+    FileFilter filter = new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return !file.getName().equals("skipped");
+      }
+    };
+    RecordingHandler handler = new RecordingHandler();
+    new ParallelFileWalker(3, 2).walk(root, filter, handler);
+
+    assertEquals(new HashSet<File>(Arrays.asList(
+        new File(root, "file1"),
+        new File(root, "dir1/file2"),
+        new File(root, "dir1/dir2/file3"),
+        new File(root, "dir1/dir2/file4"))), handler.files);
+    assertEquals(2, handler.chunks);
+    assertEquals(2, handler.largestChunk);
+  }
+
+  @Test
+  public void testEmptyDirectory() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    new ParallelFileWalker(1, 5).walk(temp.getRoot(), ACCEPT_ALL, handler);
+    assertEquals(0, handler.chunks);
+  }
+
+  @Test
+  public void testUnlistableDirectory() throws Exception {
+    temp.newFile("file1");
+    File unlistable = new File(temp.getRoot(), "missing") {
+      @Override
+      public File[] listFiles() {
+        // Indicates error
+        return null;
+      }
+    };
+    thrown.expect(IOException.class);
+    new ParallelFileWalker(2, 5).walk(unlistable, ACCEPT_ALL,
+        new RecordingHandler());
+  }
+
+  @Test
+  public void testHandlerException() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      temp.newFile("file" + i);
+    }
+    thrown.expect(IOException.class);
+    new ParallelFileWalker(2, 1).walk(temp.getRoot(), ACCEPT_ALL,
+        new ParallelFileWalker.Handler() {
+          @Override
+          public void handle(List<File> files) throws IOException {
+            throw new IOException("push failed");
+          }
+        });
+  }
+
+  private static class RecordingHandler implements ParallelFileWalker.Handler {
+    final Set<File> files = new HashSet<File>();
+    int chunks;
+    int largestChunk;
+
+    @Override
+    public void handle(List<File> chunk) {
+      files.addAll(chunk);
+      chunks++;
+      largestChunk = Math.max(largestChunk, chunk.size());
+    }
+  }
+}
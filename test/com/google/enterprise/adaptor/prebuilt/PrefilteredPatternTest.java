@@ -0,0 +1,59 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+/**
+ * Tests for {@link PrefilteredPattern}.
+ */
+public class PrefilteredPatternTest {
+  @Test
+  public void testRequiredLiteral() {
+    assertEquals("PUBLIC", literal("PUBLIC"));
+    assertEquals("abc", literal("abc.*"));
+    assertEquals("ab", literal("abc?d"));
+    assertEquals("ab", literal("abc{2}"));
+    assertEquals("", literal("(PUBLIC)|(DECLASSIFIED)"));
+    assertEquals("", literal("PUBLIC|DECLASSIFIED"));
+    assertEquals("", literal("^abc"));
+    assertEquals("", literal("\\Aabc"));
+    assertEquals("", literal("0*[1-9][0-9]{8,}"));
+    assertEquals("", PrefilteredPattern.requiredLiteral(
+        Pattern.compile("abc", Pattern.CASE_INSENSITIVE)));
+  }
+
+  @Test
+  public void testFindSameAsPattern() {
+    String[] regexes = {"PUBLIC", "abc?d", "b+", "(?i)public", "\\A", "x*"};
+    String[] values = {"", "PUBLIC", "public", "abd", "abcd", "xab", "bbb"};
+    for (String regex : regexes) {
+      Pattern pattern = Pattern.compile(regex);
+      PrefilteredPattern prefiltered = new PrefilteredPattern(pattern);
+      for (String value : values) {
+        assertEquals(regex + " on " + value, pattern.matcher(value).find(),
+            prefiltered.find(value));
+      }
+    }
+  }
+
+  private static String literal(String regex) {
+    return PrefilteredPattern.requiredLiteral(Pattern.compile(regex));
+  }
+}
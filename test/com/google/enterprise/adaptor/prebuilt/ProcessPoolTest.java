@@ -0,0 +1,135 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.prebuilt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.adaptor.TestHelper;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link ProcessPool}.
+ */
+public class ProcessPoolTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  /** Answers each line with its pid and the line, until told to exit. */
+  private static final List<String> ECHO_PID = Arrays.asList("/bin/sh", "-c",
+      "while read line; do"
+      + "  if [ \"$line\" = exit ]; then exit 1; fi;"
+      + "  if [ \"$line\" = sleep ]; then sleep 10; fi;"
+      + "  echo \"$$ $line\";"
+      + " done");
+
+  private ProcessPool pool;
+
+  @After
+  public void close() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void testEmptyCommand() {
+    thrown.expect(IllegalArgumentException.class);
+    new ProcessPool(Collections.<String>emptyList(), null, 1, 1000);
+  }
+
+  @Test
+  public void testZeroSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new ProcessPool(ECHO_PID, null, 0, 1000);
+  }
+
+  @Test
+  public void testProcessReused() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    pool = new ProcessPool(ECHO_PID, null, 1, 10000);
+    String[] first = pool.execute(new LineExchange("a")).split(" ");
+    String[] second = pool.execute(new LineExchange("b")).split(" ");
+    assertEquals("a", first[1]);
+    assertEquals("b", second[1]);
+    assertEquals(first[0], second[0]);
+  }
+
+  @Test
+  public void testRestartedAfterExit() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    pool = new ProcessPool(ECHO_PID, null, 1, 10000);
+    String pid = pool.execute(new LineExchange("a")).split(" ")[0];
+    try {
+      pool.execute(new LineExchange("exit"));
+      fail("IOException expected");
+    } catch (IOException ex) {
+      // Expected.
+    }
+    String[] after = pool.execute(new LineExchange("b")).split(" ");
+    assertEquals("b", after[1]);
+    assertFalse(pid.equals(after[0]));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    pool = new ProcessPool(ECHO_PID, null, 1, 200);
+    try {
+      pool.execute(new LineExchange("sleep"));
+      fail("IOException expected");
+    } catch (IOException ex) {
+      // Expected.
+    }
+    assertEquals("c", pool.execute(new LineExchange("c")).split(" ")[1]);
+  }
+
+  /** Writes a line and reads the response line. */
+  private static class LineExchange implements ProcessPool.Exchange<String> {
+    private final String line;
+
+    LineExchange(String line) {
+      this.line = line;
+    }
+
+    @Override
+    public String exchange(OutputStream stdin, InputStream stdout)
+        throws IOException {
+      stdin.write((line + "\n").getBytes("US-ASCII"));
+      stdin.flush();
+      // Reads byte by byte, so nothing after the line is consumed.
+      StringBuilder sb = new StringBuilder();
+      for (int b; (b = stdout.read()) != '\n';) {
+        if (b == -1) {
+          throw new IOException("Process exited");
+        }
+        sb.append((char) b);
+      }
+      return sb.toString();
+    }
+  }
+}